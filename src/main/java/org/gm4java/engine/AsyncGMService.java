@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A {@link GMService} that can also execute commands asynchronously. The calling thread is never blocked waiting for
+ * the GraphicsMagick process, the command is queued and the returned {@link CompletableFuture} is completed by the
+ * service once the result is available.
+ * <p>
+ * The future completes exceptionally with the same exceptions the synchronous counterparts would throw, i.e.
+ * {@link java.io.IOException}, {@link GMException} or {@link GMServiceException}.
+ * <p>
+ * Implementations of this interface must ensure all the methods defined in this interface are thread safe.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public interface AsyncGMService extends GMService {
+    /**
+     * Queues the GraphicsMagick command for execution and returns immediately.
+     *
+     * @param command
+     *            the command to be executed
+     * @param arguments
+     *            arguments of the command.
+     * @return a future of the output from GraphicsMagick as the result of executing the command
+     * @throws NullPointerException
+     *             when command is null
+     * @see #execute(String, String...)
+     */
+    @Nonnull
+    CompletableFuture<String> executeAsync(@Nonnull String command, String... arguments);
+
+    /**
+     * Queues the GraphicsMagick command for execution and returns immediately. GraphicsMagick command and its
+     * arguments are passed in as a list of strings.
+     *
+     * @param command
+     *            the command and arguments to be executed
+     * @return a future of the output from GraphicsMagick as the result of executing the command
+     * @throws NullPointerException
+     *             when command is null
+     * @throws IllegalArgumentException
+     *             when command is an empty list.
+     * @see #execute(List)
+     */
+    @Nonnull
+    CompletableFuture<String> executeAsync(@Nonnull List<String> command);
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine;
+
+import java.io.IOException;
+
+/**
+ * Receives the output of a GraphicsMagick command as it arrives from the process, instead of having the whole output
+ * buffered into one {@link String}.
+ * <p>
+ * The bytes are passed in exactly as written by GraphicsMagick, without the pass/fail marker and the line separator
+ * preceding it. They are in the charset used to communicate with GraphicsMagick, and a chunk may end in the middle of
+ * a line or even a multi-byte character.
+ * 
+ * @author Kenneth Xu
+ * 
+ */
+public interface GMOutputConsumer {
+    /**
+     * Consumes the next chunk of output. The content of the buffer is only valid during the call.
+     * <p>
+     * If this method throws, it is not called again for the same command. The rest of the output is discarded and the
+     * exception is rethrown to the caller of the execute method once the command is completed, so the GraphicsMagick
+     * process can still be reused.
+     * 
+     * @param buffer
+     *            the buffer holding the output
+     * @param offset
+     *            the start of the output in the buffer
+     * @param length
+     *            the number of bytes of output
+     * @throws IOException
+     *             when error processing the output
+     */
+    void consume(byte[] buffer, int offset, int length) throws IOException;
+}
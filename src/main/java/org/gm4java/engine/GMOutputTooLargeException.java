@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine;
+
+/**
+ * Indicates the output of a command exceeded the configured maximum size. The output was read and discarded up to the
+ * end of the command, so the GraphicsMagick process itself is still good to use.
+ * 
+ * @author Kenneth Xu
+ * 
+ */
+public class GMOutputTooLargeException extends GMServiceException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long limit;
+
+    /**
+     * Constructs a new exception with given message and the limit that was exceeded.
+     * 
+     * @param message
+     *            the detailed message of the exception.
+     * @param limit
+     *            the maximum output size in bytes
+     */
+    public GMOutputTooLargeException(String message, long limit) {
+        super(message);
+        this.limit = limit;
+    }
+
+    /**
+     * Gets the maximum output size that was exceeded.
+     * 
+     * @return the maximum output size in bytes
+     */
+    public long getLimit() {
+        return limit;
+    }
+}
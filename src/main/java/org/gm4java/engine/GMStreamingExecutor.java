@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A {@link GMExecutor} that can also stream the output of a command to a {@link GMOutputConsumer}, so that a command
+ * producing large output, e.g. <code>identify -verbose</code> on an animation with many frames, doesn't need to hold
+ * all of it in memory at once.
+ * 
+ * @author Kenneth Xu
+ * 
+ */
+public interface GMStreamingExecutor extends GMExecutor {
+    /**
+     * Executes the command using the underlying GraphicsMagick process and streams the output to the consumer.
+     * 
+     * @param consumer
+     *            the consumer to receive the output
+     * @param command
+     *            the command to be executed
+     * @param arguments
+     *            arguments of the command.
+     * @throws NullPointerException
+     *             when consumer or command is null
+     * @throws IOException
+     *             when GM encounter IO error executing the command, or the consumer failed
+     * @throws GMException
+     *             when GraphicsMagick returns non-IO error executing the command
+     * @throws GMServiceException
+     *             when there is error communicating with the underlying GraphicsMagick process
+     * @see #execute(String, String...)
+     */
+    void execute(@Nonnull GMOutputConsumer consumer, @Nonnull String command, String... arguments)
+            throws IOException, GMException, GMServiceException;
+
+    /**
+     * Executes the command using the underlying GraphicsMagick process and streams the output to the consumer.
+     * GraphicsMagick command and its arguments are passed in as a list of strings.
+     * 
+     * @param consumer
+     *            the consumer to receive the output
+     * @param command
+     *            the command and arguments to be executed
+     * @throws NullPointerException
+     *             when consumer or command is null
+     * @throws IllegalArgumentException
+     *             when command is an empty list.
+     * @throws IOException
+     *             when GM encounter IO error executing the command, or the consumer failed
+     * @throws GMException
+     *             when GraphicsMagick returns non-IO error executing the command
+     * @throws GMServiceException
+     *             when there is error communicating with the underlying GraphicsMagick process
+     * @see #execute(List)
+     */
+    void execute(@Nonnull GMOutputConsumer consumer, @Nonnull List<String> command) throws IOException, GMException,
+            GMServiceException;
+}
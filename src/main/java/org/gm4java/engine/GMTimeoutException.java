@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine;
+
+/**
+ * Indicates GraphicsMagick didn't complete the command within the timeout. The GraphicsMagick process was destroyed,
+ * the connection that executed the command can no longer be used.
+ * 
+ * @author Kenneth Xu
+ * 
+ */
+public class GMTimeoutException extends GMServiceException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long timeout;
+
+    /**
+     * Constructs a new exception with given message and the timeout that expired.
+     * 
+     * @param message
+     *            the detailed message of the exception.
+     * @param timeout
+     *            the timeout in milliseconds
+     */
+    public GMTimeoutException(String message, long timeout) {
+        super(message);
+        this.timeout = timeout;
+    }
+
+    /**
+     * Gets the timeout that expired.
+     * 
+     * @return the timeout in milliseconds
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import org.gm4java.engine.GMOutputTooLargeException;
+import org.gm4java.engine.GMServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Queues commands submitted asynchronously and executes them on pooled GraphicsMagick processes using a small, fixed
+ * set of I/O threads. The threads are only started when the first command is submitted, and run until the dispatcher
+ * is {@link #close() closed}.
+ * <p>
+ * When the pipeline depth is greater than one, each I/O thread takes up to that many queued commands at once, writes
+ * all of them to the same GraphicsMagick process and then reads the results back in FIFO order.
+ *
+ * @author Kenneth Xu
+ *
+ */
+class AsyncCommandDispatcher {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncCommandDispatcher.class);
+
+    private final GMConnectionPool pool;
+    private final int threads;
+    private final int pipelineDepth;
+    private final ThreadFactory threadFactory;
+    private final BlockingQueue<Task> queue = new LinkedBlockingQueue<Task>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private volatile boolean started;
+    private volatile boolean closed;
+
+    AsyncCommandDispatcher(@Nonnull GMConnectionPool pool, int threads, int pipelineDepth) {
+        this(pool, threads, pipelineDepth, null);
+    }
+
+    AsyncCommandDispatcher(@Nonnull GMConnectionPool pool, int threads, int pipelineDepth,
+            @CheckForNull ThreadFactory threadFactory) {
+        if (pool == null) throw new NullPointerException("pool");
+        if (threads <= 0) throw new IllegalArgumentException("threads must be positive but was " + threads);
+        if (pipelineDepth <= 0) {
+            throw new IllegalArgumentException("pipelineDepth must be positive but was " + pipelineDepth);
+        }
+        this.pool = pool;
+        this.threads = threads;
+        this.pipelineDepth = pipelineDepth;
+        this.threadFactory = threadFactory == null ? new NamedThreadFactory("async") : threadFactory;
+    }
+
+    /**
+     * Queues the command for execution.
+     *
+     * @param command
+     *            the raw command line, or null when all parts are in arguments
+     * @param arguments
+     *            arguments to be quoted and sent to GraphicsMagick
+     * @return the future of the command output
+     */
+    @Nonnull
+    CompletableFuture<String> submit(@CheckForNull String command, @Nonnull List<String> arguments) {
+        Task task = new Task(command, arguments);
+        if (closed || !ensureStarted()) {
+            task.future.completeExceptionally(closedException());
+            return task.future;
+        }
+        queue.add(task);
+        // closed while adding, the queue may have been drained already
+        if (closed && queue.remove(task)) task.future.completeExceptionally(closedException());
+        return task.future;
+    }
+
+    /**
+     * Stops the I/O threads once they complete the commands they are executing. Commands still queued, and those
+     * submitted afterwards, fail with {@link GMServiceException}.
+     */
+    void close() {
+        lock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            for (Thread worker : workers)
+                worker.interrupt();
+        } finally {
+            lock.unlock();
+        }
+        Task task;
+        while ((task = queue.poll()) != null)
+            task.future.completeExceptionally(closedException());
+    }
+
+    int getThreads() {
+        return threads;
+    }
+
+    int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /**
+     * Starts the I/O threads unless they are started already.
+     * 
+     * @return false if the dispatcher is closed
+     */
+    private boolean ensureStarted() {
+        if (started) return true;
+        lock.lock();
+        try {
+            if (closed) return false;
+            if (started) return true;
+            for (int i = 0; i < threads; i++) {
+                Thread worker = threadFactory.newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        dispatch();
+                    }
+                });
+                workers.add(worker);
+                worker.start();
+            }
+            started = true;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void dispatch() {
+        final List<Task> batch = new ArrayList<Task>(pipelineDepth);
+        try {
+            while (!closed && !Thread.currentThread().isInterrupted()) {
+                batch.add(queue.take());
+                if (pipelineDepth > 1) queue.drainTo(batch, pipelineDepth - 1);
+                execute(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void execute(List<Task> batch) {
+        final PooledGMConnection connection;
+        try {
+            connection = pool.borrowObject();
+        } catch (Throwable e) {
+            for (Task task : batch) task.future.completeExceptionally(e);
+            return;
+        }
+        try {
+            if (batch.size() == 1) {
+                Task task = batch.get(0);
+                // skip if cancelled by the caller while waiting in queue
+                if (!task.future.isDone()) execute(connection, task);
+            } else {
+                pipeline(connection, batch);
+            }
+        } finally {
+            try {
+                pool.returnObject(connection);
+            } catch (Exception e) {
+                LOGGER.warn("Failed to return connection to pool: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private static void execute(PooledGMConnection connection, Task task) {
+        try {
+            task.future.complete(connection.execute(task.command, task.arguments));
+        } catch (Throwable e) {
+            task.future.completeExceptionally(e);
+        }
+    }
+
+    private static void pipeline(PooledGMConnection connection, List<Task> batch) {
+        Throwable broken = null;
+        for (Task task : batch) {
+            if (task.future.isDone()) continue;
+            try {
+                connection.send(task.command, task.arguments);
+                task.sent = true;
+            } catch (Throwable e) {
+                broken = e;
+                break;
+            }
+        }
+        for (Task task : batch) {
+            if (!task.sent) {
+                if (broken != null) task.future.completeExceptionally(broken);
+                continue;
+            }
+            try {
+                // receive even when cancelled to keep the results in sync with the commands
+                task.future.complete(connection.receive());
+            } catch (GMOutputTooLargeException e) {
+                // the output was discarded up to the end of the command, the next result can still be received
+                task.future.completeExceptionally(e);
+            } catch (GMServiceException | RuntimeException | Error e) {
+                // the process is no longer usable, nothing more can be received from it
+                task.future.completeExceptionally(e);
+                failRemaining(batch, task, e);
+                return;
+            } catch (Throwable e) {
+                task.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static GMServiceException closedException() {
+        return new GMServiceException("GMService is closed.");
+    }
+
+    private static void failRemaining(List<Task> batch, Task failed, Throwable e) {
+        boolean after = false;
+        for (Task task : batch) {
+            if (after) task.future.completeExceptionally(e);
+            else after = task == failed;
+        }
+    }
+
+    private static final class Task {
+        private final String command;
+        private final List<String> arguments;
+        private final CompletableFuture<String> future = new CompletableFuture<String>();
+        private boolean sent;
+
+        private Task(String command, List<String> arguments) {
+            this.command = command;
+            this.arguments = arguments;
+        }
+    }
+}
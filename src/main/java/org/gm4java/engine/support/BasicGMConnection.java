@@ -17,11 +17,14 @@ package org.gm4java.engine.support;
 
 import org.gm4java.engine.GMConnection;
 import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMOutputConsumer;
+import org.gm4java.engine.GMOutputTooLargeException;
 import org.gm4java.engine.GMServiceException;
+import org.gm4java.engine.GMStreamingExecutor;
+import org.gm4java.engine.GMTimeoutException;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.List;
 
@@ -32,21 +35,39 @@ import javax.annotation.Nonnull;
  * 
  * A implementation of {@link GMConnection} that serves as base of other implementation, and also used by
  * {@link SimpleGMService}.
+ * <p>
+ * Besides the request/response style {@link #execute(List)}, commands can also be pipelined: several commands are
+ * {@link #send sent} ahead to the GraphicsMagick process and their results are {@link #receive received} later in the
+ * same FIFO order, matched by the pass/fail markers GraphicsMagick writes after each command. This keeps the process
+ * busy while the caller is still preparing the next command.
+ * <p>
+ * The output of a command is either returned as a {@link String}, limited by {@link #setMaxOutputSize(int)}, or
+ * streamed to a {@link GMOutputConsumer} as it arrives.
  * 
  * @author Kenneth Xu
  * 
  */
-class BasicGMConnection implements GMConnection {
+class BasicGMConnection implements GMConnection, GMStreamingExecutor {
     private static final List<String> empty = Arrays.asList(new String[0]);
-    private static final int NORMAL_BUFFER_SIZE = 4096;
-    private static final String EOL = System.getProperty("line.separator");
-    private static final int EOL_SIZE = EOL.length();
+    private final Charset charset;
+    private final CommandEncoder encoder;
     private ReaderWriterProcess process;
-    private final StringBuffer sb = new StringBuffer();
+    private ResultScanner scanner;
+    private int pending;
+    private int maxOutputSize;
+    private long timeout;
 
     public BasicGMConnection(@Nonnull ReaderWriterProcess process) throws GMServiceException {
+        this(process, Constants.DEFAULT_CHARSET);
+    }
+
+    public BasicGMConnection(@Nonnull ReaderWriterProcess process, @Nonnull Charset charset)
+            throws GMServiceException {
         if (process == null) throw new NullPointerException("process");
+        if (charset == null) throw new NullPointerException("charset");
         this.process = process;
+        this.charset = charset;
+        this.encoder = new CommandEncoder(charset);
     }
 
     @Override
@@ -60,7 +81,24 @@ class BasicGMConnection implements GMConnection {
     public final String execute(@Nonnull List<String> command) throws IOException, GMException, GMServiceException {
         if (command == null) throw new NullPointerException("Argument 'command' must not be null");
         if (command.size() == 0) throw new IllegalArgumentException("Argument 'command' must not be empty");
-        return execute(null, command);
+        return execute((String) null, command);
+    }
+
+    @Override
+    public final void execute(@Nonnull GMOutputConsumer consumer, @Nonnull String command,
+            @CheckForNull String... arguments) throws IOException, GMException, GMServiceException {
+        if (consumer == null) throw new NullPointerException("Argument 'consumer' must not be null");
+        if (command == null) throw new NullPointerException("Argument 'command' must not be null");
+        execute(consumer, command, arguments == null || arguments.length == 0 ? empty : Arrays.asList(arguments));
+    }
+
+    @Override
+    public final void execute(@Nonnull GMOutputConsumer consumer, @Nonnull List<String> command) throws IOException,
+            GMException, GMServiceException {
+        if (consumer == null) throw new NullPointerException("Argument 'consumer' must not be null");
+        if (command == null) throw new NullPointerException("Argument 'command' must not be null");
+        if (command.size() == 0) throw new IllegalArgumentException("Argument 'command' must not be empty");
+        execute(consumer, null, command);
     }
 
     @Override
@@ -72,75 +110,307 @@ class BasicGMConnection implements GMConnection {
 
     protected String execute(String command, @Nonnull List<String> arguments) throws IOException, GMException,
             GMServiceException {
-        if (process == null) throw new GMServiceException("GMConnection is already closed.");
+        return execute(command, arguments, timeout);
+    }
+
+    /**
+     * Executes the command with the given timeout instead of the one {@link #setTimeout set} on this connection.
+     * 
+     * @param command
+     *            the raw command line, or null when all parts are in arguments
+     * @param arguments
+     *            arguments to be quoted and sent to GraphicsMagick
+     * @param timeoutMillis
+     *            the maximum time in milliseconds to wait for the result, non-positive to wait forever
+     * @return the output from GraphicsMagick as the result of executing the command
+     * @throws IOException
+     *             when GM encounter IO error executing the command
+     * @throws GMException
+     *             when GraphicsMagick returns non-IO error executing the command
+     * @throws GMTimeoutException
+     *             when the command didn't complete in time, the GraphicsMagick process is destroyed
+     * @throws GMServiceException
+     *             when there is error communicating with the underlying GraphicsMagick process
+     */
+    String execute(String command, @Nonnull List<String> arguments, long timeoutMillis) throws IOException,
+            GMException, GMServiceException {
+        assertOpen();
+        assertNothingPending();
+        send(command, arguments);
+        return receive(null, true, timeoutMillis);
+    }
+
+    protected void execute(@Nonnull GMOutputConsumer consumer, String command, @Nonnull List<String> arguments)
+            throws IOException, GMException, GMServiceException {
+        assertOpen();
+        assertNothingPending();
+        send(command, arguments);
+        receive(consumer, false);
+    }
+
+    /**
+     * Sends the command to GraphicsMagick process without waiting for the result. The result must be retrieved later
+     * by calling {@link #receive()} once for each command sent, in the same order.
+     * 
+     * @param command
+     *            the raw command line, or null when all parts are in arguments
+     * @param arguments
+     *            arguments to be quoted and sent to GraphicsMagick
+     * @throws GMServiceException
+     *             when there is error communicating with the underlying GraphicsMagick process
+     */
+    void send(String command, @Nonnull List<String> arguments) throws GMServiceException {
+        assertOpen();
         sendCommand(command, arguments);
-        return readResult();
+        pending++;
+    }
+
+    /**
+     * Receives the result of the earliest command {@link #send sent} but not yet received.
+     * 
+     * @return the output from GraphicsMagick as the result of executing the command
+     * @throws IllegalStateException
+     *             when there is no command waiting for result
+     * @throws IOException
+     *             when GM encounter IO error executing the command
+     * @throws GMException
+     *             when GraphicsMagick returns non-IO error executing the command
+     * @throws GMServiceException
+     *             when there is error communicating with the underlying GraphicsMagick process
+     */
+    String receive() throws IOException, GMException, GMServiceException {
+        return receive(true);
+    }
+
+    /**
+     * Receives the result of the earliest command {@link #send sent} but not yet received, optionally skipping the
+     * decoding of a successful output that the caller doesn't need.
+     * 
+     * @param needOutput
+     *            false if the output of a successful command is not needed, in which case null is returned
+     * @return the output from GraphicsMagick as the result of executing the command, or null if the output is not
+     *         needed
+     * @throws IOException
+     *             when GM encounter IO error executing the command
+     * @throws GMException
+     *             when GraphicsMagick returns non-IO error executing the command
+     * @throws GMServiceException
+     *             when there is error communicating with the underlying GraphicsMagick process
+     */
+    String receive(boolean needOutput) throws IOException, GMException, GMServiceException {
+        return receive(null, needOutput);
+    }
+
+    /**
+     * Receives the result of the earliest command {@link #send sent} but not yet received, optionally streaming the
+     * output to the consumer.
+     * 
+     * @param consumer
+     *            the consumer to stream the output to, or null to collect the output into a string
+     * @param needOutput
+     *            false if the output of a successful command is not needed, in which case null is returned
+     * @return the output from GraphicsMagick as the result of executing the command, or null if the output is not
+     *         needed or was streamed to the consumer
+     * @throws IOException
+     *             when GM encounter IO error executing the command, or the consumer failed
+     * @throws GMException
+     *             when GraphicsMagick returns non-IO error executing the command
+     * @throws GMOutputTooLargeException
+     *             when the output exceeded the {@link #setMaxOutputSize maximum output size}
+     * @throws GMServiceException
+     *             when there is error communicating with the underlying GraphicsMagick process
+     */
+    String receive(@CheckForNull GMOutputConsumer consumer, boolean needOutput) throws IOException, GMException,
+            GMServiceException {
+        return receive(consumer, needOutput, timeout);
+    }
+
+    /**
+     * Receives the result of the earliest command {@link #send sent} but not yet received, waiting at most the given
+     * time. When it takes longer, the GraphicsMagick process is destroyed by the {@link Watchdog} and this connection
+     * can no longer be used.
+     * 
+     * @param consumer
+     *            the consumer to stream the output to, or null to collect the output into a string
+     * @param needOutput
+     *            false if the output of a successful command is not needed, in which case null is returned
+     * @param timeoutMillis
+     *            the maximum time in milliseconds to wait for the result, non-positive to wait forever
+     * @return the output from GraphicsMagick as the result of executing the command, or null if the output is not
+     *         needed or was streamed to the consumer
+     * @throws IOException
+     *             when GM encounter IO error executing the command, or the consumer failed
+     * @throws GMException
+     *             when GraphicsMagick returns non-IO error executing the command
+     * @throws GMOutputTooLargeException
+     *             when the output exceeded the {@link #setMaxOutputSize maximum output size}
+     * @throws GMTimeoutException
+     *             when the result didn't arrive in time
+     * @throws GMServiceException
+     *             when there is error communicating with the underlying GraphicsMagick process
+     */
+    String receive(@CheckForNull GMOutputConsumer consumer, boolean needOutput, long timeoutMillis)
+            throws IOException, GMException, GMServiceException {
+        assertOpen();
+        if (pending == 0) throw new IllegalStateException("No command was sent to receive the result for.");
+        pending--;
+        if (timeoutMillis <= 0) return readResult(consumer, needOutput);
+        final Watchdog.Watch watch = Watchdog.watch(process, timeoutMillis);
+        final String result;
+        try {
+            result = readResult(consumer, needOutput);
+        } catch (IOException | GMException | GMServiceException | RuntimeException | Error e) {
+            if (watch.cancel()) throw e;
+            throw timeout(timeoutMillis);
+        }
+        // the timeout may have expired after the result was read, the process is destroyed all the same
+        if (!watch.cancel()) throw timeout(timeoutMillis);
+        return result;
+    }
+
+    /**
+     * Sends a ping command to GraphicsMagick and waits for it to complete, without decoding the output.
+     * 
+     * @throws IOException
+     *             when GM encounter IO error executing the command
+     * @throws GMException
+     *             when GraphicsMagick returns non-IO error executing the command
+     * @throws GMServiceException
+     *             when there is error communicating with the underlying GraphicsMagick process
+     */
+    void ping() throws IOException, GMException, GMServiceException {
+        assertOpen();
+        assertNothingPending();
+        send("ping", empty);
+        receive(false);
+    }
+
+    /**
+     * Tells whether the GraphicsMagick process is still running, without sending it a command.
+     * 
+     * @return true if the connection is open and its process has not exited
+     */
+    boolean isAlive() {
+        final ReaderWriterProcess p = process;
+        return p != null && p.isAlive();
+    }
+
+    /**
+     * Gets the resident memory of the GraphicsMagick process.
+     * 
+     * @return the resident set size in bytes, or a negative value if it can't be determined
+     */
+    long getResidentSetSize() {
+        final ReaderWriterProcess p = process;
+        return p == null ? -1 : p.getResidentSetSize();
+    }
+
+    /**
+     * Gets the number of commands that were sent but their results are not yet received.
+     * 
+     * @return the number of commands in flight
+     */
+    int getPending() {
+        return pending;
+    }
+
+    /**
+     * Sets the maximum number of bytes of output a command can return as a string. When exceeded, the rest of the
+     * output is discarded and the command fails with {@link GMOutputTooLargeException}. It has no effect on the output
+     * streamed to a {@link GMOutputConsumer}.
+     * 
+     * @param maxOutputSize
+     *            the maximum output size in bytes, non-positive for no limit
+     */
+    void setMaxOutputSize(int maxOutputSize) {
+        this.maxOutputSize = maxOutputSize;
+    }
+
+    int getMaxOutputSize() {
+        return maxOutputSize;
+    }
+
+    /**
+     * Sets the maximum time to wait for the result of a command. When exceeded, the GraphicsMagick process is destroyed
+     * and the command fails with {@link GMTimeoutException}.
+     * 
+     * @param timeoutMillis
+     *            the timeout in milliseconds, non-positive to wait forever
+     */
+    void setTimeout(long timeoutMillis) {
+        this.timeout = timeoutMillis;
+    }
+
+    long getTimeout() {
+        return timeout;
+    }
+
+    private void assertOpen() throws GMServiceException {
+        if (process == null) throw new GMServiceException("GMConnection is already closed.");
+    }
+
+    private void assertNothingPending() {
+        if (pending > 0) throw new IllegalStateException(pending + " pipelined command(s) are waiting to be received.");
     }
 
     private void sendCommand(String command, @Nonnull List<String> arguments) throws GMServiceException {
-        Writer toGm = process.getWriter();
+        encoder.encode(command, arguments);
         try {
-            if (command != null) toGm.write(command);
-            for (String s : arguments) {
-                final byte quote = '"';
-                toGm.write(" ");
-                toGm.write(quote);
-                int start = 0, index = s.indexOf(quote);
-                if (index < 0) {
-                    toGm.write(s);
-                } else {
-                    do {
-                        toGm.write(s, start, ++index - start);
-                        toGm.write(quote);
-                        start = index;
-                        index = s.indexOf(quote, start);
-                    } while (index >= 0);
-                }
-                toGm.write(quote);
-            }
-            toGm.write(EOL);
-            toGm.flush();
+            encoder.writeTo(process.getOutputStream());
         } catch (IOException e) {
             throw new GMServiceException(e.getMessage(), e);
         }
     }
 
-    private String readResult() throws IOException, GMServiceException, GMException {
-        String line;
-        BufferedReader fromGm = process.getReader();
-        sb.setLength(0);
-        while ((line = readLine(fromGm)) != null) {
-            if (line.equals(Constants.GM_PASS)) {
-                return getGMOutput();
+    private String readResult(GMOutputConsumer consumer, boolean needOutput) throws IOException, GMServiceException,
+            GMException {
+        if (scanner == null) scanner = new ResultScanner(process.getInputStream());
+        final int status;
+        try {
+            status = scanner.scan(consumer, maxOutputSize);
+        } catch (IOException e) {
+            throw new GMServiceException(e.getMessage(), e);
+        }
+        if (status == ResultScanner.PASS) {
+            if (consumer != null) {
+                rethrowConsumerError(scanner.getConsumerError());
+                return null;
             }
-            if (line.equals(Constants.GM_FAIL)) {
-                final String output = getGMOutput();
-                if (output.endsWith("].")) throw new IOException(output);
-                else throw new GMException(output);
+            if (scanner.isTruncated()) {
+                throw new GMOutputTooLargeException(String.format(
+                        "Output of %d bytes exceeded the %d bytes limit.", scanner.getTotalLength(), maxOutputSize),
+                        maxOutputSize);
             }
-            sb.append(line).append(EOL);
+            return needOutput ? scanner.getOutput(charset) : null;
         }
-        throw new GMServiceException("Input from GraphicsMagick was closed unexpectedly after receiving: "
-                + getGMOutput());
+        final String output = scanner.getOutput(charset);
+        if (status == ResultScanner.FAIL) {
+            if (output.endsWith("].")) throw new IOException(output);
+            else throw new GMException(output);
+        }
+        throw new GMServiceException("Input from GraphicsMagick was closed unexpectedly after receiving: " + output);
     }
 
-    private String getGMOutput() {
-        int size = sb.length() - EOL_SIZE;
-        if (size > 0) sb.setLength(size);
-        String output = sb.toString();
-        if (sb.length() > NORMAL_BUFFER_SIZE) {
-            sb.setLength(0);
-            sb.trimToSize();
-        }
-        return output;
+    /**
+     * Tells whether the exception was thrown by the consumer of the last command, after which the output was still
+     * read up to the end of the command.
+     */
+    boolean isConsumerError(Throwable e) {
+        return scanner != null && scanner.getConsumerError() == e;
     }
 
-    private String readLine(BufferedReader reader) throws GMServiceException {
-        try {
-            return reader.readLine();
-        } catch (IOException e) {
-            throw new GMServiceException(e.getMessage(), e);
-        }
+    private static GMTimeoutException timeout(long timeoutMillis) {
+        return new GMTimeoutException(String.format(
+                "GraphicsMagick didn't complete the command in %d ms, the process was destroyed.", timeoutMillis),
+                timeoutMillis);
+    }
+
+    private static void rethrowConsumerError(Throwable e) throws IOException {
+        if (e == null) return;
+        if (e instanceof IOException) throw (IOException) e;
+        if (e instanceof RuntimeException) throw (RuntimeException) e;
+        if (e instanceof Error) throw (Error) e;
+        throw new IOException(e.getMessage(), e);
     }
 
 }
@@ -0,0 +1,383 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import org.gm4java.engine.GMConnection;
+import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMService;
+import org.gm4java.engine.GMServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Decorator of {@link GMService} that keeps the output files of conversions in a directory and serves a repeated
+ * conversion by copying the kept file instead of running GraphicsMagick again.
+ * <p>
+ * Commands that write their result to the file named by the last argument, which are <code>convert</code>,
+ * <code>composite</code> and <code>montage</code>, are cached. A command is identified by its arguments with the input
+ * files replaced by their absolute path, size and modification time, and the output file replaced by its format, so
+ * the same conversion written to another file is served from the cache while a change to an input file is not. An
+ * input file changed without changing its size within the resolution of the file modification time of the file
+ * system is taken as unchanged. All other commands, commands given as one raw command line and commands writing to
+ * more than one file are passed to the decorated service unchanged, as are the commands executed through
+ * {@link #getConnection()}.
+ * <p>
+ * The cache is bounded both in number of entries and in bytes on disk, the least recently used entries are removed
+ * first. The index of the cache is kept in memory, so files left in the directory by a previous instance are removed
+ * on construction.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class CachingGMService implements GMService {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CachingGMService.class);
+    private static final List<String> CACHED_COMMANDS = Arrays.asList("convert", "composite", "montage");
+    private static final Pattern STORED_FILE = Pattern.compile("[0-9a-f]{64}(\\d+\\.tmp)?");
+    // a format prefix like "png:" but not a drive letter like "C:"
+    private static final Pattern FORMAT_PREFIX = Pattern.compile("([A-Za-z0-9]{2,}):.*");
+
+    private final GMService service;
+    private final File directory;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<String, Entry> index = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private long bytes;
+    private volatile boolean hardLink;
+
+    /**
+     * Create a new instance of CachingGMService.
+     *
+     * @param service
+     *            the service executing the commands that are not served from the cache
+     * @param directory
+     *            the directory to keep the output files in, created if it doesn't exist
+     * @param maxEntries
+     *            the maximum number of conversions kept
+     * @param maxBytes
+     *            the maximum total size of the files kept
+     * @throws IOException
+     *             when the directory can't be created
+     */
+    public CachingGMService(@Nonnull GMService service, @Nonnull File directory, int maxEntries, long maxBytes)
+            throws IOException {
+        if (service == null) throw new NullPointerException("service");
+        if (directory == null) throw new NullPointerException("directory");
+        if (maxEntries <= 0) throw new IllegalArgumentException("maxEntries must be positive but was " + maxEntries);
+        if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes must be positive but was " + maxBytes);
+        this.service = service;
+        this.directory = directory;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory.toPath());
+        File[] stale = directory.listFiles();
+        if (stale != null) {
+            for (File file : stale)
+                if (STORED_FILE.matcher(file.getName()).matches()) delete(file);
+        }
+    }
+
+    /**
+     * Tells whether a conversion served from the cache hard links the output file to the kept file.
+     *
+     * @return true if output files are hard linked
+     * @see #setHardLink
+     */
+    public boolean isHardLink() {
+        return hardLink;
+    }
+
+    /**
+     * Sets whether a conversion served from the cache hard links the output file to the kept file instead of copying
+     * it. Linking saves the copy, but the output files must then never be modified in place by the caller, as that
+     * would modify the kept file too. A conversion missing the cache removes its output file before GraphicsMagick
+     * writes it, for the same reason. Files are copied when the output is on another file system.
+     *
+     * @param hardLink
+     *            true to hard link output files
+     */
+    public void setHardLink(boolean hardLink) {
+        this.hardLink = hardLink;
+    }
+
+    /**
+     * Gets the number of commands served from the cache.
+     *
+     * @return the number of hits
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Gets the number of cacheable commands that were not found in the cache and were executed.
+     *
+     * @return the number of misses
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Gets the number of conversions in the cache.
+     *
+     * @return the number of entries
+     */
+    public int getEntryCount() {
+        lock.lock();
+        try {
+            return index.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the total size of the files kept in the cache.
+     *
+     * @return the size in bytes
+     */
+    public long getCachedBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String execute(@Nonnull String command, String... arguments) throws IOException, GMException,
+            GMServiceException {
+        if (command == null) throw new NullPointerException("command");
+        // a raw command line can't be told apart into arguments
+        if (arguments == null || arguments.length == 0) return service.execute(command, arguments);
+        final List<String> list = new ArrayList<String>(arguments.length + 1);
+        list.add(command);
+        list.addAll(Arrays.asList(arguments));
+        return execute(list);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String execute(@Nonnull List<String> command) throws IOException, GMException, GMServiceException {
+        if (command == null) throw new NullPointerException("command");
+        final String key = key(command);
+        if (key == null) return service.execute(command);
+        final File output = new File(fileName(command.get(command.size() - 1)));
+        final Entry entry = get(key);
+        if (entry != null) {
+            try {
+                serve(entry.file, output);
+                hits.increment();
+                return entry.result;
+            } catch (IOException e) {
+                // evicted while being served
+                LOGGER.debug(e.getMessage(), e);
+                remove(key, entry);
+            }
+        }
+        misses.increment();
+        // GraphicsMagick writes the output in place, which would modify the kept file a hit linked it to
+        if (hardLink) Files.deleteIfExists(output.toPath());
+        final String result = service.execute(command);
+        if (output.isFile() && output.length() <= maxBytes) store(key, output, result);
+        return result;
+    }
+
+    /**
+     * Gets a connection of the decorated service, the commands executed through it are not cached.
+     *
+     * @return a connection of the decorated service
+     */
+    @Override
+    @Nonnull
+    public GMConnection getConnection() throws GMServiceException {
+        return service.getConnection();
+    }
+
+    @CheckForNull
+    private static String key(List<String> command) {
+        if (command.size() < 3 || !CACHED_COMMANDS.contains(command.get(0))) return null;
+        final StringBuilder key = new StringBuilder();
+        final int last = command.size() - 1;
+        for (int i = 0; i < last; i++) {
+            final String argument = command.get(i);
+            // another output file wouldn't be produced by a hit
+            if (argument.equals("-write") || argument.equals("+write")) return null;
+            final File input = new File(fileName(argument));
+            if (i > 0 && input.isFile()) {
+                key.append("in:").append(input.getAbsolutePath()).append(':').append(input.length()).append(':')
+                        .append(input.lastModified());
+            } else {
+                key.append(argument);
+            }
+            key.append('\0');
+        }
+        final String output = command.get(last);
+        // standard output, or one file per frame
+        if (output.equals("-") || output.endsWith(":-") || output.contains("%")) return null;
+        key.append("out:").append(format(output));
+        return sha256(key.toString());
+    }
+
+    private static String fileName(String argument) {
+        String name = argument;
+        if (FORMAT_PREFIX.matcher(name).matches()) name = name.substring(name.indexOf(':') + 1);
+        // frame or size selector, e.g. "in.gif[0]"
+        if (name.endsWith("]") && name.indexOf('[') > 0) name = name.substring(0, name.lastIndexOf('['));
+        return name;
+    }
+
+    private static String format(String output) {
+        final String prefix = FORMAT_PREFIX.matcher(output).matches() ? output.substring(0, output.indexOf(':')) : "";
+        final String name = new File(fileName(output)).getName();
+        final int dot = name.lastIndexOf('.');
+        return (prefix + ':' + (dot < 0 ? "" : name.substring(dot + 1))).toLowerCase(Locale.ROOT);
+    }
+
+    private static String sha256(String text) {
+        final byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest)
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return hex.toString();
+    }
+
+    private void serve(File kept, File output) throws IOException {
+        final Path target = output.toPath();
+        if (hardLink) {
+            Files.deleteIfExists(target);
+            try {
+                Files.createLink(target, kept.toPath());
+                return;
+            } catch (IOException e) {
+                // e.g. on another file system
+                LOGGER.debug(e.getMessage(), e);
+            } catch (UnsupportedOperationException e) {
+                LOGGER.debug(e.getMessage(), e);
+            }
+        }
+        Files.copy(kept.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @CheckForNull
+    private Entry get(String key) {
+        lock.lock();
+        try {
+            return index.get(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void store(String key, File output, String result) {
+        final File kept = new File(directory, key);
+        File temp = null;
+        try {
+            temp = File.createTempFile(key, ".tmp", directory);
+            Files.copy(output.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp.toPath(), kept.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to keep " + output + " in cache: " + e.getMessage(), e);
+            if (temp != null) delete(temp);
+            return;
+        }
+        final Entry entry = new Entry(kept, kept.length(), result);
+        final List<File> evicted = new ArrayList<File>();
+        lock.lock();
+        try {
+            final Entry replaced = index.put(key, entry);
+            if (replaced != null) bytes -= replaced.size;
+            bytes += entry.size;
+            final Iterator<Entry> eldest = index.values().iterator();
+            while ((index.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+                final Entry next = eldest.next();
+                if (next == entry) continue;
+                eldest.remove();
+                bytes -= next.size;
+                evicted.add(next.file);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (File file : evicted)
+            delete(file);
+    }
+
+    private void remove(String key, Entry entry) {
+        lock.lock();
+        try {
+            if (index.remove(key, entry)) bytes -= entry.size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void delete(File file) {
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+            LOGGER.warn("Failed to delete " + file + " from cache: " + e.getMessage(), e);
+        }
+    }
+
+    private static final class Entry {
+        final File file;
+        final long size;
+        final String result;
+
+        Entry(File file, long size, String result) {
+            this.file = file;
+            this.size = size;
+            this.result = result;
+        }
+    }
+}
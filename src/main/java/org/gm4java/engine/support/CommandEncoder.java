@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.List;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Encodes a command line for GraphicsMagick batch mode into a reusable byte buffer, so the whole command can be handed
+ * to the process in one write.
+ * <p>
+ * Arguments are quoted and the quotes inside are escaped by doubling them, as expected by the windows escape mode of
+ * gm batch. ASCII characters are copied straight into the buffer, only the other characters go through the
+ * {@link CharsetEncoder}. The charset must therefore be ASCII compatible, which is the case for any charset that
+ * GraphicsMagick can parse the command line in.
+ * <p>
+ * This class is not thread safe.
+ *
+ * @author Kenneth Xu
+ *
+ */
+final class CommandEncoder {
+    private static final String EOL = System.getProperty("line.separator");
+    private static final int ASCII_LIMIT = 0x80;
+    private static final int MAX_BYTES_PER_CHAR = 4;
+    private static final int NORMAL_BUFFER_SIZE = 1024;
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * NORMAL_BUFFER_SIZE;
+
+    private final Charset charset;
+    private final CharsetEncoder encoder;
+    private ByteBuffer buffer = ByteBuffer.allocate(NORMAL_BUFFER_SIZE);
+
+    CommandEncoder(@Nonnull Charset charset) {
+        if (charset == null) throw new NullPointerException("charset");
+        this.charset = charset;
+        this.encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    @Nonnull
+    Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Encodes the command, replacing whatever was encoded before.
+     *
+     * @param command
+     *            the raw command line, or null when all parts are in arguments
+     * @param arguments
+     *            arguments to be quoted
+     */
+    void encode(@CheckForNull String command, @Nonnull List<String> arguments) {
+        if (buffer.capacity() > MAX_RETAINED_BUFFER_SIZE) buffer = ByteBuffer.allocate(NORMAL_BUFFER_SIZE);
+        buffer.clear();
+        if (command != null) put(command, 0, command.length());
+        for (String s : arguments) {
+            put(' ');
+            put('"');
+            int start = 0, index = s.indexOf('"');
+            while (index >= 0) {
+                put(s, start, ++index);
+                put('"');
+                start = index;
+                index = s.indexOf('"', start);
+            }
+            put(s, start, s.length());
+            put('"');
+        }
+        put(EOL, 0, EOL.length());
+    }
+
+    /**
+     * Writes the encoded command to the stream with a single write and flushes it.
+     *
+     * @param out
+     *            the stream to write to
+     * @throws IOException
+     *             when error writing to the stream
+     */
+    void writeTo(@Nonnull OutputStream out) throws IOException {
+        out.write(buffer.array(), 0, buffer.position());
+        out.flush();
+    }
+
+    /**
+     * Gets the number of bytes of the encoded command.
+     *
+     * @return the size of the encoded command
+     */
+    int size() {
+        return buffer.position();
+    }
+
+    private void put(char c) {
+        ensureRemaining(1);
+        buffer.put((byte) c);
+    }
+
+    private void put(String s, int start, int end) {
+        ensureRemaining(end - start);
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c >= ASCII_LIMIT) {
+                encode(CharBuffer.wrap(s, i, end));
+                return;
+            }
+            buffer.put((byte) c);
+        }
+    }
+
+    private void encode(CharBuffer chars) {
+        encoder.reset();
+        CoderResult result;
+        do {
+            result = encoder.encode(chars, buffer, true);
+            if (result.isOverflow()) ensureRemaining(Math.max(chars.remaining(), 1) * MAX_BYTES_PER_CHAR);
+        } while (result.isOverflow());
+        do {
+            result = encoder.flush(buffer);
+            if (result.isOverflow()) ensureRemaining(MAX_BYTES_PER_CHAR);
+        } while (result.isOverflow());
+    }
+
+    private void ensureRemaining(int length) {
+        if (buffer.remaining() >= length) return;
+        ByteBuffer expanded = ByteBuffer.allocate(Math.max(buffer.capacity() << 1, buffer.position() + length));
+        buffer.flip();
+        expanded.put(buffer);
+        buffer = expanded;
+    }
+}
@@ -15,6 +15,9 @@
  */
 package org.gm4java.engine.support;
 
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
 /**
  * 
  * Class to hold commonly used constants.
@@ -33,5 +36,9 @@ final class Constants {
     static final String DEFAULT_GM_PATH = "gm";
     static final String GM_PASS = "OK";
     static final String GM_FAIL = "NG";
+    /**
+     * Default charset to encode the commands sent to and decode the output received from GraphicsMagick.
+     */
+    static final Charset DEFAULT_CHARSET = StandardCharsets.UTF_8;
 
 }
@@ -1,85 +1,385 @@
 package org.gm4java.engine.support;
 
-import org.apache.commons.pool.BasePoolableObjectFactory;
-import org.apache.commons.pool.impl.GenericObjectPool;
+import org.gm4java.engine.GMException;
 import org.gm4java.engine.GMServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
 /**
- * Manages a pool of GraphicsMagick instances represented by {@link PooledGMConnection}. The implementation builds upon
- * {@link GenericObjectPool} from <a href="http://commons.apache.org/pool/">Apache Commons Pool</a> project.
+ * Manages a pool of GraphicsMagick instances represented by {@link PooledGMConnection}, with the semantics of
+ * {@link GMConnectionPoolConfig}.
+ * <p>
+ * Borrowing and returning a connection doesn't lock the pool. Each connection carries an atomic state, whoever moves
+ * it from idle to in use owns it. Idle connections are kept in a lock free deque and the connection a thread returned
+ * last is remembered in a thread local, so a thread executing commands one after another usually gets the same
+ * process back without touching any shared structure. Entries in the deque may be stale, they are skipped when their
+ * state can't be claimed. Counters are atomic, and a lock is only taken by threads that have to wait when the pool is
+ * exhausted and {@link WhenExhaustedAction#BLOCK} is configured.
+ * <p>
+ * With {@link GMConnectionPoolConfig#setThreadAffinity thread affinity}, a returned connection isn't put back in the
+ * idle deque. It stays sticky to the returning thread, which takes it back with a single state change next time.
+ * Other borrowers only steal sticky connections when the pool is exhausted, and connections are released normally
+ * while borrowers are waiting.
+ * <p>
+ * When {@link GMConnectionPoolConfig#setAdaptiveSizingPeriodMillis adaptive sizing} is configured, the number of
+ * connections is limited by a {@link PoolSizeController} instead of <i>maxActive</i> alone. The pool counts returned
+ * connections and the time borrowers wait, and hands the counts to the controller every period.
  * 
  * @author Kenneth Xu
  * 
  */
-class GMConnectionPool extends GenericObjectPool<PooledGMConnection> {
+class GMConnectionPool {
+    private static final Logger LOGGER = LoggerFactory.getLogger(GMConnectionPool.class);
+    private static final ScheduledThreadPoolExecutor EVICTOR;
+    private static final Executor RETIRER = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new NamedThreadFactory("retire"));
+    private static final Executor WARMER = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new NamedThreadFactory("warmup"));
+
+    static {
+        EVICTOR = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("evictor"));
+        EVICTOR.setRemoveOnCancelPolicy(true);
+    }
+
     private GMProcessFactory.Builder builder;
     private GMProcessFactory gmFactory;
+    private final StandbyProcesses standby;
     private int evictAfterNumberOfUse = GMConnectionPoolConfig.DEFAULT_EVICT_AFTER_NUMBER_OF_USE;
+    private final int evictAfterNumberOfUseJitter;
+    private final long maxProcessMemory;
+    private final Charset charset;
+    private final int maxOutputSize;
+    private final long commandTimeout;
+    private final int asyncThreads;
+    private final int pipelineDepth;
+    private final ThreadFactory threadFactory;
+
+    private final int maxActive;
+    private final int maxIdle;
+    private final int minIdle;
+    private final WhenExhaustedAction whenExhaustedAction;
+    private final long maxWait;
+    private volatile boolean testOnBorrow;
+    private volatile boolean testOnReturn;
+    private final boolean testWhileIdle;
+    private final int numTestsPerEvictionRun;
+    private final long minEvictableIdleTimeMillis;
+    private final long softMinEvictableIdleTimeMillis;
+    private final boolean lifo;
+    private final long pingIdleTimeMillis;
+    private final List<String> warmUpCommand;
+    private final boolean threadAffinity;
+
+    private final ConcurrentLinkedDeque<PooledGMConnection> idle = new ConcurrentLinkedDeque<PooledGMConnection>();
+    private final ThreadLocal<PooledGMConnection> lastReturned = new ThreadLocal<PooledGMConnection>();
+    private final ThreadLocal<PooledGMConnection> stuck = new ThreadLocal<PooledGMConnection>();
+    private final Set<PooledGMConnection> sticky = Collections
+            .newSetFromMap(new ConcurrentHashMap<PooledGMConnection, Boolean>());
+    private final AtomicInteger numTotal = new AtomicInteger();
+    private final AtomicInteger numIdle = new AtomicInteger();
+    private final AtomicInteger numActive = new AtomicInteger();
+    private final AtomicInteger numWaiters = new AtomicInteger();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final ScheduledFuture<?> evictor;
+    private final PoolSizeController sizeController;
+    private final ScheduledFuture<?> resizer;
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private volatile int activeLimit;
+    private volatile CompletableFuture<Void> warmedUp;
+    private volatile boolean closed;
 
     /**
      * Construct a new instance of {@linkplain GMConnectionPool}.
      */
     GMConnectionPool(@Nonnull GMConnectionPoolConfig config) {
-        this(new Factory(), config);
-    }
-
-    private GMConnectionPool(Factory factory, GMConnectionPoolConfig config) {
-        super(factory, getParentConfig(config));
-        factory.pool = this;
+        if (config == null) throw new NullPointerException("config");
         evictAfterNumberOfUse = config.getEvictAfterNumberOfUse();
+        evictAfterNumberOfUseJitter = config.getEvictAfterNumberOfUseJitter();
+        maxProcessMemory = config.getMaxProcessMemory();
+        charset = config.getCharset();
+        maxOutputSize = config.getMaxOutputSize();
+        commandTimeout = config.getCommandTimeout();
+        asyncThreads = config.getAsyncThreads();
+        pipelineDepth = config.getPipelineDepth();
+        threadFactory = config.getThreadFactory();
+        maxActive = config.getMaxActive();
+        maxIdle = config.getMaxIdle();
+        minIdle = config.getMinIdle();
+        whenExhaustedAction = config.getWhenExhaustedAction();
+        maxWait = config.getMaxWait();
+        testOnBorrow = config.getTestOnGet();
+        testOnReturn = config.getTestOnReturn();
+        testWhileIdle = config.getTestWhileIdle();
+        numTestsPerEvictionRun = config.getNumTestsPerEvictionRun();
+        minEvictableIdleTimeMillis = config.getMinEvictableIdleTimeMillis();
+        softMinEvictableIdleTimeMillis = config.getSoftMinEvictableIdleTimeMillis();
+        lifo = config.isLifo();
+        pingIdleTimeMillis = config.getPingIdleTimeMillis();
+        warmUpCommand = config.getWarmUpCommand();
+        threadAffinity = config.isThreadAffinity();
 
-        this.builder = GMProcessFactoryImpl.BUILDER;
+        this.builder = GMProcessFactoryImpl.builder(environment(config), config.getGMVersion(),
+                config.isNamedPipes());
         gmFactory = builder.buildFactory(config.getGMPath());
-    }
+        standby = new StandbyProcesses(config.getStandbyProcesses(), gmFactory);
 
-    private static GenericObjectPool.Config getParentConfig(GMConnectionPoolConfig config) {
-        if (config == null) throw new NullPointerException("config");
-        return config.getConfig();
+        final long period = config.getTimeBetweenEvictionRunsMillis();
+        evictor = period <= 0 ? null : EVICTOR.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    evict();
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Failed to evict idle GraphicsMagick connections: " + e.getMessage(), e);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+
+        final long resizePeriod = config.getAdaptiveSizingPeriodMillis();
+        sizeController = resizePeriod > 0 && maxActive > 0 ? new PoolSizeController(config.getMinActive(), maxActive)
+                : null;
+        activeLimit = sizeController == null ? maxActive : sizeController.getLimit();
+        resizer = sizeController == null ? null : EVICTOR.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    resize(SystemResources.cpuLoad());
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Failed to resize GraphicsMagick connection pool: " + e.getMessage(), e);
+                }
+            }
+        }, resizePeriod, resizePeriod, TimeUnit.MILLISECONDS);
     }
 
     /**
-     * {@inheritDoc}
-     * <p>
-     * This implementation delegates to super class but ensures that there is no other checked exception except
-     * {@link GMServiceException} will be thrown.
+     * Obtains a connection from the pool. An idle connection is used if there is one, otherwise a new one is created
+     * unless <i>maxActive</i> is reached, in which case the configured {@link WhenExhaustedAction} is taken.
+     * 
+     * @return the connection, which must be {@link #returnObject returned} to the pool after use
+     * @throws NoSuchElementException
+     *             when the pool is exhausted and the connection can't be obtained according to the
+     *             {@link WhenExhaustedAction}, or a new connection failed validation
+     * @throws IllegalStateException
+     *             when the pool is closed
+     * @throws GMServiceException
+     *             when failed to create a new GraphicsMagick process
      */
-    @Override
     @Nonnull
     public PooledGMConnection borrowObject() throws GMServiceException {
-        try {
-            return super.borrowObject();
-        } catch (GMServiceException e) {
-            throw e;
-        } catch (RuntimeException e) {
-            throw e;
-        } catch (Exception e) {
-            throw new GMServiceException(e.getMessage(), e);
+        for (;;) {
+            assertOpen();
+            if (threadAffinity) {
+                PooledGMConnection own = claimOwn();
+                if (own != null) return own;
+            }
+            PooledGMConnection connection = claimIdle();
+            boolean created = false;
+            if (connection == null) connection = reserveOrWait();
+            if (connection == null) {
+                connection = newConnection();
+                created = true;
+            }
+            if (activate(connection, created)) {
+                numActive.incrementAndGet();
+                return connection;
+            }
         }
     }
 
     /**
-     * {@inheritDoc}
-     * <p>
-     * This implementation delegates to super class but ensures that there is no other checked exception except
-     * {@link GMServiceException} will be thrown.
+     * Returns a connection obtained from {@link #borrowObject()} to the pool. Connections that are no longer healthy
+     * or failed validation are destroyed, as well as those exceeding <i>maxIdle</i>. Connections that reached their
+     * {@link #setEvictAfterNumberOfUse use limit} or whose process grew beyond {@link #getMaxProcessMemory()} are
+     * retired in the background, the replacement is started before the old process is destroyed.
      * 
+     * @param connection
+     *            the connection to return
+     * @throws GMServiceException
+     *             declared for compatibility, failures are handled by destroying the connection
      */
-    @Override
     public void returnObject(@Nonnull PooledGMConnection connection) throws GMServiceException {
+        if (connection == null) throw new NullPointerException("connection");
+        numActive.decrementAndGet();
+        if (sizeController != null) completed.increment();
+        if (!closed && !connection.isBroken() && (connection.isExpired() || connection.exceedsMemoryLimit())) {
+            retire(connection);
+            return;
+        }
+        if (closed || !passivate(connection)) {
+            destroy(connection);
+            return;
+        }
+        if (threadAffinity && stick(connection)) return;
+        release(connection, true);
+    }
+
+    /**
+     * Closes the pool and destroys all the idle connections. Connections currently borrowed are destroyed when they
+     * are returned.
+     */
+    public void close() {
+        closed = true;
+        if (evictor != null) evictor.cancel(false);
+        if (resizer != null) resizer.cancel(false);
+        standby.close();
+        PooledGMConnection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            connection.dequeued();
+            if (claim(connection)) destroy(connection);
+        }
+        for (PooledGMConnection kept : sticky)
+            if (kept.claimSticky()) destroy(kept);
+        signalAll();
+    }
+
+    /**
+     * Starts <i>minIdle</i> connections in parallel, less those already idle, and executes the
+     * {@link GMConnectionPoolConfig#setWarmUpCommand warm-up command} on each of them. The version of GraphicsMagick
+     * is detected once before the processes are started, so they don't each probe it. The work is done in the
+     * background.
+     * 
+     * @return the future completed when all the connections are idle in the pool, or completed exceptionally with the
+     *         first failure
+     * @throws IllegalStateException
+     *             when the pool is closed
+     */
+    @Nonnull
+    public CompletableFuture<Void> warmUp() {
+        assertOpen();
+        final CompletableFuture<Void> ready = new CompletableFuture<Void>();
+        warmedUp = ready;
         try {
-            super.returnObject(connection);
-        } catch (GMServiceException e) {
-            throw e;
+            WARMER.execute(new Runnable() {
+                @Override
+                public void run() {
+                    warmUp(ready);
+                }
+            });
         } catch (RuntimeException e) {
-            throw e;
-        } catch (Exception e) {
-            throw new GMServiceException(e.getMessage(), e);
+            ready.completeExceptionally(e);
         }
-    };
+        return ready;
+    }
+
+    /**
+     * Tells whether the pool is ready to serve without starting processes on demand, which is when the last
+     * {@link #warmUp() warm-up} completed successfully, or the pool was never warmed up.
+     * 
+     * @return false while a warm-up is in progress or after it failed, otherwise true
+     */
+    public boolean isReady() {
+        final CompletableFuture<Void> ready = warmedUp;
+        return ready == null || ready.isDone() && !ready.isCompletedExceptionally();
+    }
+
+    /**
+     * Gets the number of connections currently borrowed from the pool.
+     * 
+     * @return the number of active connections
+     */
+    public int getNumActive() {
+        return numActive.get();
+    }
+
+    /**
+     * Gets the number of idle connections in the pool.
+     * 
+     * @return the number of idle connections
+     */
+    public int getNumIdle() {
+        return numIdle.get();
+    }
+
+    /**
+     * Gets the number of connections kept by threads with {@link GMConnectionPoolConfig#setThreadAffinity thread
+     * affinity}, which are neither active nor idle.
+     * 
+     * @return the number of sticky connections
+     */
+    public int getNumSticky() {
+        int count = 0;
+        for (PooledGMConnection connection : sticky)
+            if (connection.getState() == PooledGMConnection.STICKY) count++;
+        return count;
+    }
+
+    /**
+     * Gets the number of GraphicsMagick processes started ahead of time, ready to be used by new connections.
+     * 
+     * @return the number of standby processes
+     */
+    public int getNumStandby() {
+        return standby.getCount();
+    }
+
+    /**
+     * Gets the maximum number of connections the pool can hold.
+     * 
+     * @return the maximum number of connections, non-positive for no limit
+     */
+    public int getMaxActive() {
+        return maxActive;
+    }
+
+    /**
+     * Gets the number of connections the pool currently allows, which is <i>maxActive</i> unless the pool size is
+     * {@link GMConnectionPoolConfig#setAdaptiveSizingPeriodMillis adjusted} to the load.
+     * 
+     * @return the current limit of connections, non-positive for no limit
+     */
+    public int getActiveLimit() {
+        return activeLimit;
+    }
+
+    /**
+     * Sets whether to {@link GMConnectionPoolConfig#setTestOnGet validate} the connection before it is borrowed.
+     * 
+     * @param testOnBorrow
+     *            true to validate
+     */
+    public void setTestOnBorrow(boolean testOnBorrow) {
+        this.testOnBorrow = testOnBorrow;
+    }
+
+    /**
+     * Sets whether to {@link GMConnectionPoolConfig#setTestOnReturn validate} the connection when it is returned.
+     * 
+     * @param testOnReturn
+     *            true to validate
+     */
+    public void setTestOnReturn(boolean testOnReturn) {
+        this.testOnReturn = testOnReturn;
+    }
 
     /**
      * Gets the path to GraphicsMagick executable set by {@link #setGMPath(String)} or
@@ -100,6 +400,7 @@ class GMConnectionPool extends GenericObjectPool<PooledGMConnection> {
     public void setGMPath(@Nonnull String gmPath) {
         if (gmPath == null) throw new NullPointerException("gmPath");
         gmFactory = builder.buildFactory(gmPath);
+        standby.setFactory(gmFactory);
     }
 
     /**
@@ -129,51 +430,563 @@ class GMConnectionPool extends GenericObjectPool<PooledGMConnection> {
         this.evictAfterNumberOfUse = evictAfterNumberOfUse;
     }
 
+    /**
+     * Gets the maximum number of extra uses randomly added to {@link #getEvictAfterNumberOfUse()} for each process.
+     * 
+     * @return the jitter of the use limit
+     */
+    public int getEvictAfterNumberOfUseJitter() {
+        return evictAfterNumberOfUseJitter;
+    }
+
+    /**
+     * Gets the resident memory a GraphicsMagick process can grow to before it is retired.
+     * 
+     * @return the memory limit in bytes, non-positive for no limit
+     */
+    public long getMaxProcessMemory() {
+        return maxProcessMemory;
+    }
+
+    /**
+     * Gets the charset used to communicate with GraphicsMagick processes.
+     * 
+     * @return the charset
+     */
+    @Nonnull
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Gets the maximum number of bytes of output a command can return as a string.
+     * 
+     * @return the maximum output size, non-positive for no limit
+     */
+    public int getMaxOutputSize() {
+        return maxOutputSize;
+    }
+
+    /**
+     * Gets the default time to wait for the result of a command.
+     * 
+     * @return the timeout in milliseconds, non-positive means wait forever
+     */
+    public long getCommandTimeout() {
+        return commandTimeout;
+    }
+
+    /**
+     * Gets the number of I/O threads executing asynchronous commands on the connections of this pool.
+     * 
+     * @return the number of threads, non-positive to derive it from <i>maxActive</i>
+     */
+    public int getAsyncThreads() {
+        return asyncThreads;
+    }
+
+    /**
+     * Gets the maximum number of asynchronous commands that can be in flight on one connection.
+     * 
+     * @return the pipeline depth
+     */
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /**
+     * Gets the factory of the threads executing commands on the connections of this pool.
+     * 
+     * @return the thread factory, or null if daemon platform threads are created
+     */
+    @CheckForNull
+    public ThreadFactory getThreadFactory() {
+        return threadFactory;
+    }
+
     void setProcessFactoryBuilder(GMProcessFactory.Builder builder) {
         this.builder = builder;
         gmFactory = builder.buildFactory(gmFactory.getGMPath());
+        standby.setFactory(gmFactory);
     }
 
     ReaderWriterProcess createProcess() throws GMServiceException {
         try {
-            return gmFactory.getProcess();
+            return standby.take();
         } catch (IOException e) {
             throw new GMServiceException(e.getMessage(), e);
         }
     }
 
-    private static final class Factory extends BasePoolableObjectFactory<PooledGMConnection> {
-
-        private GMConnectionPool pool;
+    /**
+     * Gets the environment to start processes with, limiting the threads of each process when requested so the
+     * processes together don't use more threads than the processors available. The limit is static, based on
+     * <i>maxActive</i> rather than the active limit, as the processes started keep it until they exit.
+     */
+    static Map<String, String> environment(GMConnectionPoolConfig config) {
+        return environment(config, config.getMaxActive());
+    }
 
-        @Override
-        public PooledGMConnection makeObject() throws GMServiceException {
-            return new PooledGMConnection(pool);
+    static Map<String, String> environment(GMConnectionPoolConfig config, int processes) {
+        final Map<String, String> environment = new LinkedHashMap<String, String>(config.getEnvironment());
+        final String variable = ResourceLimit.THREADS.getVariable();
+        if (config.isAutoThreadLimit() && !environment.containsKey(variable)) {
+            final int processors = SystemResources.availableProcessors();
+            final int threads = SystemResources.threadsPerProcess(processors, processes);
+            environment.put(variable, String.valueOf(threads));
+            LOGGER.debug("Limit each GraphicsMagick process to {} threads for {} processors", threads, processors);
         }
+        return environment;
+    }
 
-        @Override
-        public void destroyObject(PooledGMConnection connection) throws GMServiceException {
-            connection.close();
+    private void warmUp(final CompletableFuture<Void> ready) {
+        final int count;
+        try {
+            gmFactory.getVersion();
+            count = Math.max(0, minIdle - numIdle.get());
+        } catch (RuntimeException e) {
+            ready.completeExceptionally(e);
+            return;
+        }
+        if (count == 0) {
+            ready.complete(null);
+            return;
+        }
+        final AtomicInteger remaining = new AtomicInteger(count);
+        for (int i = 0; i < count; i++) {
+            final Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        warmUpConnection();
+                    } catch (GMServiceException | RuntimeException e) {
+                        ready.completeExceptionally(e);
+                    }
+                    if (remaining.decrementAndGet() == 0) ready.complete(null);
+                }
+            };
+            // the last one runs on this thread
+            if (i == count - 1) {
+                task.run();
+                continue;
+            }
+            try {
+                WARMER.execute(task);
+            } catch (RuntimeException e) {
+                ready.completeExceptionally(e);
+                return;
+            }
         }
+    }
 
-        @Override
-        public boolean validateObject(PooledGMConnection connection) {
+    private void warmUpConnection() throws GMServiceException {
+        if (closed || !reserve()) return;
+        final PooledGMConnection connection = newConnection();
+        if (warmUpCommand != null) {
             try {
-                connection.execute("ping");
-                return true;
-            } catch (Exception e) {
-                return false;
+                connection.execute(warmUpCommand);
+            } catch (IOException | GMException e) {
+                destroy(connection);
+                throw new GMServiceException("Failed to warm up GraphicsMagick connection: " + e.getMessage(), e);
+            } catch (GMServiceException | RuntimeException e) {
+                destroy(connection);
+                throw e;
+            }
+        }
+        release(connection, false);
+    }
+
+    /**
+     * Takes back the connection kept by the current thread, skipping the idle deque and the validation on borrow.
+     */
+    @CheckForNull
+    private PooledGMConnection claimOwn() {
+        final PooledGMConnection own = stuck.get();
+        if (own == null) return null;
+        if (!own.claimSticky()) {
+            if (own.getState() == PooledGMConnection.REMOVED) stuck.remove();
+            return null;
+        }
+        if (own.isBroken()) {
+            destroy(own);
+            return null;
+        }
+        numActive.incrementAndGet();
+        return own;
+    }
+
+    /**
+     * Keeps the connection for the current thread instead of releasing it, unless borrowers are waiting or the thread
+     * already keeps another connection.
+     */
+    private boolean stick(PooledGMConnection connection) {
+        if (numWaiters.get() > 0) return false;
+        final PooledGMConnection own = stuck.get();
+        if (own != connection) {
+            if (own != null && own.getState() != PooledGMConnection.REMOVED) return false;
+            stuck.set(connection);
+            sticky.add(connection);
+        }
+        connection.markSticky();
+        // the pool may be closed or exhausted meanwhile
+        if (closed && connection.claimSticky()) destroy(connection);
+        else if (numWaiters.get() > 0) signal();
+        return true;
+    }
+
+    /**
+     * Takes a connection kept by another thread, when the pool is exhausted.
+     */
+    @CheckForNull
+    private PooledGMConnection steal() {
+        if (!threadAffinity) return null;
+        for (PooledGMConnection connection : sticky)
+            if (connection.claimSticky()) return connection;
+        return null;
+    }
+
+    @CheckForNull
+    private PooledGMConnection claimIdle() {
+        if (lifo) {
+            PooledGMConnection last = lastReturned.get();
+            if (last != null) {
+                if (claim(last)) return last;
+                if (last.getState() == PooledGMConnection.REMOVED) lastReturned.remove();
+            }
+        }
+        PooledGMConnection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            // must be cleared before the claim, so a connection released concurrently is either claimed here or
+            // enqueued again by the releasing thread
+            connection.dequeued();
+            if (claim(connection)) return connection;
+        }
+        return null;
+    }
+
+    private boolean claim(PooledGMConnection connection) {
+        if (!connection.claim()) return false;
+        numIdle.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Reserves a slot to create a new connection, taking the {@link WhenExhaustedAction} when the pool is exhausted.
+     * 
+     * @return an idle connection claimed while waiting, or null if a slot is reserved
+     */
+    @CheckForNull
+    private PooledGMConnection reserveOrWait() throws GMServiceException {
+        if (reserve()) return null;
+        final PooledGMConnection stolen = steal();
+        if (stolen != null) return stolen;
+        final long start = sizeController == null ? 0 : System.nanoTime();
+        try {
+            switch (whenExhaustedAction) {
+            case FAIL:
+                throw new NoSuchElementException("Pool exhausted");
+            case GROW:
+                numTotal.incrementAndGet();
+                return null;
+            default:
+                return await();
+            }
+        } finally {
+            if (sizeController != null) {
+                waits.increment();
+                waitNanos.add(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private PooledGMConnection newConnection() throws GMServiceException {
+        try {
+            return new PooledGMConnection(this);
+        } catch (GMServiceException | RuntimeException | Error e) {
+            numTotal.decrementAndGet();
+            signal();
+            throw e;
+        }
+    }
+
+    private boolean reserve() {
+        final int limit = activeLimit;
+        if (limit <= 0) {
+            numTotal.incrementAndGet();
+            return true;
+        }
+        for (;;) {
+            int n = numTotal.get();
+            if (n >= limit) return false;
+            if (numTotal.compareAndSet(n, n + 1)) return true;
+        }
+    }
+
+    @CheckForNull
+    private PooledGMConnection await() throws GMServiceException {
+        final long deadline = maxWait > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWait) : 0;
+        lock.lock();
+        numWaiters.incrementAndGet();
+        try {
+            for (;;) {
+                assertOpen();
+                PooledGMConnection connection = claimIdle();
+                if (connection == null) connection = steal();
+                if (connection != null || reserve()) return connection;
+                if (maxWait <= 0) {
+                    available.await();
+                } else {
+                    long nanos = deadline - System.nanoTime();
+                    if (nanos <= 0) throw new NoSuchElementException("Timeout waiting for idle object");
+                    available.awaitNanos(nanos);
+                }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GMServiceException("Interrupted while waiting for a GraphicsMagick connection.", e);
+        } finally {
+            numWaiters.decrementAndGet();
+            lock.unlock();
         }
+    }
+
+    private void signal() {
+        if (numWaiters.get() == 0) return;
+        lock.lock();
+        try {
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        @Override
-        public void activateObject(PooledGMConnection connection) throws GMServiceException {
+    private void signalAll() {
+        lock.lock();
+        try {
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean activate(PooledGMConnection connection, boolean created) throws GMServiceException {
+        try {
             connection.ensureHealthy();
+        } catch (GMServiceException e) {
+            destroy(connection);
+            if (created) throw e;
+            return false;
         }
+        if (!testOnBorrow || validate(connection)) return true;
+        destroy(connection);
+        if (created) throw new NoSuchElementException("Could not create a validated object");
+        return false;
+    }
 
-        @Override
-        public void passivateObject(PooledGMConnection connection) throws GMServiceException {
+    private boolean passivate(PooledGMConnection connection) {
+        try {
             connection.ensureHealthy();
+        } catch (GMServiceException e) {
+            return false;
+        }
+        return !testOnReturn || validate(connection);
+    }
+
+    /**
+     * Validates the connection, sending a ping only when its process has been quiet for <i>pingIdleTimeMillis</i>.
+     */
+    private boolean validate(PooledGMConnection connection) {
+        if (connection.isBroken() || !connection.isAlive()) return false;
+        if (pingIdleTimeMillis > 0 && System.currentTimeMillis() - connection.getLastResponse() < pingIdleTimeMillis) {
+            return true;
+        }
+        try {
+            connection.ping();
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Makes the connection owned by the caller idle, or destroys it when <i>maxIdle</i> is reached.
+     */
+    private void release(PooledGMConnection connection, boolean recent) {
+        if (sizeController != null && releaseOverLimit()) {
+            discard(connection);
+            signal();
+            return;
+        }
+        if (!reserveIdle()) {
+            destroy(connection);
+            return;
+        }
+        connection.markIdle(System.currentTimeMillis());
+        if (connection.enqueue()) {
+            if (lifo) idle.offerFirst(connection);
+            else idle.offerLast(connection);
+        }
+        if (recent && lifo) lastReturned.set(connection);
+        signal();
+        // the pool may be closed while releasing
+        if (closed && claim(connection)) destroy(connection);
+    }
+
+    private boolean reserveIdle() {
+        for (;;) {
+            int n = numIdle.get();
+            if (maxIdle >= 0 && n >= maxIdle) return false;
+            if (numIdle.compareAndSet(n, n + 1)) return true;
         }
     }
+
+    /**
+     * Gives up the slot of a connection when the pool holds more connections than the current limit.
+     */
+    private boolean releaseOverLimit() {
+        for (;;) {
+            int n = numTotal.get();
+            if (n <= activeLimit) return false;
+            if (numTotal.compareAndSet(n, n - 1)) return true;
+        }
+    }
+
+    private void destroy(PooledGMConnection connection) {
+        discard(connection);
+        numTotal.decrementAndGet();
+        signal();
+    }
+
+    private void discard(PooledGMConnection connection) {
+        connection.markRemoved();
+        if (threadAffinity) sticky.remove(connection);
+        try {
+            connection.close();
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to destroy GraphicsMagick connection: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Replaces the connection owned by the caller in the background. The replacement takes over the slot of the old
+     * connection, which is only destroyed after the replacement is idle.
+     */
+    private void retire(final PooledGMConnection connection) {
+        try {
+            RETIRER.execute(new Runnable() {
+                @Override
+                public void run() {
+                    replace(connection);
+                }
+            });
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to retire GraphicsMagick connection: " + e.getMessage(), e);
+            destroy(connection);
+        }
+    }
+
+    private void replace(PooledGMConnection connection) {
+        if (closed) {
+            destroy(connection);
+            return;
+        }
+        final PooledGMConnection replacement;
+        try {
+            replacement = new PooledGMConnection(this);
+        } catch (GMServiceException | RuntimeException e) {
+            LOGGER.warn("Failed to replace retired GraphicsMagick connection: " + e.getMessage(), e);
+            destroy(connection);
+            return;
+        }
+        release(replacement, false);
+        discard(connection);
+    }
+
+    void evict() {
+        if (closed) return;
+        final long now = System.currentTimeMillis();
+        int tests = numTestsPerEvictionRun >= 0 ? numTestsPerEvictionRun : (int) Math.ceil(
+                (double) numIdle.get() / -numTestsPerEvictionRun);
+        for (Iterator<PooledGMConnection> it = lifo ? idle.descendingIterator() : idle.iterator(); tests > 0
+                && it.hasNext();) {
+            PooledGMConnection connection = it.next();
+            if (!claim(connection)) continue;
+            tests--;
+            final long idleTime = now - connection.getIdleSince();
+            // either rule evicts the connection
+            boolean evict = minEvictableIdleTimeMillis > 0 && idleTime > minEvictableIdleTimeMillis
+                    || softMinEvictableIdleTimeMillis > 0 && idleTime > softMinEvictableIdleTimeMillis
+                    && numIdle.get() >= minIdle;
+            if (!evict && testWhileIdle) evict = !passivate(connection) || !validate(connection);
+            if (evict) {
+                destroy(connection);
+                idle.remove(connection);
+            } else {
+                restore(connection);
+            }
+        }
+        ensureMinIdle();
+    }
+
+    /**
+     * Makes the connection examined by the evictor idle again, keeping its idle time and its place in the queue unless
+     * a borrower has dropped it from the queue meanwhile.
+     */
+    private void restore(PooledGMConnection connection) {
+        numIdle.incrementAndGet();
+        connection.markIdle(connection.getIdleSince());
+        if (connection.enqueue()) {
+            if (lifo) idle.offerLast(connection);
+            else idle.offerFirst(connection);
+        }
+        signal();
+        if (closed && claim(connection)) destroy(connection);
+    }
+
+    private void ensureMinIdle() {
+        while (!closed && numIdle.get() < minIdle && reserve()) {
+            final PooledGMConnection connection;
+            try {
+                connection = new PooledGMConnection(this);
+            } catch (GMServiceException | RuntimeException e) {
+                numTotal.decrementAndGet();
+                LOGGER.warn("Failed to create idle GraphicsMagick connection: " + e.getMessage(), e);
+                return;
+            }
+            release(connection, false);
+        }
+    }
+
+    /**
+     * Adjusts the limit of connections with the statistics collected since the last call, waking up waiting borrowers
+     * when it is raised and destroying idle connections beyond it when it is lowered.
+     */
+    void resize(double cpuLoad) {
+        if (closed) return;
+        final int previous = activeLimit;
+        final int limit = sizeController.adjust(completed.sumThenReset(), waits.sumThenReset(),
+                waitNanos.sumThenReset(), numIdle.get(), cpuLoad);
+        if (limit == previous) return;
+        activeLimit = limit;
+        LOGGER.debug("Resized GraphicsMagick connection pool from {} to {}", previous, limit);
+        if (limit > previous) {
+            signalAll();
+            return;
+        }
+        PooledGMConnection connection;
+        while (numTotal.get() > limit && (connection = lifo ? idle.pollLast() : idle.pollFirst()) != null) {
+            connection.dequeued();
+            if (!claim(connection)) continue;
+            if (releaseOverLimit()) {
+                discard(connection);
+            } else {
+                restore(connection);
+                break;
+            }
+        }
+    }
+
+    private void assertOpen() {
+        if (closed) throw new IllegalStateException("Pool not open");
+    }
 }
@@ -15,12 +15,20 @@
  */
 package org.gm4java.engine.support;
 
-import org.apache.commons.pool.impl.GenericObjectPool;
-//SUPPRESS CHECKSTYLE UnusedImport BECAUSE it is used in javadoc.
-import org.apache.commons.pool.PoolableObjectFactory;
 // SUPPRESS CHECKSTYLE UnusedImport BECAUSE it is used in javadoc.
 import org.gm4java.engine.GMConnection;
 
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
 /**
  * Configuration of PooledGMService that provides a number of configuration parameters.
  * <ul>
@@ -57,14 +65,19 @@ import org.gm4java.engine.GMConnection;
  * indefinitely until an idle instance becomes available.</li>
  * <li>
  * When {@link #setTestOnGet <i>testOnGet</i>} is set, the pool will attempt to validate each GM connection before it is
- * returned from the {@link PooledGMService#getConnection()} method. (Using the provided factory's
- * {@link PoolableObjectFactory#validateObject} method.) Objects that fail to validate will be dropped from the pool,
- * and a different GM connection will be returned. The default setting for this parameter is <code>false.</code></li>
+ * returned from the {@link PooledGMService#getConnection()} method, by sending it a command that does nothing. GM
+ * connections that fail to validate will be dropped from the pool, and a different GM connection will be returned.
+ * The default setting for this parameter is <code>false.</code></li>
  * <li>
  * When {@link #setTestOnReturn <i>testOnReturn</i>} is set, the pool will attempt to validate each GM connection before
- * it is returned to the pool in the {@link GenericObjectPool#returnObject} method. (Using the provided factory's
- * {@link PoolableObjectFactory#validateObject} method.) Objects that fail to validate will be dropped from the pool.
+ * it is returned to the pool when the client {@link GMConnection#close() closes} it. GM connections that fail to
+ * validate will be dropped from the pool.
  * The default setting for this parameter is <code>false.</code></li>
+ * <li>
+ * {@link #setPingIdleTimeMillis <i>pingIdleTimeMillis</i>} makes the validation cheaper. A GM connection whose
+ * GraphicsMagick process completed a command within that many milliseconds is validated by checking that the process is
+ * still running and no communication error was recorded, without sending a command. When non-positive, every
+ * validation sends a command. The default setting for this parameter is 0.</li>
  * </ul>
  * <p>
  * Optionally, one may configure the pool to examine and possibly evict GM connections as they sit idle in the pool and
@@ -84,18 +97,17 @@ import org.gm4java.engine.GMConnection;
  * connection will be dropped from the pool due to idle time alone. This setting has no effect unless
  * <code>timeBetweenEvictionRunsMillis &gt; 0.</code> The default setting for this parameter is 30 minutes.</li>
  * <li>
- * {@link #setTestWhileIdle <i>testWhileIdle</i>} indicates whether or not idle GM connections should be validated using
- * the factory's {@link PoolableObjectFactory#validateObject} method. Objects that fail to validate will be dropped from
- * the pool. This setting has no effect unless <code>timeBetweenEvictionRunsMillis &gt; 0.</code> The default setting for
+ * {@link #setTestWhileIdle <i>testWhileIdle</i>} indicates whether or not idle GM connections should be validated by
+ * the idle GM connection evictor. GM connections that fail to validate will be dropped from the pool. This setting has no effect unless <code>timeBetweenEvictionRunsMillis &gt; 0.</code> The default setting for
  * this parameter is <code>false.</code></li>
  * <li>
  * {@link #setSoftMinEvictableIdleTimeMillis <i>softMinEvictableIdleTimeMillis</i>} specifies the minimum amount of time
  * a GM connection may sit idle in the pool before it is eligible for eviction by the idle GM connection evictor (if
  * any), with the extra condition that at least "minIdle" GM connection instances remain in the pool. When non-positive,
  * no GM connection will be evicted from the pool due to idle time alone. This setting has no effect unless
- * <code>timeBetweenEvictionRunsMillis &gt; 0.</code> and it is superceded by {@link #setMinEvictableIdleTimeMillis
- * <i>minEvictableIdleTimeMillis</i>} (that is, if <code>minEvictableIdleTimeMillis</code> is positive, then
- * <code>softMinEvictableIdleTimeMillis</code> is ignored). The default setting for this parameter is -1 (disabled).</li>
+ * <code>timeBetweenEvictionRunsMillis &gt; 0.</code> When {@link #setMinEvictableIdleTimeMillis
+ * <i>minEvictableIdleTimeMillis</i>} is also positive, a GM connection is evicted when either of them is exceeded.
+ * The default setting for this parameter is -1 (disabled).</li>
  * <li>
  * {@link #setNumTestsPerEvictionRun <i>numTestsPerEvictionRun</i>} determines the number of GM connections examined in
  * each run of the idle GM connection evictor. This setting has no effect unless
@@ -111,6 +123,81 @@ import org.gm4java.engine.GMConnection;
  * order. The default setting for this parameter is <code>true.</code></li>
  * </ul>
  * <p>
+ * {@link #setAsyncThreads <i>asyncThreads</i>} controls the number of I/O threads used by
+ * {@link PooledGMService#executeAsync(java.util.List)} to run queued commands. When non-positive, <i>maxActive</i> is
+ * used if it is positive, otherwise the number of available processors. The default setting for this parameter is 0.
+ * <p>
+ * {@link #setThreadFactory <i>threadFactory</i>} creates the I/O threads of {@link PooledGMService} and the shard
+ * threads of {@link ShardedGMService}, e.g. a factory of virtual threads. The pool waits on
+ * <code>java.util.concurrent</code> locks, but the process pipes of the JDK read and write while holding a monitor, so
+ * before Java 24 a virtual thread waiting for GraphicsMagick pins its carrier thread unless <i>namedPipes</i> is set.
+ * By default daemon platform threads are created.
+ * <p>
+ * {@link #setNamedPipes <i>namedPipes</i>} connects to each GraphicsMagick process through a pair of named pipes read
+ * and written with plain file streams, which hold no monitor while waiting for GraphicsMagick, instead of the process
+ * pipes of the JDK. It needs <code>mkfifo</code>, so it only works on Unix-like systems. The default setting for this
+ * parameter is <code>false</code>.
+ * <p>
+ * {@link #setPipelineDepth <i>pipelineDepth</i>} controls how many queued asynchronous commands an I/O thread writes
+ * ahead to one GraphicsMagick process before reading their results back. The default setting for this parameter is 1,
+ * which disables pipelining.
+ * <p>
+ * {@link #setCharset <i>charset</i>} specifies the charset used to encode the commands sent to GraphicsMagick and to
+ * decode its output. The default setting for this parameter is UTF-8.
+ * <p>
+ * {@link #setMaxOutputSize <i>maxOutputSize</i>} limits the number of bytes of output a command can return as a string,
+ * which bounds the heap used by each command in flight. Larger output can be streamed with
+ * {@link PooledGMService#execute(org.gm4java.engine.GMOutputConsumer, java.util.List)}. The default setting for this
+ * parameter is 0 (no limit).
+ * <p>
+ * {@link #setCommandTimeout <i>commandTimeout</i>} limits the time in milliseconds to wait for the result of a
+ * command. A GraphicsMagick process that doesn't complete the command in time is destroyed and replaced. The default
+ * setting for this parameter is 0 (wait forever).
+ * <p>
+ * {@link #setMaxProcessMemory <i>maxProcessMemory</i>} limits the resident memory in bytes a GraphicsMagick process
+ * can grow to, e.g. after decoding large images. A process found beyond the limit when its connection is returned to
+ * the pool is replaced. The memory is only known on Linux. The default setting for this parameter is 0 (no limit).
+ * <p>
+ * {@link #setAdaptiveSizingPeriodMillis <i>adaptiveSizingPeriodMillis</i>} turns on the adjustment of the number of
+ * GraphicsMagick processes to the load, between {@link #setMinActive <i>minActive</i>} and <i>maxActive</i>. Every
+ * period, the pool grows while borrowers wait and more processes keep adding throughput, and shrinks when they don't
+ * or the processors are saturated. The default setting for this parameter is 0 (the pool size is fixed), and the
+ * default <i>minActive</i> is 1.
+ * <p>
+ * {@link #setResourceLimit <i>resourceLimit</i>}, {@link #setTemporaryDirectory <i>temporaryDirectory</i>} and
+ * {@link #setEnvironment <i>environment</i>} set the environment variables each GraphicsMagick process is started
+ * with, e.g. to keep its memory and threads within a budget or to put the pixel cache on a tmpfs. By default, the
+ * processes inherit the environment of the JVM unchanged.
+ * <p>
+ * {@link #autoSize(long)} derives <i>maxActive</i>, <i>maxIdle</i> and <i>minIdle</i> from the processors and memory
+ * available to the JVM or its container, so the same configuration fits small and large hosts.
+ * <p>
+ * {@link #setAutoThreadLimit <i>autoThreadLimit</i>} divides the processors available, taking the CPU quota of the
+ * container into account, among <i>maxActive</i> GraphicsMagick processes and limits the OpenMP threads of each
+ * process accordingly, unless {@link ResourceLimit#THREADS} is set explicitly. The default setting for this parameter
+ * is <code>false</code>.
+ * <p>
+ * {@link #setStandbyProcesses <i>standbyProcesses</i>} controls the number of GraphicsMagick processes the pool starts
+ * ahead of time, so a new connection doesn't wait for GraphicsMagick to start. They are refilled in the background
+ * whenever one is used, and are not counted by <i>maxActive</i> or <i>maxIdle</i>. The default setting for this
+ * parameter is 0 (start processes on demand).
+ * <p>
+ * {@link #setThreadAffinity <i>threadAffinity</i>} lets a thread keep the GM connection it used last, so a thread
+ * executing commands one after another reuses the same GraphicsMagick process without going through the pool. Kept
+ * connections are taken by other threads when the pool is exhausted. The default setting for this parameter is
+ * <code>false</code>.
+ * <p>
+ * {@link #setDeduplicate <i>deduplicate</i>} makes {@link PooledGMService} run identical commands that are executed
+ * at the same time only once and hand the result to all the callers, so a burst of requests for the same image
+ * doesn't occupy many GraphicsMagick processes writing the same file. The default setting for this parameter is
+ * <code>false</code>.
+ * <p>
+ * {@link #setWarmUpOnStart <i>warmUpOnStart</i>} makes the pool start <i>minIdle</i> GraphicsMagick processes in
+ * parallel as soon as it is created, instead of one by one on the first requests, and
+ * {@link #setWarmUpCommand <i>warmUpCommand</i>} is executed once on each of them, e.g. to load the delegates and
+ * fonts. {@link PooledGMService#isReady()} tells when the warm-up is completed. The default setting for
+ * <i>warmUpOnStart</i> is <code>false</code> and there is no warm-up command by default.
+ * <p>
  * 
  * @author Kenneth Xu
  * 
@@ -128,12 +215,138 @@ public class GMConnectionPoolConfig {
      */
     public static final int DEFAULT_EVICT_AFTER_NUMBER_OF_USE = 0;
 
-    private final GenericObjectPool.Config config = new GenericObjectPool.Config();
+    /**
+     * Default value for the maximum number of extra uses randomly added to the use limit of each GraphicsMagick
+     * process, which means no jitter.
+     */
+    public static final int DEFAULT_EVICT_AFTER_NUMBER_OF_USE_JITTER = 0;
+
+    /**
+     * Default value for the number of I/O threads used to execute asynchronous commands, which means derive it from
+     * maxActive.
+     */
+    public static final int DEFAULT_ASYNC_THREADS = 0;
+
+    /**
+     * Default number of asynchronous commands that can be in flight on one GraphicsMagick process, which means no
+     * pipelining.
+     */
+    public static final int DEFAULT_PIPELINE_DEPTH = 1;
+
+    /**
+     * Default charset used to communicate with GraphicsMagick.
+     */
+    public static final Charset DEFAULT_CHARSET = Constants.DEFAULT_CHARSET;
+
+    /**
+     * Default maximum number of bytes of output a command can return as a string, which means no limit.
+     */
+    public static final int DEFAULT_MAX_OUTPUT_SIZE = 0;
+
+    /**
+     * Default time in milliseconds to wait for the result of a command, which means wait forever.
+     */
+    public static final long DEFAULT_COMMAND_TIMEOUT = 0;
+
+    /**
+     * Default number of GraphicsMagick processes started ahead of time, which means start processes on demand.
+     */
+    public static final int DEFAULT_STANDBY_PROCESSES = 0;
+
+    /**
+     * Default resident memory in bytes a GraphicsMagick process can grow to before it is replaced, which means no
+     * limit.
+     */
+    public static final long DEFAULT_MAX_PROCESS_MEMORY = 0;
+
+    /**
+     * Default time in milliseconds a GraphicsMagick process must be quiet before validation sends it a command, which
+     * means always send.
+     */
+    public static final long DEFAULT_PING_IDLE_TIME_MILLIS = 0;
+
+    /**
+     * Default time in milliseconds between adjustments of the pool size, which means the pool size is fixed.
+     */
+    public static final long DEFAULT_ADAPTIVE_SIZING_PERIOD_MILLIS = 0;
+
+    /**
+     * Default lower bound of the number of GraphicsMagick processes when the pool size is adjusted.
+     */
+    public static final int DEFAULT_MIN_ACTIVE = 1;
+
+    private static final String MAGICK_TMPDIR = "MAGICK_TMPDIR";
+
+    private int maxActive = 8;
+
+    private int maxIdle = 8;
+
+    private int minIdle = 0;
+
+    private WhenExhaustedAction whenExhaustedAction = WhenExhaustedAction.BLOCK;
+
+    private long maxWait = -1;
+
+    private boolean testOnGet;
+
+    private boolean testOnReturn;
+
+    private long timeBetweenEvictionRunsMillis = -1;
+
+    private int numTestsPerEvictionRun = 3;
+
+    private long minEvictableIdleTimeMillis = 30 * 60 * 1000L;
+
+    private long softMinEvictableIdleTimeMillis = -1;
+
+    private boolean testWhileIdle;
+
+    private boolean lifo = true;
+
+    private long pingIdleTimeMillis = DEFAULT_PING_IDLE_TIME_MILLIS;
 
     private String gmPath = DEFAULT_GM_PATH;
 
+    private String gmVersion;
+
     private int evictAfterNumberOfUse = DEFAULT_EVICT_AFTER_NUMBER_OF_USE;
 
+    private int evictAfterNumberOfUseJitter = DEFAULT_EVICT_AFTER_NUMBER_OF_USE_JITTER;
+
+    private int asyncThreads = DEFAULT_ASYNC_THREADS;
+
+    private ThreadFactory threadFactory;
+
+    private boolean namedPipes;
+
+    private int pipelineDepth = DEFAULT_PIPELINE_DEPTH;
+
+    private Charset charset = DEFAULT_CHARSET;
+
+    private int maxOutputSize = DEFAULT_MAX_OUTPUT_SIZE;
+
+    private long commandTimeout = DEFAULT_COMMAND_TIMEOUT;
+
+    private int standbyProcesses = DEFAULT_STANDBY_PROCESSES;
+
+    private long maxProcessMemory = DEFAULT_MAX_PROCESS_MEMORY;
+
+    private long adaptiveSizingPeriodMillis = DEFAULT_ADAPTIVE_SIZING_PERIOD_MILLIS;
+
+    private int minActive = DEFAULT_MIN_ACTIVE;
+
+    private boolean threadAffinity;
+
+    private boolean deduplicate;
+
+    private boolean warmUpOnStart;
+
+    private List<String> warmUpCommand;
+
+    private final Map<String, String> environment = new LinkedHashMap<String, String>();
+
+    private boolean autoThreadLimit;
+
     /**
      * Returns the maximum number of {@link GMConnection}s that can be allocated by the pool (checked out to clients, or
      * idle awaiting checkout) at a given time. When non-positive, there is no limit to the number of
@@ -143,7 +356,7 @@ public class GMConnectionPoolConfig {
      * @see #setMaxActive
      */
     public int getMaxActive() {
-        return config.maxActive;
+        return maxActive;
     }
 
     /**
@@ -156,7 +369,7 @@ public class GMConnectionPoolConfig {
      * @see #getMaxActive
      */
     public void setMaxActive(int maxActive) {
-        config.maxActive = maxActive;
+        this.maxActive = maxActive;
     }
 
     /**
@@ -167,7 +380,7 @@ public class GMConnectionPoolConfig {
      * @see #setWhenExhaustedAction
      */
     public WhenExhaustedAction getWhenExhaustedAction() {
-        return WhenExhaustedAction.fromValue(config.whenExhaustedAction);
+        return whenExhaustedAction;
     }
 
     /**
@@ -178,8 +391,9 @@ public class GMConnectionPoolConfig {
      *            the action to set
      * @see #getWhenExhaustedAction
      */
-    public void setWhenExhaustedAction(WhenExhaustedAction whenExhaustedAction) {
-        config.whenExhaustedAction = whenExhaustedAction.toValue();
+    public void setWhenExhaustedAction(@Nonnull WhenExhaustedAction whenExhaustedAction) {
+        if (whenExhaustedAction == null) throw new NullPointerException("whenExhaustedAction");
+        this.whenExhaustedAction = whenExhaustedAction;
     }
 
     /**
@@ -194,7 +408,7 @@ public class GMConnectionPoolConfig {
      * @see #setWhenExhaustedAction
      */
     public long getMaxWait() {
-        return config.maxWait;
+        return maxWait;
     }
 
     /**
@@ -210,7 +424,7 @@ public class GMConnectionPoolConfig {
      * @see #setWhenExhaustedAction
      */
     public void setMaxWait(long maxWait) {
-        config.maxWait = maxWait;
+        this.maxWait = maxWait;
     }
 
     /**
@@ -220,7 +434,7 @@ public class GMConnectionPoolConfig {
      * @see #setMaxIdle
      */
     public int getMaxIdle() {
-        return config.maxIdle;
+        return maxIdle;
     }
 
     /**
@@ -236,7 +450,7 @@ public class GMConnectionPoolConfig {
      * @see #getMaxIdle
      */
     public void setMaxIdle(int maxIdle) {
-        config.maxIdle = maxIdle;
+        this.maxIdle = maxIdle;
     }
 
     /**
@@ -251,7 +465,7 @@ public class GMConnectionPoolConfig {
      * @see #getTimeBetweenEvictionRunsMillis()
      */
     public void setMinIdle(int minIdle) {
-        config.minIdle = minIdle;
+        this.minIdle = minIdle;
     }
 
     /**
@@ -263,11 +477,11 @@ public class GMConnectionPoolConfig {
      * @see #setMinIdle
      */
     public int getMinIdle() {
-        return config.minIdle;
+        return minIdle;
     }
 
     /**
-     * When <tt>true</tt>, {@link GMConnection}s will be validated} before being returned by the
+     * When <tt>true</tt>, {@link GMConnection}s will be validated before being returned by the
      * {@link PooledGMService#getConnection()} method. If the {@link GMConnection} fails to validate, it will be dropped
      * from the pool, and we will attempt to get another.
      * 
@@ -275,7 +489,7 @@ public class GMConnectionPoolConfig {
      * @see #setTestOnGet
      */
     public boolean getTestOnGet() {
-        return config.testOnBorrow;
+        return testOnGet;
     }
 
     /**
@@ -288,30 +502,30 @@ public class GMConnectionPoolConfig {
      * @see #getTestOnGet
      */
     public void setTestOnGet(boolean testOnGet) {
-        config.testOnBorrow = testOnGet;
+        this.testOnGet = testOnGet;
     }
 
     /**
-     * When <tt>true</tt>, {@link GMConnection}s will be {@link PoolableObjectFactory#validateObject validated} before
-     * being returned to the pool within the {@link GenericObjectPool#returnObject}.
+     * When <tt>true</tt>, {@link GMConnection}s will be validated before
+     * being returned to the pool when {@link GMConnection#close() closed}.
      * 
-     * @return <code>true</code> when {@link GMConnection}s will be validated after returned to {@link GenericObjectPool#returnObject}.
+     * @return <code>true</code> when {@link GMConnection}s will be validated when returned to the pool.
      * @see #setTestOnReturn
      */
     public boolean getTestOnReturn() {
-        return config.testOnReturn;
+        return testOnReturn;
     }
 
     /**
-     * When <tt>true</tt>, {@link GMConnection}s will be {@link PoolableObjectFactory#validateObject validated} before
-     * being returned to the pool within the {@link GenericObjectPool#returnObject}.
+     * When <tt>true</tt>, {@link GMConnection}s will be validated before
+     * being returned to the pool when {@link GMConnection#close() closed}.
      * 
      * @param testOnReturn
-     *            <code>true</code> so {@link GMConnection}s will be validated after returned to {@link GenericObjectPool#returnObject}.
+     *            <code>true</code> so {@link GMConnection}s will be validated when returned to the pool.
      * @see #getTestOnReturn
      */
     public void setTestOnReturn(boolean testOnReturn) {
-        config.testOnReturn = testOnReturn;
+        this.testOnReturn = testOnReturn;
     }
 
     /**
@@ -322,7 +536,7 @@ public class GMConnectionPoolConfig {
      * @see #setTimeBetweenEvictionRunsMillis
      */
     public long getTimeBetweenEvictionRunsMillis() {
-        return config.timeBetweenEvictionRunsMillis;
+        return timeBetweenEvictionRunsMillis;
     }
 
     /**
@@ -334,7 +548,7 @@ public class GMConnectionPoolConfig {
      * @see #getTimeBetweenEvictionRunsMillis
      */
     public void setTimeBetweenEvictionRunsMillis(long timeBetweenEvictionRunsMillis) {
-        config.timeBetweenEvictionRunsMillis = timeBetweenEvictionRunsMillis;
+        this.timeBetweenEvictionRunsMillis = timeBetweenEvictionRunsMillis;
     }
 
     /**
@@ -346,14 +560,14 @@ public class GMConnectionPoolConfig {
      * @see #setTimeBetweenEvictionRunsMillis
      */
     public int getNumTestsPerEvictionRun() {
-        return config.numTestsPerEvictionRun;
+        return numTestsPerEvictionRun;
     }
 
     /**
      * Sets the max number of {@link GMConnection}s to examine during each run of the idle {@link GMConnection} evictor
      * thread (if any).
      * <p>
-     * When a negative value is supplied, <tt>ceil({@link GenericObjectPool#getNumIdle})/abs({@link GenericObjectPool#getNumTestsPerEvictionRun})</tt>
+     * When a negative value is supplied, <tt>ceil(<i>number of idle connections</i>/abs(<i>numTestsPerEvictionRun</i>))</tt>
      * tests will be run. That is, when the value is <i>-n</i>, roughly one <i>n</i>th of the idle {@link GMConnection}s
      * will be tested per run. When the value is positive, the number of tests actually performed in each run will be
      * the minimum of this value and the number of instances idle in the pool.
@@ -364,7 +578,7 @@ public class GMConnectionPoolConfig {
      * @see #setTimeBetweenEvictionRunsMillis
      */
     public void setNumTestsPerEvictionRun(int numTestsPerEvictionRun) {
-        config.numTestsPerEvictionRun = numTestsPerEvictionRun;
+        this.numTestsPerEvictionRun = numTestsPerEvictionRun;
     }
 
     /**
@@ -377,7 +591,7 @@ public class GMConnectionPoolConfig {
      * @see #setTimeBetweenEvictionRunsMillis
      */
     public long getMinEvictableIdleTimeMillis() {
-        return config.minEvictableIdleTimeMillis;
+        return minEvictableIdleTimeMillis;
     }
 
     /**
@@ -392,7 +606,7 @@ public class GMConnectionPoolConfig {
      * @see #setTimeBetweenEvictionRunsMillis
      */
     public void setMinEvictableIdleTimeMillis(long minEvictableIdleTimeMillis) {
-        config.minEvictableIdleTimeMillis = minEvictableIdleTimeMillis;
+        this.minEvictableIdleTimeMillis = minEvictableIdleTimeMillis;
     }
 
     /**
@@ -405,7 +619,7 @@ public class GMConnectionPoolConfig {
      * @see #setSoftMinEvictableIdleTimeMillis
      */
     public long getSoftMinEvictableIdleTimeMillis() {
-        return config.softMinEvictableIdleTimeMillis;
+        return softMinEvictableIdleTimeMillis;
     }
 
     /**
@@ -420,11 +634,11 @@ public class GMConnectionPoolConfig {
      * @see #getSoftMinEvictableIdleTimeMillis
      */
     public void setSoftMinEvictableIdleTimeMillis(long softMinEvictableIdleTimeMillis) {
-        config.softMinEvictableIdleTimeMillis = softMinEvictableIdleTimeMillis;
+        this.softMinEvictableIdleTimeMillis = softMinEvictableIdleTimeMillis;
     }
 
     /**
-     * When <tt>true</tt>, {@link GMConnection}s will be {@link PoolableObjectFactory#validateObject validated} by the
+     * When <tt>true</tt>, {@link GMConnection}s will be validated by the
      * idle {@link GMConnection} evictor (if any). If an {@link GMConnection} fails to validate, it will be dropped from
      * the pool.
      * 
@@ -433,11 +647,11 @@ public class GMConnectionPoolConfig {
      * @see #setTimeBetweenEvictionRunsMillis
      */
     public boolean getTestWhileIdle() {
-        return config.testWhileIdle;
+        return testWhileIdle;
     }
 
     /**
-     * When <tt>true</tt>, {@link GMConnection}s will be {@link PoolableObjectFactory#validateObject validated} by the
+     * When <tt>true</tt>, {@link GMConnection}s will be validated by the
      * idle {@link GMConnection} evictor (if any). If an {@link GMConnection} fails to validate, it will be dropped from
      * the pool.
      * 
@@ -447,7 +661,7 @@ public class GMConnectionPoolConfig {
      * @see #setTimeBetweenEvictionRunsMillis
      */
     public void setTestWhileIdle(boolean testWhileIdle) {
-        config.testWhileIdle = testWhileIdle;
+        this.testWhileIdle = testWhileIdle;
     }
 
     /**
@@ -459,7 +673,7 @@ public class GMConnectionPoolConfig {
      * @return {@code true} if the pool is configured to act as a LIFO queue
      */
     public boolean isLifo() {
-        return config.lifo;
+        return lifo;
     }
 
     /**
@@ -472,7 +686,7 @@ public class GMConnectionPoolConfig {
      *            the new value for the LIFO property
      */
     public void setLifo(boolean lifo) {
-        config.lifo = lifo;
+        this.lifo = lifo;
     }
 
     /**
@@ -494,6 +708,30 @@ public class GMConnectionPoolConfig {
         this.gmPath = gmPath;
     }
 
+    /**
+     * Gets the version of GraphicsMagick declared by {@link #setGMVersion(String)}.
+     * 
+     * @return the declared version, or null if the version is detected
+     */
+    @CheckForNull
+    public String getGMVersion() {
+        return gmVersion;
+    }
+
+    /**
+     * Declares the version of the GraphicsMagick executable, e.g. <code>1.3.38</code>, so it is not detected by
+     * running <code>gm version</code> before the first process is started. The version decides the options the
+     * processes are started with, a wrong version can make them fail to start. Detected versions are cached for the
+     * life of the JVM by the location and modification time of the executable, so declaring it mostly helps
+     * short-lived processes.
+     * 
+     * @param gmVersion
+     *            the version, or null to detect it
+     */
+    public void setGMVersion(@CheckForNull String gmVersion) {
+        this.gmVersion = gmVersion;
+    }
+
     /**
      * Get the number of times a GraphicsMagick process can be used to execute commands before it gets evicted and
      * destroyed. A non-positive value disables this feature. This feature is disabled by default until a positive value
@@ -523,7 +761,581 @@ public class GMConnectionPoolConfig {
         this.evictAfterNumberOfUse = evictAfterNumberOfUse;
     }
 
-    GenericObjectPool.Config getConfig() {
-        return config;
+    /**
+     * Gets the maximum number of extra uses randomly added to {@link #getEvictAfterNumberOfUse()
+     * evictAfterNumberOfUse} for each GraphicsMagick process.
+     * 
+     * @return the jitter of the use limit
+     * @see #setEvictAfterNumberOfUseJitter
+     */
+    public int getEvictAfterNumberOfUseJitter() {
+        return evictAfterNumberOfUseJitter;
+    }
+
+    /**
+     * Sets the maximum number of extra uses randomly added to {@link #setEvictAfterNumberOfUse
+     * evictAfterNumberOfUse} for each GraphicsMagick process. Each process picks its extra uses when it is started,
+     * so processes started together, e.g. when the pool fills up, don't all reach the limit and get replaced at the
+     * same time. This setting has no effect unless <i>evictAfterNumberOfUse</i> is positive.
+     * 
+     * @param evictAfterNumberOfUseJitter
+     *            the maximum number of extra uses, non-positive for none
+     * @see #getEvictAfterNumberOfUseJitter
+     */
+    public void setEvictAfterNumberOfUseJitter(int evictAfterNumberOfUseJitter) {
+        this.evictAfterNumberOfUseJitter = evictAfterNumberOfUseJitter;
+    }
+
+    /**
+     * Gets the number of I/O threads used to execute commands submitted asynchronously.
+     * 
+     * @return the number of I/O threads, a non-positive value means it is derived from {@link #getMaxActive()
+     *         maxActive}.
+     * @see #setAsyncThreads
+     */
+    public int getAsyncThreads() {
+        return asyncThreads;
+    }
+
+    /**
+     * Sets the number of I/O threads used to execute commands submitted asynchronously through
+     * {@link PooledGMService#executeAsync(java.util.List)}. Each thread drives one pooled GraphicsMagick process at a
+     * time, so there is little benefit setting this higher than <i>maxActive</i>. When non-positive, <i>maxActive</i>
+     * is used if it is positive, otherwise the number of available processors.
+     * 
+     * @param asyncThreads
+     *            the number of I/O threads
+     * @see #getAsyncThreads
+     */
+    public void setAsyncThreads(int asyncThreads) {
+        this.asyncThreads = asyncThreads;
+    }
+
+    /**
+     * Gets the factory of the threads that execute commands on behalf of the callers.
+     * 
+     * @return the thread factory, or null if daemon platform threads are created
+     * @see #setThreadFactory
+     */
+    @CheckForNull
+    public ThreadFactory getThreadFactory() {
+        return threadFactory;
+    }
+
+    /**
+     * Sets the factory of the threads that execute commands on behalf of the callers, which are the I/O threads of
+     * {@link PooledGMService#executeAsync(java.util.List)} and the shard threads of {@link ShardedGMService}, e.g.
+     * <code>Thread.ofVirtual().factory()</code> on a JVM that supports virtual threads. Until Java 24 lets a virtual
+     * thread unmount while holding a monitor, the blocking reads on the process pipe pin its carrier thread, so set
+     * {@link #setNamedPipes <i>namedPipes</i>} as well.
+     * 
+     * @param threadFactory
+     *            the thread factory, or null to create daemon platform threads
+     * @see #getThreadFactory
+     */
+    public void setThreadFactory(@CheckForNull ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Tells whether GraphicsMagick processes are connected through named pipes instead of the process pipes of the
+     * JDK.
+     * 
+     * @return true if named pipes are used
+     * @see #setNamedPipes
+     */
+    public boolean isNamedPipes() {
+        return namedPipes;
+    }
+
+    /**
+     * Sets whether to connect to GraphicsMagick processes through named pipes instead of the process pipes of the JDK.
+     * The process pipes are buffered streams that hold their monitor while blocked, so a virtual thread waiting for
+     * GraphicsMagick pins its carrier thread until Java 24. The named pipes are read and written with
+     * {@link java.io.FileInputStream} and {@link java.io.FileOutputStream}, which hold no monitor. Each process takes
+     * an extra <code>mkfifo</code> command to start, and it only works on Unix-like systems.
+     * 
+     * @param namedPipes
+     *            true to use named pipes
+     * @see #isNamedPipes
+     */
+    public void setNamedPipes(boolean namedPipes) {
+        this.namedPipes = namedPipes;
+    }
+
+    /**
+     * Gets the maximum number of asynchronous commands that can be in flight on one GraphicsMagick process.
+     * 
+     * @return the pipeline depth
+     * @see #setPipelineDepth
+     */
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /**
+     * Sets the maximum number of asynchronous commands that can be in flight on one GraphicsMagick process. When it is
+     * greater than one, an I/O thread takes up to this many commands from the queue, writes all of them to the same
+     * process and then reads the results back in the same order, so the process doesn't sit idle between commands.
+     * Pipelining works best for many small commands, a small value like 4 is usually enough.
+     * <p>
+     * <i>Note:</i> Commands pipelined together share the fate of the process. If the process dies or the communication
+     * breaks, all of them fail with the same {@link org.gm4java.engine.GMServiceException}.
+     * 
+     * @param pipelineDepth
+     *            the pipeline depth, must be positive
+     * @throws IllegalArgumentException
+     *             when pipelineDepth is not positive
+     * @see #getPipelineDepth
+     */
+    public void setPipelineDepth(int pipelineDepth) {
+        if (pipelineDepth <= 0) {
+            throw new IllegalArgumentException("pipelineDepth must be positive but was " + pipelineDepth);
+        }
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    /**
+     * Gets the charset used to encode the commands sent to GraphicsMagick and to decode its output.
+     * 
+     * @return the charset
+     * @see #setCharset
+     */
+    @Nonnull
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Sets the charset used to encode the commands sent to GraphicsMagick and to decode its output. It must match the
+     * encoding GraphicsMagick expects for file names and text arguments, which is UTF-8 on most modern systems. Prior
+     * versions used the platform default charset.
+     * 
+     * @param charset
+     *            the charset
+     * @throws NullPointerException
+     *             when charset is null
+     * @see #getCharset
+     */
+    public void setCharset(@Nonnull Charset charset) {
+        if (charset == null) throw new NullPointerException("charset");
+        this.charset = charset;
+    }
+
+    /**
+     * Gets the maximum number of bytes of output a command can return as a string.
+     * 
+     * @return the maximum output size in bytes, non-positive means no limit
+     * @see #setMaxOutputSize
+     */
+    public int getMaxOutputSize() {
+        return maxOutputSize;
+    }
+
+    /**
+     * Sets the maximum number of bytes of output a command can return as a string. A command producing more output
+     * fails fast with {@link org.gm4java.engine.GMOutputTooLargeException}, the rest of its output is read and
+     * discarded so the GraphicsMagick process can be reused. Commands that stream their output to a
+     * {@link org.gm4java.engine.GMOutputConsumer} are not limited, use {@link SpillingOutputConsumer} to keep large
+     * output in a temporary file instead of the heap.
+     * 
+     * @param maxOutputSize
+     *            the maximum output size in bytes, non-positive for no limit
+     * @see #getMaxOutputSize
+     */
+    public void setMaxOutputSize(int maxOutputSize) {
+        this.maxOutputSize = maxOutputSize;
+    }
+
+    /**
+     * Gets the maximum time in milliseconds to wait for the result of a command.
+     * 
+     * @return the timeout in milliseconds, non-positive means wait forever
+     * @see #setCommandTimeout
+     */
+    public long getCommandTimeout() {
+        return commandTimeout;
+    }
+
+    /**
+     * Sets the maximum time in milliseconds to wait for the result of a command. When a GraphicsMagick process hangs,
+     * e.g. on a malformed image, it is destroyed by a shared watchdog thread once the timeout expires, and the command
+     * fails with {@link org.gm4java.engine.GMTimeoutException}. The pool then replaces the process instead of losing
+     * it. The timeout can be overridden for a single command by
+     * {@link PooledGMService#execute(java.util.List, long, java.util.concurrent.TimeUnit)}.
+     * 
+     * @param commandTimeout
+     *            the timeout in milliseconds, non-positive to wait forever
+     * @see #getCommandTimeout
+     */
+    public void setCommandTimeout(long commandTimeout) {
+        this.commandTimeout = commandTimeout;
+    }
+
+    /**
+     * Gets the number of GraphicsMagick processes started ahead of time.
+     * 
+     * @return the number of standby processes
+     * @see #setStandbyProcesses
+     */
+    public int getStandbyProcesses() {
+        return standbyProcesses;
+    }
+
+    /**
+     * Sets the number of GraphicsMagick processes started ahead of time. Starting GraphicsMagick can take tens of
+     * milliseconds, a pool that grows during a traffic spike takes a standby process instead and a background thread
+     * starts another one to replace it. Standby processes are in addition to the connections limited by
+     * {@link #setMaxActive <i>maxActive</i>}.
+     * 
+     * @param standbyProcesses
+     *            the number of standby processes, non-positive to start processes on demand
+     * @see #getStandbyProcesses
+     */
+    public void setStandbyProcesses(int standbyProcesses) {
+        this.standbyProcesses = standbyProcesses;
+    }
+
+    /**
+     * Gets the time in milliseconds a GraphicsMagick process must be quiet before validation sends it a command.
+     * 
+     * @return the quiet time in milliseconds
+     * @see #setPingIdleTimeMillis
+     */
+    public long getPingIdleTimeMillis() {
+        return pingIdleTimeMillis;
+    }
+
+    /**
+     * Sets the time in milliseconds a GraphicsMagick process must be quiet before validation, see
+     * {@link #setTestOnGet <i>testOnGet</i>}, {@link #setTestOnReturn <i>testOnReturn</i>} and
+     * {@link #setTestWhileIdle <i>testWhileIdle</i>}, sends it a command. A connection that completed a command more
+     * recently is considered valid when its process is still running and no communication error was recorded, which
+     * saves a round trip to GraphicsMagick on every borrow of a busy connection.
+     * 
+     * @param pingIdleTimeMillis
+     *            the quiet time in milliseconds, non-positive to always send a command
+     * @see #getPingIdleTimeMillis
+     */
+    public void setPingIdleTimeMillis(long pingIdleTimeMillis) {
+        this.pingIdleTimeMillis = pingIdleTimeMillis;
+    }
+
+    /**
+     * Gets the resident memory in bytes a GraphicsMagick process can grow to before it is replaced.
+     * 
+     * @return the memory limit in bytes
+     * @see #setMaxProcessMemory
+     */
+    public long getMaxProcessMemory() {
+        return maxProcessMemory;
+    }
+
+    /**
+     * Sets the resident memory in bytes a GraphicsMagick process can grow to before it is replaced. GraphicsMagick
+     * doesn't always give the memory back after processing a large image, so long running processes can grow apart.
+     * The resident set size is read from <code>/proc/&lt;pid&gt;/status</code> when a connection is returned to the
+     * pool, once every 16 commands so the commands in between don't pay for it, and a process beyond the limit is
+     * replaced in the background like one that reached
+     * {@link #setEvictAfterNumberOfUse <i>evictAfterNumberOfUse</i>}. It has no effect where the memory of a process
+     * can't be determined.
+     * 
+     * @param maxProcessMemory
+     *            the memory limit in bytes, non-positive for no limit
+     * @see #getMaxProcessMemory
+     */
+    public void setMaxProcessMemory(long maxProcessMemory) {
+        this.maxProcessMemory = maxProcessMemory;
+    }
+
+    /**
+     * Gets the time in milliseconds between adjustments of the number of GraphicsMagick processes the pool may run.
+     * 
+     * @return the period in milliseconds, non-positive means the pool size is not adjusted
+     * @see #setAdaptiveSizingPeriodMillis
+     */
+    public long getAdaptiveSizingPeriodMillis() {
+        return adaptiveSizingPeriodMillis;
+    }
+
+    /**
+     * Sets the time in milliseconds between adjustments of the number of GraphicsMagick processes the pool may run.
+     * When positive, the pool starts with {@link #setMinActive <i>minActive</i>} processes and, at the end of every
+     * period, raises the limit while borrowers wait for a connection and each raise keeps improving the throughput or
+     * the wait time. The limit is lowered when a raise didn't pay off, when the processors are saturated, or when
+     * connections sit idle with nobody waiting, and connections beyond the limit are destroyed when they are returned.
+     * The limit never exceeds {@link #setMaxActive <i>maxActive</i>}, which must be positive for the adjustment to take
+     * place. A period of a few seconds smooths out the noise of individual commands.
+     * 
+     * @param adaptiveSizingPeriodMillis
+     *            the period in milliseconds, non-positive to keep the pool size fixed at <i>maxActive</i>
+     * @see #getAdaptiveSizingPeriodMillis
+     */
+    public void setAdaptiveSizingPeriodMillis(long adaptiveSizingPeriodMillis) {
+        this.adaptiveSizingPeriodMillis = adaptiveSizingPeriodMillis;
+    }
+
+    /**
+     * Gets the lower bound of the number of GraphicsMagick processes the pool may run when the pool size is adjusted.
+     * 
+     * @return the lower bound
+     * @see #setMinActive
+     */
+    public int getMinActive() {
+        return minActive;
+    }
+
+    /**
+     * Sets the lower bound of the number of GraphicsMagick processes the pool may run when the pool size is
+     * {@link #setAdaptiveSizingPeriodMillis adjusted}. It has no effect on a pool of fixed size.
+     * 
+     * @param minActive
+     *            the lower bound, values less than 1 are taken as 1
+     * @see #getMinActive
+     */
+    public void setMinActive(int minActive) {
+        this.minActive = minActive;
+    }
+
+    /**
+     * Tells whether a thread keeps the connection it used last.
+     * 
+     * @return true if threads keep their connection
+     * @see #setThreadAffinity
+     */
+    public boolean isThreadAffinity() {
+        return threadAffinity;
+    }
+
+    /**
+     * Sets whether a thread keeps the connection it used last. When set, a connection returned to the pool stays
+     * with the returning thread instead of going back to the idle GM connections, and the next command of the thread
+     * takes it back without validation or any other pool bookkeeping. It fits worker threads that loop over a queue of
+     * commands. When the pool is exhausted, borrowers take the connections kept by other threads, and while borrowers
+     * are waiting, returned connections are not kept. Kept connections are not counted by
+     * {@link #setMaxIdle <i>maxIdle</i>} and are not examined by the idle GM connection evictor.
+     * 
+     * @param threadAffinity
+     *            true to let threads keep their connection
+     * @see #isThreadAffinity
+     */
+    public void setThreadAffinity(boolean threadAffinity) {
+        this.threadAffinity = threadAffinity;
+    }
+
+    /**
+     * Tells whether identical commands executed at the same time are run only once.
+     * 
+     * @return true if identical commands are deduplicated
+     * @see #setDeduplicate
+     */
+    public boolean isDeduplicate() {
+        return deduplicate;
+    }
+
+    /**
+     * Sets whether identical commands executed at the same time are run only once. When set, a command executed
+     * through {@link PooledGMService#execute(java.util.List)} or {@link PooledGMService#executeAsync(java.util.List)}
+     * while the same command, with the same arguments in the same form, is still running waits for that one and
+     * receives its output or its exception instead of running again. Commands streaming their output and commands
+     * with their own timeout are always run.
+     * 
+     * @param deduplicate
+     *            true to run identical commands only once
+     * @see #isDeduplicate
+     */
+    public void setDeduplicate(boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
+
+    /**
+     * Tells whether the pool is {@link PooledGMService#warmUp() warmed up} when it is created.
+     * 
+     * @return true if the pool is warmed up on start
+     * @see #setWarmUpOnStart
+     */
+    public boolean isWarmUpOnStart() {
+        return warmUpOnStart;
+    }
+
+    /**
+     * Sets whether the pool is {@link PooledGMService#warmUp() warmed up} when it is created. The warm-up runs in the
+     * background, {@link PooledGMService#isReady()} returns false until <i>minIdle</i> GraphicsMagick processes are
+     * started and have executed the {@link #setWarmUpCommand warm-up command}, which makes it a fit for readiness
+     * probes.
+     * 
+     * @param warmUpOnStart
+     *            true to warm up the pool on start
+     * @see #isWarmUpOnStart
+     */
+    public void setWarmUpOnStart(boolean warmUpOnStart) {
+        this.warmUpOnStart = warmUpOnStart;
+    }
+
+    /**
+     * Gets the command executed on each GraphicsMagick process started by the warm-up.
+     * 
+     * @return the command and its arguments, or null if there is no warm-up command
+     * @see #setWarmUpCommand
+     */
+    @CheckForNull
+    public List<String> getWarmUpCommand() {
+        return warmUpCommand;
+    }
+
+    /**
+     * Sets the command executed on each GraphicsMagick process started by the {@link PooledGMService#warmUp()
+     * warm-up}. GraphicsMagick loads delegates, fonts and color profiles on first use, a command that touches them,
+     * e.g. converting a small image of the most common format, moves that cost out of the first requests. A process
+     * that fails the command is destroyed and the warm-up fails.
+     * 
+     * @param warmUpCommand
+     *            the command and its arguments, null or empty for no warm-up command
+     * @see #getWarmUpCommand
+     */
+    public void setWarmUpCommand(@CheckForNull List<String> warmUpCommand) {
+        this.warmUpCommand = warmUpCommand == null || warmUpCommand.isEmpty() ? null : Collections
+                .unmodifiableList(new ArrayList<String>(warmUpCommand));
+    }
+
+    /**
+     * Gets the limit of a resource each GraphicsMagick process is started with.
+     * 
+     * @param resource
+     *            the resource
+     * @return the limit, or null if the resource is not limited
+     * @see #setResourceLimit
+     */
+    @CheckForNull
+    public String getResourceLimit(@Nonnull ResourceLimit resource) {
+        if (resource == null) throw new NullPointerException("resource");
+        return environment.get(resource.getVariable());
+    }
+
+    /**
+     * Sets the limit of a resource each GraphicsMagick process is started with, through the environment variable
+     * GraphicsMagick reads on startup, e.g. <code>setResourceLimit(ResourceLimit.MEMORY, "256MB")</code>. It applies
+     * to every command the process executes, unlike the <code>-limit</code> option of a single command.
+     * 
+     * @param resource
+     *            the resource to limit
+     * @param limit
+     *            the limit in the format GraphicsMagick accepts, or null to remove the limit
+     * @see #getResourceLimit
+     */
+    public void setResourceLimit(@Nonnull ResourceLimit resource, @CheckForNull String limit) {
+        if (resource == null) throw new NullPointerException("resource");
+        setEnvironment(resource.getVariable(), limit);
+    }
+
+    /**
+     * Gets the directory GraphicsMagick processes write temporary files to.
+     * 
+     * @return the directory, or null if the default of GraphicsMagick is used
+     * @see #setTemporaryDirectory
+     */
+    @CheckForNull
+    public String getTemporaryDirectory() {
+        return environment.get(MAGICK_TMPDIR);
+    }
+
+    /**
+     * Sets the directory GraphicsMagick processes write temporary files to, including the pixel cache of images that
+     * don't fit in the {@link ResourceLimit#MEMORY memory limit}. Pointing it to a tmpfs keeps the spilled pixel cache
+     * in memory.
+     * 
+     * @param temporaryDirectory
+     *            the directory, or null to use the default of GraphicsMagick
+     * @see #getTemporaryDirectory
+     */
+    public void setTemporaryDirectory(@CheckForNull String temporaryDirectory) {
+        setEnvironment(MAGICK_TMPDIR, temporaryDirectory);
+    }
+
+    /**
+     * Gets the environment variables each GraphicsMagick process is started with, on top of those inherited from the
+     * JVM. It includes the variables set by {@link #setResourceLimit} and {@link #setTemporaryDirectory}.
+     * 
+     * @return an unmodifiable copy of the environment variables
+     */
+    @Nonnull
+    public Map<String, String> getEnvironment() {
+        return Collections.unmodifiableMap(new LinkedHashMap<String, String>(environment));
+    }
+
+    /**
+     * Sets an environment variable each GraphicsMagick process is started with, overriding the one inherited from the
+     * JVM.
+     * 
+     * @param name
+     *            the name of the variable
+     * @param value
+     *            the value of the variable, or null to inherit it from the JVM
+     * @see #getEnvironment
+     */
+    public void setEnvironment(@Nonnull String name, @CheckForNull String value) {
+        if (name == null) throw new NullPointerException("name");
+        if (value == null) environment.remove(name);
+        else environment.put(name, value);
+    }
+
+    /**
+     * Tells whether the threads of each GraphicsMagick process are limited according to the processors available.
+     * 
+     * @return true if the thread limit is derived from the processors
+     * @see #setAutoThreadLimit
+     */
+    public boolean isAutoThreadLimit() {
+        return autoThreadLimit;
+    }
+
+    /**
+     * Sets whether to limit the threads of each GraphicsMagick process according to the processors available.
+     * GraphicsMagick uses as many OpenMP threads as there are processors for each command, so a pool of processes
+     * busy at the same time can easily run many times more threads than processors and spend the CPU on switching
+     * between them. When set, each process is started with <code>OMP_NUM_THREADS</code> set to the number of
+     * processors divided by {@link #setMaxActive <i>maxActive</i>}, but at least 1. The processors are those visible to
+     * the JVM, capped by the CPU quota of the cgroup the JVM runs in. It has no effect when
+     * {@link ResourceLimit#THREADS} is {@link #setResourceLimit set}.
+     * <p>
+     * The limit is computed once when the pool is created, and stays the same whatever the number of processes
+     * running or the limit set by {@link #setAdaptiveSizingPeriodMillis adaptive sizing}. A process keeps the threads
+     * it was started with, so only dividing by <i>maxActive</i> keeps the processes within the processors when the
+     * pool grows to its full size.
+     * 
+     * @param autoThreadLimit
+     *            true to derive the thread limit from the processors
+     * @see #isAutoThreadLimit
+     */
+    public void setAutoThreadLimit(boolean autoThreadLimit) {
+        this.autoThreadLimit = autoThreadLimit;
+    }
+
+    /**
+     * Sizes the pool for the host, or the container, the JVM runs on. <i>maxActive</i> is set to the number of
+     * processors available, so each processor can keep a GraphicsMagick process busy, but no more than the memory
+     * available to GraphicsMagick can hold given the expected memory of each process. The processors and memory are
+     * capped by the CPU quota and memory limit of the cgroup the JVM runs in, and the maximum heap of the JVM is not
+     * counted as available memory. <i>maxIdle</i> is set to <i>maxActive</i> and <i>minIdle</i> to a quarter of it,
+     * but at least 1. Settings made after this call override the derived ones.
+     * 
+     * @param expectedProcessMemory
+     *            the resident memory in bytes a GraphicsMagick process is expected to use, non-positive to size by
+     *            processors alone
+     * @see #setMaxActive
+     * @see #setMaxIdle
+     * @see #setMinIdle
+     */
+    public void autoSize(long expectedProcessMemory) {
+        autoSize(expectedProcessMemory, SystemResources.availableProcessors(), SystemResources.availableMemory());
+    }
+
+    void autoSize(long expectedProcessMemory, int processors, long memory) {
+        long size = Math.max(1, processors);
+        if (expectedProcessMemory > 0 && memory >= 0) size = Math.min(size, memory / expectedProcessMemory);
+        final int maxActive = (int) Math.max(1, size);
+        setMaxActive(maxActive);
+        setMaxIdle(maxActive);
+        setMinIdle(Math.max(1, maxActive / 4));
     }
 }
@@ -18,9 +18,25 @@ package org.gm4java.engine.support;
 
 import org.apache.maven.artifact.versioning.DefaultArtifactVersion;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
 /**
@@ -28,20 +44,17 @@ import javax.annotation.Nonnull;
  * 
  * It checks this with executing "gm version" once to determine the version and features of the installed
  * GraphicsMagick. Currently, it removes '-safe-mode' option when starting GraphicsMagick 1.3.22 and later versions.
+ * <p>
+ * The detected version is shared by all the factories of the same executable, keyed by its location and modification
+ * time, so services created over and over don't each run "gm version". The version can also be declared, in which case
+ * it is not detected at all. While the version is being detected, the first process is started as if it is 1.3.22 or
+ * later, and is replaced if it turns out not to be.
  * 
  * @author Roy Sindre Norangshol
  * @author Kenneth Xu
  */
 class GMProcessFactoryImpl implements GMProcessFactory {
-    public static final GMProcessFactory.Builder BUILDER = new GMProcessFactory.Builder() {
-        private final ReaderWriterProcess.Factory factory = ReaderWriterProcessImpl.FACTORY;
-
-        @Override
-        @Nonnull
-        public GMProcessFactory buildFactory(final String gmPath) {
-            return new GMProcessFactoryImpl(factory, gmPath);
-        }
-    };
+    public static final GMProcessFactory.Builder BUILDER = builder(Collections.<String, String> emptyMap());
 
     // @formatter:off
     private static final String[] GM_COMMAND_SAFE_MODE = {
@@ -69,14 +82,92 @@ class GMProcessFactoryImpl implements GMProcessFactory {
 
     private static final DefaultArtifactVersion version_1_3_22 = new DefaultArtifactVersion("1.3.22");
 
+    private static final ConcurrentMap<String, CompletableFuture<DefaultArtifactVersion>> VERSIONS =
+            new ConcurrentHashMap<String, CompletableFuture<DefaultArtifactVersion>>();
+    private static final Executor PROBER = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new NamedThreadFactory("probe"));
+
     private final ReaderWriterProcess.Factory factory;
     private final String gmPath;
-    private DefaultArtifactVersion version;
-    private String[] gmCommand;
+    private final Map<String, String> environment;
+    private final String declaredVersion;
+    private final AtomicReference<CompletableFuture<DefaultArtifactVersion>> detection =
+            new AtomicReference<CompletableFuture<DefaultArtifactVersion>>();
+    private volatile DefaultArtifactVersion version;
+    private volatile String[] gmCommand;
 
     GMProcessFactoryImpl(ReaderWriterProcess.Factory factory, String gmPath) {
+        this(factory, gmPath, Collections.<String, String> emptyMap());
+    }
+
+    GMProcessFactoryImpl(ReaderWriterProcess.Factory factory, String gmPath, @Nonnull Map<String, String> environment) {
+        this(factory, gmPath, environment, null);
+    }
+
+    GMProcessFactoryImpl(ReaderWriterProcess.Factory factory, String gmPath, @Nonnull Map<String, String> environment,
+            @CheckForNull String declaredVersion) {
+        if (environment == null) throw new NullPointerException("environment");
         this.factory = factory;
         this.gmPath = gmPath;
+        this.environment = environment;
+        this.declaredVersion = declaredVersion;
+    }
+
+    /**
+     * Creates a builder of factories that start GraphicsMagick with the given environment variables, on top of those
+     * inherited from the JVM.
+     * 
+     * @param environment
+     *            the environment variables
+     * @return the builder
+     */
+    @Nonnull
+    static GMProcessFactory.Builder builder(@Nonnull Map<String, String> environment) {
+        return builder(environment, null);
+    }
+
+    /**
+     * Creates a builder of factories that start GraphicsMagick with the given environment variables, on top of those
+     * inherited from the JVM, and assume the given version of GraphicsMagick instead of detecting it.
+     * 
+     * @param environment
+     *            the environment variables
+     * @param version
+     *            the version of GraphicsMagick, or null to detect it
+     * @return the builder
+     */
+    @Nonnull
+    static GMProcessFactory.Builder builder(@Nonnull Map<String, String> environment, @CheckForNull final String version) {
+        return builder(environment, version, false);
+    }
+
+    /**
+     * Creates a builder of factories that start GraphicsMagick with the given environment variables, on top of those
+     * inherited from the JVM, assume the given version of GraphicsMagick instead of detecting it, and connect to it
+     * through named pipes if requested.
+     * 
+     * @param environment
+     *            the environment variables
+     * @param version
+     *            the version of GraphicsMagick, or null to detect it
+     * @param namedPipes
+     *            true to connect through {@link NamedPipes} instead of the pipes of the JDK
+     * @return the builder
+     */
+    @Nonnull
+    static GMProcessFactory.Builder builder(@Nonnull Map<String, String> environment,
+            @CheckForNull final String version, final boolean namedPipes) {
+        final Map<String, String> copy = Collections.unmodifiableMap(new LinkedHashMap<String, String>(environment));
+        return new GMProcessFactory.Builder() {
+            private final ReaderWriterProcess.Factory factory = namedPipes ? ReaderWriterProcessImpl.NAMED_PIPE_FACTORY
+                    : ReaderWriterProcessImpl.FACTORY;
+
+            @Override
+            @Nonnull
+            public GMProcessFactory buildFactory(final String gmPath) {
+                return new GMProcessFactoryImpl(factory, gmPath, copy, version);
+            }
+        };
     }
 
     @Override
@@ -99,8 +190,25 @@ class GMProcessFactoryImpl implements GMProcessFactory {
     @Override
     @Nonnull
     public ReaderWriterProcess getProcess() throws IOException {
-        ensureFeatures();
-        return factory.getProcess(gmCommand);
+        if (gmCommand != null || detect().isDone()) {
+            ensureFeatures();
+            return start(gmCommand);
+        }
+        // start the process while "gm version" is running, assuming the version most installations have
+        final String[] assumed = getGMCommand(gmPath);
+        final ReaderWriterProcess process = start(assumed);
+        boolean keep = false;
+        try {
+            ensureFeatures();
+            keep = Arrays.equals(assumed, gmCommand);
+        } finally {
+            if (!keep) process.destroy();
+        }
+        return keep ? process : start(gmCommand);
+    }
+
+    private ReaderWriterProcess start(String[] command) throws IOException {
+        return environment.isEmpty() ? factory.getProcess(command) : factory.getProcess(environment, command);
     }
 
     static String[] getGMCommand(String gmPath) {
@@ -117,6 +225,69 @@ class GMProcessFactoryImpl implements GMProcessFactory {
 
     private void ensureFeatures() throws IOException {
         if (gmCommand != null) return;
+        final CompletableFuture<DefaultArtifactVersion> detected = detect();
+        final DefaultArtifactVersion detectedVersion;
+        try {
+            detectedVersion = detected.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while detecting GraphicsMagick version.");
+        } catch (ExecutionException e) {
+            // detect again next time
+            detection.compareAndSet(detected, null);
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause.getMessage(), cause);
+        }
+        version = detectedVersion;
+        gmCommand = detectedVersion.compareTo(version_1_3_22) >= 0 ? getGMCommand(gmPath)
+                : getGMCommandSafeMode(gmPath);
+    }
+
+    /**
+     * Gets the version declared, cached for the executable, or being detected in the background.
+     */
+    private CompletableFuture<DefaultArtifactVersion> detect() {
+        CompletableFuture<DefaultArtifactVersion> detected = detection.get();
+        if (detected != null) return detected;
+        if (declaredVersion != null) {
+            detected = CompletableFuture.completedFuture(new DefaultArtifactVersion(declaredVersion));
+            return detection.compareAndSet(null, detected) ? detected : detection.get();
+        }
+        final String key = cacheKey(gmPath);
+        final CompletableFuture<DefaultArtifactVersion> probe = new CompletableFuture<DefaultArtifactVersion>();
+        detected = key == null ? null : VERSIONS.putIfAbsent(key, probe);
+        if (detected == null) detected = probe;
+        final boolean won = detection.compareAndSet(null, detected);
+        // a probe in the cache may already be shared by other factories, so it must run even if this one lost
+        if (detected == probe && (won || key != null)) schedule(probe, key);
+        return won ? detected : detection.get();
+    }
+
+    private void schedule(final CompletableFuture<DefaultArtifactVersion> probe, @CheckForNull final String key) {
+        try {
+            PROBER.execute(new Runnable() {
+                @Override
+                public void run() {
+                    probe(probe, key);
+                }
+            });
+        } catch (RuntimeException e) {
+            probe(probe, key);
+        }
+    }
+
+    private void probe(CompletableFuture<DefaultArtifactVersion> probe, @CheckForNull String key) {
+        try {
+            probe.complete(readVersion());
+        } catch (IOException | RuntimeException e) {
+            if (key != null) VERSIONS.remove(key, probe);
+            probe.completeExceptionally(e);
+        }
+    }
+
+    private DefaultArtifactVersion readVersion() throws IOException {
         ReaderWriterProcess proc = factory.getProcess(gmPath, "version");
         // Assuming version number is always in second word with delimiter ' '. $ gm version
         // GraphicsMagick 1.3.23 2015-11-07 Q16 http://www.GraphicsMagick.org/
@@ -128,11 +299,38 @@ class GMProcessFactoryImpl implements GMProcessFactory {
                         gmPath));
             }
             String[] firstLineInWords = scanner.nextLine().split(" ");
-            version = new DefaultArtifactVersion(firstLineInWords[1]);
-            this.gmCommand = version.compareTo(version_1_3_22) >= 0 ? getGMCommand(gmPath) : getGMCommandSafeMode(gmPath);
+            return new DefaultArtifactVersion(firstLineInWords[1]);
         } finally {
             scanner.close();
             proc.destroy();
         }
     }
+
+    /**
+     * Identifies the executable by its location and modification time, so a replaced executable is detected again.
+     * 
+     * @return the key, or null if the executable can't be located
+     */
+    @CheckForNull
+    static String cacheKey(String gmPath) {
+        final File executable = locate(gmPath);
+        if (executable == null) return null;
+        final long modified = executable.lastModified();
+        return modified == 0 ? null : executable.getAbsolutePath() + '@' + modified;
+    }
+
+    @CheckForNull
+    private static File locate(String gmPath) {
+        final File file = new File(gmPath);
+        if (file.getParent() != null) return file.isFile() ? file : null;
+        final String path = System.getenv("PATH");
+        if (path == null) return null;
+        for (String dir : path.split(File.pathSeparator)) {
+            for (String suffix : new String[] { "", ".exe" }) {
+                final File candidate = new File(dir, gmPath + suffix);
+                if (candidate.isFile()) return candidate;
+            }
+        }
+        return null;
+    }
 }
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMExecutor;
+import org.gm4java.engine.GMServiceException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Keeps the {@link ImageInfo} of recently identified images, so asking again about an unchanged image doesn't run
+ * <code>gm identify</code>. Images in the formats supported by {@link ImageHeaders} are identified from their headers
+ * without running it at all.
+ * <p>
+ * Images are identified by their absolute path. An entry is only used while the file has the same size, modification
+ * time and, where the file system provides one, file key such as the inode, so an image replaced or modified is
+ * identified again. The cache holds up to the given number of images, the least recently used ones are removed first.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class IdentifyCache {
+    private final GMExecutor executor;
+    private final int capacity;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<String, Entry> entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Create a new instance of IdentifyCache.
+     *
+     * @param executor
+     *            executes <code>gm identify</code> for images not in the cache
+     * @param capacity
+     *            the maximum number of images kept
+     */
+    public IdentifyCache(@Nonnull GMExecutor executor, int capacity) {
+        if (executor == null) throw new NullPointerException("executor");
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive but was " + capacity);
+        this.executor = executor;
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > IdentifyCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Gets the format, dimensions and orientation of the first frame of the image, from the cache if the image didn't
+     * change since it was last identified.
+     *
+     * @param image
+     *            the image file
+     * @return the image information
+     * @throws IOException
+     *             when the file can't be read
+     * @throws GMException
+     *             when GraphicsMagick can't identify the image
+     * @throws GMServiceException
+     *             when there is error communicating with the underlying GraphicsMagick process
+     */
+    @Nonnull
+    public ImageInfo identify(@Nonnull File image) throws IOException, GMException, GMServiceException {
+        if (image == null) throw new NullPointerException("image");
+        final String path = image.getAbsolutePath();
+        final BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(image.toPath(), BasicFileAttributes.class);
+        } catch (IOException e) {
+            invalidate(image);
+            throw e;
+        }
+        final Entry cached = get(path);
+        if (cached != null && cached.matches(attributes)) {
+            hits.increment();
+            return cached.info;
+        }
+        misses.increment();
+        final ImageInfo info = ImageHeaders.identify(image, executor);
+        put(path, new Entry(attributes, info));
+        return info;
+    }
+
+    /**
+     * Removes the image from the cache.
+     *
+     * @param image
+     *            the image file
+     */
+    public void invalidate(@Nonnull File image) {
+        if (image == null) throw new NullPointerException("image");
+        lock.lock();
+        try {
+            entries.remove(image.getAbsolutePath());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of images in the cache.
+     *
+     * @return the number of images
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of images returned from the cache.
+     *
+     * @return the number of hits
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Gets the number of images identified from their headers or by GraphicsMagick.
+     *
+     * @return the number of misses
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Runs <code>gm identify</code> on the first frame of the image.
+     */
+    @Nonnull
+    static ImageInfo identify(@Nonnull GMExecutor executor, @Nonnull String path) throws IOException, GMException,
+            GMServiceException {
+        final String output = executor.execute("identify", "-ping", "-format", ImageInfo.IDENTIFY_FORMAT, path
+                + "[0]");
+        try {
+            return ImageInfo.parse(output);
+        } catch (IllegalArgumentException e) {
+            throw new GMServiceException(e.getMessage(), e);
+        }
+    }
+
+    @CheckForNull
+    private Entry get(String path) {
+        lock.lock();
+        try {
+            return entries.get(path);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void put(String path, Entry entry) {
+        lock.lock();
+        try {
+            entries.put(path, entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Entry {
+        final long size;
+        final long modified;
+        @CheckForNull
+        final Object fileKey;
+        final ImageInfo info;
+
+        Entry(BasicFileAttributes attributes, ImageInfo info) {
+            this.size = attributes.size();
+            this.modified = attributes.lastModifiedTime().toMillis();
+            this.fileKey = attributes.fileKey();
+            this.info = info;
+        }
+
+        boolean matches(BasicFileAttributes attributes) {
+            final Object key = attributes.fileKey();
+            return size == attributes.size() && modified == attributes.lastModifiedTime().toMillis()
+                    && (fileKey == null ? key == null : fileKey.equals(key));
+        }
+    }
+}
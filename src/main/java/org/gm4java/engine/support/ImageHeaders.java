@@ -0,0 +1,379 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMExecutor;
+import org.gm4java.engine.GMServiceException;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Reads the format, dimensions and orientation of JPEG, PNG, GIF, WebP, BMP and TIFF images from their headers in
+ * Java, without running <code>gm identify</code>.
+ * <p>
+ * Only the blocks holding the information are read, with positioned reads of a few KB, so the time taken doesn't
+ * depend on the size of the image. The orientation is read from the EXIF data of JPEG and TIFF images, it is
+ * {@link ImageInfo#UNKNOWN_ORIENTATION} for the other formats. Only {@link #isSingleFrame(File)} reads further, through
+ * the data of the first frame of a GIF image.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public final class ImageHeaders {
+    // large enough for the headers of all formats but JPEG, whose segments are walked
+    private static final int WINDOW_SIZE = 4096;
+    // JPEG files with the frame header further than this are left to GraphicsMagick
+    private static final long MAX_JPEG_SCAN = 1 << 20;
+    private static final int TIFF_IMAGE_WIDTH = 256;
+    private static final int TIFF_IMAGE_LENGTH = 257;
+    private static final int TIFF_ORIENTATION = 274;
+    private static final int TIFF_SHORT = 3;
+    private static final String JPEG = "JPEG";
+    private static final String PNG = "PNG";
+    private static final String GIF = "GIF";
+    private static final String WEBP = "WEBP";
+    private static final String BMP = "BMP";
+    private static final String TIFF = "TIFF";
+
+    private ImageHeaders() {
+    }
+
+    /**
+     * Reads the image information from the header of the file.
+     *
+     * @param file
+     *            the image file
+     * @return the image information, or null if the format is not supported or the header is not valid
+     * @throws IOException
+     *             when the file can't be read
+     */
+    @CheckForNull
+    public static ImageInfo read(@Nonnull File file) throws IOException {
+        if (file == null) throw new NullPointerException("file");
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return read(new Header(channel));
+        }
+    }
+
+    /**
+     * Reads the image information from the header of the file, and runs <code>gm identify</code> when the format is
+     * not supported.
+     *
+     * @param file
+     *            the image file
+     * @param executor
+     *            executes <code>gm identify</code> when needed
+     * @return the image information
+     * @throws IOException
+     *             when the file can't be read
+     * @throws GMException
+     *             when GraphicsMagick can't identify the image
+     * @throws GMServiceException
+     *             when there is error communicating with the underlying GraphicsMagick process
+     */
+    @Nonnull
+    public static ImageInfo identify(@Nonnull File file, @Nonnull GMExecutor executor) throws IOException,
+            GMException, GMServiceException {
+        if (executor == null) throw new NullPointerException("executor");
+        final ImageInfo info = read(file);
+        return info != null ? info : IdentifyCache.identify(executor, file.getAbsolutePath());
+    }
+
+    /**
+     * Tells whether the file holds a single image, as opposed to an animation or a multi-page document whose other
+     * frames may be larger than the first one.
+     *
+     * @param file
+     *            the image file
+     * @return true if the file is known to have a single frame, false if it has more or its format is not supported
+     * @throws IOException
+     *             when the file can't be read
+     */
+    public static boolean isSingleFrame(@Nonnull File file) throws IOException {
+        if (file == null) throw new NullPointerException("file");
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return isSingleFrame(new Header(channel));
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    @CheckForNull
+    static ImageInfo read(Header header) throws IOException {
+        try {
+            final ImageInfo info = sniff(header);
+            return info != null && info.getWidth() > 0 && info.getHeight() > 0 ? info : null;
+        } catch (EOFException e) {
+            // truncated, leave it to GraphicsMagick
+            return null;
+        }
+    }
+
+    @CheckForNull
+    private static ImageInfo sniff(Header h) throws IOException {
+        final String format = format(h);
+        if (format == null) return null;
+        if (JPEG.equals(format)) return jpeg(h);
+        if (PNG.equals(format)) {
+            // IHDR is the first chunk
+            return new ImageInfo(PNG, h.u32(16, true), h.u32(20, true), ImageInfo.UNKNOWN_ORIENTATION);
+        }
+        if (GIF.equals(format)) return gif(h);
+        if (WEBP.equals(format)) return webp(h);
+        if (BMP.equals(format)) return bmp(h);
+        final int[] fields = tiff(h, 0);
+        return fields == null ? null : new ImageInfo(TIFF, fields[0], fields[1], fields[2]);
+    }
+
+    private static boolean isSingleFrame(Header h) throws IOException {
+        final String format = format(h);
+        if (format == null) return false;
+        if (PNG.equals(format)) return !isAnimatedPng(h);
+        if (GIF.equals(format)) return countGifFrames(h) == 1;
+        // the animation flag of the extended format
+        if (WEBP.equals(format)) return h.u32(12, true) != 0x56503858 || (h.u8(20) & 0x02) == 0;
+        if (TIFF.equals(format)) {
+            final int[] fields = tiff(h, 0);
+            return fields != null && fields[3] == 0;
+        }
+        return true;
+    }
+
+    @CheckForNull
+    private static String format(Header h) throws IOException {
+        final int b0 = h.u8(0), b1 = h.u8(1);
+        if (b0 == 0xFF && b1 == 0xD8) return JPEG;
+        if (b0 == 0x89 && b1 == 'P' && h.u8(2) == 'N' && h.u8(3) == 'G') return PNG;
+        if (b0 == 'G' && b1 == 'I' && h.u8(2) == 'F') return GIF;
+        if (b0 == 'R' && b1 == 'I' && h.u8(2) == 'F' && h.u8(3) == 'F' && h.u8(8) == 'W' && h.u8(9) == 'E'
+                && h.u8(10) == 'B' && h.u8(11) == 'P') {
+            return WEBP;
+        }
+        if (b0 == 'B' && b1 == 'M') return BMP;
+        if ((b0 == 'I' && b1 == 'I') || (b0 == 'M' && b1 == 'M')) return TIFF;
+        return null;
+    }
+
+    /**
+     * Tells whether the PNG has an animation control chunk, which comes before the image data.
+     */
+    private static boolean isAnimatedPng(Header h) throws IOException {
+        long pos = 8;
+        while (true) {
+            final int type = h.u32(pos + 4, true);
+            if (type == 0x6163544C) return true; // acTL
+            if (type == 0x49444154) return false; // IDAT
+            pos += 12 + (h.u32(pos, true) & 0xFFFFFFFFL);
+        }
+    }
+
+    @CheckForNull
+    private static ImageInfo jpeg(Header h) throws IOException {
+        int orientation = ImageInfo.UNKNOWN_ORIENTATION;
+        long pos = 2;
+        while (pos < MAX_JPEG_SCAN) {
+            if (h.u8(pos) != 0xFF) return null;
+            int marker = h.u8(pos + 1);
+            // fill bytes
+            while (marker == 0xFF)
+                marker = h.u8(++pos + 1);
+            pos += 2;
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) continue;
+            // start of scan or end of image before the frame header
+            if (marker == 0xDA || marker == 0xD9) return null;
+            final int length = h.u16(pos, true);
+            if (length < 2) return null;
+            if (isStartOfFrame(marker)) {
+                return new ImageInfo(JPEG, h.u16(pos + 5, true), h.u16(pos + 3, true), orientation);
+            }
+            if (marker == 0xE1 && h.u32(pos + 2, true) == 0x45786966 && h.u16(pos + 6, true) == 0) {
+                // "Exif\0\0" followed by a TIFF structure
+                final int[] fields = tiff(h, pos + 8);
+                if (fields != null) orientation = fields[2];
+            }
+            pos += length;
+        }
+        return null;
+    }
+
+    private static boolean isStartOfFrame(int marker) {
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    @CheckForNull
+    private static ImageInfo gif(Header h) throws IOException {
+        long pos = gifBlocks(h);
+        while (true) {
+            final int block = h.u8(pos);
+            if (block == 0x2C) {
+                // dimensions of the first frame rather than of the logical screen
+                return new ImageInfo(GIF, h.u16(pos + 5, false), h.u16(pos + 7, false),
+                        ImageInfo.UNKNOWN_ORIENTATION);
+            }
+            if (block != 0x21) return null;
+            // extension: label followed by data sub-blocks
+            pos = skipSubBlocks(h, pos + 2);
+        }
+    }
+
+    /**
+     * Counts the frames of the GIF up to two, walking the blocks of the first frame to find the next one.
+     */
+    private static int countGifFrames(Header h) throws IOException {
+        long pos = gifBlocks(h);
+        int frames = 0;
+        while (frames < 2) {
+            final int block = h.u8(pos);
+            if (block == 0x3B) break; // trailer
+            if (block == 0x2C) {
+                frames++;
+                final int flags = h.u8(pos + 9);
+                pos += 10 + ((flags & 0x80) != 0 ? 3 << ((flags & 7) + 1) : 0);
+                // the LZW minimum code size precedes the image data sub-blocks
+                pos = skipSubBlocks(h, pos + 1);
+            } else if (block == 0x21) {
+                pos = skipSubBlocks(h, pos + 2);
+            } else {
+                return 0;
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * Gets the position of the first block, after the global color table.
+     */
+    private static long gifBlocks(Header h) throws IOException {
+        final int flags = h.u8(10);
+        return 13 + ((flags & 0x80) != 0 ? 3 << ((flags & 7) + 1) : 0);
+    }
+
+    private static long skipSubBlocks(Header h, long pos) throws IOException {
+        for (int size = h.u8(pos); size != 0; size = h.u8(pos))
+            pos += size + 1;
+        return pos + 1;
+    }
+
+    @CheckForNull
+    private static ImageInfo webp(Header h) throws IOException {
+        final int chunk = h.u32(12, true);
+        if (chunk == 0x56503820) {
+            // "VP8 ": lossy, the key frame starts with 9D 01 2A
+            if (h.u8(23) != 0x9D || h.u8(24) != 0x01 || h.u8(25) != 0x2A) return null;
+            return new ImageInfo(WEBP, h.u16(26, false) & 0x3FFF, h.u16(28, false) & 0x3FFF,
+                    ImageInfo.UNKNOWN_ORIENTATION);
+        }
+        if (chunk == 0x5650384C) {
+            // "VP8L": lossless, 14 bits each for width - 1 and height - 1
+            if (h.u8(20) != 0x2F) return null;
+            final int bits = h.u32(21, false);
+            return new ImageInfo(WEBP, (bits & 0x3FFF) + 1, ((bits >>> 14) & 0x3FFF) + 1,
+                    ImageInfo.UNKNOWN_ORIENTATION);
+        }
+        if (chunk == 0x56503858) {
+            // "VP8X": extended, 24 bits each for canvas width - 1 and height - 1
+            return new ImageInfo(WEBP, u24(h, 24) + 1, u24(h, 27) + 1, ImageInfo.UNKNOWN_ORIENTATION);
+        }
+        return null;
+    }
+
+    private static int u24(Header h, long pos) throws IOException {
+        return h.u8(pos) | h.u8(pos + 1) << 8 | h.u8(pos + 2) << 16;
+    }
+
+    @CheckForNull
+    private static ImageInfo bmp(Header h) throws IOException {
+        final int dibSize = h.u32(14, false);
+        if (dibSize == 12) {
+            // OS/2 header
+            return new ImageInfo(BMP, h.u16(18, false), h.u16(20, false), ImageInfo.UNKNOWN_ORIENTATION);
+        }
+        if (dibSize < 40) return null;
+        // negative height means top-down
+        return new ImageInfo(BMP, h.u32(18, false), Math.abs(h.u32(22, false)), ImageInfo.UNKNOWN_ORIENTATION);
+    }
+
+    /**
+     * Reads the width, height and orientation from the first IFD of a TIFF structure, 0 for the missing ones, followed
+     * by the offset of the next IFD, 0 if there is none.
+     */
+    @CheckForNull
+    private static int[] tiff(Header h, long base) throws IOException {
+        final boolean bigEndian = h.u8(base) == 'M';
+        if (h.u16(base + 2, bigEndian) != 42) return null;
+        final long ifd = base + (h.u32(base + 4, bigEndian) & 0xFFFFFFFFL);
+        final int entries = h.u16(ifd, bigEndian);
+        int width = 0, height = 0, orientation = ImageInfo.UNKNOWN_ORIENTATION;
+        for (int i = 0; i < entries; i++) {
+            final long entry = ifd + 2 + i * 12L;
+            final int tag = h.u16(entry, bigEndian);
+            if (tag != TIFF_IMAGE_WIDTH && tag != TIFF_IMAGE_LENGTH && tag != TIFF_ORIENTATION) continue;
+            final int value = h.u16(entry + 2, bigEndian) == TIFF_SHORT ? h.u16(entry + 8, bigEndian) : h.u32(
+                    entry + 8, bigEndian);
+            if (tag == TIFF_IMAGE_WIDTH) width = value;
+            else if (tag == TIFF_IMAGE_LENGTH) height = value;
+            else orientation = value;
+        }
+        return new int[] { width, height, orientation, h.u32(ifd + 2 + entries * 12L, bigEndian) };
+    }
+
+    /**
+     * Reads the file through a window moved with positioned reads.
+     */
+    static final class Header {
+        private final FileChannel channel;
+        private final ByteBuffer window = ByteBuffer.allocate(WINDOW_SIZE);
+        private long start = -1;
+
+        Header(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        int u8(long pos) throws IOException {
+            if (start < 0 || pos < start || pos >= start + window.limit()) fill(pos);
+            return window.get((int) (pos - start)) & 0xFF;
+        }
+
+        int u16(long pos, boolean bigEndian) throws IOException {
+            final int a = u8(pos), b = u8(pos + 1);
+            return bigEndian ? a << 8 | b : b << 8 | a;
+        }
+
+        int u32(long pos, boolean bigEndian) throws IOException {
+            final int a = u16(pos, bigEndian), b = u16(pos + 2, bigEndian);
+            return bigEndian ? a << 16 | b : b << 16 | a;
+        }
+
+        private void fill(long pos) throws IOException {
+            window.clear();
+            while (window.hasRemaining()) {
+                if (channel.read(window, pos + window.position()) < 0) break;
+            }
+            window.flip();
+            start = pos;
+            if (window.limit() == 0) throw new EOFException("End of file at " + pos);
+        }
+    }
+}
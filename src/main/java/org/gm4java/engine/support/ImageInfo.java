@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import java.util.Locale;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Format, dimensions and orientation of an image, as reported by <code>gm identify</code> for the first frame.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public final class ImageInfo {
+    /**
+     * Orientation of an image without EXIF orientation or with an invalid one.
+     */
+    public static final int UNKNOWN_ORIENTATION = 0;
+
+    /**
+     * The <code>-format</code> argument of <code>gm identify</code> producing the output understood by
+     * {@link #parse(String)}.
+     */
+    static final String IDENTIFY_FORMAT = "%m %w %h %[EXIF:Orientation]";
+
+    private final String format;
+    private final int width;
+    private final int height;
+    private final int orientation;
+
+    /**
+     * Create a new instance of ImageInfo.
+     *
+     * @param format
+     *            the GraphicsMagick name of the format, e.g. JPEG
+     * @param width
+     *            the width in pixels
+     * @param height
+     *            the height in pixels
+     * @param orientation
+     *            the EXIF orientation between 1 and 8, other values are taken as {@link #UNKNOWN_ORIENTATION}
+     */
+    public ImageInfo(@Nonnull String format, int width, int height, int orientation) {
+        if (format == null) throw new NullPointerException("format");
+        // few distinct formats, so share them among the instances
+        this.format = format.toUpperCase(Locale.ROOT).intern();
+        this.width = width;
+        this.height = height;
+        this.orientation = orientation >= 1 && orientation <= 8 ? orientation : UNKNOWN_ORIENTATION;
+    }
+
+    /**
+     * Gets the format of the image.
+     *
+     * @return the GraphicsMagick name of the format in upper case, e.g. JPEG
+     */
+    @Nonnull
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * Gets the width of the image as stored.
+     *
+     * @return the width in pixels
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Gets the height of the image as stored.
+     *
+     * @return the height in pixels
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Gets the EXIF orientation of the image. Orientations 5 to 8 mean the image is displayed rotated by 90 degrees, so
+     * its width and height are swapped on display.
+     *
+     * @return the orientation between 1 and 8, or {@link #UNKNOWN_ORIENTATION}
+     */
+    public int getOrientation() {
+        return orientation;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ImageInfo)) return false;
+        ImageInfo other = (ImageInfo) o;
+        return width == other.width && height == other.height && orientation == other.orientation
+                && format.equals(other.format);
+    }
+
+    @Override
+    public int hashCode() {
+        return ((format.hashCode() * 31 + width) * 31 + height) * 31 + orientation;
+    }
+
+    @Override
+    public String toString() {
+        return format + " " + width + "x" + height + (orientation == UNKNOWN_ORIENTATION ? "" : " @" + orientation);
+    }
+
+    /**
+     * Parses the output of <code>gm identify</code> run with {@link #IDENTIFY_FORMAT}.
+     *
+     * @param output
+     *            the output of <code>gm identify</code>
+     * @return the image information
+     * @throws IllegalArgumentException
+     *             when the output is not in the expected format
+     */
+    @Nonnull
+    static ImageInfo parse(@Nonnull String output) {
+        String line = output.trim();
+        // one line for each frame
+        final int end = line.indexOf('\n');
+        if (end > 0) line = line.substring(0, end);
+        final String[] fields = line.trim().split("\\s+");
+        if (fields.length < 3) throw new IllegalArgumentException("Unexpected identify output: " + output);
+        try {
+            return new ImageInfo(fields[0], Integer.parseInt(fields[1]), Integer.parseInt(fields[2]),
+                    fields.length > 3 ? parseOrientation(fields[3]) : UNKNOWN_ORIENTATION);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Unexpected identify output: " + output, e);
+        }
+    }
+
+    private static int parseOrientation(String field) {
+        try {
+            return Integer.parseInt(field);
+        } catch (NumberFormatException e) {
+            // "unknown" or absent EXIF data
+            return UNKNOWN_ORIENTATION;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.file.Files;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Starts a process with its standard input and output redirected to named pipes, and opens them as plain file streams.
+ * <p>
+ * The pipes of {@link Process} are buffered streams that hold their monitor while blocked, which pins the carrier of a
+ * virtual thread waiting for the process until Java 24. {@link FileInputStream} and {@link FileOutputStream} hold no
+ * monitor. The pipes are made with <code>mkfifo</code>, so this only works on Unix-like systems.
+ *
+ * @author Kenneth Xu
+ *
+ */
+final class NamedPipes {
+    private static final Logger LOGGER = LoggerFactory.getLogger(NamedPipes.class);
+
+    private final Process process;
+    private final OutputStream outputStream;
+    private final InputStream inputStream;
+
+    private NamedPipes(Process process, OutputStream outputStream, InputStream inputStream) {
+        this.process = process;
+        this.outputStream = outputStream;
+        this.inputStream = inputStream;
+    }
+
+    /**
+     * Starts the process of the builder, overriding its redirection of the standard input and output. The standard
+     * error still goes wherever the builder says, e.g. to the standard output.
+     *
+     * @param builder
+     *            the builder of the process
+     * @return the process connected through named pipes
+     * @throws IOException
+     *             when the pipes can't be made or the process can't be started
+     */
+    @Nonnull
+    static NamedPipes start(@Nonnull ProcessBuilder builder) throws IOException {
+        final File directory = Files.createTempDirectory("gm4java").toFile();
+        final File input = new File(directory, "in");
+        final File output = new File(directory, "out");
+        try {
+            mkfifo(input, output);
+            // opening a named pipe only for reading or only for writing blocks until its other end is opened, but
+            // opening it for both doesn't, so hold both pipes open while the process and the streams open their ends
+            try (RandomAccessFile inputHold = new RandomAccessFile(input, "rw");
+                    RandomAccessFile outputHold = new RandomAccessFile(output, "rw")) {
+                final Process process = builder.redirectInput(Redirect.from(input)).redirectOutput(Redirect.to(output))
+                        .start();
+                OutputStream outputStream = null;
+                try {
+                    outputStream = new FileOutputStream(input);
+                    return new NamedPipes(process, outputStream, new FileInputStream(output));
+                } catch (IOException | RuntimeException e) {
+                    if (outputStream != null) outputStream.close();
+                    process.destroy();
+                    throw e;
+                }
+            }
+        } finally {
+            // the ends already opened stay connected without the names
+            delete(input);
+            delete(output);
+            delete(directory);
+        }
+    }
+
+    @Nonnull
+    Process getProcess() {
+        return process;
+    }
+
+    /**
+     * Gets the stream writing to the standard input of the process.
+     */
+    @Nonnull
+    OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * Gets the stream reading from the standard output of the process. It ends when the process exits.
+     */
+    @Nonnull
+    InputStream getInputStream() {
+        return inputStream;
+    }
+
+    private static void mkfifo(File... files) throws IOException {
+        final String[] command = new String[files.length + 1];
+        command[0] = "mkfifo";
+        for (int i = 0; i < files.length; i++)
+            command[i + 1] = files[i].getPath();
+        final Process mkfifo = new ProcessBuilder(command).redirectErrorStream(true).start();
+        try {
+            final int status = mkfifo.waitFor();
+            if (status != 0) throw new IOException("mkfifo failed with exit status " + status);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while making named pipes.");
+        } finally {
+            mkfifo.destroy();
+        }
+    }
+
+    private static void delete(File file) {
+        if (!file.delete() && file.exists()) LOGGER.debug("Failed to delete {}", file);
+    }
+}
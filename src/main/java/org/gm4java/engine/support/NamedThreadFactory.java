@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+/**
+ * {@link ThreadFactory} that creates daemon threads with a recognizable name, so background threads of gm4java never
+ * prevent the JVM from exiting.
+ *
+ * @author Kenneth Xu
+ *
+ */
+final class NamedThreadFactory implements ThreadFactory {
+    private final AtomicInteger sequence = new AtomicInteger();
+    private final String prefix;
+
+    NamedThreadFactory(@Nonnull String name) {
+        if (name == null) throw new NullPointerException("name");
+        this.prefix = "gm4java-" + name + "-";
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, prefix + sequence.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+/**
+ * Decides how many GraphicsMagick processes a pool may run, by hill climbing on the statistics the pool collects over
+ * each period.
+ * <p>
+ * While borrowers have to wait for a connection, the limit is raised by a quarter as long as the last raise improved
+ * the throughput or the time borrowers waited. A raise that didn't pay off is taken back, and the limit is held for a
+ * period before it is probed again. When the processors are saturated, or nobody waited and some connections sat
+ * idle, the limit is lowered by one, so the pool gives back processes it doesn't need. The limit always stays between
+ * the bounds given at construction.
+ * <p>
+ * Instances are not thread safe, {@link #adjust} is called by one thread at a time.
+ *
+ * @author Kenneth Xu
+ *
+ */
+final class PoolSizeController {
+    /**
+     * Processor usage, between 0 and 1, beyond which more processes can't add throughput.
+     */
+    static final double CPU_SATURATION = 0.9;
+
+    /**
+     * Relative change of throughput or wait time that counts as an improvement.
+     */
+    static final double MIN_GAIN = 0.05;
+
+    private final int min;
+    private final int max;
+    private int limit;
+    private int raise;
+    private boolean hold;
+    private long lastCompleted;
+    private double lastWait;
+
+    PoolSizeController(int min, int max) {
+        if (max <= 0) throw new IllegalArgumentException("max must be positive but was " + max);
+        this.max = max;
+        this.min = Math.min(max, Math.max(1, min));
+        this.limit = this.min;
+    }
+
+    /**
+     * Gets the current limit.
+     *
+     * @return the number of processes the pool may run
+     */
+    int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Adjusts the limit with the statistics of the period that just ended.
+     *
+     * @param completed
+     *            the number of connections returned to the pool during the period
+     * @param waits
+     *            the number of borrowers that found the pool exhausted during the period
+     * @param waitNanos
+     *            the total time those borrowers waited, in nanoseconds
+     * @param idle
+     *            the number of idle connections at the end of the period
+     * @param cpuLoad
+     *            the processor usage between 0 and 1, negative if unknown
+     * @return the new limit
+     */
+    int adjust(long completed, long waits, long waitNanos, int idle, double cpuLoad) {
+        final double wait = waits > 0 ? (double) waitNanos / waits : 0;
+        final boolean improved = completed > lastCompleted * (1 + MIN_GAIN) || wait < lastWait * (1 - MIN_GAIN);
+        final boolean reverted = raise > 0 && !improved && waits > 0;
+        final int next;
+        if (cpuLoad >= CPU_SATURATION) {
+            next = limit - 1;
+        } else if (reverted) {
+            next = limit - raise;
+        } else if (waits > 0) {
+            next = hold ? limit : limit + Math.max(1, limit / 4);
+        } else {
+            next = idle > 0 ? limit - 1 : limit;
+        }
+        final int bounded = Math.max(min, Math.min(max, next));
+        raise = Math.max(0, bounded - limit);
+        hold = reverted;
+        lastCompleted = completed;
+        lastWait = wait;
+        limit = bounded;
+        return bounded;
+    }
+}
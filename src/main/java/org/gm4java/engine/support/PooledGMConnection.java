@@ -16,11 +16,17 @@
 package org.gm4java.engine.support;
 
 import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMOutputConsumer;
+import org.gm4java.engine.GMOutputTooLargeException;
 import org.gm4java.engine.GMServiceException;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
 /**
@@ -30,46 +36,182 @@ import javax.annotation.Nonnull;
  * 
  */
 class PooledGMConnection extends BasicGMConnection {
+    static final int IN_USE = 0;
+    static final int IDLE = 1;
+    static final int REMOVED = 2;
+    static final int STICKY = 3;
+    // the resident memory is read from the operating system once every this many commands
+    static final int MEMORY_SAMPLE_INTERVAL = 16;
+
     private final GMConnectionPool pool;
+    private final int extraUses;
     private int count;
+    private int nextMemorySample;
+    private long residentSetSize = -1;
     private Throwable exception;
+    // pool bookkeeping, the state decides who owns the connection, see GMConnectionPool
+    private final AtomicInteger state = new AtomicInteger(IN_USE);
+    private final AtomicBoolean queued = new AtomicBoolean();
+    private volatile long idleSince;
+    private volatile long lastResponse;
 
     PooledGMConnection(@Nonnull GMConnectionPool pool) throws GMServiceException {
-        super(notNull(pool).createProcess());
+        super(notNull(pool).createProcess(), pool.getCharset());
         this.pool = pool;
+        setMaxOutputSize(pool.getMaxOutputSize());
+        setTimeout(pool.getCommandTimeout());
+        final int jitter = pool.getEvictAfterNumberOfUseJitter();
+        // spread the recycling of processes started together
+        extraUses = jitter > 0 ? ThreadLocalRandom.current().nextInt(jitter + 1) : 0;
     }
 
     @Override
-    protected String execute(String command, @Nonnull List<String> arguments) throws IOException, GMException,
-            GMServiceException {
+    void send(String command, @Nonnull List<String> arguments) throws GMServiceException {
         count++;
         try {
-            return super.execute(command, arguments);
-        } catch (IOException e) {
-            throw e;
-        } catch (GMException e) {
-            throw e;
-        } catch (RuntimeException e) {
+            super.send(command, arguments);
+        } catch (RuntimeException | GMServiceException | Error e) {
             exception = e;
             throw e;
-        } catch (GMServiceException e) {
-            exception = e;
+        }
+    }
+
+    @Override
+    String receive(@CheckForNull GMOutputConsumer consumer, boolean needOutput, long timeoutMillis)
+            throws IOException, GMException, GMServiceException {
+        try {
+            final String result = super.receive(consumer, needOutput, timeoutMillis);
+            lastResponse = System.currentTimeMillis();
+            return result;
+        } catch (IOException | GMException | GMOutputTooLargeException e) {
+            // the output was read up to the end of command, the process is still good
+            lastResponse = System.currentTimeMillis();
             throw e;
-        } catch (Error e) {
-            exception = e;
+        } catch (RuntimeException | GMServiceException | Error e) {
+            // the consumer failed, but the output was still read up to the end of command
+            if (isConsumerError(e)) lastResponse = System.currentTimeMillis();
+            else exception = e;
             throw e;
         }
     }
 
     void ensureHealthy() throws GMServiceException {
         if (exception != null) throw new GMServiceException(exception.getMessage(), exception);
-        int limit = pool.getEvictAfterNumberOfUse();
-        if (limit > 0 && count > limit) {
+        if (isExpired()) {
             throw new GMServiceException(String.format(
-                    "Instance is stale, executed %d commands which exceeded the %d limit.", count, limit));
+                    "Instance is stale, executed %d commands which exceeded the %d limit.", count, getUseLimit()));
         }
     }
 
+    /**
+     * Tells whether the connection failed to communicate with its GraphicsMagick process.
+     * 
+     * @return true if the process is no longer usable
+     */
+    boolean isBroken() {
+        return exception != null;
+    }
+
+    /**
+     * Tells whether the process has executed more commands than {@link #getUseLimit()}.
+     * 
+     * @return true if the process should be retired
+     */
+    boolean isExpired() {
+        final int limit = getUseLimit();
+        return limit > 0 && count > limit;
+    }
+
+    /**
+     * Gets the last time the GraphicsMagick process completed a command, successful or not.
+     * 
+     * @return the time in milliseconds, or 0 if it never did
+     */
+    long getLastResponse() {
+        return lastResponse;
+    }
+
+    /**
+     * Tells whether the resident memory of the process exceeds {@link GMConnectionPool#getMaxProcessMemory()}. The
+     * memory is sampled from the operating system once every {@value #MEMORY_SAMPLE_INTERVAL} commands, the calls in
+     * between compare the last sample.
+     * 
+     * @return true if the process should be retired
+     */
+    boolean exceedsMemoryLimit() {
+        final long limit = pool.getMaxProcessMemory();
+        if (limit <= 0) return false;
+        if (count >= nextMemorySample) {
+            residentSetSize = getResidentSetSize();
+            nextMemorySample = count + MEMORY_SAMPLE_INTERVAL;
+        }
+        return residentSetSize > limit;
+    }
+
+    /**
+     * Gets the number of commands this process can execute before it is retired, which is
+     * {@link GMConnectionPool#getEvictAfterNumberOfUse()} plus a random number of extra uses up to
+     * {@link GMConnectionPool#getEvictAfterNumberOfUseJitter()} chosen when the connection was created.
+     * 
+     * @return the limit, non-positive for no limit
+     */
+    int getUseLimit() {
+        final int limit = pool.getEvictAfterNumberOfUse();
+        return limit > 0 ? limit + extraUses : limit;
+    }
+
+    /**
+     * Takes the ownership of an idle connection.
+     * 
+     * @return true if the connection was idle and is now owned by the caller
+     */
+    boolean claim() {
+        return state.compareAndSet(IDLE, IN_USE);
+    }
+
+    /**
+     * Takes the ownership of a connection kept by a thread, either by the thread itself or by another one stealing it.
+     * 
+     * @return true if the connection was kept and is now owned by the caller
+     */
+    boolean claimSticky() {
+        return state.compareAndSet(STICKY, IN_USE);
+    }
+
+    void markSticky() {
+        state.set(STICKY);
+    }
+
+    void markIdle(long now) {
+        idleSince = now;
+        state.set(IDLE);
+    }
+
+    void markRemoved() {
+        state.set(REMOVED);
+    }
+
+    int getState() {
+        return state.get();
+    }
+
+    long getIdleSince() {
+        return idleSince;
+    }
+
+    /**
+     * Marks the connection as being in the idle queue of the pool.
+     * 
+     * @return true if it was not in the queue, and the caller must add it
+     */
+    boolean enqueue() {
+        return queued.compareAndSet(false, true);
+    }
+
+    void dequeued() {
+        queued.set(false);
+    }
+
     private static GMConnectionPool notNull(GMConnectionPool pool) {
         if (pool == null) throw new NullPointerException("pool");
         return pool;
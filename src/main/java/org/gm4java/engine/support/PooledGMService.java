@@ -15,26 +15,43 @@
  */
 package org.gm4java.engine.support;
 
+import org.gm4java.engine.AsyncGMService;
 import org.gm4java.engine.GMConnection;
 import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMOutputConsumer;
 import org.gm4java.engine.GMService;
 import org.gm4java.engine.GMServiceException;
+import org.gm4java.engine.GMStreamingExecutor;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
 /**
- * A {@link GMService} that manages and uses a pool of GraphicsMagick instances. This implementation uses
- * {@link org.apache.commons.pool.impl.GenericObjectPool} from <a href="http://commons.apache.org/pool/">Apache Commons
- * Pool</a> project.
+ * A {@link GMService} that manages and uses a pool of GraphicsMagick instances, see {@link GMConnectionPoolConfig} for
+ * the configuration of the pool.
+ * <p>
+ * Commands submitted through {@link #executeAsync(List)} are queued and executed by a small set of I/O threads, see
+ * {@link GMConnectionPoolConfig#setAsyncThreads(int)}, so the number of callers waiting on results is not tied to the
+ * number of blocked threads.
  * 
  * @author Kenneth Xu
  * 
  */
-public class PooledGMService implements GMService {
+public class PooledGMService implements AsyncGMService, GMStreamingExecutor, Closeable {
     private final GMConnectionPool pool;
+    private final AsyncCommandDispatcher dispatcher;
+    @CheckForNull
+    private final SingleFlight singleFlight;
 
     /**
      * Construct a new instance of {@linkplain PooledGMService} with given pool configuration.
@@ -43,18 +60,50 @@ public class PooledGMService implements GMService {
      *            configuration of the GraphicsMagick process pool
      */
     public PooledGMService(@Nonnull GMConnectionPoolConfig config) {
-        pool = new GMConnectionPool(config);
+        this(new GMConnectionPool(config), config.isDeduplicate());
+        if (config.isWarmUpOnStart()) pool.warmUp();
     }
 
     PooledGMService(GMConnectionPool pool) {
+        this(pool, false);
+    }
+
+    PooledGMService(GMConnectionPool pool, boolean deduplicate) {
         this.pool = pool;
+        dispatcher = new AsyncCommandDispatcher(pool, asyncThreads(pool.getAsyncThreads(), pool.getMaxActive()),
+                pool.getPipelineDepth(), pool.getThreadFactory());
+        singleFlight = deduplicate ? new SingleFlight() : null;
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public String execute(@Nonnull String command, String... arguments) throws IOException, GMException,
+    public String execute(@Nonnull final String command, final String... arguments) throws IOException, GMException,
+            GMServiceException {
+        if (singleFlight == null) return executeOnce(command, arguments);
+        if (command == null) throw new NullPointerException("Argument 'command' must not be null");
+        return singleFlight.execute(key(command, arguments), new SingleFlight.Command() {
+            @Override
+            public String execute() throws IOException, GMException, GMServiceException {
+                return executeOnce(command, arguments);
+            }
+        });
+    }
+
+    @Override
+    public String execute(final List<String> command) throws IOException, GMException, GMServiceException {
+        if (singleFlight == null) return executeOnce(command);
+        if (command == null) throw new NullPointerException("Argument 'command' must not be null");
+        return singleFlight.execute(key(null, command), new SingleFlight.Command() {
+            @Override
+            public String execute() throws IOException, GMException, GMServiceException {
+                return executeOnce(command);
+            }
+        });
+    }
+
+    private String executeOnce(String command, String... arguments) throws IOException, GMException,
             GMServiceException {
         PooledGMConnection connection = pool.borrowObject();
         try {
@@ -64,8 +113,7 @@ public class PooledGMService implements GMService {
         }
     }
 
-    @Override
-    public String execute(List<String> command) throws IOException, GMException, GMServiceException {
+    private String executeOnce(List<String> command) throws IOException, GMException, GMServiceException {
         PooledGMConnection connection = pool.borrowObject();
         try {
             return connection.execute(command);
@@ -74,10 +122,124 @@ public class PooledGMService implements GMService {
         }
     }
 
+    /**
+     * Executes the command like {@link #execute(List)}, but waits at most the given time for the result instead of
+     * the {@link GMConnectionPoolConfig#setCommandTimeout default timeout}.
+     * 
+     * @param command
+     *            the command and arguments to be executed
+     * @param timeout
+     *            the maximum time to wait for the result, non-positive to wait forever
+     * @param unit
+     *            the time unit of the timeout
+     * @return the output from GraphicsMagick as the result of executing the command
+     * @throws NullPointerException
+     *             when command or unit is null
+     * @throws IllegalArgumentException
+     *             when command is an empty list.
+     * @throws IOException
+     *             when GM encounter IO error executing the command
+     * @throws GMException
+     *             when GraphicsMagick returns non-IO error executing the command
+     * @throws org.gm4java.engine.GMTimeoutException
+     *             when the command didn't complete in time, the GraphicsMagick process is destroyed and replaced
+     * @throws GMServiceException
+     *             when there is error communicating with the underlying GraphicsMagick process
+     */
+    public String execute(@Nonnull List<String> command, long timeout, @Nonnull TimeUnit unit) throws IOException,
+            GMException, GMServiceException {
+        if (command == null) throw new NullPointerException("Argument 'command' must not be null");
+        if (command.size() == 0) throw new IllegalArgumentException("Argument 'command' must not be empty");
+        if (unit == null) throw new NullPointerException("Argument 'unit' must not be null");
+        PooledGMConnection connection = pool.borrowObject();
+        try {
+            return connection.execute(null, command, unit.toMillis(timeout));
+        } finally {
+            pool.returnObject(connection);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void execute(@Nonnull GMOutputConsumer consumer, @Nonnull String command, String... arguments)
+            throws IOException, GMException, GMServiceException {
+        PooledGMConnection connection = pool.borrowObject();
+        try {
+            connection.execute(consumer, command, arguments);
+        } finally {
+            pool.returnObject(connection);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void execute(@Nonnull GMOutputConsumer consumer, @Nonnull List<String> command) throws IOException,
+            GMException, GMServiceException {
+        PooledGMConnection connection = pool.borrowObject();
+        try {
+            connection.execute(consumer, command);
+        } finally {
+            pool.returnObject(connection);
+        }
+    }
+
     /**
      * {@inheritDoc}
      * <p>
-     * This implementation returns an instance from pool.
+     * This implementation queues the command to be executed by one of the I/O threads on a pooled connection.
+     */
+    @Override
+    @Nonnull
+    public CompletableFuture<String> executeAsync(@Nonnull String command, String... arguments) {
+        if (command == null) throw new NullPointerException("Argument 'command' must not be null");
+        final List<String> list = arguments == null || arguments.length == 0 ? Collections.<String> emptyList()
+                : Arrays.asList(arguments);
+        return submit(command, list);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This implementation queues the command to be executed by one of the I/O threads on a pooled connection.
+     */
+    @Override
+    @Nonnull
+    public CompletableFuture<String> executeAsync(@Nonnull List<String> command) {
+        if (command == null) throw new NullPointerException("Argument 'command' must not be null");
+        if (command.size() == 0) throw new IllegalArgumentException("Argument 'command' must not be empty");
+        return submit(null, command);
+    }
+
+    private CompletableFuture<String> submit(@CheckForNull final String command, final List<String> arguments) {
+        if (singleFlight == null) return dispatcher.submit(command, arguments);
+        return singleFlight.submit(key(command, arguments), new Supplier<CompletableFuture<String>>() {
+            @Override
+            public CompletableFuture<String> get() {
+                return dispatcher.submit(command, arguments);
+            }
+        });
+    }
+
+    // a raw command line is told apart from a list by the leading null
+    private static List<String> key(@CheckForNull String command, @CheckForNull List<String> arguments) {
+        final List<String> key = new ArrayList<String>(arguments == null ? 1 : arguments.size() + 1);
+        key.add(command);
+        if (arguments != null) key.addAll(arguments);
+        return key;
+    }
+
+    private static List<String> key(String command, String... arguments) {
+        return key(command, arguments == null ? null : Arrays.asList(arguments));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This implementation returns an instance from pool, which also implements {@link GMStreamingExecutor}.
      */
     @Override
     @Nonnull
@@ -85,11 +247,52 @@ public class PooledGMService implements GMService {
         return new ConnectionWrapper(pool);
     }
 
+    /**
+     * Starts <i>minIdle</i> GraphicsMagick processes in parallel and executes the
+     * {@link GMConnectionPoolConfig#setWarmUpCommand warm-up command} on each of them, so the first requests don't pay
+     * for starting them. The pool can be used while the warm-up is in progress.
+     * 
+     * @return the future completed when the processes are ready, or completed exceptionally when one of them failed
+     *         to start or to execute the warm-up command
+     * @see GMConnectionPoolConfig#setWarmUpOnStart(boolean)
+     */
+    @Nonnull
+    public CompletableFuture<Void> warmUp() {
+        return pool.warmUp();
+    }
+
+    /**
+     * Tells whether the pool is ready to serve, which is after the last {@link #warmUp() warm-up} completed
+     * successfully. It is meant for readiness probes. A service that is never warmed up is always ready.
+     * 
+     * @return false while a warm-up is in progress or after it failed, otherwise true
+     */
+    public boolean isReady() {
+        return pool.isReady();
+    }
+
+    /**
+     * Stops the I/O threads of {@link #executeAsync(List)} and closes the pool, destroying its idle GraphicsMagick
+     * processes. Queued and later asynchronous commands fail with {@link GMServiceException}, other commands executed
+     * afterwards fail with {@link IllegalStateException}. Connections still borrowed are destroyed when they are
+     * closed.
+     */
+    @Override
+    public void close() {
+        dispatcher.close();
+        pool.close();
+    }
+
     void setProcessFactoryBuilder(GMProcessFactory.Builder builder) {
         pool.setProcessFactoryBuilder(builder);
     }
 
-    private static final class ConnectionWrapper implements GMConnection {
+    private static int asyncThreads(int configured, int maxActive) {
+        if (configured > 0) return configured;
+        return maxActive > 0 ? maxActive : Runtime.getRuntime().availableProcessors();
+    }
+
+    private static final class ConnectionWrapper implements GMConnection, GMStreamingExecutor {
         @Nonnull
         private final GMConnectionPool pool;
         private PooledGMConnection real;
@@ -112,6 +315,20 @@ public class PooledGMService implements GMService {
             return real.execute(command);
         }
 
+        @Override
+        public void execute(@Nonnull GMOutputConsumer consumer, @Nonnull String command, String... arguments)
+                throws IOException, GMException, GMServiceException {
+            assertConnectionNotClosed();
+            real.execute(consumer, command, arguments);
+        }
+
+        @Override
+        public void execute(@Nonnull GMOutputConsumer consumer, @Nonnull List<String> command) throws IOException,
+                GMException, GMServiceException {
+            assertConnectionNotClosed();
+            real.execute(consumer, command);
+        }
+
         @Override
         public void close() throws GMServiceException {
             if (real == null) return;
@@ -17,7 +17,9 @@ package org.gm4java.engine.support;
 
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.Writer;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
 
 import javax.annotation.Nonnull;
 
@@ -37,13 +39,47 @@ interface ReaderWriterProcess {
         // The factory method is thread safe.
         @Nonnull
         ReaderWriterProcess getProcess(@Nonnull String... command) throws IOException;
+
+        /**
+         * Starts the process with extra environment variables on top of those inherited from the JVM.
+         */
+        @Nonnull
+        ReaderWriterProcess getProcess(@Nonnull Map<String, String> environment, @Nonnull String... command)
+                throws IOException;
     }
 
+    /**
+     * Gets the raw input of the process.
+     * 
+     * @return the output stream connected to the input of the process
+     */
     @Nonnull
-    Writer getWriter();
+    OutputStream getOutputStream();
 
     @Nonnull
     BufferedReader getReader();
 
+    /**
+     * Gets the raw output of the process. Must not be mixed with {@link #getReader()}.
+     * 
+     * @return the input stream connected to the output of the process
+     */
+    @Nonnull
+    InputStream getInputStream();
+
+    /**
+     * Tells whether the process is still running, without communicating with it.
+     * 
+     * @return true if the process has not exited
+     */
+    boolean isAlive();
+
+    /**
+     * Gets the resident memory of the process as reported by the operating system.
+     * 
+     * @return the resident set size in bytes, or a negative value if it can't be determined
+     */
+    long getResidentSetSize();
+
     void destroy();
 }
@@ -20,12 +20,18 @@ import org.slf4j.LoggerFactory;
 
 import java.io.BufferedReader;
 import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Nonnull;
 
@@ -43,32 +49,99 @@ class ReaderWriterProcessImpl implements ReaderWriterProcess {
         public ReaderWriterProcess getProcess(@Nonnull String... command) throws IOException {
             return new ReaderWriterProcessImpl(command);
         }
+
+        @Override
+        @Nonnull
+        public ReaderWriterProcess getProcess(@Nonnull Map<String, String> environment, @Nonnull String... command)
+                throws IOException {
+            return new ReaderWriterProcessImpl(environment, command);
+        }
+    };
+
+    /**
+     * Starts processes connected through {@link NamedPipes}, whose streams hold no monitor while blocked.
+     */
+    public static final Factory NAMED_PIPE_FACTORY = new Factory() {
+        @Override
+        @Nonnull
+        public ReaderWriterProcess getProcess(@Nonnull String... command) throws IOException {
+            return new ReaderWriterProcessImpl(Collections.<String, String> emptyMap(), true, command);
+        }
+
+        @Override
+        @Nonnull
+        public ReaderWriterProcess getProcess(@Nonnull Map<String, String> environment, @Nonnull String... command)
+                throws IOException {
+            return new ReaderWriterProcessImpl(environment, true, command);
+        }
     };
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ReaderWriterProcessImpl.class);
+    private static final String RSS_FIELD = "VmRSS:";
+    private static final int KILO = 1024;
     private final Process process;
+    private final File status;
     private final OutputStream outputStream;
     private final InputStream inputStream;
-    private final BufferedReader reader;
-    private final Writer writer;
+    // only the version probe reads lines, so the reader and its buffer are created on first use
+    private final AtomicReference<BufferedReader> reader = new AtomicReference<BufferedReader>();
 
     public ReaderWriterProcessImpl(@Nonnull String... command) throws IOException {
+        this(Collections.<String, String> emptyMap(), command);
+    }
+
+    public ReaderWriterProcessImpl(@Nonnull Map<String, String> environment, @Nonnull String... command)
+            throws IOException {
+        this(environment, false, command);
+    }
+
+    ReaderWriterProcessImpl(@Nonnull Map<String, String> environment, boolean namedPipes, @Nonnull String... command)
+            throws IOException {
+        if (environment == null) throw new NullPointerException("environment");
         if (command == null) throw new NullPointerException("command");
-        process = new ProcessBuilder().command(command).redirectErrorStream(true).start();
-        outputStream = process.getOutputStream();
-        inputStream = process.getInputStream();
-        writer = new OutputStreamWriter(outputStream);
-        reader = new BufferedReader(new InputStreamReader(inputStream));
+        ProcessBuilder builder = new ProcessBuilder().command(command).redirectErrorStream(true);
+        if (!environment.isEmpty()) builder.environment().putAll(environment);
+        if (namedPipes) {
+            final NamedPipes pipes = NamedPipes.start(builder);
+            process = pipes.getProcess();
+            outputStream = pipes.getOutputStream();
+            inputStream = pipes.getInputStream();
+        } else {
+            process = builder.start();
+            outputStream = process.getOutputStream();
+            inputStream = process.getInputStream();
+        }
+        final long pid = pidOf(process);
+        status = pid > 0 ? new File("/proc/" + pid + "/status") : null;
     }
 
     @Override
-    public Writer getWriter() {
-        return writer;
+    public OutputStream getOutputStream() {
+        return outputStream;
     }
 
     @Override
     public BufferedReader getReader() {
-        return reader;
+        final BufferedReader created = reader.get();
+        if (created != null) return created;
+        // the reader losing the race has read nothing yet and is simply dropped
+        reader.compareAndSet(null, new BufferedReader(new InputStreamReader(inputStream)));
+        return reader.get();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    @Override
+    public boolean isAlive() {
+        return process.isAlive();
+    }
+
+    @Override
+    public long getResidentSetSize() {
+        return status == null ? -1 : readResidentSetSize(status);
     }
 
     @Override
@@ -81,6 +154,51 @@ class ReaderWriterProcessImpl implements ReaderWriterProcess {
         }
     }
 
+    /**
+     * Reads the resident set size from a Linux <code>/proc/&lt;pid&gt;/status</code> file.
+     * 
+     * @param status
+     *            the status file
+     * @return the resident set size in bytes, or -1 if the file can't be read or has no such entry
+     */
+    static long readResidentSetSize(@Nonnull File status) {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(status),
+                StandardCharsets.US_ASCII))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.startsWith(RSS_FIELD)) continue;
+                // e.g. "VmRSS:     12345 kB"
+                String value = line.substring(RSS_FIELD.length()).trim();
+                int space = value.indexOf(' ');
+                return Long.parseLong(space < 0 ? value : value.substring(0, space)) * KILO;
+            }
+        } catch (IOException | NumberFormatException e) {
+            LOGGER.debug(e.getMessage(), e);
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the operating system process id, using <code>Process.pid()</code> when running on Java 9 or later and the
+     * private field of the Unix implementation otherwise.
+     */
+    private static long pidOf(Process process) {
+        try {
+            Method pid = Process.class.getMethod("pid");
+            return ((Number) pid.invoke(process)).longValue();
+        } catch (NoSuchMethodException e) {
+            try {
+                Field pid = process.getClass().getDeclaredField("pid");
+                pid.setAccessible(true);
+                return pid.getInt(process);
+            } catch (ReflectiveOperationException | RuntimeException ex) {
+                return -1;
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return -1;
+        }
+    }
+
     private void quietlyClose(Closeable c) {
         try {
             c.close();
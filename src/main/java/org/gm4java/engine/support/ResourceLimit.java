@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Resources of a GraphicsMagick process that can be limited when the process is started, through the environment
+ * variables GraphicsMagick reads on startup. They are the process wide equivalent of the <code>-limit</code> option,
+ * which <code>gm batch</code> only accepts as part of each command.
+ *
+ * @see GMConnectionPoolConfig#setResourceLimit(ResourceLimit, String)
+ * @author Kenneth Xu
+ *
+ */
+public enum ResourceLimit {
+    /**
+     * Maximum amount of disk space for the pixel cache, e.g. <code>1GB</code>.
+     */
+    DISK("MAGICK_LIMIT_DISK"),
+
+    /**
+     * Maximum number of open files.
+     */
+    FILES("MAGICK_LIMIT_FILES"),
+
+    /**
+     * Maximum amount of memory mapped files for the pixel cache, e.g. <code>512MB</code>.
+     */
+    MAP("MAGICK_LIMIT_MAP"),
+
+    /**
+     * Maximum amount of heap memory for the pixel cache, e.g. <code>256MB</code>.
+     */
+    MEMORY("MAGICK_LIMIT_MEMORY"),
+
+    /**
+     * Maximum number of pixels of an image.
+     */
+    PIXELS("MAGICK_LIMIT_PIXELS"),
+
+    /**
+     * Maximum width of an image.
+     */
+    WIDTH("MAGICK_LIMIT_WIDTH"),
+
+    /**
+     * Maximum height of an image.
+     */
+    HEIGHT("MAGICK_LIMIT_HEIGHT"),
+
+    /**
+     * Maximum number of OpenMP threads used by one command.
+     */
+    THREADS("OMP_NUM_THREADS");
+
+    private final String variable;
+
+    private ResourceLimit(String variable) {
+        this.variable = variable;
+    }
+
+    /**
+     * Gets the name of the environment variable that sets the limit.
+     *
+     * @return the name of the environment variable
+     */
+    @Nonnull
+    public String getVariable() {
+        return variable;
+    }
+}
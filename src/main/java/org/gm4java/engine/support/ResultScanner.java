@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import org.gm4java.engine.GMOutputConsumer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Scans the output of a GraphicsMagick process running in batch mode for the pass or fail marker that ends the result
+ * of each command.
+ * <p>
+ * Bytes are read from the process into a reusable buffer and each line is compared with the markers in place, so
+ * nothing is allocated per line. The output preceding the marker is kept in another reusable buffer and only turned
+ * into a {@link String} when {@link #getOutput(Charset)} is called, unless it is streamed to a
+ * {@link GMOutputConsumer} instead. Bytes read past the marker are kept for the next scan, which is what makes
+ * pipelining commands possible.
+ * <p>
+ * This class is not thread safe.
+ *
+ * @author Kenneth Xu
+ *
+ */
+final class ResultScanner {
+    /**
+     * GraphicsMagick reported the command was successful.
+     */
+    static final int PASS = 1;
+    /**
+     * GraphicsMagick reported the command failed.
+     */
+    static final int FAIL = 2;
+    /**
+     * The input ended before a marker was found.
+     */
+    static final int EOF = -1;
+
+    private static final byte[] PASS_MARKER = Constants.GM_PASS.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FAIL_MARKER = Constants.GM_FAIL.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final int MAX_MARKER_LENGTH = Math.max(PASS_MARKER.length, FAIL_MARKER.length);
+    private static final int BUFFER_SIZE = 8192;
+    private static final int NORMAL_OUTPUT_SIZE = 4096;
+    private static final int MAX_RETAINED_OUTPUT_SIZE = 16 * NORMAL_OUTPUT_SIZE;
+
+    private final InputStream input;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    // the start of current line, only kept while it can still be a marker
+    private final byte[] line = new byte[MAX_MARKER_LENGTH + 1];
+    private int lineLength;
+    private boolean lineEmitted;
+    private int pendingEol;
+    private byte[] output = new byte[NORMAL_OUTPUT_SIZE];
+    private int outputLength;
+    private int outputLimit;
+    private long totalLength;
+    private GMOutputConsumer consumer;
+    private Throwable consumerError;
+
+    ResultScanner(@Nonnull InputStream input) {
+        if (input == null) throw new NullPointerException("input");
+        this.input = input;
+    }
+
+    /**
+     * Reads the result of one command, up to and including the pass or fail marker, keeping all the output.
+     *
+     * @return {@link #PASS}, {@link #FAIL} or {@link #EOF}
+     * @throws IOException
+     *             when error reading from the input
+     */
+    int scan() throws IOException {
+        return scan(null, 0);
+    }
+
+    /**
+     * Reads the result of one command, up to and including the pass or fail marker.
+     * <p>
+     * When a consumer is given, the output is passed to it as it arrives and only its beginning is kept for
+     * {@link #getOutput(Charset)}, which is enough for the error messages of GraphicsMagick. Should the consumer throw,
+     * it is not called again and the rest of the output is discarded, the error is available from
+     * {@link #getConsumerError()} once the marker is found. Otherwise, at most {@code maxOutput} bytes are kept and the
+     * rest is discarded, see {@link #isTruncated()}.
+     *
+     * @param consumer
+     *            receives the output, or null to keep the output in this scanner
+     * @param maxOutput
+     *            the maximum number of bytes to keep when there is no consumer, non-positive for no limit
+     * @return {@link #PASS}, {@link #FAIL} or {@link #EOF}
+     * @throws IOException
+     *             when error reading from the input
+     */
+    int scan(@CheckForNull GMOutputConsumer consumer, int maxOutput) throws IOException {
+        if (output.length > MAX_RETAINED_OUTPUT_SIZE) output = new byte[NORMAL_OUTPUT_SIZE];
+        this.consumer = consumer;
+        consumerError = null;
+        outputLength = 0;
+        outputLimit = consumer != null ? NORMAL_OUTPUT_SIZE : maxOutput > 0 ? maxOutput : Integer.MAX_VALUE;
+        totalLength = 0;
+        lineLength = 0;
+        lineEmitted = false;
+        pendingEol = 0;
+        try {
+            return scanLines();
+        } finally {
+            this.consumer = null;
+        }
+    }
+
+    /**
+     * Gets the output of the last scanned command, without the marker and the line separator preceding it.
+     *
+     * @param charset
+     *            the charset to decode the output
+     * @return the output
+     */
+    @Nonnull
+    String getOutput(@Nonnull Charset charset) {
+        return outputLength == 0 ? "" : new String(output, 0, outputLength, charset);
+    }
+
+    /**
+     * Gets the number of bytes of the output of the last scanned command kept by this scanner.
+     *
+     * @return the number of bytes of the output
+     */
+    int getOutputLength() {
+        return outputLength;
+    }
+
+    /**
+     * Gets the number of bytes of the output of the last scanned command, including what was discarded or passed to
+     * the consumer.
+     *
+     * @return the total number of bytes of the output
+     */
+    long getTotalLength() {
+        return totalLength;
+    }
+
+    /**
+     * Tells whether some of the output of the last scanned command was not kept by this scanner.
+     *
+     * @return true if {@link #getOutput(Charset)} is only the beginning of the output
+     */
+    boolean isTruncated() {
+        return totalLength > outputLength;
+    }
+
+    /**
+     * Gets the exception thrown by the consumer during the last scan.
+     *
+     * @return the exception, or null if the consumer didn't throw
+     */
+    @CheckForNull
+    Throwable getConsumerError() {
+        return consumerError;
+    }
+
+    private int scanLines() throws IOException {
+        for (;;) {
+            if (position == limit && !fill()) {
+                if (lineLength > 0 || lineEmitted) emitLine();
+                return EOF;
+            }
+            int eol = indexOfNewLine(buffer, position, limit);
+            int end = eol < 0 ? limit : eol;
+            appendLine(buffer, position, end - position);
+            if (eol < 0) {
+                position = limit;
+                continue;
+            }
+            position = eol + 1;
+            int eolLength = 1;
+            if (lineLength > 0 && line[lineLength - 1] == '\r') {
+                lineLength--;
+                eolLength = 2;
+            }
+            int status = lineEmitted ? 0 : marker();
+            if (status != 0) return status;
+            emitLine();
+            pendingEol = eolLength;
+            lineEmitted = false;
+        }
+    }
+
+    private void appendLine(byte[] bytes, int offset, int length) {
+        if (lineLength + length <= line.length) {
+            System.arraycopy(bytes, offset, line, lineLength, length);
+            lineLength += length;
+            return;
+        }
+        // too long to be a marker, pass it on but hold back a trailing CR that may be part of the line separator
+        emitLine();
+        lineEmitted = true;
+        if (bytes[offset + length - 1] == '\r') {
+            emit(bytes, offset, length - 1);
+            line[lineLength++] = '\r';
+        } else {
+            emit(bytes, offset, length);
+        }
+    }
+
+    private void emitLine() {
+        if (pendingEol > 0) {
+            emit(CRLF, CRLF.length - pendingEol, pendingEol);
+            pendingEol = 0;
+        }
+        if (lineLength > 0) {
+            emit(line, 0, lineLength);
+            lineLength = 0;
+        }
+    }
+
+    private void emit(byte[] bytes, int offset, int length) {
+        if (length == 0) return;
+        totalLength += length;
+        if (consumer != null) {
+            try {
+                consumer.consume(bytes, offset, length);
+            } catch (Throwable e) {
+                consumerError = e;
+                consumer = null;
+            }
+        }
+        int keep = Math.min(length, outputLimit - outputLength);
+        if (keep > 0) append(bytes, offset, keep);
+    }
+
+    private boolean fill() throws IOException {
+        int n;
+        do {
+            n = input.read(buffer, 0, buffer.length);
+        } while (n == 0);
+        if (n < 0) return false;
+        position = 0;
+        limit = n;
+        return true;
+    }
+
+    private int marker() {
+        if (matches(PASS_MARKER)) return PASS;
+        if (matches(FAIL_MARKER)) return FAIL;
+        return 0;
+    }
+
+    private boolean matches(byte[] marker) {
+        if (lineLength != marker.length) return false;
+        for (int i = 0; i < marker.length; i++) {
+            if (line[i] != marker[i]) return false;
+        }
+        return true;
+    }
+
+    private void append(byte[] bytes, int offset, int length) {
+        int required = outputLength + length;
+        if (required > output.length) {
+            byte[] expanded = new byte[Math.max(required, output.length << 1)];
+            System.arraycopy(output, 0, expanded, 0, outputLength);
+            output = expanded;
+        }
+        System.arraycopy(bytes, offset, output, outputLength, length);
+        outputLength = required;
+    }
+
+    private static int indexOfNewLine(byte[] bytes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == '\n') return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,459 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import org.gm4java.engine.AsyncGMService;
+import org.gm4java.engine.GMConnection;
+import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMOutputConsumer;
+import org.gm4java.engine.GMServiceException;
+import org.gm4java.engine.GMStreamingExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * A {@link org.gm4java.engine.GMService} that runs a fixed number of shards, each made of one thread and one
+ * GraphicsMagick process that only this thread uses, instead of a pool shared by all threads.
+ * <p>
+ * A command is queued to the shard with the shorter backlog of two picked at random, and the shard thread executes
+ * the queued commands one after another on its own process. A shard that runs out of work takes commands from the
+ * tail of the queue of another shard that fell behind. Nothing but the queues is shared between shards, so there is
+ * no pool state for the threads to contend on. A shard with nothing to do parks its thread until a command is queued
+ * to it, or to another shard while it is idle.
+ * <p>
+ * The GraphicsMagick path, version, charset, environment, <i>maxOutputSize</i> and <i>commandTimeout</i> are taken
+ * from {@link GMConnectionPoolConfig}, the other settings of the pool don't apply. The process of a shard is started
+ * on its first command, and replaced after a failure to communicate with it. The shard threads are daemon threads
+ * that run until {@link #close()} is called.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class ShardedGMService implements AsyncGMService, GMStreamingExecutor, Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShardedGMService.class);
+
+    private final GMProcessFactory factory;
+    private final GMConnectionPoolConfig config;
+    private final Shard[] shards;
+    private volatile boolean closed;
+
+    /**
+     * Constructs a new instance of {@linkplain ShardedGMService} with one shard for each processor available.
+     *
+     * @param config
+     *            configuration of the GraphicsMagick processes
+     */
+    public ShardedGMService(@Nonnull GMConnectionPoolConfig config) {
+        this(config, 0);
+    }
+
+    /**
+     * Constructs a new instance of {@linkplain ShardedGMService}.
+     *
+     * @param config
+     *            configuration of the GraphicsMagick processes
+     * @param shards
+     *            the number of shards, non-positive for one shard for each processor available, taking the CPU quota
+     *            of the container into account
+     */
+    public ShardedGMService(@Nonnull GMConnectionPoolConfig config, int shards) {
+        this(config, shards, null);
+    }
+
+    ShardedGMService(@Nonnull GMConnectionPoolConfig config, int shards,
+            @CheckForNull GMProcessFactory.Builder builder) {
+        if (config == null) throw new NullPointerException("config");
+        final int count = shards > 0 ? shards : SystemResources.availableProcessors();
+        if (builder == null) {
+            builder = GMProcessFactoryImpl.builder(GMConnectionPool.environment(config, count), config.getGMVersion(),
+                    config.isNamedPipes());
+        }
+        this.config = config;
+        this.factory = builder.buildFactory(config.getGMPath());
+        this.shards = new Shard[count];
+        final ThreadFactory threadFactory = config.getThreadFactory() == null ? new NamedThreadFactory("shard") : config
+                .getThreadFactory();
+        for (int i = 0; i < count; i++)
+            this.shards[i] = new Shard(i, threadFactory);
+        for (Shard shard : this.shards)
+            shard.thread.start();
+    }
+
+    /**
+     * Gets the number of shards.
+     *
+     * @return the number of shards
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Gets the number of commands waiting in the queues of all shards.
+     *
+     * @return the number of queued commands
+     */
+    public int getBacklog() {
+        int backlog = 0;
+        for (Shard shard : shards)
+            backlog += shard.backlog.get();
+        return backlog;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String execute(@Nonnull String command, String... arguments) throws IOException, GMException,
+            GMServiceException {
+        return await(executeAsync(command, arguments));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String execute(@Nonnull List<String> command) throws IOException, GMException, GMServiceException {
+        return await(executeAsync(command));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The consumer is called by the shard thread executing the command.
+     */
+    @Override
+    public void execute(@Nonnull GMOutputConsumer consumer, @Nonnull String command, String... arguments)
+            throws IOException, GMException, GMServiceException {
+        if (consumer == null) throw new NullPointerException("Argument 'consumer' must not be null");
+        if (command == null) throw new NullPointerException("Argument 'command' must not be null");
+        await(submit(consumer, command, asList(arguments)));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The consumer is called by the shard thread executing the command.
+     */
+    @Override
+    public void execute(@Nonnull GMOutputConsumer consumer, @Nonnull List<String> command) throws IOException,
+            GMException, GMServiceException {
+        if (consumer == null) throw new NullPointerException("Argument 'consumer' must not be null");
+        if (command == null) throw new NullPointerException("Argument 'command' must not be null");
+        if (command.size() == 0) throw new IllegalArgumentException("Argument 'command' must not be empty");
+        await(submit(consumer, null, command));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @Nonnull
+    public CompletableFuture<String> executeAsync(@Nonnull String command, String... arguments) {
+        if (command == null) throw new NullPointerException("Argument 'command' must not be null");
+        return submit(null, command, asList(arguments));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @Nonnull
+    public CompletableFuture<String> executeAsync(@Nonnull List<String> command) {
+        if (command == null) throw new NullPointerException("Argument 'command' must not be null");
+        if (command.size() == 0) throw new IllegalArgumentException("Argument 'command' must not be empty");
+        return submit(null, null, command);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The processes belong to the shards, so the connection returned doesn't hold one. Each command executed through
+     * it is dispatched to a shard like those executed by this service directly.
+     */
+    @Override
+    @Nonnull
+    public GMConnection getConnection() throws GMServiceException {
+        if (closed) throw new GMServiceException("GMService is closed.");
+        return new ConnectionWrapper(this);
+    }
+
+    /**
+     * Stops the shard threads and destroys their GraphicsMagick processes. Commands still queued fail with
+     * {@link GMServiceException}.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Shard shard : shards)
+            LockSupport.unpark(shard.thread);
+    }
+
+    private CompletableFuture<String> submit(@CheckForNull GMOutputConsumer consumer, @CheckForNull String command,
+            @Nonnull List<String> arguments) {
+        final Task task = new Task(consumer, command, arguments);
+        if (closed) {
+            task.future.completeExceptionally(new GMServiceException("GMService is closed."));
+            return task.future;
+        }
+        final Shard shard = pick();
+        shard.add(task);
+        signal(shard);
+        // the service may be closed while adding, the shard may have drained its queue already
+        if (closed) task.future.completeExceptionally(new GMServiceException("GMService is closed."));
+        return task.future;
+    }
+
+    /**
+     * Picks the shard with the shorter backlog of two random shards, which keeps the backlogs even without looking at
+     * all of them.
+     */
+    private Shard pick() {
+        if (shards.length == 1) return shards[0];
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final Shard first = shards[random.nextInt(shards.length)];
+        final Shard second = shards[random.nextInt(shards.length)];
+        return second.backlog.get() < first.backlog.get() ? second : first;
+    }
+
+    /**
+     * Wakes up the shard a command was queued to if it is idle, or else another idle shard to steal the command.
+     */
+    private void signal(Shard target) {
+        for (int i = 0; i < shards.length; i++) {
+            final Shard shard = shards[(target.index + i) % shards.length];
+            if (shard.idle) {
+                LockSupport.unpark(shard.thread);
+                return;
+            }
+        }
+    }
+
+    private static String await(CompletableFuture<String> future) throws IOException, GMException,
+            GMServiceException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new GMServiceException("Interrupted while waiting for GraphicsMagick.", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof GMException) throw (GMException) cause;
+            if (cause instanceof GMServiceException) throw (GMServiceException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new GMServiceException(cause.getMessage(), cause);
+        }
+    }
+
+    private static List<String> asList(String... arguments) {
+        return arguments == null || arguments.length == 0 ? Collections.<String> emptyList() : Arrays.asList(arguments);
+    }
+
+    private final class Shard implements Runnable {
+        private final int index;
+        private final Thread thread;
+        private final ConcurrentLinkedDeque<Task> queue = new ConcurrentLinkedDeque<Task>();
+        private final AtomicInteger backlog = new AtomicInteger();
+        private volatile boolean idle;
+        private BasicGMConnection connection;
+
+        private Shard(int index, ThreadFactory threadFactory) {
+            this.index = index;
+            this.thread = threadFactory.newThread(this);
+        }
+
+        private void add(Task task) {
+            backlog.incrementAndGet();
+            queue.addLast(task);
+        }
+
+        @CheckForNull
+        private Task taken(@CheckForNull Task task) {
+            if (task != null) backlog.decrementAndGet();
+            return task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed && !Thread.currentThread().isInterrupted()) {
+                    Task task = taken(queue.pollFirst());
+                    if (task == null) task = steal();
+                    if (task == null) park();
+                    else execute(task);
+                }
+            } finally {
+                closeConnection();
+                final GMServiceException closedException = new GMServiceException("GMService is closed.");
+                Task task;
+                while ((task = queue.pollFirst()) != null)
+                    task.future.completeExceptionally(closedException);
+            }
+        }
+
+        /**
+         * Parks the thread until a command is queued while this shard is idle, see {@link ShardedGMService#signal}.
+         */
+        private void park() {
+            idle = true;
+            // a command queued before the flag was set didn't signal this shard
+            if (!closed && !hasBacklog()) LockSupport.park(this);
+            idle = false;
+        }
+
+        private boolean hasBacklog() {
+            for (Shard shard : shards)
+                if (shard.backlog.get() > 0) return true;
+            return false;
+        }
+
+        /**
+         * Takes the last command queued to the shard with the longest backlog.
+         */
+        @CheckForNull
+        private Task steal() {
+            Shard victim = null;
+            int most = 0;
+            for (int i = 1; i < shards.length; i++) {
+                final Shard shard = shards[(index + i) % shards.length];
+                final int backlog = shard.backlog.get();
+                if (backlog > most) {
+                    victim = shard;
+                    most = backlog;
+                }
+            }
+            if (victim == null) return null;
+            return victim.taken(victim.queue.pollLast());
+        }
+
+        private void execute(Task task) {
+            // skip if cancelled by the caller while waiting in queue
+            if (task.future.isDone()) return;
+            try {
+                final BasicGMConnection connection = connection();
+                if (task.consumer == null) {
+                    task.future.complete(connection.execute(task.command, task.arguments));
+                } else {
+                    connection.execute(task.consumer, task.command, task.arguments);
+                    task.future.complete(null);
+                }
+            } catch (IOException | GMException e) {
+                // the output was read up to the end of command, the process is still good
+                task.future.completeExceptionally(e);
+            } catch (Throwable e) {
+                closeConnection();
+                task.future.completeExceptionally(e);
+            }
+        }
+
+        private BasicGMConnection connection() throws GMServiceException {
+            if (connection != null) return connection;
+            final BasicGMConnection created;
+            try {
+                created = new BasicGMConnection(factory.getProcess(), config.getCharset());
+            } catch (IOException e) {
+                throw new GMServiceException(e.getMessage(), e);
+            }
+            created.setMaxOutputSize(config.getMaxOutputSize());
+            created.setTimeout(config.getCommandTimeout());
+            connection = created;
+            return created;
+        }
+
+        private void closeConnection() {
+            if (connection == null) return;
+            try {
+                connection.close();
+            } catch (RuntimeException e) {
+                LOGGER.warn("Failed to destroy GraphicsMagick connection: " + e.getMessage(), e);
+            }
+            connection = null;
+        }
+    }
+
+    private static final class Task {
+        private final GMOutputConsumer consumer;
+        private final String command;
+        private final List<String> arguments;
+        private final CompletableFuture<String> future = new CompletableFuture<String>();
+
+        private Task(GMOutputConsumer consumer, String command, List<String> arguments) {
+            this.consumer = consumer;
+            this.command = command;
+            this.arguments = arguments;
+        }
+    }
+
+    private static final class ConnectionWrapper implements GMConnection, GMStreamingExecutor {
+        private ShardedGMService service;
+
+        private ConnectionWrapper(ShardedGMService service) {
+            this.service = service;
+        }
+
+        @Override
+        public String execute(@Nonnull String command, String... arguments) throws IOException, GMException,
+                GMServiceException {
+            return assertConnectionNotClosed().execute(command, arguments);
+        }
+
+        @Override
+        public String execute(List<String> command) throws IOException, GMException, GMServiceException {
+            return assertConnectionNotClosed().execute(command);
+        }
+
+        @Override
+        public void execute(@Nonnull GMOutputConsumer consumer, @Nonnull String command, String... arguments)
+                throws IOException, GMException, GMServiceException {
+            assertConnectionNotClosed().execute(consumer, command, arguments);
+        }
+
+        @Override
+        public void execute(@Nonnull GMOutputConsumer consumer, @Nonnull List<String> command) throws IOException,
+                GMException, GMServiceException {
+            assertConnectionNotClosed().execute(consumer, command);
+        }
+
+        @Override
+        public void close() {
+            service = null;
+        }
+
+        private ShardedGMService assertConnectionNotClosed() throws GMServiceException {
+            if (service == null) throw new GMServiceException("GMConnection is already closed.");
+            return service;
+        }
+    }
+}
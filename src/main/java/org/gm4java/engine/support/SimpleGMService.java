@@ -17,10 +17,13 @@ package org.gm4java.engine.support;
 
 import org.gm4java.engine.GMConnection;
 import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMOutputConsumer;
 import org.gm4java.engine.GMService;
 import org.gm4java.engine.GMServiceException;
+import org.gm4java.engine.GMStreamingExecutor;
 
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.List;
 
 import javax.annotation.Nonnull;
@@ -32,7 +35,7 @@ import javax.annotation.Nonnull;
  * @author Kenneth Xu
  * 
  */
-public class SimpleGMService implements GMService {
+public class SimpleGMService implements GMService, GMStreamingExecutor {
     /**
      * Default path to GraphcisMagick executable is simply "gm".
      */
@@ -40,6 +43,7 @@ public class SimpleGMService implements GMService {
 
     private final GMProcessFactory.Builder builder;
     private GMProcessFactory factory;
+    private Charset charset = Constants.DEFAULT_CHARSET;
 
     /**
      * Create a new instance of SimpleGMService.
@@ -75,6 +79,27 @@ public class SimpleGMService implements GMService {
         factory = builder.buildFactory(gmPath);
     }
 
+    /**
+     * Gets the charset used to communicate with GraphicsMagick, UTF-8 unless set by {@link #setCharset(Charset)}.
+     * 
+     * @return the charset
+     */
+    @Nonnull
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Sets the charset used to encode the commands sent to GraphicsMagick and to decode its output.
+     * 
+     * @param charset
+     *            the charset
+     */
+    public void setCharset(@Nonnull Charset charset) {
+        if (charset == null) throw new NullPointerException("charset");
+        this.charset = charset;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -102,16 +127,48 @@ public class SimpleGMService implements GMService {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void execute(@Nonnull GMOutputConsumer consumer, @Nonnull String command, String... arguments)
+            throws IOException, GMException, GMServiceException {
+        final BasicGMConnection connection = newConnection();
+        try {
+            connection.execute(consumer, command, arguments);
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void execute(@Nonnull GMOutputConsumer consumer, @Nonnull List<String> command) throws IOException,
+            GMException, GMServiceException {
+        final BasicGMConnection connection = newConnection();
+        try {
+            connection.execute(consumer, command);
+        } finally {
+            connection.close();
+        }
+    }
+
     /**
      * {@inheritDoc}
      * 
-     * This implementation creates a new instance.
+     * This implementation creates a new instance, which also implements {@link GMStreamingExecutor}.
      */
     @Override
     @Nonnull
     public GMConnection getConnection() throws GMServiceException {
+        return newConnection();
+    }
+
+    private BasicGMConnection newConnection() throws GMServiceException {
         try {
-            return new BasicGMConnection(factory.getProcess());
+            return new BasicGMConnection(factory.getProcess(), charset);
         } catch (IOException e) {
             throw new GMServiceException(e.getMessage(), e);
         }
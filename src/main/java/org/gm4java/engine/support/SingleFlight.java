@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMServiceException;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Runs identical commands that are in flight at the same time only once. The first caller of a command executes it,
+ * the callers of the same command arriving before it completes wait for it and receive the same result or exception.
+ * A command arriving after the completion is executed again.
+ *
+ * @author Kenneth Xu
+ *
+ */
+final class SingleFlight {
+    private final ConcurrentMap<List<String>, CompletableFuture<String>> inFlight =
+            new ConcurrentHashMap<List<String>, CompletableFuture<String>>();
+
+    /**
+     * Command executed by the first caller.
+     */
+    interface Command {
+        String execute() throws IOException, GMException, GMServiceException;
+    }
+
+    /**
+     * Executes the command unless the same one is in flight, in which case waits for its result.
+     *
+     * @param key
+     *            identifies the command, must not be modified afterwards
+     * @param command
+     *            executes the command
+     * @return the output of the command
+     */
+    String execute(@Nonnull List<String> key, @Nonnull Command command) throws IOException, GMException,
+            GMServiceException {
+        final CompletableFuture<String> shared = new CompletableFuture<String>();
+        final CompletableFuture<String> running = inFlight.putIfAbsent(key, shared);
+        if (running != null) return await(running);
+        final String result;
+        try {
+            result = command.execute();
+        } catch (Throwable e) {
+            inFlight.remove(key, shared);
+            shared.completeExceptionally(e);
+            throw e;
+        }
+        inFlight.remove(key, shared);
+        shared.complete(result);
+        return result;
+    }
+
+    /**
+     * Submits the command unless the same one is in flight, in which case shares its result.
+     *
+     * @param key
+     *            identifies the command, must not be modified afterwards
+     * @param command
+     *            submits the command
+     * @return the future of the command output, cancelling it doesn't affect other callers
+     */
+    @Nonnull
+    CompletableFuture<String> submit(@Nonnull final List<String> key,
+            @Nonnull Supplier<CompletableFuture<String>> command) {
+        final CompletableFuture<String> shared = new CompletableFuture<String>();
+        final CompletableFuture<String> running = inFlight.putIfAbsent(key, shared);
+        if (running != null) return share(running);
+        final CompletableFuture<String> submitted;
+        try {
+            submitted = command.get();
+        } catch (RuntimeException e) {
+            inFlight.remove(key, shared);
+            shared.completeExceptionally(e);
+            throw e;
+        }
+        submitted.whenComplete(new BiConsumer<String, Throwable>() {
+            @Override
+            public void accept(String result, Throwable e) {
+                inFlight.remove(key, shared);
+                if (e == null) shared.complete(result);
+                else shared.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e
+                        .getCause() : e);
+            }
+        });
+        return share(shared);
+    }
+
+    /**
+     * Gets the number of distinct commands in flight.
+     *
+     * @return the number of commands
+     */
+    int size() {
+        return inFlight.size();
+    }
+
+    private static CompletableFuture<String> share(CompletableFuture<String> shared) {
+        final CompletableFuture<String> copy = new CompletableFuture<String>();
+        shared.whenComplete(new BiConsumer<String, Throwable>() {
+            @Override
+            public void accept(String result, Throwable e) {
+                if (e == null) copy.complete(result);
+                else copy.completeExceptionally(e);
+            }
+        });
+        return copy;
+    }
+
+    private static String await(CompletableFuture<String> running) throws IOException, GMException,
+            GMServiceException {
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GMServiceException("Interrupted while waiting for the same command in flight.", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof GMException) throw (GMException) cause;
+            if (cause instanceof GMServiceException) throw (GMServiceException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new GMServiceException(cause.getMessage(), cause);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import org.gm4java.engine.GMOutputConsumer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * A {@link GMOutputConsumer} that keeps the output in memory until it grows beyond a threshold, then moves it to a
+ * temporary file. The heap used by a command is therefore bounded by the threshold no matter how large the output is.
+ * <p>
+ * Instance of this class can only be used for one command. It must be {@link #close() closed} to delete the
+ * temporary file once the output is no longer needed.
+ * 
+ * @author Kenneth Xu
+ * 
+ */
+public class SpillingOutputConsumer implements GMOutputConsumer, Closeable {
+    private final int threshold;
+    private final File directory;
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private OutputStream fileStream;
+    private File file;
+    private long size;
+
+    /**
+     * Construct a new instance of {@linkplain SpillingOutputConsumer} that spills to the default temporary directory.
+     * 
+     * @param threshold
+     *            the maximum number of bytes kept in memory
+     */
+    public SpillingOutputConsumer(int threshold) {
+        this(threshold, null);
+    }
+
+    /**
+     * Construct a new instance of {@linkplain SpillingOutputConsumer}.
+     * 
+     * @param threshold
+     *            the maximum number of bytes kept in memory
+     * @param directory
+     *            the directory to create the temporary file in, or null to use the default temporary directory
+     */
+    public SpillingOutputConsumer(int threshold, @CheckForNull File directory) {
+        if (threshold < 0) throw new IllegalArgumentException("threshold must not be negative but was " + threshold);
+        this.threshold = threshold;
+        this.directory = directory;
+    }
+
+    @Override
+    public void consume(byte[] buffer, int offset, int length) throws IOException {
+        if (memory == null && fileStream == null) throw new IOException("SpillingOutputConsumer is already closed.");
+        if (fileStream == null && size + length > threshold) spill();
+        if (fileStream != null) fileStream.write(buffer, offset, length);
+        else memory.write(buffer, offset, length);
+        size += length;
+    }
+
+    /**
+     * Gets the number of bytes consumed.
+     * 
+     * @return the size of the output
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Tells whether the output was moved to a temporary file.
+     * 
+     * @return true if the output is in a file
+     */
+    public boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * Gets the temporary file holding the output.
+     * 
+     * @return the file, or null if the output is still in memory
+     */
+    @CheckForNull
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Opens a stream to read the output from the beginning.
+     * 
+     * @return the stream of the output
+     * @throws IOException
+     *             when error opening the temporary file
+     */
+    @Nonnull
+    public InputStream getInputStream() throws IOException {
+        if (file == null) {
+            if (memory == null) throw new IOException("SpillingOutputConsumer is already closed.");
+            return new ByteArrayInputStream(memory.toByteArray());
+        }
+        fileStream.flush();
+        return new FileInputStream(file);
+    }
+
+    /**
+     * Decodes the whole output into a string. This brings large output back to the heap, so it is only meant for
+     * output that is known to be small.
+     * 
+     * @param charset
+     *            the charset to decode the output
+     * @return the output
+     * @throws IOException
+     *             when error reading the temporary file
+     */
+    @Nonnull
+    public String toString(@Nonnull Charset charset) throws IOException {
+        if (file == null) {
+            if (memory == null) throw new IOException("SpillingOutputConsumer is already closed.");
+            return new String(memory.toByteArray(), charset);
+        }
+        fileStream.flush();
+        return new String(Files.readAllBytes(file.toPath()), charset);
+    }
+
+    /**
+     * Releases the memory and deletes the temporary file, if any.
+     * 
+     * @throws IOException
+     *             when error closing the temporary file
+     */
+    @Override
+    public void close() throws IOException {
+        memory = null;
+        if (fileStream == null) return;
+        try {
+            fileStream.close();
+        } finally {
+            fileStream = null;
+            if (!file.delete()) file.deleteOnExit();
+        }
+    }
+
+    private void spill() throws IOException {
+        file = File.createTempFile("gm4java-", ".out", directory);
+        fileStream = new FileOutputStream(file);
+        memory.writeTo(fileStream);
+        memory = null;
+    }
+}
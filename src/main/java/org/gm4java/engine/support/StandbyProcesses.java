@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Keeps a number of GraphicsMagick processes started ahead of time, so a pool that needs a new process can take one
+ * that is ready instead of waiting for GraphicsMagick to start. Whenever a process is taken, the standby is refilled
+ * by a background thread.
+ * <p>
+ * Processes are started by the current {@link GMProcessFactory}. Those started by a factory that was replaced
+ * meanwhile are destroyed instead of being handed out.
+ *
+ * @author Kenneth Xu
+ *
+ */
+final class StandbyProcesses {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StandbyProcesses.class);
+    private static final Executor SPAWNER = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new NamedThreadFactory("standby"));
+
+    private final int size;
+    private final Executor executor;
+    private final Queue<Entry> processes = new ConcurrentLinkedQueue<Entry>();
+    private final AtomicInteger count = new AtomicInteger();
+    private final AtomicBoolean refilling = new AtomicBoolean();
+    private final Runnable refill = new Runnable() {
+        @Override
+        public void run() {
+            refill();
+        }
+    };
+    private volatile GMProcessFactory factory;
+    private volatile boolean closed;
+
+    StandbyProcesses(int size, @Nonnull GMProcessFactory factory) {
+        this(size, factory, SPAWNER);
+    }
+
+    StandbyProcesses(int size, @Nonnull GMProcessFactory factory, @Nonnull Executor executor) {
+        if (factory == null) throw new NullPointerException("factory");
+        if (executor == null) throw new NullPointerException("executor");
+        this.size = size;
+        this.factory = factory;
+        this.executor = executor;
+        scheduleRefill();
+    }
+
+    /**
+     * Takes a standby process, or starts one when there is none ready.
+     *
+     * @return the process
+     * @throws IOException
+     *             when failed to start the process
+     */
+    @Nonnull
+    ReaderWriterProcess take() throws IOException {
+        final GMProcessFactory current = factory;
+        Entry entry;
+        while ((entry = processes.poll()) != null) {
+            count.decrementAndGet();
+            if (entry.factory == current) {
+                scheduleRefill();
+                return entry.process;
+            }
+            entry.process.destroy();
+        }
+        scheduleRefill();
+        return current.getProcess();
+    }
+
+    /**
+     * Replaces the factory, destroying the standby processes started by the old one.
+     *
+     * @param factory
+     *            the new factory
+     */
+    void setFactory(@Nonnull GMProcessFactory factory) {
+        if (factory == null) throw new NullPointerException("factory");
+        this.factory = factory;
+        drain();
+        scheduleRefill();
+    }
+
+    /**
+     * Gets the number of processes ready to be taken.
+     *
+     * @return the number of standby processes
+     */
+    int getCount() {
+        return count.get();
+    }
+
+    /**
+     * Destroys all the standby processes and stops refilling.
+     */
+    void close() {
+        closed = true;
+        drain();
+    }
+
+    private void drain() {
+        Entry entry;
+        while ((entry = processes.poll()) != null) {
+            count.decrementAndGet();
+            entry.process.destroy();
+        }
+    }
+
+    private void scheduleRefill() {
+        if (size <= 0 || closed || count.get() >= size || !refilling.compareAndSet(false, true)) return;
+        try {
+            executor.execute(refill);
+        } catch (RuntimeException e) {
+            refilling.set(false);
+            LOGGER.warn("Failed to schedule standby GraphicsMagick processes: " + e.getMessage(), e);
+        }
+    }
+
+    private void refill() {
+        boolean failed = true;
+        try {
+            while (!closed && count.get() < size) {
+                final GMProcessFactory current = factory;
+                final ReaderWriterProcess process;
+                try {
+                    process = current.getProcess();
+                } catch (IOException | RuntimeException e) {
+                    if (current != factory) continue;
+                    // try again when the next process is taken rather than spinning on a broken setup
+                    LOGGER.warn("Failed to start standby GraphicsMagick process: " + e.getMessage(), e);
+                    return;
+                }
+                if (closed || current != factory) {
+                    process.destroy();
+                    continue;
+                }
+                count.incrementAndGet();
+                processes.add(new Entry(current, process));
+                // the pool may be closed while adding
+                if (closed) drain();
+            }
+            failed = false;
+        } finally {
+            refilling.set(false);
+        }
+        // a process may be taken after the loop ended but before the flag was cleared
+        if (!failed) scheduleRefill();
+    }
+
+    private static final class Entry {
+        private final GMProcessFactory factory;
+        private final ReaderWriterProcess process;
+
+        private Entry(GMProcessFactory factory, ReaderWriterProcess process) {
+            this.factory = factory;
+            this.process = process;
+        }
+    }
+}
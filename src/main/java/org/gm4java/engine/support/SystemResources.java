@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Detects the resources of the host available to GraphicsMagick processes, taking the CPU quota of the container the
+ * JVM runs in into account.
+ *
+ * @author Kenneth Xu
+ *
+ */
+final class SystemResources {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SystemResources.class);
+    private static final File CGROUP = new File("/sys/fs/cgroup");
+    // cgroup v1 reports a huge number rounded to the page size when there is no limit
+    private static final long UNLIMITED = 1L << 60;
+
+    private SystemResources() {
+    }
+
+    /**
+     * Gets the number of processors available, which is the lesser of the processors visible to the JVM and the CPU
+     * quota of the cgroup, rounded up.
+     *
+     * @return the number of processors, at least 1
+     */
+    static int availableProcessors() {
+        return availableProcessors(Runtime.getRuntime().availableProcessors(), CGROUP);
+    }
+
+    static int availableProcessors(int processors, @Nonnull File cgroup) {
+        final int quota = cgroupProcessors(cgroup);
+        return Math.max(1, quota > 0 ? Math.min(processors, quota) : processors);
+    }
+
+    /**
+     * Reads the CPU quota from a cgroup file system, either version 2 (<code>cpu.max</code>) or version 1
+     * (<code>cpu/cpu.cfs_quota_us</code> and <code>cpu/cpu.cfs_period_us</code>).
+     *
+     * @param cgroup
+     *            the mount point of the cgroup file system
+     * @return the quota in number of processors rounded up, or -1 if there is no quota
+     */
+    static int cgroupProcessors(@Nonnull File cgroup) {
+        // cgroup v2: "<quota> <period>" or "max <period>"
+        String max = readLine(new File(cgroup, "cpu.max"));
+        if (max != null) {
+            String[] parts = max.trim().split("\\s+");
+            return parts.length == 2 ? processors(parts[0], parts[1]) : -1;
+        }
+        for (String dir : new String[] { "cpu", "cpu,cpuacct" }) {
+            String quota = readLine(new File(cgroup, dir + "/cpu.cfs_quota_us"));
+            String period = readLine(new File(cgroup, dir + "/cpu.cfs_period_us"));
+            if (quota != null && period != null) return processors(quota.trim(), period.trim());
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the memory available to GraphicsMagick processes, which is the memory limit of the cgroup, or the physical
+     * memory when there is no limit, less the maximum heap of the JVM.
+     *
+     * @return the memory in bytes, or -1 if it can't be determined
+     */
+    static long availableMemory() {
+        return availableMemory(physicalMemory(), Runtime.getRuntime().maxMemory(), CGROUP);
+    }
+
+    static long availableMemory(long physical, long heap, @Nonnull File cgroup) {
+        final long limit = cgroupMemory(cgroup);
+        final long total = limit > 0 && (physical <= 0 || limit < physical) ? limit : physical;
+        if (total <= 0) return -1;
+        return Math.max(0, total - Math.max(0, heap));
+    }
+
+    /**
+     * Reads the memory limit from a cgroup file system, either version 2 (<code>memory.max</code>) or version 1
+     * (<code>memory/memory.limit_in_bytes</code>).
+     *
+     * @param cgroup
+     *            the mount point of the cgroup file system
+     * @return the limit in bytes, or -1 if there is no limit
+     */
+    static long cgroupMemory(@Nonnull File cgroup) {
+        String limit = readLine(new File(cgroup, "memory.max"));
+        if (limit == null) limit = readLine(new File(cgroup, "memory/memory.limit_in_bytes"));
+        if (limit == null) return -1;
+        try {
+            long bytes = Long.parseLong(limit.trim());
+            return bytes > 0 && bytes < UNLIMITED ? bytes : -1;
+        } catch (NumberFormatException e) {
+            // "max" means no limit
+            return -1;
+        }
+    }
+
+    private static long physicalMemory() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getTotalPhysicalMemorySize();
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the recent processor usage of the whole system.
+     *
+     * @return the usage between 0 and 1, or a negative value if it can't be determined
+     */
+    static double cpuLoad() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getSystemCpuLoad();
+        }
+        return -1;
+    }
+
+    /**
+     * Divides the processors among the processes that can run at the same time.
+     *
+     * @param processors
+     *            the number of processors available
+     * @param processes
+     *            the maximum number of processes running at the same time, non-positive if unlimited
+     * @return the number of threads each process should use, at least 1
+     */
+    static int threadsPerProcess(int processors, int processes) {
+        return Math.max(1, processes > 0 ? processors / processes : 1);
+    }
+
+    private static int processors(String quota, String period) {
+        try {
+            long q = Long.parseLong(quota), p = Long.parseLong(period);
+            if (q <= 0 || p <= 0) return -1;
+            return (int) ((q + p - 1) / p);
+        } catch (NumberFormatException e) {
+            // "max" or garbage means no quota
+            return -1;
+        }
+    }
+
+    @CheckForNull
+    private static String readLine(File file) {
+        if (!file.isFile()) return null;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                StandardCharsets.US_ASCII))) {
+            return in.readLine();
+        } catch (IOException e) {
+            LOGGER.debug(e.getMessage(), e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Destroys GraphicsMagick processes that didn't complete a command in time. A single daemon thread is shared by all
+ * connections, it only does work when a timeout actually expires. Destroying the process closes its streams, which
+ * unblocks the thread waiting for the result.
+ * 
+ * @author Kenneth Xu
+ * 
+ */
+final class Watchdog {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Watchdog.class);
+    private static final ScheduledThreadPoolExecutor EXECUTOR;
+
+    static {
+        EXECUTOR = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("watchdog"));
+        EXECUTOR.setRemoveOnCancelPolicy(true);
+    }
+
+    private Watchdog() {
+    }
+
+    /**
+     * Starts watching the process, it is destroyed unless the returned watch is {@link Watch#cancel() cancelled}
+     * within the timeout.
+     * 
+     * @param process
+     *            the process to watch
+     * @param timeoutMillis
+     *            the timeout in milliseconds
+     * @return the watch
+     */
+    @Nonnull
+    static Watch watch(@Nonnull ReaderWriterProcess process, long timeoutMillis) {
+        if (process == null) throw new NullPointerException("process");
+        Watch watch = new Watch(process);
+        watch.future = EXECUTOR.schedule(watch, timeoutMillis, TimeUnit.MILLISECONDS);
+        return watch;
+    }
+
+    /**
+     * Handle of a process being watched.
+     */
+    static final class Watch implements Runnable {
+        private final ReaderWriterProcess process;
+        private volatile ScheduledFuture<?> future;
+        // either the timeout or the cancellation wins
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        private Watch(ReaderWriterProcess process) {
+            this.process = process;
+        }
+
+        @Override
+        public void run() {
+            if (!done.compareAndSet(false, true)) return;
+            LOGGER.warn("Destroying GraphicsMagick process that didn't complete the command in time.");
+            try {
+                process.destroy();
+            } catch (RuntimeException e) {
+                LOGGER.warn("Failed to destroy GraphicsMagick process: " + e.getMessage(), e);
+            }
+        }
+
+        /**
+         * Stops watching the process.
+         * 
+         * @return true if the watch was stopped in time, false if the timeout expired and the process is destroyed
+         */
+        boolean cancel() {
+            future.cancel(false);
+            return done.compareAndSet(false, true);
+        }
+    }
+}
@@ -25,6 +25,7 @@ import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.util.LinkedList;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
 /**
@@ -40,6 +41,7 @@ public class GMBatchCommand extends ImageCommand {
     private final GMExecutor executor;
     private OutputConsumer outputConsumer;
     private ErrorConsumer errorConsumer;
+    private NoOpPlanner planner;
 
     /**
      * Construct a new instance of {@link GMBatchCommand} that uses given executor to execute specified command.
@@ -72,18 +74,32 @@ public class GMBatchCommand extends ImageCommand {
         this.errorConsumer = pErrorConsumer;
     }
 
+    /**
+     * Sets the planner that recognizes commands producing an image identical to their source, which are then completed
+     * by copying the source without using the {@link GMExecutor}.
+     * 
+     * @param planner
+     *            the planner, or null to always execute the command
+     */
+    public void setPlanner(@CheckForNull NoOpPlanner planner) {
+        this.planner = planner;
+    }
+
     /**
      * {@inheritDoc}
      * 
-     * This implementation uses {@link GMExecutor} to execute the command.
+     * This implementation uses {@link GMExecutor} to execute the command, unless the {@link #setPlanner planner} finds
+     * it is a no-op.
      */
     @Override
     protected int run(@Nonnull LinkedList<String> pArgs) throws Exception {
 
         int rc;
         try {
-            String result = executor.execute(pArgs);
-            if (outputConsumer != null && result != null) outputConsumer.consumeOutput(stringToStream(result));
+            if (planner == null || !planner.shortCircuit(pArgs)) {
+                String result = executor.execute(pArgs);
+                if (outputConsumer != null && result != null) outputConsumer.consumeOutput(stringToStream(result));
+            }
             rc = 0;
         } catch (GMException e) {
             if (errorConsumer != null) errorConsumer.consumeError(stringToStream(e.getMessage()));
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.im4java;
+
+import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMServiceException;
+import org.gm4java.engine.support.IdentifyCache;
+import org.gm4java.engine.support.ImageHeaders;
+import org.gm4java.engine.support.ImageInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Recognizes <code>convert</code> commands that would produce an image identical to their source, so the source can
+ * be copied instead of being decoded and encoded again by GraphicsMagick.
+ * <p>
+ * A command is a no-op when it converts one image to the same format and its only operations are
+ * {@link GMOperation#resize resize} or {@link GMOperation#scale scale} with
+ * {@link GMOperation.GeometryAnnotation#DownsizeOnly DownsizeOnly} to dimensions the image already fits in, besides
+ * {@link GMOperation#limitThreads limitThreads} and a {@link GMOperation#source source} size hint the image fits in.
+ * Any other option makes it a regular command. The source is identified through an {@link IdentifyCache}, which reads
+ * the headers of the common formats without running GraphicsMagick, and only formats it reads are short-circuited.
+ * Animations and multi-page images are never short-circuited, as only the size of their first frame is known.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class NoOpPlanner {
+    private static final Logger LOGGER = LoggerFactory.getLogger(NoOpPlanner.class);
+    private static final Pattern DOWNSIZE_ONLY = Pattern.compile("(\\d+)x(\\d+)[\\^!]?>");
+    private static final Pattern SIZE = Pattern.compile("(\\d+)x(\\d+)");
+    // a format prefix like "png:" but not a drive letter like "C:"
+    private static final Pattern FORMAT_PREFIX = Pattern.compile("([A-Za-z0-9]{2,}):(.*)");
+    private static final Map<String, String> FORMATS = new HashMap<String, String>();
+
+    static {
+        for (String jpeg : new String[] { "jpg", "jpeg", "jpe", "jfif" })
+            FORMATS.put(jpeg, "JPEG");
+        for (String tiff : new String[] { "tif", "tiff" })
+            FORMATS.put(tiff, "TIFF");
+        for (String format : new String[] { "png", "gif", "webp", "bmp" })
+            FORMATS.put(format, format.toUpperCase(Locale.ROOT));
+    }
+
+    private final IdentifyCache identifyCache;
+    private volatile boolean hardLink;
+
+    /**
+     * Create a new instance of NoOpPlanner.
+     *
+     * @param identifyCache
+     *            identifies the source images
+     */
+    public NoOpPlanner(@Nonnull IdentifyCache identifyCache) {
+        if (identifyCache == null) throw new NullPointerException("identifyCache");
+        this.identifyCache = identifyCache;
+    }
+
+    /**
+     * Tells whether a short-circuited command hard links the target to the source.
+     *
+     * @return true if the target is hard linked
+     * @see #setHardLink
+     */
+    public boolean isHardLink() {
+        return hardLink;
+    }
+
+    /**
+     * Sets whether a short-circuited command hard links the target to the source instead of copying it. Linking saves
+     * the copy, but then modifying one of the files in place modifies the other. The source is copied when the target
+     * is on another file system.
+     *
+     * @param hardLink
+     *            true to hard link the target
+     */
+    public void setHardLink(boolean hardLink) {
+        this.hardLink = hardLink;
+    }
+
+    /**
+     * Tells whether the command would produce an image identical to its source. When the source can't be identified,
+     * the command is not taken as a no-op, so GraphicsMagick reports the problem.
+     *
+     * @param command
+     *            the command and its arguments, the first being <code>convert</code>
+     * @return true if the command is a no-op
+     */
+    public boolean isNoOp(@Nonnull List<String> command) {
+        return source(command) != null;
+    }
+
+    /**
+     * Copies the source to the target if the command is a {@link #isNoOp no-op}.
+     *
+     * @param command
+     *            the command and its arguments, the first being <code>convert</code>
+     * @return true if the command was short-circuited, false if it must be executed
+     * @throws IOException
+     *             when the source can't be copied
+     */
+    public boolean shortCircuit(@Nonnull List<String> command) throws IOException {
+        final File source = source(command);
+        if (source == null) return false;
+        final Path from = source.toPath();
+        final Path to = new File(fileName(command.get(command.size() - 1))).toPath();
+        if (Files.exists(to) && Files.isSameFile(from, to)) return true;
+        if (hardLink) {
+            Files.deleteIfExists(to);
+            try {
+                Files.createLink(to, from);
+                return true;
+            } catch (IOException e) {
+                // e.g. on another file system
+                LOGGER.debug(e.getMessage(), e);
+            } catch (UnsupportedOperationException e) {
+                LOGGER.debug(e.getMessage(), e);
+            }
+        }
+        Files.copy(from, to, StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    /**
+     * Gets the source image if the command is a no-op.
+     */
+    @CheckForNull
+    private File source(List<String> command) {
+        if (command == null) throw new NullPointerException("command");
+        if (command.size() < 3 || !"convert".equals(command.get(0))) return null;
+        final int last = command.size() - 1;
+        final String target = format(command.get(last));
+        if (target == null) return null;
+        String source = null;
+        int[] size = null;
+        final int[] bounds = { Integer.MAX_VALUE, Integer.MAX_VALUE };
+        for (int i = 1; i < last; i++) {
+            final String argument = command.get(i);
+            if (argument.equals("-size") && source == null && i + 1 < last) {
+                size = dimensions(SIZE, command.get(++i));
+                if (size == null) return null;
+            } else if (argument.equals("-limit") && i + 2 < last && command.get(i + 1).equals("threads")) {
+                i += 2;
+            } else if ((argument.equals("-resize") || argument.equals("-scale")) && i + 1 < last) {
+                final int[] geometry = dimensions(DOWNSIZE_ONLY, command.get(++i));
+                if (geometry == null) return null;
+                bounds[0] = Math.min(bounds[0], geometry[0]);
+                bounds[1] = Math.min(bounds[1], geometry[1]);
+            } else if (source == null && isPlainFile(argument)) {
+                source = argument;
+            } else {
+                return null;
+            }
+        }
+        if (source == null) return null;
+        final File file = new File(source);
+        final ImageInfo info;
+        try {
+            info = identifyCache.identify(file);
+        } catch (IOException | GMException | GMServiceException e) {
+            LOGGER.debug(e.getMessage(), e);
+            return null;
+        }
+        if (!info.getFormat().equals(target)) return null;
+        if (info.getWidth() > bounds[0] || info.getHeight() > bounds[1]) return null;
+        // a smaller size hint may let the decoder scale the image down
+        if (size != null && (info.getWidth() > size[0] || info.getHeight() > size[1])) return null;
+        try {
+            return ImageHeaders.isSingleFrame(file) ? file : null;
+        } catch (IOException e) {
+            LOGGER.debug(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    @CheckForNull
+    private static String format(String target) {
+        final Matcher prefixed = FORMAT_PREFIX.matcher(target);
+        if (prefixed.matches()) {
+            final String format = FORMATS.get(prefixed.group(1).toLowerCase(Locale.ROOT));
+            return format != null && isPlainFile(prefixed.group(2)) ? format : null;
+        }
+        if (!isPlainFile(target)) return null;
+        final String name = new File(target).getName();
+        final int dot = name.lastIndexOf('.');
+        return dot < 0 ? null : FORMATS.get(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    private static String fileName(String target) {
+        final Matcher prefixed = FORMAT_PREFIX.matcher(target);
+        return prefixed.matches() ? prefixed.group(2) : target;
+    }
+
+    private static boolean isPlainFile(String argument) {
+        // options, standard input or output, format prefixes and frame selectors
+        return !argument.isEmpty() && argument.charAt(0) != '-' && argument.charAt(0) != '+'
+                && !argument.endsWith("]") && !FORMAT_PREFIX.matcher(argument).matches();
+    }
+
+    @CheckForNull
+    private static int[] dimensions(Pattern pattern, String geometry) {
+        final Matcher matcher = pattern.matcher(geometry);
+        if (!matcher.matches()) return null;
+        try {
+            return new int[] { Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)) };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
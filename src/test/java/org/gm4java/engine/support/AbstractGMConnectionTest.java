@@ -29,13 +29,14 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
-import java.io.BufferedReader;
-import java.io.CharArrayWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.Writer;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
 
@@ -54,48 +55,50 @@ public abstract class AbstractGMConnectionTest {
     @Mock
     protected ReaderWriterProcess process;
     @Mock
-    protected Writer mockWriter;
-    protected CharArrayWriter writer;
-    @Mock
-    protected BufferedReader reader;
+    protected OutputStream mockOutput;
+    protected ByteArrayOutputStream output;
 
     @Before
     public void setup() throws Exception {
         MockitoAnnotations.initMocks(this);
-        writer = new CharArrayWriter();
-        when(process.getWriter()).thenReturn(writer);
-        when(process.getReader()).thenReturn(reader);
+        output = new ByteArrayOutputStream();
+        when(process.getOutputStream()).thenReturn(output);
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput());
     }
 
     protected abstract GMConnection sut() throws Exception;
 
+    protected String written() {
+        return new String(output.toByteArray(), StandardCharsets.UTF_8);
+    }
+
     @Test
     public void execute_chokes_whenErrorSendingCommandToProcess() throws Exception {
         exception.expect(GMServiceException.class);
-        when(process.getWriter()).thenReturn(mockWriter);
-        doThrow(new IOException()).when(mockWriter).write(gmCommand);
+        when(process.getOutputStream()).thenReturn(mockOutput);
+        doThrow(new IOException()).when(mockOutput).write(Matchers.<byte[]> any(), anyInt(), anyInt());
         sut().execute(gmCommand);
     }
 
     @Test
     public void executeByList_chokes_whenErrorSendingCommandToProcess() throws Exception {
         exception.expect(GMServiceException.class);
-        when(process.getWriter()).thenReturn(mockWriter);
-        doThrow(new IOException()).when(mockWriter).write(gmCommand);
+        when(process.getOutputStream()).thenReturn(mockOutput);
+        doThrow(new IOException()).when(mockOutput).write(Matchers.<byte[]> any(), anyInt(), anyInt());
         sut().execute(Arrays.asList(gmCommand));
     }
 
     @Test
     public void execute_chokes_whenErrorReadingResultFromProcess() throws Exception {
         exception.expect(GMServiceException.class);
-        doThrow(new IOException()).when(reader).readLine();
+        when(process.getInputStream()).thenReturn(TestUtils.failingInput(new IOException()));
         sut().execute(gmCommand);
     }
 
     @Test
     public void executeByList_chokes_whenErrorReadingResultFromProcess() throws Exception {
         exception.expect(GMServiceException.class);
-        doThrow(new IOException()).when(reader).readLine();
+        when(process.getInputStream()).thenReturn(TestUtils.failingInput(new IOException()));
         sut().execute(Arrays.asList(gmCommand));
     }
 
@@ -113,14 +116,14 @@ public abstract class AbstractGMConnectionTest {
 
     @Test
     public void execute_chokes_onCommunicationProblem() throws Exception {
-        when(reader.readLine()).thenThrow(new IOException());
+        when(process.getInputStream()).thenReturn(TestUtils.failingInput(new IOException()));
         exception.expect(GMServiceException.class);
         sut().execute(gmCommand);
     }
 
     @Test
     public void executeByList_chokes_onCommunicationProblem() throws Exception {
-        when(reader.readLine()).thenThrow(new IOException());
+        when(process.getInputStream()).thenReturn(TestUtils.failingInput(new IOException()));
         exception.expect(GMServiceException.class);
         sut().execute(Arrays.asList(gmCommand));
     }
@@ -129,7 +132,7 @@ public abstract class AbstractGMConnectionTest {
     public void execute_throwsIOException_whenGMreturnsIOError() throws Exception {
         final String line1 = "error line 1";
         final String line2 = "convert: Unable to open file (a.jpg) [No such file or directory].";
-        when(reader.readLine()).thenReturn(line1, line2, "NG");
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput(line1, line2, "NG"));
 
         exception.expect(IOException.class);
         exception.expectMessage(line1);
@@ -142,7 +145,7 @@ public abstract class AbstractGMConnectionTest {
     public void execute_throwsGMException_whenGMreturnsError() throws Exception {
         final String line1 = "error line 1";
         final String line2 = "line 2";
-        when(reader.readLine()).thenReturn(line1, line2, "NG");
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput(line1, line2, "NG"));
 
         exception.expect(GMException.class);
         exception.expectMessage(line1);
@@ -155,7 +158,7 @@ public abstract class AbstractGMConnectionTest {
     public void executeByList_throwsGMException_whenGMreturnsError() throws Exception {
         final String line1 = "error line 1";
         final String line2 = "line 2";
-        when(reader.readLine()).thenReturn(line1, line2, "NG");
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput(line1, line2, "NG"));
 
         exception.expect(GMException.class);
         exception.expectMessage(line1);
@@ -192,54 +195,70 @@ public abstract class AbstractGMConnectionTest {
 
     @Test
     public void execute_sendsCommandToProcess() throws Exception {
-        when(reader.readLine()).thenReturn("OK");
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("OK"));
         String result = sut().execute(gmCommand);
         assertThat(result, is(""));
-        String s = writer.toString();
+        String s = written();
         assertThat(s, equalTo(gmCommand + TestUtils.EOL));
     }
 
     @Test
     public void executeByList_sendsCommandToProcess() throws Exception {
-        when(reader.readLine()).thenReturn("OK");
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("OK"));
         String result = sut().execute(Arrays.asList(gmCommand));
         assertThat(result, is(""));
-        String s = writer.toString();
+        String s = written();
         assertThat(s, equalTo(" \"" + gmCommand + '"' + TestUtils.EOL));
     }
 
     @Test
     public void executeNullArguments_sendsCommandToProcess() throws Exception {
-        when(reader.readLine()).thenReturn("OK");
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("OK"));
         String result = sut().execute(gmCommand, (String[]) null);
         assertThat(result, is(""));
-        String s = writer.toString();
+        String s = written();
         assertThat(s, equalTo(gmCommand + TestUtils.EOL));
     }
 
     @Test
     public void executeWithArguments_sendsArgumentsToProcess() throws Exception {
-        when(reader.readLine()).thenReturn("OK");
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("OK"));
         String result = sut().execute(gmCommand, "arg1", "arg2");
         assertThat(result, is(""));
-        String s = writer.toString();
+        String s = written();
         assertThat(s, equalTo(gmCommand + " \"arg1\" \"arg2\"" + TestUtils.EOL));
     }
 
     @Test
     public void executeWithArguments_escapesQuoteInArgument() throws Exception {
-        when(reader.readLine()).thenReturn("OK");
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("OK"));
         String result = sut().execute(gmCommand, "arg with \"quotes\"");
         assertThat(result, is(""));
-        String s = writer.toString();
+        String s = written();
         assertThat(s, equalTo(gmCommand + " \"arg with \"\"quotes\"\"\"" + TestUtils.EOL));
     }
 
+    @Test
+    public void executeWithArguments_encodesArgumentsInUtf8ByDefault() throws Exception {
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("OK"));
+        String result = sut().execute(gmCommand, "\u00e9t\u00e9 \"\u4e2d\u6587\".png");
+        assertThat(result, is(""));
+        String s = written();
+        assertThat(s, equalTo(gmCommand + " \"\u00e9t\u00e9 \"\"\u4e2d\u6587\"\".png\"" + TestUtils.EOL));
+    }
+
+    @Test
+    public void execute_decodesOutputInUtf8ByDefault() throws Exception {
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("\u00e9t\u00e9.png", "OK"));
+        String result = sut().execute(gmCommand);
+        assertThat(result, is("\u00e9t\u00e9.png"));
+    }
+
     @Test
     public void execute_returns_whenGMReturns() throws Exception {
         final String line1 = "error line 1";
         final String line2 = "line 2";
-        when(reader.readLine()).thenReturn(line1, line2, "OK");
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput(line1, line2, "OK"));
 
         String result = sut().execute(gmCommand);
 
@@ -249,7 +268,7 @@ public abstract class AbstractGMConnectionTest {
     @Test
     public void execute_canHandle_largeGMResult() throws Exception {
         String large = StringUtils.repeat('a', 10000);
-        when(reader.readLine()).thenReturn(large, "OK");
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput(large, "OK"));
 
         String result = sut().execute(gmCommand);
 
@@ -258,7 +277,7 @@ public abstract class AbstractGMConnectionTest {
 
     @Test
     public void execute_chokes_afterClose() throws Exception {
-        when(reader.readLine()).thenReturn("OK");
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("OK"));
         sut().close();
         exception.expect(GMServiceException.class);
         exception.expectMessage("closed");
@@ -268,7 +287,7 @@ public abstract class AbstractGMConnectionTest {
 
     @Test
     public void executeByList_chokes_afterClose() throws Exception {
-        when(reader.readLine()).thenReturn("OK");
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("OK"));
         sut().close();
         exception.expect(GMServiceException.class);
         exception.expectMessage("closed");
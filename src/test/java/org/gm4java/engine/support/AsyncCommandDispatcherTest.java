@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import edu.umd.cs.findbugs.annotations.SuppressWarnings;
+
+import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMOutputTooLargeException;
+import org.gm4java.engine.GMServiceException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test cases for {@link AsyncCommandDispatcher}.
+ * 
+ * @author Kenneth Xu
+ * 
+ */
+public class AsyncCommandDispatcherTest {
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+    @Mock
+    private GMConnectionPool pool;
+    @Mock
+    private PooledGMConnection connection;
+
+    @Before
+    public void setup() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(pool.borrowObject()).thenReturn(connection);
+    }
+
+    @Test
+    @SuppressWarnings("NP_NONNULL_PARAM_VIOLATION")
+    public void constructor_chokes_onNullPool() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("pool");
+
+        new AsyncCommandDispatcher(null, 1, 1);
+    }
+
+    @Test
+    public void constructor_chokes_onNonPositivePipelineDepth() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("pipelineDepth");
+
+        new AsyncCommandDispatcher(pool, 1, 0);
+    }
+
+    @Test
+    public void submit_executesOnThreadsOfGivenFactory() throws Exception {
+        final List<Thread> created = new CopyOnWriteArrayList<Thread>();
+        final List<Thread> used = new CopyOnWriteArrayList<Thread>();
+        when(connection.execute(anyString(), anyListOf(String.class))).then(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                used.add(Thread.currentThread());
+                return "result";
+            }
+        });
+        AsyncCommandDispatcher sut = new AsyncCommandDispatcher(pool, 2, 1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                thread.setDaemon(true);
+                created.add(thread);
+                return thread;
+            }
+        });
+
+        assertThat(sut.submit("identify", Arrays.asList("a.png")).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS),
+                is("result"));
+        assertThat(created, hasSize(2));
+        assertThat(created, hasItem(used.get(0)));
+    }
+
+    @Test
+    public void submit_pipelinesCommands_andMatchesResultsInOrder() throws Exception {
+        final int count = 20;
+        when(connection.receive()).thenAnswer(new SequentialAnswer());
+        AsyncCommandDispatcher sut = new AsyncCommandDispatcher(pool, 1, 4);
+        CountDownLatch busy = occupyWorker(sut);
+
+        List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>();
+        for (int i = 0; i < count; i++) {
+            futures.add(sut.submit(null, Arrays.asList("identify", "a" + i + ".png")));
+        }
+        busy.countDown();
+
+        for (int i = 0; i < count; i++) {
+            assertThat(futures.get(i).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), is("result " + i));
+        }
+        verify(connection, times(count)).send(eq((String) null), anyListOf(String.class));
+        verify(connection, times(1)).execute(anyString(), anyListOf(String.class));
+    }
+
+    @Test
+    public void submit_failsOnlyTheFailedCommand_whenGMReturnsError() throws Exception {
+        final GMException error = new GMException("bad");
+        when(connection.receive()).thenReturn("result 0").thenThrow(error).thenReturn("result 2");
+        AsyncCommandDispatcher sut = new AsyncCommandDispatcher(pool, 1, 3);
+        CountDownLatch busy = occupyWorker(sut);
+
+        List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>();
+        for (int i = 0; i < 3; i++) {
+            futures.add(sut.submit("identify", Arrays.asList("a" + i + ".png")));
+        }
+        busy.countDown();
+
+        assertThat(futures.get(0).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), is("result 0"));
+        assertThat(causeOf(futures.get(1)), is((Throwable) error));
+        assertThat(futures.get(2).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), is("result 2"));
+        verify(pool, timeout(TIMEOUT_MILLIS).atLeastOnce()).returnObject(connection);
+    }
+
+    @Test
+    public void submit_keepsReceivingPipelinedResults_whenOutputTooLarge() throws Exception {
+        ReaderWriterProcess process = mock(ReaderWriterProcess.class);
+        when(process.getInputStream()).thenReturn(
+                TestUtils.gmOutput("warm up", "OK", "0123456789", "OK", "res1", "OK", "res2", "OK"));
+        when(process.getOutputStream()).thenReturn(mock(OutputStream.class));
+        when(pool.createProcess()).thenReturn(process);
+        when(pool.getCharset()).thenReturn(Constants.DEFAULT_CHARSET);
+        when(pool.getMaxOutputSize()).thenReturn(4);
+        PooledGMConnection real = new PooledGMConnection(pool);
+        AsyncCommandDispatcher sut = new AsyncCommandDispatcher(pool, 1, 2);
+        CountDownLatch busy = occupyWorker(sut, real);
+
+        CompletableFuture<String> tooLarge = sut.submit("identify", Arrays.asList("a0.png"));
+        CompletableFuture<String> next = sut.submit("identify", Arrays.asList("a1.png"));
+        busy.countDown();
+
+        assertThat(causeOf(tooLarge), instanceOf(GMOutputTooLargeException.class));
+        assertThat(next.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), is("res1"));
+        // the connection returned to the pool serves the next borrower
+        assertThat(sut.submit("identify", Arrays.asList("a2.png")).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS),
+                is("res2"));
+        assertThat(real.isBroken(), is(false));
+    }
+
+    @Test
+    public void submit_completesExceptionally_whenBorrowObjectChokes() throws Exception {
+        final GMServiceException error = new GMServiceException("no process");
+        when(pool.borrowObject()).thenThrow(error);
+        AsyncCommandDispatcher sut = new AsyncCommandDispatcher(pool, 1, 2);
+
+        assertThat(causeOf(sut.submit("identify", Arrays.asList("a.png"))), is((Throwable) error));
+    }
+
+    @Test
+    public void close_stopsThreads_andFailsQueuedCommands() throws Exception {
+        final List<Thread> created = new CopyOnWriteArrayList<Thread>();
+        AsyncCommandDispatcher sut = new AsyncCommandDispatcher(pool, 1, 1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                created.add(thread);
+                return thread;
+            }
+        });
+        occupyWorker(sut);
+        CompletableFuture<String> queued = sut.submit("identify", Arrays.asList("a.png"));
+
+        sut.close();
+
+        assertThat(causeOf(queued), instanceOf(GMServiceException.class));
+        assertThat(causeOf(sut.submit("identify", Arrays.asList("b.png"))), instanceOf(GMServiceException.class));
+        assertThat(created, hasSize(1));
+        created.get(0).join(TIMEOUT_MILLIS);
+        assertThat(created.get(0).isAlive(), is(false));
+    }
+
+    /**
+     * Keeps the only I/O thread busy with a single command, so the commands submitted before the returned latch is
+     * released are queued and picked up together as one pipeline.
+     */
+    private CountDownLatch occupyWorker(AsyncCommandDispatcher sut) throws Exception {
+        when(connection.execute(anyString(), anyListOf(String.class))).thenReturn("warm up");
+        return occupyWorker(sut, connection);
+    }
+
+    private CountDownLatch occupyWorker(AsyncCommandDispatcher sut, final PooledGMConnection connection)
+            throws Exception {
+        final CountDownLatch borrowing = new CountDownLatch(1);
+        final CountDownLatch busy = new CountDownLatch(1);
+        when(pool.borrowObject()).thenAnswer(new Answer<PooledGMConnection>() {
+            @Override
+            public PooledGMConnection answer(InvocationOnMock invocation) throws Throwable {
+                borrowing.countDown();
+                busy.await();
+                return connection;
+            }
+        }).thenReturn(connection);
+        sut.submit("ping", Collections.<String> emptyList());
+        assertThat(borrowing.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), is(true));
+        return busy;
+    }
+
+    private static Throwable causeOf(CompletableFuture<String> future) throws Exception {
+        try {
+            future.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+        throw new AssertionError("expect future to complete exceptionally");
+    }
+
+    private static final class SequentialAnswer implements Answer<String> {
+        private int next;
+
+        @Override
+        public String answer(InvocationOnMock invocation) throws Throwable {
+            return "result " + next++;
+        }
+    }
+}
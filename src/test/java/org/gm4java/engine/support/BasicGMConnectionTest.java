@@ -15,11 +15,36 @@
  */
 package org.gm4java.engine.support;
 
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.*;
+
 import edu.umd.cs.findbugs.annotations.SuppressWarnings;
 
 import org.gm4java.engine.GMConnection;
+import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMOutputConsumer;
+import org.gm4java.engine.GMOutputTooLargeException;
+import org.gm4java.engine.GMTimeoutException;
+import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * Test cases for {@link BasicGMConnection}.
@@ -44,6 +69,240 @@ public class BasicGMConnectionTest extends AbstractGMConnectionTest {
         new BasicGMConnection(null);
     }
 
+    @Test
+    public void send__receive_pipelinesCommandsInFifoOrder() throws Exception {
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("result 1", "OK", "result 2", "OK"));
+
+        sut.send(null, Arrays.asList("convert", "a.png"));
+        sut.send("identify", Collections.<String> emptyList());
+
+        assertThat(written(), equalTo(" \"convert\" \"a.png\"" + TestUtils.EOL + "identify" + TestUtils.EOL));
+        assertThat(sut.getPending(), is(2));
+        assertThat(sut.receive(), is("result 1"));
+        assertThat(sut.receive(), is("result 2"));
+        assertThat(sut.getPending(), is(0));
+    }
+
+    @Test
+    public void receive_matchesFailureToTheRightCommand() throws Exception {
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("bad", "NG", "good", "OK"));
+        sut.send("first", Collections.<String> emptyList());
+        sut.send("second", Collections.<String> emptyList());
+
+        try {
+            sut.receive();
+            Assert.fail("expect exception");
+            // SUPPRESS CHECKSTYLE EmptyBlock BECAUSE test
+        } catch (GMException e) {
+        }
+
+        assertThat(sut.receive(), is("good"));
+    }
+
+    @Test
+    public void receive_chokes_whenNothingWasSent() throws Exception {
+        exception.expect(IllegalStateException.class);
+
+        sut.receive();
+    }
+
+    @Test
+    public void execute_chokes_whenPipelinedCommandsArePending() throws Exception {
+        sut.send("first", Collections.<String> emptyList());
+        exception.expect(IllegalStateException.class);
+        exception.expectMessage("pipelined");
+
+        sut.execute("second");
+    }
+
+    @Test
+    public void executeWithConsumer_streamsOutputToConsumer() throws Exception {
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("line 1", "line 2", "OK", "next", "OK"));
+        ByteArrayOutputStream collected = new ByteArrayOutputStream();
+
+        sut.execute(consumerOf(collected), "identify", "a.gif");
+
+        assertThat(written(), equalTo("identify \"a.gif\"" + TestUtils.EOL));
+        assertThat(new String(collected.toByteArray()), equalTo("line 1" + TestUtils.EOL + "line 2"));
+        assertThat(sut.execute("identify"), is("next"));
+    }
+
+    @Test
+    public void executeWithConsumer_rethrowsConsumerError_afterCommandCompletes() throws Exception {
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("line 1", "line 2", "OK", "next", "OK"));
+        final IOException error = new IOException("disk full");
+        try {
+            sut.execute(new GMOutputConsumer() {
+                @Override
+                public void consume(byte[] buffer, int offset, int length) throws IOException {
+                    throw error;
+                }
+            }, Arrays.asList("identify"));
+            Assert.fail("expect exception");
+        } catch (IOException e) {
+            assertThat(e, sameInstance(error));
+        }
+
+        assertThat(sut.execute("identify"), is("next"));
+    }
+
+    @Test
+    @SuppressWarnings("NP_NONNULL_PARAM_VIOLATION")
+    public void executeWithConsumer_chokes_onNullConsumer() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("consumer");
+
+        sut.execute((GMOutputConsumer) null, "identify");
+    }
+
+    @Test
+    public void execute_chokes_whenOutputExceedsMaxOutputSize() throws Exception {
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("0123456789", "OK", "next", "OK"));
+        sut.setMaxOutputSize(4);
+        try {
+            sut.execute("identify");
+            Assert.fail("expect exception");
+        } catch (GMOutputTooLargeException e) {
+            assertThat(e.getLimit(), is(4L));
+        }
+
+        assertThat(sut.execute("identify"), is("next"));
+    }
+
+    @Test
+    public void execute_returnsOutput_whenWithinMaxOutputSize() throws Exception {
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("0123", "OK"));
+        sut.setMaxOutputSize(4);
+
+        assertThat(sut.execute("identify"), is("0123"));
+    }
+
+    @Test
+    public void execute_chokes_andDestroysProcess_whenTimeoutExpires() throws Exception {
+        InputStream input = TestUtils.hangingInput();
+        when(process.getInputStream()).thenReturn(input);
+        TestUtils.closeOnDestroy(process, input);
+        sut.setTimeout(50);
+        try {
+            sut.execute("identify");
+            Assert.fail("expect exception");
+        } catch (GMTimeoutException e) {
+            assertThat(e.getTimeout(), is(50L));
+        }
+
+        verify(process).destroy();
+    }
+
+    @Test
+    public void execute_chokes_whenTimeoutExpiresAfterResultWasRead() throws Exception {
+        final CountDownLatch destroyed = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                destroyed.countDown();
+                return null;
+            }
+        }).when(process).destroy();
+        // the whole result arrives just as the process is destroyed
+        final InputStream output = TestUtils.gmOutput("result", "OK");
+        when(process.getInputStream()).thenReturn(new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                try {
+                    destroyed.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                return output.read(b, off, len);
+            }
+        });
+        sut.setTimeout(50);
+
+        exception.expect(GMTimeoutException.class);
+        sut.execute("identify");
+    }
+
+    @Test
+    public void execute_usesGivenTimeout_insteadOfDefault() throws Exception {
+        InputStream input = TestUtils.hangingInput();
+        when(process.getInputStream()).thenReturn(input);
+        TestUtils.closeOnDestroy(process, input);
+        exception.expect(GMTimeoutException.class);
+
+        sut.execute("identify", Collections.<String> emptyList(), 50);
+    }
+
+    @Test
+    public void execute_doesNotDestroyProcess_whenCompletesInTime() throws Exception {
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("result", "OK"));
+        sut.setTimeout(50);
+
+        assertThat(sut.execute("identify"), is("result"));
+        Thread.sleep(100);
+
+        verify(process, never()).destroy();
+    }
+
+    @Test(timeout = 10000)
+    public void execute_holdsNoMonitor_whileWaitingOnNamedPipes() throws Exception {
+        Assume.assumeTrue(new File("/bin/cat").canExecute());
+        // cat echoes the command without a pass/fail marker, so the connection keeps waiting for the result
+        final BasicGMConnection connection = new BasicGMConnection(
+                ReaderWriterProcessImpl.NAMED_PIPE_FACTORY.getProcess("cat"));
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    connection.execute("identify");
+                    // SUPPRESS CHECKSTYLE EmptyBlock BECAUSE test
+                } catch (Exception e) {
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        try {
+            ThreadInfo info = awaitBlockedRead(thread);
+
+            assertThat(info.getLockedMonitors(), emptyArray());
+        } finally {
+            connection.close();
+            thread.join(5000);
+        }
+    }
+
+    /**
+     * Waits until the thread is blocked reading the result of a command.
+     */
+    private static ThreadInfo awaitBlockedRead(Thread thread) throws InterruptedException {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        while (true) {
+            ThreadInfo info = threads.getThreadInfo(new long[] { thread.getId() }, true, false)[0];
+            boolean reading = false, inResult = false;
+            for (StackTraceElement frame : info.getStackTrace()) {
+                reading |= frame.getClassName().equals(FileInputStream.class.getName());
+                inResult |= frame.getMethodName().equals("readResult");
+            }
+            if (reading && inResult) return info;
+            Thread.sleep(10);
+        }
+    }
+
+    private static GMOutputConsumer consumerOf(final ByteArrayOutputStream out) {
+        return new GMOutputConsumer() {
+            @Override
+            public void consume(byte[] buffer, int offset, int length) {
+                out.write(buffer, offset, length);
+            }
+        };
+    }
+
     @Override
     protected GMConnection sut() {
         return sut;
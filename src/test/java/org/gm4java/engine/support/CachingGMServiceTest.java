@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import edu.umd.cs.findbugs.annotations.SuppressWarnings;
+
+import org.gm4java.engine.GMConnection;
+import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMService;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test cases for {@link CachingGMService}.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class CachingGMServiceTest {
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    @Mock
+    private GMService service;
+
+    private File cache;
+    private File input;
+    private CachingGMService sut;
+
+    @Before
+    public void setup() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        // writes the input file name and the arguments to the output file
+        when(service.execute(anyListOf(String.class))).then(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                List<?> command = (List<?>) invocation.getArguments()[0];
+                String output = command.get(command.size() - 1).toString();
+                // strip the format prefix
+                String file = output.substring(output.indexOf(':') + 1);
+                if (!file.equals("-")) write(new File(file), command.subList(0, command.size() - 1).toString());
+                return "converted";
+            }
+        });
+        cache = folder.newFolder("cache");
+        input = folder.newFile("in.jpg");
+        write(input, "image");
+        sut = new CachingGMService(service, cache, 10, 1024);
+    }
+
+    @Test
+    @SuppressWarnings("NP_NONNULL_PARAM_VIOLATION")
+    public void constructor_chokes_onNullService() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("service");
+
+        new CachingGMService(null, cache, 10, 1024);
+    }
+
+    @Test
+    public void constructor_chokes_onNonPositiveMaxEntries() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("maxEntries");
+
+        new CachingGMService(service, cache, 0, 1024);
+    }
+
+    @Test
+    public void constructor_removesFilesKeptByPreviousInstance() throws Exception {
+        sut.execute("convert", input.getPath(), out("a.png"));
+        File other = new File(cache, "other.txt");
+        write(other, "mine");
+
+        new CachingGMService(service, cache, 10, 1024);
+
+        assertThat(cache.list(), arrayContaining("other.txt"));
+    }
+
+    @Test
+    public void execute_servesRepeatedConversionFromCache() throws Exception {
+        assertThat(sut.execute("convert", input.getPath(), "-resize", "10x10", out("a.png")), is("converted"));
+
+        assertThat(sut.execute("convert", input.getPath(), "-resize", "10x10", out("b.png")), is("converted"));
+
+        verify(service, times(1)).execute(anyListOf(String.class));
+        assertThat(read(new File(folder.getRoot(), "b.png")), is(read(new File(folder.getRoot(), "a.png"))));
+        assertThat(sut.getHitCount(), is(1L));
+        assertThat(sut.getMissCount(), is(1L));
+        assertThat(sut.getEntryCount(), is(1));
+        assertThat(sut.getCachedBytes(), is(new File(folder.getRoot(), "a.png").length()));
+    }
+
+    @Test
+    public void execute_hardLinksOutput_whenHardLinkIsSet() throws Exception {
+        sut.setHardLink(true);
+        sut.execute(Arrays.asList("convert", input.getPath(), out("a.png")));
+
+        sut.execute(Arrays.asList("convert", input.getPath(), out("b.png")));
+
+        assertThat(sut.isHardLink(), is(true));
+        assertThat(sut.getHitCount(), is(1L));
+        assertThat(read(new File(folder.getRoot(), "b.png")), is(read(new File(folder.getRoot(), "a.png"))));
+    }
+
+    @Test
+    public void execute_keepsLinkedFileIntact_whenMissWritesSameOutput() throws Exception {
+        sut.setHardLink(true);
+        sut.execute(Arrays.asList("convert", input.getPath(), out("a.png")));
+        sut.execute(Arrays.asList("convert", input.getPath(), out("b.png")));
+
+        sut.execute(Arrays.asList("convert", input.getPath(), "-resize", "10x10", out("b.png")));
+        sut.execute(Arrays.asList("convert", input.getPath(), out("c.png")));
+
+        assertThat(sut.getHitCount(), is(2L));
+        assertThat(read(new File(folder.getRoot(), "c.png")), is(read(new File(folder.getRoot(), "a.png"))));
+        assertThat(read(new File(folder.getRoot(), "b.png")), containsString("10x10"));
+    }
+
+    @Test
+    public void execute_convertsAgain_whenArgumentsOrFormatDiffer() throws Exception {
+        sut.execute("convert", input.getPath(), "-resize", "10x10", out("a.png"));
+
+        sut.execute("convert", input.getPath(), "-resize", "20x20", out("a.png"));
+        sut.execute("convert", input.getPath(), "-resize", "10x10", out("a.gif"));
+        sut.execute("convert", input.getPath(), "-resize", "10x10", "jpg:" + out("a.png"));
+
+        verify(service, times(4)).execute(anyListOf(String.class));
+        assertThat(sut.getHitCount(), is(0L));
+    }
+
+    @Test
+    public void execute_convertsAgain_whenInputChanged() throws Exception {
+        sut.execute("convert", input.getPath() + "[0]", out("a.png"));
+        write(input, "another image");
+
+        sut.execute("convert", input.getPath() + "[0]", out("a.png"));
+
+        verify(service, times(2)).execute(anyListOf(String.class));
+        assertThat(sut.getMissCount(), is(2L));
+    }
+
+    @Test
+    public void execute_doesNotCache_failedConversion() throws Exception {
+        final GMException error = new GMException("bad");
+        doThrow(error).when(service).execute(anyListOf(String.class));
+
+        try {
+            sut.execute("convert", input.getPath(), out("a.png"));
+            Assert.fail("should have failed");
+        } catch (GMException e) {
+            assertThat(e, is(error));
+        }
+
+        assertThat(sut.getEntryCount(), is(0));
+    }
+
+    @Test
+    public void execute_passesThrough_uncacheableCommands() throws Exception {
+        when(service.execute("convert in.jpg out.png")).thenReturn("raw");
+
+        assertThat(sut.execute("convert in.jpg out.png"), is("raw"));
+        sut.execute("identify", input.getPath());
+        sut.execute("identify", input.getPath());
+        sut.execute("convert", input.getPath(), "png:-");
+        sut.execute("convert", input.getPath(), "-write", out("a.png"), out("b.png"));
+        sut.execute("convert", input.getPath(), "-write", out("a.png"), out("b.png"));
+
+        verify(service, times(5)).execute(anyListOf(String.class));
+        assertThat(sut.getMissCount(), is(0L));
+        assertThat(sut.getEntryCount(), is(0));
+    }
+
+    @Test
+    public void execute_passesThrough_nullArguments() throws Exception {
+        when(service.execute("convert in.jpg out.png", (String[]) null)).thenReturn("raw");
+
+        assertThat(sut.execute("convert in.jpg out.png", (String[]) null), is("raw"));
+    }
+
+    @Test
+    public void execute_evictsLeastRecentlyUsed_beyondMaxEntries() throws Exception {
+        sut = new CachingGMService(service, cache, 2, 1024);
+        sut.execute("convert", input.getPath(), "-resize", "1", out("a.png"));
+        sut.execute("convert", input.getPath(), "-resize", "2", out("a.png"));
+        sut.execute("convert", input.getPath(), "-resize", "1", out("a.png"));
+
+        sut.execute("convert", input.getPath(), "-resize", "3", out("a.png"));
+        sut.execute("convert", input.getPath(), "-resize", "1", out("a.png"));
+        sut.execute("convert", input.getPath(), "-resize", "2", out("a.png"));
+
+        assertThat(sut.getHitCount(), is(2L));
+        assertThat(sut.getMissCount(), is(4L));
+        assertThat(sut.getEntryCount(), is(2));
+        assertThat(cache.list().length, is(2));
+    }
+
+    @Test
+    public void execute_evictsLeastRecentlyUsed_beyondMaxBytes() throws Exception {
+        sut.execute("convert", input.getPath(), out("a.png"));
+        final long size = new File(folder.getRoot(), "a.png").length();
+        sut = new CachingGMService(service, cache, 10, size * 2);
+        sut.execute("convert", input.getPath(), out("a.png"));
+        sut.execute("convert", input.getPath(), out("a.gif"));
+
+        sut.execute("convert", input.getPath(), out("a.tif"));
+
+        assertThat(sut.getEntryCount(), is(2));
+        assertThat(sut.getCachedBytes(), is(size * 2));
+        sut.execute("convert", input.getPath(), out("a.png"));
+        assertThat(sut.getHitCount(), is(0L));
+    }
+
+    @Test
+    public void execute_convertsAgain_whenKeptFileIsGone() throws Exception {
+        sut.execute("convert", input.getPath(), out("a.png"));
+        for (File file : cache.listFiles())
+            Files.delete(file.toPath());
+
+        sut.execute("convert", input.getPath(), out("b.png"));
+
+        verify(service, times(2)).execute(anyListOf(String.class));
+        assertThat(sut.getHitCount(), is(0L));
+        assertThat(sut.getEntryCount(), is(1));
+    }
+
+    @Test
+    public void getConnection_returnsConnectionOfService() throws Exception {
+        GMConnection connection = mock(GMConnection.class);
+        when(service.getConnection()).thenReturn(connection);
+
+        assertThat(sut.getConnection(), sameInstance(connection));
+    }
+
+    private String out(String name) {
+        return new File(folder.getRoot(), name).getPath();
+    }
+
+    private static void write(File file, String content) throws Exception {
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(File file) throws Exception {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import edu.umd.cs.findbugs.annotations.SuppressWarnings;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.mockito.Matchers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Test cases for {@link CommandEncoder}.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class CommandEncoderTest {
+    private static final Charset UTF8 = StandardCharsets.UTF_8;
+    private static final List<String> NO_ARGS = Collections.emptyList();
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    @Test
+    @SuppressWarnings("NP_NONNULL_PARAM_VIOLATION")
+    public void constructor_chokes_onNullCharset() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("charset");
+
+        new CommandEncoder(null);
+    }
+
+    @Test
+    public void encode_writesRawCommand() throws Exception {
+        CommandEncoder sut = new CommandEncoder(UTF8);
+
+        sut.encode("identify a.png", NO_ARGS);
+
+        assertThat(written(sut), is("identify a.png" + TestUtils.EOL));
+    }
+
+    @Test
+    public void encode_quotesArguments() throws Exception {
+        CommandEncoder sut = new CommandEncoder(UTF8);
+
+        sut.encode("convert", Arrays.asList("a b.png", "c.jpg"));
+
+        assertThat(written(sut), is("convert \"a b.png\" \"c.jpg\"" + TestUtils.EOL));
+    }
+
+    @Test
+    public void encode_doublesQuotesInArguments() throws Exception {
+        CommandEncoder sut = new CommandEncoder(UTF8);
+
+        sut.encode(null, Arrays.asList("\"", "say \"hi\""));
+
+        assertThat(written(sut), is(" \"\"\"\" \"say \"\"hi\"\"\"" + TestUtils.EOL));
+    }
+
+    @Test
+    public void encode_usesCharsetForNonAscii() throws Exception {
+        final String arg = "\u00e9t\u00e9 \u4e2d\u6587";
+        CommandEncoder utf8 = new CommandEncoder(UTF8);
+        CommandEncoder latin1 = new CommandEncoder(StandardCharsets.ISO_8859_1);
+
+        utf8.encode(null, Arrays.asList(arg));
+        latin1.encode(null, Arrays.asList(arg));
+
+        assertThat(bytes(utf8), equalTo((" \"" + arg + '"' + TestUtils.EOL).getBytes(UTF8)));
+        assertThat(bytes(latin1),
+                equalTo((" \"\u00e9t\u00e9 ??\"" + TestUtils.EOL).getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    @Test
+    public void encode_growsBuffer_forLongCommand() throws Exception {
+        final String ascii = StringUtils.repeat("x", 5000);
+        final String wide = StringUtils.repeat("\u4e2d", 5000);
+        CommandEncoder sut = new CommandEncoder(UTF8);
+
+        sut.encode("convert", Arrays.asList(ascii, wide));
+
+        final String expected = "convert \"" + ascii + "\" \"" + wide + '"' + TestUtils.EOL;
+        assertThat(written(sut), is(expected));
+        assertThat(sut.size(), is(expected.getBytes(UTF8).length));
+    }
+
+    @Test
+    public void encode_replacesPreviousCommand() throws Exception {
+        CommandEncoder sut = new CommandEncoder(UTF8);
+        sut.encode("convert", Arrays.asList(StringUtils.repeat("x", 100000)));
+
+        sut.encode("ping", NO_ARGS);
+
+        assertThat(written(sut), is("ping" + TestUtils.EOL));
+    }
+
+    @Test
+    public void writeTo_writesOnceAndFlushes() throws Exception {
+        OutputStream out = mock(OutputStream.class);
+        CommandEncoder sut = new CommandEncoder(UTF8);
+        sut.encode("ping", NO_ARGS);
+
+        sut.writeTo(out);
+
+        verify(out).write(Matchers.<byte[]> any(), eq(0), eq(sut.size()));
+        verify(out).flush();
+        verifyNoMoreInteractions(out);
+    }
+
+    private static byte[] bytes(CommandEncoder sut) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        sut.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private static String written(CommandEncoder sut) throws Exception {
+        return new String(bytes(sut), UTF8);
+    }
+}
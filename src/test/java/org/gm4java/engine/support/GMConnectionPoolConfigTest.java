@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+import org.junit.Test;
+
+/**
+ * Test cases for {@link GMConnectionPoolConfig}.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class GMConnectionPoolConfigTest {
+    private static final long MB = 1024 * 1024;
+
+    private final GMConnectionPoolConfig sut = new GMConnectionPoolConfig();
+
+    @Test
+    public void autoSize_sizesByProcessors_whenMemoryIsPlenty() throws Exception {
+        sut.autoSize(100 * MB, 48, 64 * 1024 * MB);
+
+        assertThat(sut.getMaxActive(), is(48));
+        assertThat(sut.getMaxIdle(), is(48));
+        assertThat(sut.getMinIdle(), is(12));
+    }
+
+    @Test
+    public void autoSize_sizesByMemory_whenMemoryIsShort() throws Exception {
+        sut.autoSize(500 * MB, 16, 2048 * MB);
+
+        assertThat(sut.getMaxActive(), is(4));
+        assertThat(sut.getMaxIdle(), is(4));
+        assertThat(sut.getMinIdle(), is(1));
+    }
+
+    @Test
+    public void autoSize_keepsOneProcess_onTinyHost() throws Exception {
+        sut.autoSize(500 * MB, 1, 100 * MB);
+
+        assertThat(sut.getMaxActive(), is(1));
+        assertThat(sut.getMinIdle(), is(1));
+    }
+
+    @Test
+    public void autoSize_sizesByProcessors_whenMemoryUnknownOrNotExpected() throws Exception {
+        sut.autoSize(500 * MB, 2, -1);
+        assertThat(sut.getMaxActive(), is(2));
+
+        sut.autoSize(0, 6, 100 * MB);
+        assertThat(sut.getMaxActive(), is(6));
+    }
+
+    @Test
+    public void autoSize_usesHostResources() throws Exception {
+        sut.autoSize(1);
+
+        assertThat(sut.getMaxActive(), both(greaterThanOrEqualTo(1)).and(
+                lessThanOrEqualTo(Runtime.getRuntime().availableProcessors())));
+    }
+
+    @Test
+    public void setEnvironment_removesVariable_onNullValue() throws Exception {
+        sut.setEnvironment("A", "1");
+        sut.setResourceLimit(ResourceLimit.MEMORY, "256MB");
+        sut.setTemporaryDirectory("/dev/shm");
+
+        sut.setEnvironment("A", null);
+
+        assertThat(sut.getEnvironment().size(), is(2));
+        assertThat(sut.getResourceLimit(ResourceLimit.MEMORY), is("256MB"));
+        assertThat(sut.getEnvironment(), hasEntry("MAGICK_LIMIT_MEMORY", "256MB"));
+        assertThat(sut.getTemporaryDirectory(), is("/dev/shm"));
+    }
+}
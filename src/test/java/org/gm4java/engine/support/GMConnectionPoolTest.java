@@ -21,21 +21,40 @@ import static org.mockito.Mockito.*;
 
 import edu.umd.cs.findbugs.annotations.SuppressWarnings;
 
+import org.gm4java.engine.GMOutputConsumer;
 import org.gm4java.engine.GMServiceException;
 import org.junit.After;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.Writer;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Test cases for {@link GMConnectionPool}.
@@ -49,9 +68,7 @@ public class GMConnectionPoolTest {
     @Rule
     public ExpectedException exception = ExpectedException.none();
     @Mock
-    private Writer writer;
-    @Mock
-    private BufferedReader reader;
+    private OutputStream output;
     @Mock
     private ReaderWriterProcess process;
     @Mock
@@ -69,9 +86,9 @@ public class GMConnectionPoolTest {
         config = new GMConnectionPoolConfig();
 
         MockitoAnnotations.initMocks(this);
-        when(reader.readLine()).thenReturn("OK");
-        when(process.getWriter()).thenReturn(writer);
-        when(process.getReader()).thenReturn(reader);
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("OK"));
+        when(process.getOutputStream()).thenReturn(output);
+        when(process.isAlive()).thenReturn(true);
         final ArgumentCaptor<String> gmPathCaptor = ArgumentCaptor.forClass(String.class);
         when(builder.buildFactory(gmPathCaptor.capture())).thenReturn(factory);
         when(factory.getProcess()).thenReturn(process);
@@ -121,7 +138,7 @@ public class GMConnectionPoolTest {
 
     @Test
     public void borrowObject_doesNotReturnUnhealthyConnection() throws Exception {
-        when(reader.readLine()).thenThrow(new IOException(READER_WRITER_PROCESS_FAILURE));
+        when(process.getInputStream()).thenReturn(TestUtils.failingInput(new IOException(READER_WRITER_PROCESS_FAILURE)));
         PooledGMConnection connection = sut.borrowObject();
         try {
             connection.execute(gmCommand);
@@ -136,6 +153,31 @@ public class GMConnectionPoolTest {
         connection2.ensureHealthy(); // should not throw exception
     }
 
+    @Test
+    public void borrowObject_reusesConnection_whenConsumerFailed() throws Exception {
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("line 1", "OK", "next", "OK"));
+        final RuntimeException error = new IllegalStateException(READER_WRITER_PROCESS_FAILURE);
+        PooledGMConnection connection = sut.borrowObject();
+        try {
+            connection.execute(new GMOutputConsumer() {
+                @Override
+                public void consume(byte[] buffer, int offset, int length) {
+                    throw error;
+                }
+            }, Arrays.asList("identify"));
+            Assert.fail("expect exception");
+        } catch (IllegalStateException e) {
+            assertThat(e, sameInstance(error));
+        }
+        sut.returnObject(connection);
+
+        PooledGMConnection connection2 = sut.borrowObject();
+
+        assertThat(connection2, is(connection));
+        assertThat(connection2.execute("identify"), is("next"));
+        verify(process, never()).destroy();
+    }
+
     @Test
     public void setEvictAfterNumberOfUse_limitsTheUseOfConnection() throws Exception {
         PooledGMConnection connection = sut.borrowObject();
@@ -164,7 +206,7 @@ public class GMConnectionPoolTest {
 
     @Test
     public void setTestOnX_noEffect_whenOff() throws Exception {
-        when(reader.readLine()).thenThrow(new IOException(READER_WRITER_PROCESS_FAILURE));
+        when(process.getInputStream()).thenReturn(TestUtils.failingInput(new IOException(READER_WRITER_PROCESS_FAILURE)));
         sut.setTestOnBorrow(false);
         sut.setTestOnReturn(false);
 
@@ -177,7 +219,7 @@ public class GMConnectionPoolTest {
 
     @Test
     public void setTestOnBorrow_removesTestFailedConnection() throws Exception {
-        when(reader.readLine()).thenReturn("OK", "NG", "OK");
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("OK", "NG", "OK"));
         sut.setTestOnBorrow(true);
 
         PooledGMConnection connection = sut.borrowObject();
@@ -189,7 +231,7 @@ public class GMConnectionPoolTest {
 
     @Test
     public void setTestOnReturn_removesTestFailedConnection() throws Exception {
-        when(reader.readLine()).thenReturn("NG", "OK");
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("NG", "OK"));
         sut.setTestOnReturn(true);
 
         PooledGMConnection connection = sut.borrowObject();
@@ -199,6 +241,49 @@ public class GMConnectionPoolTest {
         assertThat(connection2, not(is(connection)));
     }
 
+    @Test
+    public void setTestOnBorrow_removesConnectionOfDeadProcess() throws Exception {
+        sut.setTestOnBorrow(true);
+        PooledGMConnection connection = sut.borrowObject();
+        sut.returnObject(connection);
+        when(process.isAlive()).thenReturn(false, true);
+
+        PooledGMConnection connection2 = sut.borrowObject();
+
+        assertThat(connection2, not(is(connection)));
+    }
+
+    @Test
+    public void setTestOnBorrow_skipsPing_whenProcessRespondedRecently() throws Exception {
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("OK", "OK", "NG"));
+        config.setPingIdleTimeMillis(60000);
+        recreatePool();
+        sut.setTestOnBorrow(true);
+        PooledGMConnection connection = sut.borrowObject();
+        connection.execute(gmCommand);
+        sut.returnObject(connection);
+
+        PooledGMConnection connection2 = sut.borrowObject();
+
+        assertThat(connection2, is(connection));
+    }
+
+    @Test
+    public void setTestOnBorrow_pings_whenProcessQuietTooLong() throws Exception {
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("OK", "OK", "NG", "OK"));
+        config.setPingIdleTimeMillis(1);
+        recreatePool();
+        sut.setTestOnBorrow(true);
+        PooledGMConnection connection = sut.borrowObject();
+        connection.execute(gmCommand);
+        sut.returnObject(connection);
+        Thread.sleep(10);
+
+        PooledGMConnection connection2 = sut.borrowObject();
+
+        assertThat(connection2, not(is(connection)));
+    }
+
     @Test
     @SuppressWarnings("NP_NONNULL_PARAM_VIOLATION")
     public void setGMPath_chokes_onNullPath() throws Exception {
@@ -247,4 +332,667 @@ public class GMConnectionPoolTest {
         for (int i = 0; i < processCount; i++)
             verify(processes[i]).destroy();
     }
+
+    @Test
+    public void borrowObject_chokes_whenExhaustedAndFail() throws Exception {
+        config.setMaxActive(1);
+        config.setWhenExhaustedAction(WhenExhaustedAction.FAIL);
+        recreatePool();
+        sut.borrowObject();
+
+        exception.expect(NoSuchElementException.class);
+
+        sut.borrowObject();
+    }
+
+    @Test
+    public void borrowObject_chokes_whenExhaustedAndMaxWaitPassed() throws Exception {
+        config.setMaxActive(1);
+        config.setMaxWait(50);
+        recreatePool();
+        sut.borrowObject();
+        final long start = System.nanoTime();
+
+        try {
+            sut.borrowObject();
+            Assert.fail("should have timed out");
+        } catch (NoSuchElementException e) {
+            assertThat(System.nanoTime() - start, greaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(50)));
+        }
+    }
+
+    @Test
+    public void borrowObject_blocksUntilConnectionReturned_whenExhausted() throws Exception {
+        config.setMaxActive(1);
+        recreatePool();
+        final PooledGMConnection connection = sut.borrowObject();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<PooledGMConnection> borrowed = executor.submit(new Callable<PooledGMConnection>() {
+                @Override
+                public PooledGMConnection call() throws Exception {
+                    return sut.borrowObject();
+                }
+            });
+            Thread.sleep(50);
+            assertThat(borrowed.isDone(), is(false));
+
+            sut.returnObject(connection);
+
+            assertThat(borrowed.get(5, TimeUnit.SECONDS), is(connection));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void borrowObject_createsConnectionBeyondMaxActive_whenExhaustedAndGrow() throws Exception {
+        config.setMaxActive(1);
+        config.setWhenExhaustedAction(WhenExhaustedAction.GROW);
+        recreatePool();
+        PooledGMConnection connection = sut.borrowObject();
+
+        PooledGMConnection connection2 = sut.borrowObject();
+
+        assertThat(connection2, not(is(connection)));
+        assertThat(sut.getNumActive(), is(2));
+    }
+
+    @Test
+    public void borrowObject_chokes_whenClosed() throws Exception {
+        sut.close();
+
+        exception.expect(IllegalStateException.class);
+
+        sut.borrowObject();
+    }
+
+    @Test
+    public void borrowObject_reusesConnectionReturnedByOtherThread() throws Exception {
+        final PooledGMConnection connection = sut.borrowObject();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    sut.returnObject(connection);
+                } catch (GMServiceException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+
+        assertThat(sut.borrowObject(), is(connection));
+    }
+
+    @Test
+    public void borrowObject_returnsOldestConnection_whenNotLifo() throws Exception {
+        config.setLifo(false);
+        recreatePool();
+        PooledGMConnection connection = sut.borrowObject();
+        PooledGMConnection connection2 = sut.borrowObject();
+        sut.returnObject(connection);
+        sut.returnObject(connection2);
+
+        assertThat(sut.borrowObject(), is(connection));
+    }
+
+    @Test
+    public void returnObject_destroysConnection_whenMaxIdleReached() throws Exception {
+        config.setMaxIdle(1);
+        recreatePool();
+        PooledGMConnection connection = sut.borrowObject();
+        PooledGMConnection connection2 = sut.borrowObject();
+
+        sut.returnObject(connection);
+        sut.returnObject(connection2);
+
+        assertThat(sut.getNumIdle(), is(1));
+        assertThat(sut.getNumActive(), is(0));
+        verify(process).destroy();
+    }
+
+    @Test
+    public void returnObject_destroysConnection_whenClosed() throws Exception {
+        PooledGMConnection connection = sut.borrowObject();
+        sut.close();
+
+        sut.returnObject(connection);
+
+        assertThat(sut.getNumIdle(), is(0));
+        verify(process).destroy();
+    }
+
+    @Test
+    public void evict_destroysConnectionIdleTooLong() throws Exception {
+        config.setMinEvictableIdleTimeMillis(1);
+        recreatePool();
+        PooledGMConnection connection = sut.borrowObject();
+        sut.returnObject(connection);
+        Thread.sleep(10);
+
+        sut.evict();
+
+        assertThat(sut.getNumIdle(), is(0));
+        verify(process).destroy();
+        assertThat(sut.borrowObject(), not(is(connection)));
+    }
+
+    @Test
+    public void evict_keepsMinIdle_whenSoftMinEvictableIdleTimePassed() throws Exception {
+        config.setMinEvictableIdleTimeMillis(-1);
+        config.setSoftMinEvictableIdleTimeMillis(1);
+        config.setMinIdle(1);
+        recreatePool();
+        PooledGMConnection connection = sut.borrowObject();
+        PooledGMConnection connection2 = sut.borrowObject();
+        sut.returnObject(connection);
+        sut.returnObject(connection2);
+        Thread.sleep(10);
+
+        sut.evict();
+
+        assertThat(sut.getNumIdle(), is(1));
+        verify(process).destroy();
+    }
+
+    @Test
+    public void evict_appliesSoftMinEvictableIdleTime_whenMinEvictableIdleTimeIsAlsoSet() throws Exception {
+        config.setMinEvictableIdleTimeMillis(TimeUnit.HOURS.toMillis(1));
+        config.setSoftMinEvictableIdleTimeMillis(1);
+        config.setMinIdle(1);
+        recreatePool();
+        PooledGMConnection connection = sut.borrowObject();
+        PooledGMConnection connection2 = sut.borrowObject();
+        sut.returnObject(connection);
+        sut.returnObject(connection2);
+        Thread.sleep(10);
+
+        sut.evict();
+
+        assertThat(sut.getNumIdle(), is(1));
+        verify(process).destroy();
+    }
+
+    @Test
+    public void evict_keepsConnectionNotIdleLongEnough() throws Exception {
+        PooledGMConnection connection = sut.borrowObject();
+        sut.returnObject(connection);
+
+        sut.evict();
+
+        assertThat(sut.getNumIdle(), is(1));
+        assertThat(sut.borrowObject(), is(connection));
+    }
+
+    @Test
+    public void evict_destroysConnectionFailedTest_whenTestWhileIdle() throws Exception {
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("NG"));
+        config.setTestWhileIdle(true);
+        recreatePool();
+        PooledGMConnection connection = sut.borrowObject();
+        sut.returnObject(connection);
+
+        sut.evict();
+
+        assertThat(sut.getNumIdle(), is(0));
+        verify(process).destroy();
+    }
+
+    @Test
+    public void evict_createsConnectionsUpToMinIdle() throws Exception {
+        config.setMinIdle(2);
+        recreatePool();
+
+        sut.evict();
+
+        assertThat(sut.getNumIdle(), is(2));
+        verify(factory, times(2)).getProcess();
+    }
+
+    @Test
+    public void evictor_runsPeriodically_whenTimeBetweenEvictionRunsIsPositive() throws Exception {
+        config.setTimeBetweenEvictionRunsMillis(10);
+        config.setMinEvictableIdleTimeMillis(1);
+        recreatePool();
+        sut.returnObject(sut.borrowObject());
+
+        verify(process, timeout(5000)).destroy();
+    }
+
+    @Test
+    public void borrowObject_neverSharesConnection_underContention() throws Exception {
+        final int maxActive = 4, threads = 16, loops = 500;
+        config.setMaxActive(maxActive);
+        config.setMaxIdle(2);
+        recreatePool();
+        final Set<PooledGMConnection> inUse = Collections
+                .newSetFromMap(new ConcurrentHashMap<PooledGMConnection, Boolean>());
+        final AtomicInteger maxInUse = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Future<?>[] futures = new Future<?>[threads];
+            for (int i = 0; i < threads; i++) {
+                futures[i] = executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        for (int j = 0; j < loops; j++) {
+                            PooledGMConnection connection = sut.borrowObject();
+                            assertThat(inUse.add(connection), is(true));
+                            int n = inUse.size();
+                            int max;
+                            while (n > (max = maxInUse.get()) && !maxInUse.compareAndSet(max, n)) {
+                                continue;
+                            }
+                            inUse.remove(connection);
+                            sut.returnObject(connection);
+                        }
+                        return null;
+                    }
+                });
+            }
+            start.countDown();
+            for (Future<?> future : futures)
+                future.get(30, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(maxInUse.get(), lessThanOrEqualTo(maxActive));
+        assertThat(sut.getNumActive(), is(0));
+        assertThat(sut.getNumIdle(), lessThanOrEqualTo(2));
+    }
+
+    @Test
+    public void borrowObject_usesStandbyProcess_andRefillsStandby() throws Exception {
+        config.setStandbyProcesses(1);
+        recreatePool();
+        waitForStandby(1);
+
+        sut.borrowObject();
+
+        waitForStandby(1);
+        verify(factory, times(2)).getProcess();
+    }
+
+    @Test
+    public void close_destroysStandbyProcesses() throws Exception {
+        config.setStandbyProcesses(2);
+        recreatePool();
+        waitForStandby(2);
+
+        sut.close();
+
+        assertThat(sut.getNumStandby(), is(0));
+        verify(process, times(2)).destroy();
+    }
+
+    @Test
+    public void returnObject_replacesExpiredConnectionBeforeDestroyingIt() throws Exception {
+        PooledGMConnection connection = sut.borrowObject();
+        sut.setEvictAfterNumberOfUse(1);
+        connection.execute(gmCommand);
+        connection.execute(gmCommand);
+
+        sut.returnObject(connection);
+
+        verify(process, timeout(5000)).destroy();
+        InOrder inOrder = inOrder(factory, process);
+        inOrder.verify(factory, times(2)).getProcess();
+        inOrder.verify(process).destroy();
+        assertThat(sut.getNumIdle(), is(1));
+        assertThat(sut.getNumActive(), is(0));
+        assertThat(sut.borrowObject(), not(is(connection)));
+    }
+
+    @Test
+    public void returnObject_replacesConnection_whenProcessExceedsMemoryLimit() throws Exception {
+        config.setMaxProcessMemory(1000);
+        recreatePool();
+        PooledGMConnection connection = sut.borrowObject();
+        when(process.getResidentSetSize()).thenReturn(1001L);
+
+        sut.returnObject(connection);
+
+        verify(process, timeout(5000)).destroy();
+        verify(factory, times(2)).getProcess();
+        assertThat(sut.borrowObject(), not(is(connection)));
+    }
+
+    @Test
+    public void returnObject_keepsConnection_whenProcessWithinMemoryLimit() throws Exception {
+        config.setMaxProcessMemory(1000);
+        recreatePool();
+        PooledGMConnection connection = sut.borrowObject();
+        when(process.getResidentSetSize()).thenReturn(1000L);
+
+        sut.returnObject(connection);
+
+        assertThat(sut.borrowObject(), is(connection));
+    }
+
+    @Test
+    public void returnObject_destroysExpiredConnection_whenReplacementFails() throws Exception {
+        PooledGMConnection connection = sut.borrowObject();
+        sut.setEvictAfterNumberOfUse(1);
+        connection.execute(gmCommand);
+        connection.execute(gmCommand);
+        when(factory.getProcess()).thenThrow(new IOException(READER_WRITER_PROCESS_FAILURE));
+
+        sut.returnObject(connection);
+
+        verify(process, timeout(5000)).destroy();
+        assertThat(sut.getNumIdle(), is(0));
+    }
+
+    @Test
+    public void environment_limitsThreadsPerProcess_whenAutoThreadLimit() throws Exception {
+        config.setMaxActive(1);
+        config.setAutoThreadLimit(true);
+        config.setTemporaryDirectory("/dev/shm");
+
+        Map<String, String> environment = GMConnectionPool.environment(config);
+
+        assertThat(environment, hasEntry("OMP_NUM_THREADS", String.valueOf(SystemResources.availableProcessors())));
+        assertThat(environment, hasEntry("MAGICK_TMPDIR", "/dev/shm"));
+    }
+
+    @Test
+    public void environment_keepsExplicitThreadLimit() throws Exception {
+        config.setAutoThreadLimit(true);
+        config.setResourceLimit(ResourceLimit.THREADS, "3");
+
+        assertThat(GMConnectionPool.environment(config), hasEntry("OMP_NUM_THREADS", "3"));
+    }
+
+    @Test
+    public void environment_doesNotLimitThreads_byDefault() throws Exception {
+        assertThat(GMConnectionPool.environment(config).isEmpty(), is(true));
+    }
+
+    @Test
+    public void getActiveLimit_isMaxActive_whenNotAdaptive() throws Exception {
+        assertThat(sut.getActiveLimit(), is(config.getMaxActive()));
+    }
+
+    @Test
+    public void borrowObject_isLimitedByMinActive_whenAdaptive() throws Exception {
+        recreateAdaptivePool();
+        sut.borrowObject();
+
+        exception.expect(NoSuchElementException.class);
+
+        sut.borrowObject();
+    }
+
+    @Test
+    public void resize_raisesLimit_whenBorrowersWaited() throws Exception {
+        recreateAdaptivePool();
+        PooledGMConnection connection = sut.borrowObject();
+        try {
+            sut.borrowObject();
+            Assert.fail("should have been exhausted");
+            // SUPPRESS CHECKSTYLE EmptyBlock BECAUSE test
+        } catch (NoSuchElementException e) {
+        }
+
+        sut.resize(0.5);
+
+        assertThat(sut.getActiveLimit(), is(2));
+        assertThat(sut.borrowObject(), not(is(connection)));
+    }
+
+    @Test
+    public void resize_destroysIdleConnectionsBeyondLoweredLimit() throws Exception {
+        recreateAdaptivePool();
+        raiseLimitToTwo();
+        PooledGMConnection connection1 = sut.borrowObject();
+        PooledGMConnection connection2 = sut.borrowObject();
+        sut.returnObject(connection1);
+        sut.returnObject(connection2);
+        assertThat(sut.getNumIdle(), is(2));
+
+        sut.resize(0.1);
+
+        assertThat(sut.getActiveLimit(), is(1));
+        assertThat(sut.getNumIdle(), is(1));
+        assertThat(connection1.getState(), is(PooledGMConnection.REMOVED));
+        assertThat(sut.borrowObject(), is(connection2));
+    }
+
+    @Test
+    public void returnObject_destroysConnectionBeyondLoweredLimit() throws Exception {
+        recreateAdaptivePool();
+        raiseLimitToTwo();
+        PooledGMConnection connection1 = sut.borrowObject();
+        PooledGMConnection connection2 = sut.borrowObject();
+
+        sut.resize(1.0);
+        sut.returnObject(connection1);
+        sut.returnObject(connection2);
+
+        assertThat(sut.getActiveLimit(), is(1));
+        assertThat(sut.getNumIdle(), is(1));
+        assertThat(connection1.getState(), is(PooledGMConnection.REMOVED));
+    }
+
+    private void raiseLimitToTwo() throws GMServiceException {
+        PooledGMConnection connection = sut.borrowObject();
+        try {
+            sut.borrowObject();
+            // SUPPRESS CHECKSTYLE EmptyBlock BECAUSE test
+        } catch (NoSuchElementException e) {
+        }
+        sut.returnObject(connection);
+        sut.resize(0.5);
+        assertThat(sut.getActiveLimit(), is(2));
+    }
+
+    private void recreateAdaptivePool() {
+        config.setMaxActive(4);
+        config.setMinActive(1);
+        config.setAdaptiveSizingPeriodMillis(60000);
+        config.setWhenExhaustedAction(WhenExhaustedAction.FAIL);
+        recreatePool();
+    }
+
+    @Test
+    public void warmUp_startsMinIdleConnections_andExecutesWarmUpCommand() throws Exception {
+        List<ReaderWriterProcess> processes = newProcessForEachConnection();
+        config.setMinIdle(3);
+        config.setWarmUpCommand(Arrays.asList("convert", "logo:", "null:"));
+        recreatePool();
+
+        sut.warmUp().get(5, TimeUnit.SECONDS);
+
+        assertThat(sut.isReady(), is(true));
+        assertThat(sut.getNumIdle(), is(3));
+        assertThat(processes, hasSize(3));
+        verify(factory).getVersion();
+        for (ReaderWriterProcess p : processes)
+            verify(p.getOutputStream(), atLeastOnce()).write(Matchers.<byte[]> any(), anyInt(), anyInt());
+    }
+
+    @Test
+    public void warmUp_startsOnlyMissingIdleConnections() throws Exception {
+        List<ReaderWriterProcess> processes = newProcessForEachConnection();
+        config.setMinIdle(2);
+        recreatePool();
+        sut.returnObject(sut.borrowObject());
+
+        sut.warmUp().get(5, TimeUnit.SECONDS);
+
+        assertThat(sut.getNumIdle(), is(2));
+        assertThat(processes, hasSize(2));
+    }
+
+    @Test
+    public void warmUp_fails_whenWarmUpCommandFails() throws Exception {
+        when(process.getInputStream()).thenReturn(TestUtils.failingInput(new IOException(READER_WRITER_PROCESS_FAILURE)));
+        config.setMinIdle(1);
+        config.setWarmUpCommand(Arrays.asList("convert", "logo:", "null:"));
+        recreatePool();
+
+        try {
+            sut.warmUp().get(5, TimeUnit.SECONDS);
+            Assert.fail("should have failed");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(GMServiceException.class));
+        }
+
+        assertThat(sut.isReady(), is(false));
+        assertThat(sut.getNumIdle(), is(0));
+        verify(process).destroy();
+    }
+
+    @Test
+    public void isReady_returnsFalse_whileWarmUpInProgress() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        when(factory.getProcess()).then(new Answer<ReaderWriterProcess>() {
+            @Override
+            public ReaderWriterProcess answer(InvocationOnMock invocation) throws Throwable {
+                started.countDown();
+                proceed.await();
+                return process;
+            }
+        });
+        config.setMinIdle(1);
+        recreatePool();
+        assertThat(sut.isReady(), is(true));
+
+        Future<Void> ready = sut.warmUp();
+        started.await(5, TimeUnit.SECONDS);
+
+        assertThat(sut.isReady(), is(false));
+        proceed.countDown();
+        ready.get(5, TimeUnit.SECONDS);
+        assertThat(sut.isReady(), is(true));
+    }
+
+    @Test
+    public void borrowObject_takesBackConnectionKeptByThread_whenThreadAffinity() throws Exception {
+        config.setThreadAffinity(true);
+        recreatePool();
+        PooledGMConnection connection = sut.borrowObject();
+
+        sut.returnObject(connection);
+
+        assertThat(sut.getNumIdle(), is(0));
+        assertThat(sut.getNumSticky(), is(1));
+        assertThat(sut.borrowObject(), is(connection));
+        assertThat(sut.getNumActive(), is(1));
+        assertThat(sut.getNumSticky(), is(0));
+    }
+
+    @Test
+    public void returnObject_keepsOnlyOneConnectionPerThread_whenThreadAffinity() throws Exception {
+        List<ReaderWriterProcess> processes = newProcessForEachConnection();
+        config.setThreadAffinity(true);
+        recreatePool();
+        PooledGMConnection connection1 = sut.borrowObject();
+        PooledGMConnection connection2 = sut.borrowObject();
+
+        sut.returnObject(connection1);
+        sut.returnObject(connection2);
+
+        assertThat(processes, hasSize(2));
+        assertThat(sut.getNumSticky(), is(1));
+        assertThat(sut.getNumIdle(), is(1));
+        assertThat(sut.borrowObject(), is(connection1));
+        assertThat(sut.borrowObject(), is(connection2));
+    }
+
+    @Test
+    public void borrowObject_stealsKeptConnection_whenExhausted() throws Exception {
+        config.setThreadAffinity(true);
+        config.setMaxActive(1);
+        recreatePool();
+        final PooledGMConnection connection = sut.borrowObject();
+        sut.returnObject(connection);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<PooledGMConnection> borrowed = executor.submit(new Callable<PooledGMConnection>() {
+                @Override
+                public PooledGMConnection call() throws Exception {
+                    return sut.borrowObject();
+                }
+            });
+
+            assertThat(borrowed.get(5, TimeUnit.SECONDS), is(connection));
+            assertThat(sut.getNumSticky(), is(0));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void returnObject_releasesConnectionToWaitingBorrower_whenThreadAffinity() throws Exception {
+        config.setThreadAffinity(true);
+        config.setMaxActive(1);
+        recreatePool();
+        final PooledGMConnection connection = sut.borrowObject();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<PooledGMConnection> borrowed = executor.submit(new Callable<PooledGMConnection>() {
+                @Override
+                public PooledGMConnection call() throws Exception {
+                    return sut.borrowObject();
+                }
+            });
+            Thread.sleep(50);
+
+            sut.returnObject(connection);
+
+            assertThat(borrowed.get(5, TimeUnit.SECONDS), is(connection));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void close_destroysConnectionsKeptByThreads() throws Exception {
+        config.setThreadAffinity(true);
+        recreatePool();
+        PooledGMConnection connection = sut.borrowObject();
+        sut.returnObject(connection);
+
+        sut.close();
+
+        assertThat(connection.getState(), is(PooledGMConnection.REMOVED));
+        assertThat(sut.getNumSticky(), is(0));
+        verify(process).destroy();
+    }
+
+    private List<ReaderWriterProcess> newProcessForEachConnection() throws IOException {
+        final List<ReaderWriterProcess> processes = new CopyOnWriteArrayList<ReaderWriterProcess>();
+        when(factory.getProcess()).then(new Answer<ReaderWriterProcess>() {
+            @Override
+            public ReaderWriterProcess answer(InvocationOnMock invocation) throws Throwable {
+                ReaderWriterProcess p = mock(ReaderWriterProcess.class);
+                when(p.getInputStream()).thenReturn(TestUtils.gmOutput("OK", "OK"));
+                when(p.getOutputStream()).thenReturn(mock(OutputStream.class));
+                when(p.isAlive()).thenReturn(true);
+                processes.add(p);
+                return p;
+            }
+        });
+        return processes;
+    }
+
+    private void waitForStandby(int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (sut.getNumStandby() < count && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        assertThat(sut.getNumStandby(), is(count));
+    }
+
+    private void recreatePool() {
+        sut.close();
+        sut = new GMConnectionPool(config);
+        sut.setProcessFactoryBuilder(builder);
+    }
 }
@@ -21,17 +21,36 @@ import static org.mockito.Matchers.*;
 import static org.mockito.Mockito.*;
 
 import org.apache.maven.artifact.versioning.DefaultArtifactVersion;
+import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class GMProcessFactoryImplTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
 
     @Mock
     private ReaderWriterProcess.Factory factory;
@@ -111,6 +130,28 @@ public class GMProcessFactoryImplTest {
         assertThat(result, equalTo(expectedPath));
     }
 
+    @Test
+    public void getProcess_startsProcessWithEnvironment() throws Exception {
+        final Map<String, String> environment = Collections.singletonMap("OMP_NUM_THREADS", "2");
+        final ReaderWriterProcess started = mock(ReaderWriterProcess.class);
+        when(factory.getProcess(eq(environment), Matchers.<String[]> anyVararg())).thenReturn(started);
+        when(process.getReader()).thenReturn(new BufferedReader(new StringReader(fakeGMOutput())));
+        sut = new GMProcessFactoryImpl(factory, gmPath, environment);
+
+        ReaderWriterProcess result = sut.getProcess();
+
+        assertThat(result, is(started));
+        verify(factory).getProcess(environment, GMProcessFactoryImpl.getGMCommand(gmPath));
+    }
+
+    @Test
+    public void builder_returnsFactoryWithEnvironment() throws Exception {
+        GMProcessFactory sut = GMProcessFactoryImpl.builder(Collections.singletonMap("MAGICK_TMPDIR", "/tmp"))
+                .buildFactory(gmPath);
+
+        assertThat(sut.getGMPath(), equalTo(gmPath));
+    }
+
     @Test
     public void getProcess_doesNotUseSafeMode_onVersion_1_3_22() throws Exception {
         getProcessVersionTest("1.3.22", GMProcessFactoryImpl.getGMCommand(gmPath));
@@ -141,18 +182,142 @@ public class GMProcessFactoryImplTest {
         getProcessVersionTest("1.0.0", GMProcessFactoryImpl.getGMCommandSafeMode(gmPath));
     }
 
+    @Test
+    public void getProcess_replacesProcessStartedDuringDetection_whenSafeModeIsNeeded() throws Exception {
+        version = "1.3.21";
+        ReaderWriterProcess assumed = mock(ReaderWriterProcess.class);
+        ReaderWriterProcess safe = mock(ReaderWriterProcess.class);
+        when(factory.getProcess(GMProcessFactoryImpl.getGMCommand(gmPath))).thenReturn(assumed);
+        when(factory.getProcess(GMProcessFactoryImpl.getGMCommandSafeMode(gmPath))).thenReturn(safe);
+
+        assertThat(getProcessDuringDetection(), is(safe));
+        verify(assumed).destroy();
+    }
+
+    @Test
+    public void getProcess_usesDeclaredVersion_withoutRunningGM() throws Exception {
+        sut = new GMProcessFactoryImpl(factory, gmPath, Collections.<String, String> emptyMap(), "1.3.21");
+
+        sut.getProcess();
+
+        assertThat(sut.getVersion().toString(), is("1.3.21"));
+        verify(factory).getProcess(GMProcessFactoryImpl.getGMCommandSafeMode(gmPath));
+        verifyNoMoreInteractions(factory);
+    }
+
+    @Test
+    public void getProcess_detectsVersionOnce_whenCalledConcurrently() throws Exception {
+        when(process.getReader()).thenReturn(new BufferedReader(new StringReader(fakeGMOutput())));
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<ReaderWriterProcess>> results = new ArrayList<Future<ReaderWriterProcess>>();
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(new Callable<ReaderWriterProcess>() {
+                    @Override
+                    public ReaderWriterProcess call() throws Exception {
+                        start.await();
+                        return sut.getProcess();
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<ReaderWriterProcess> result : results)
+                assertThat(result.get(5, TimeUnit.SECONDS), notNullValue());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        verify(factory, times(1)).getProcess(gmPath, "version");
+        verify(factory, times(threads)).getProcess(GMProcessFactoryImpl.getGMCommand(gmPath));
+    }
+
+    @Test
+    public void getVersion_isSharedByFactoriesOfSameExecutable_untilItChanges() throws Exception {
+        final String executable = folder.newFile("gm").getPath();
+        when(process.getReader()).thenReturn(new BufferedReader(new StringReader(fakeGMOutput())),
+                new BufferedReader(new StringReader(fakeGMOutput())));
+
+        new GMProcessFactoryImpl(factory, executable).getVersion();
+        new GMProcessFactoryImpl(factory, executable).getVersion();
+        verify(factory, times(1)).getProcess(executable, "version");
+
+        assertThat(new File(executable).setLastModified(new File(executable).lastModified() - 10000), is(true));
+        new GMProcessFactoryImpl(factory, executable).getVersion();
+        verify(factory, times(2)).getProcess(executable, "version");
+    }
+
+    @Test
+    public void getVersion_detectsAgain_afterFailure() throws Exception {
+        when(process.getReader()).thenReturn(new BufferedReader(new StringReader("")),
+                new BufferedReader(new StringReader(fakeGMOutput())));
+        try {
+            sut.getVersion();
+            Assert.fail("should have failed");
+            // SUPPRESS CHECKSTYLE EmptyBlock BECAUSE test
+        } catch (RuntimeException e) {
+        }
+
+        assertThat(sut.getVersion().toString(), is(version));
+    }
+
+    @Test
+    public void cacheKey_identifiesExecutableByLocationAndModificationTime() throws Exception {
+        final File executable = folder.newFile("gm");
+
+        assertThat(GMProcessFactoryImpl.cacheKey(executable.getPath()),
+                is(executable.getAbsolutePath() + "@" + executable.lastModified()));
+        assertThat(GMProcessFactoryImpl.cacheKey(gmPath), nullValue());
+    }
+
     private void getProcessVersionTest(String version, String[] gmCommand) throws Exception {
         this.version = version;
-        when(process.getReader()).thenReturn(new BufferedReader(new StringReader(fakeGMOutput())));
+        ReaderWriterProcess assumed = mock(ReaderWriterProcess.class);
+        when(factory.getProcess(GMProcessFactoryImpl.getGMCommand(gmPath))).thenReturn(assumed);
+        boolean keep = Arrays.equals(gmCommand, GMProcessFactoryImpl.getGMCommand(gmPath));
 
-        ReaderWriterProcess result = sut.getProcess();
+        ReaderWriterProcess result = getProcessDuringDetection();
         assertThat(result, notNullValue());
+        assertThat(result == assumed, is(keep));
+        verify(assumed, times(keep ? 0 : 1)).destroy();
 
         verify(factory).getProcess(gmPath, "version");
-        verify(factory).getProcess(gmCommand);
+        verify(factory).getProcess(GMProcessFactoryImpl.getGMCommand(gmPath));
+        if (!keep) verify(factory).getProcess(gmCommand);
         verifyNoMoreInteractions(factory);
     }
 
+    /**
+     * Gets a process while "gm version" is held up, asserting that the first process is started before it completes.
+     */
+    private ReaderWriterProcess getProcessDuringDetection() throws Exception {
+        final CountDownLatch probed = new CountDownLatch(1);
+        when(process.getReader()).thenAnswer(new Answer<BufferedReader>() {
+            @Override
+            public BufferedReader answer(InvocationOnMock invocation) throws Throwable {
+                probed.await();
+                return new BufferedReader(new StringReader(fakeGMOutput()));
+            }
+        });
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<ReaderWriterProcess> result = executor.submit(new Callable<ReaderWriterProcess>() {
+                @Override
+                public ReaderWriterProcess call() throws Exception {
+                    return sut.getProcess();
+                }
+            });
+            verify(factory, timeout(5000)).getProcess(GMProcessFactoryImpl.getGMCommand(gmPath));
+            assertThat(result.isDone(), is(false));
+            probed.countDown();
+            return result.get(5, TimeUnit.SECONDS);
+        } finally {
+            probed.countDown();
+            executor.shutdownNow();
+        }
+    }
+
     private String fakeGMOutput() {
         return String.format(fakeGMOutputFormat, version, releaseDate, quality, releaseDate.split("-")[0]);
     }
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import edu.umd.cs.findbugs.annotations.SuppressWarnings;
+
+import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMExecutor;
+import org.gm4java.engine.GMServiceException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+
+/**
+ * Test cases for {@link IdentifyCache}.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class IdentifyCacheTest {
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    @Mock
+    private GMExecutor executor;
+
+    private File image;
+    private IdentifyCache sut;
+
+    @Before
+    public void setup() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(executor.execute(eq("identify"), Matchers.<String[]> anyVararg())).thenReturn("JPEG 640 480 1",
+                "PNG 320 240 ");
+        image = folder.newFile("a.jpg");
+        write(image, "image");
+        sut = new IdentifyCache(executor, 2);
+    }
+
+    @Test
+    @SuppressWarnings("NP_NONNULL_PARAM_VIOLATION")
+    public void constructor_chokes_onNullExecutor() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("executor");
+
+        new IdentifyCache(null, 1);
+    }
+
+    @Test
+    public void constructor_chokes_onNonPositiveCapacity() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("capacity");
+
+        new IdentifyCache(executor, 0);
+    }
+
+    @Test
+    public void identify_runsIdentifyOnFirstFrame_once() throws Exception {
+        assertThat(sut.identify(image), is(new ImageInfo("JPEG", 640, 480, 1)));
+        assertThat(sut.identify(image), is(new ImageInfo("JPEG", 640, 480, 1)));
+
+        verify(executor, times(1)).execute("identify", "-ping", "-format", ImageInfo.IDENTIFY_FORMAT,
+                image.getAbsolutePath() + "[0]");
+        assertThat(sut.getHitCount(), is(1L));
+        assertThat(sut.getMissCount(), is(1L));
+    }
+
+    @Test
+    public void identify_readsHeader_withoutRunningIdentify() throws Exception {
+        File png = folder.newFile("a.png");
+        Files.write(png.toPath(), new byte[] { (byte) 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A, 0, 0, 0, 13, 'I',
+                'H', 'D', 'R', 0, 0, 0, 10, 0, 0, 0, 20, 8, 6, 0, 0, 0 });
+
+        assertThat(sut.identify(png), is(new ImageInfo("PNG", 10, 20, 0)));
+        assertThat(sut.identify(png), is(new ImageInfo("PNG", 10, 20, 0)));
+
+        verifyZeroInteractions(executor);
+        assertThat(sut.getMissCount(), is(1L));
+    }
+
+    @Test
+    public void identify_identifiesAgain_whenFileChanged() throws Exception {
+        sut.identify(image);
+        write(image, "another image");
+
+        assertThat(sut.identify(image), is(new ImageInfo("PNG", 320, 240, 0)));
+        assertThat(sut.getMissCount(), is(2L));
+        assertThat(sut.size(), is(1));
+    }
+
+    @Test
+    public void identify_identifiesAgain_afterInvalidate() throws Exception {
+        sut.identify(image);
+
+        sut.invalidate(image);
+
+        assertThat(sut.identify(image), is(new ImageInfo("PNG", 320, 240, 0)));
+    }
+
+    @Test
+    public void identify_evictsLeastRecentlyUsed_beyondCapacity() throws Exception {
+        File second = folder.newFile("b.jpg");
+        File third = folder.newFile("c.jpg");
+        sut.identify(image);
+        sut.identify(second);
+        sut.identify(image);
+
+        sut.identify(third);
+        sut.identify(image);
+        sut.identify(second);
+
+        assertThat(sut.size(), is(2));
+        assertThat(sut.getHitCount(), is(2L));
+        assertThat(sut.getMissCount(), is(4L));
+    }
+
+    @Test
+    public void identify_chokes_onMissingFile_andForgetsIt() throws Exception {
+        sut.identify(image);
+        Files.delete(image.toPath());
+        exception.expect(NoSuchFileException.class);
+
+        try {
+            sut.identify(image);
+        } finally {
+            assertThat(sut.size(), is(0));
+        }
+    }
+
+    @Test
+    public void identify_chokes_onUnexpectedOutput() throws Exception {
+        when(executor.execute(eq("identify"), Matchers.<String[]> anyVararg())).thenReturn("garbage");
+        exception.expect(GMServiceException.class);
+        exception.expectMessage("garbage");
+
+        sut.identify(image);
+    }
+
+    @Test
+    public void identify_doesNotCache_whenGMFails() throws Exception {
+        when(executor.execute(eq("identify"), Matchers.<String[]> anyVararg())).thenThrow(new GMException("bad"));
+        exception.expect(GMException.class);
+
+        try {
+            sut.identify(image);
+        } finally {
+            assertThat(sut.size(), is(0));
+        }
+    }
+
+    private static void write(File file, String content) throws Exception {
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+}
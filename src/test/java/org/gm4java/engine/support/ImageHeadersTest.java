@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import org.gm4java.engine.GMExecutor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Matchers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Test cases for {@link ImageHeaders}.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class ImageHeadersTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void read_readsJpegFrameHeader_andExifOrientation() throws Exception {
+        Bytes exif = new Bytes().ascii("Exif").u16be(0).ascii("II").u16le(42).u32le(8).u16le(1);
+        exif.u16le(274).u16le(3).u32le(1).u16le(6).u16le(0).u32le(0);
+        Bytes jpeg = new Bytes().u8(0xFF, 0xD8);
+        jpeg.u8(0xFF, 0xE0).u16be(16).ascii("JFIF").u8(0, 1, 1, 0).u16be(1).u16be(1).u8(0, 0);
+        jpeg.u8(0xFF, 0xE1).u16be(exif.size() + 2).append(exif);
+        // an ICC profile pushes the frame header beyond the first read
+        jpeg.u8(0xFF, 0xE2).u16be(10002).append(new byte[10000]);
+        jpeg.u8(0xFF, 0xFF, 0xC2).u16be(17).u8(8).u16be(480).u16be(640).u8(3).append(new byte[9]);
+        jpeg.u8(0xFF, 0xDA);
+
+        assertThat(ImageHeaders.read(file(jpeg)), is(new ImageInfo("JPEG", 640, 480, 6)));
+    }
+
+    @Test
+    public void read_returnsNull_whenJpegScanStartsBeforeFrameHeader() throws Exception {
+        Bytes jpeg = new Bytes().u8(0xFF, 0xD8, 0xFF, 0xDA).u16be(2).append(new byte[100]);
+
+        assertThat(ImageHeaders.read(file(jpeg)), nullValue());
+    }
+
+    @Test
+    public void read_readsPngHeader() throws Exception {
+        Bytes png = new Bytes().u8(0x89).ascii("PNG").u8(0x0D, 0x0A, 0x1A, 0x0A).u32be(13).ascii("IHDR");
+        png.u32be(1920).u32be(1080).u8(8, 6, 0, 0, 0);
+
+        assertThat(ImageHeaders.read(file(png)), is(new ImageInfo("PNG", 1920, 1080, 0)));
+    }
+
+    @Test
+    public void read_readsFirstGifFrame() throws Exception {
+        Bytes gif = new Bytes().ascii("GIF89a").u16le(100).u16le(50).u8(0x80, 0, 0).append(new byte[6]);
+        gif.u8(0x21, 0xF9, 4, 0, 0, 0, 0, 0);
+        gif.u8(0x21, 0xFE, 3).ascii("abc").u8(0);
+        gif.u8(0x2C).u16le(0).u16le(0).u16le(80).u16le(40).u8(0);
+
+        assertThat(ImageHeaders.read(file(gif)), is(new ImageInfo("GIF", 80, 40, 0)));
+    }
+
+    @Test
+    public void read_readsLossyWebP() throws Exception {
+        Bytes webp = riff("VP8 ").u8(0, 0, 0, 0x9D, 0x01, 0x2A).u16le(400).u16le(300).append(new byte[10]);
+
+        assertThat(ImageHeaders.read(file(webp)), is(new ImageInfo("WEBP", 400, 300, 0)));
+    }
+
+    @Test
+    public void read_readsLosslessWebP() throws Exception {
+        Bytes webp = riff("VP8L").u8(0x2F).u32le(399 | 299 << 14).append(new byte[10]);
+
+        assertThat(ImageHeaders.read(file(webp)), is(new ImageInfo("WEBP", 400, 300, 0)));
+    }
+
+    @Test
+    public void read_readsExtendedWebP() throws Exception {
+        Bytes webp = riff("VP8X").u32le(0).u8(0x8F, 0x01, 0).u8(0x2B, 0x01, 0).append(new byte[10]);
+
+        assertThat(ImageHeaders.read(file(webp)), is(new ImageInfo("WEBP", 400, 300, 0)));
+    }
+
+    @Test
+    public void read_readsTopDownBmp() throws Exception {
+        Bytes bmp = new Bytes().ascii("BM").append(new byte[12]).u32le(40).u32le(64).u32le(-32).append(new byte[28]);
+
+        assertThat(ImageHeaders.read(file(bmp)), is(new ImageInfo("BMP", 64, 32, 0)));
+    }
+
+    @Test
+    public void read_readsBigEndianTiff() throws Exception {
+        Bytes tiff = new Bytes().ascii("MM").u16be(42).u32be(8).u16be(3);
+        tiff.u16be(256).u16be(3).u32be(1).u16be(800).u16be(0);
+        tiff.u16be(257).u16be(4).u32be(1).u32be(600);
+        tiff.u16be(274).u16be(3).u32be(1).u16be(8).u16be(0);
+        tiff.u32be(0);
+
+        assertThat(ImageHeaders.read(file(tiff)), is(new ImageInfo("TIFF", 800, 600, 8)));
+    }
+
+    @Test
+    public void read_returnsNull_onUnknownOrTruncatedImage() throws Exception {
+        Bytes png = new Bytes().u8(0x89).ascii("PNG").u8(0x0D, 0x0A, 0x1A, 0x0A).u32be(13).ascii("IHDR");
+
+        assertThat(ImageHeaders.read(file(png)), nullValue());
+        assertThat(ImageHeaders.read(file(new Bytes().ascii("%PDF-1.4"))), nullValue());
+        assertThat(ImageHeaders.read(file(new Bytes())), nullValue());
+    }
+
+    @Test
+    public void isSingleFrame_countsGifFrames() throws Exception {
+        Bytes single = gif(100, 50).append(gifFrame(80, 40)).u8(0x3B);
+        Bytes animated = gif(100, 50).append(gifFrame(80, 40)).u8(0x21, 0xF9, 4, 0, 0, 0, 0, 0);
+        animated.append(gifFrame(100, 50)).u8(0x3B);
+        Bytes truncated = gif(100, 50).append(gifFrame(80, 40));
+
+        assertThat(ImageHeaders.isSingleFrame(file(single)), is(true));
+        assertThat(ImageHeaders.isSingleFrame(file(animated)), is(false));
+        assertThat(ImageHeaders.isSingleFrame(file(truncated)), is(false));
+    }
+
+    @Test
+    public void isSingleFrame_returnsFalse_forTiffWithNextIfd() throws Exception {
+        Bytes tiff = new Bytes().ascii("II").u16le(42).u32le(8).u16le(1);
+        tiff.u16le(256).u16le(3).u32le(1).u16le(800).u16le(0);
+
+        assertThat(ImageHeaders.isSingleFrame(file(new Bytes().append(tiff).u32le(0))), is(true));
+        assertThat(ImageHeaders.isSingleFrame(file(new Bytes().append(tiff).u32le(100))), is(false));
+    }
+
+    @Test
+    public void isSingleFrame_returnsFalse_forAnimatedPngAndWebP() throws Exception {
+        Bytes png = new Bytes().u8(0x89).ascii("PNG").u8(0x0D, 0x0A, 0x1A, 0x0A).u32be(13).ascii("IHDR");
+        png.u32be(10).u32be(20).u8(8, 6, 0, 0, 0).u32be(0);
+        Bytes apng = new Bytes().append(png).u32be(8).ascii("acTL").u32be(2).u32be(0).u32be(0);
+
+        assertThat(ImageHeaders.isSingleFrame(file(new Bytes().append(png).u32be(0).ascii("IDAT"))), is(true));
+        assertThat(ImageHeaders.isSingleFrame(file(apng.u32be(0).ascii("IDAT"))), is(false));
+        assertThat(ImageHeaders.isSingleFrame(file(riff("VP8X").u8(0x10, 0, 0, 0).append(new byte[10]))),
+                is(true));
+        assertThat(ImageHeaders.isSingleFrame(file(riff("VP8X").u8(0x12, 0, 0, 0).append(new byte[10]))),
+                is(false));
+    }
+
+    @Test
+    public void isSingleFrame_returnsFalse_forUnknownFormat() throws Exception {
+        assertThat(ImageHeaders.isSingleFrame(file(new Bytes().ascii("%PDF-1.4"))), is(false));
+        assertThat(ImageHeaders.isSingleFrame(file(new Bytes())), is(false));
+    }
+
+    @Test
+    public void identify_runsGM_onlyForUnknownFormat() throws Exception {
+        GMExecutor executor = mock(GMExecutor.class);
+        when(executor.execute(eq("identify"), Matchers.<String[]> anyVararg())).thenReturn("PDF 612 792 ");
+        Bytes png = new Bytes().u8(0x89).ascii("PNG").u8(0x0D, 0x0A, 0x1A, 0x0A).u32be(13).ascii("IHDR");
+        File pngFile = file(png.u32be(10).u32be(20).u8(8, 6, 0, 0, 0));
+        File pdfFile = file(new Bytes().ascii("%PDF-1.4"));
+
+        assertThat(ImageHeaders.identify(pngFile, executor), is(new ImageInfo("PNG", 10, 20, 0)));
+        assertThat(ImageHeaders.identify(pdfFile, executor), is(new ImageInfo("PDF", 612, 792, 0)));
+
+        verify(executor).execute("identify", "-ping", "-format", ImageInfo.IDENTIFY_FORMAT, pdfFile
+                .getAbsolutePath() + "[0]");
+        verifyNoMoreInteractions(executor);
+    }
+
+    private static Bytes gif(int width, int height) {
+        return new Bytes().ascii("GIF89a").u16le(width).u16le(height).u8(0, 0, 0);
+    }
+
+    private static Bytes gifFrame(int width, int height) {
+        // image descriptor, LZW minimum code size and one sub-block of data
+        return new Bytes().u8(0x2C).u16le(0).u16le(0).u16le(width).u16le(height).u8(0).u8(2, 2, 0x44, 0x01, 0);
+    }
+
+    private static Bytes riff(String chunk) {
+        return new Bytes().ascii("RIFF").u32le(100).ascii("WEBP").ascii(chunk).u32le(20);
+    }
+
+    private File file(Bytes bytes) throws Exception {
+        File file = folder.newFile();
+        Files.write(file.toPath(), bytes.toByteArray());
+        return file;
+    }
+
+    private static final class Bytes extends ByteArrayOutputStream {
+        Bytes u8(int... values) {
+            for (int value : values)
+                write(value);
+            return this;
+        }
+
+        Bytes u16be(int value) {
+            return u8(value >> 8 & 0xFF, value & 0xFF);
+        }
+
+        Bytes u16le(int value) {
+            return u8(value & 0xFF, value >> 8 & 0xFF);
+        }
+
+        Bytes u32be(int value) {
+            return u16be(value >>> 16).u16be(value & 0xFFFF);
+        }
+
+        Bytes u32le(int value) {
+            return u16le(value & 0xFFFF).u16le(value >>> 16);
+        }
+
+        Bytes ascii(String text) {
+            return append(text.getBytes(StandardCharsets.US_ASCII));
+        }
+
+        Bytes append(byte[] bytes) {
+            write(bytes, 0, bytes.length);
+            return this;
+        }
+
+        Bytes append(Bytes bytes) {
+            return append(bytes.toByteArray());
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/**
+ * Test cases for {@link ImageInfo}.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class ImageInfoTest {
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    @Test
+    public void parse_readsFormatDimensionsAndOrientation() throws Exception {
+        ImageInfo sut = ImageInfo.parse("JPEG 640 480 6\n");
+
+        assertThat(sut.getFormat(), is("JPEG"));
+        assertThat(sut.getWidth(), is(640));
+        assertThat(sut.getHeight(), is(480));
+        assertThat(sut.getOrientation(), is(6));
+    }
+
+    @Test
+    public void parse_takesUnknownOrientation_whenMissingOrInvalid() throws Exception {
+        assertThat(ImageInfo.parse("PNG 10 20 ").getOrientation(), is(ImageInfo.UNKNOWN_ORIENTATION));
+        assertThat(ImageInfo.parse("PNG 10 20 unknown").getOrientation(), is(ImageInfo.UNKNOWN_ORIENTATION));
+        assertThat(ImageInfo.parse("JPEG 10 20 9").getOrientation(), is(ImageInfo.UNKNOWN_ORIENTATION));
+    }
+
+    @Test
+    public void parse_readsFirstFrameOnly() throws Exception {
+        assertThat(ImageInfo.parse("GIF 10 20 \nGIF 30 40 \n"), is(new ImageInfo("GIF", 10, 20, 0)));
+    }
+
+    @Test
+    public void parse_chokes_onUnexpectedOutput() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("identify output");
+
+        ImageInfo.parse("gm identify: Unable to open file");
+    }
+
+    @Test
+    public void equals_comparesAllFields() throws Exception {
+        ImageInfo sut = new ImageInfo("jpeg", 1, 2, 3);
+
+        assertThat(sut, is(new ImageInfo("JPEG", 1, 2, 3)));
+        assertThat(sut.hashCode(), is(new ImageInfo("JPEG", 1, 2, 3).hashCode()));
+        assertThat(sut, not(new ImageInfo("JPEG", 1, 2, 4)));
+        assertThat(sut, not(new ImageInfo("PNG", 1, 2, 3)));
+        assertThat(sut.toString(), is("JPEG 1x2 @3"));
+    }
+}
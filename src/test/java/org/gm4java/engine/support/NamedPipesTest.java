@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Test cases for {@link NamedPipes}, running real processes.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class NamedPipesTest {
+    private NamedPipes sut;
+
+    @Before
+    public void setup() {
+        Assume.assumeTrue(new File("/bin/sh").canExecute());
+    }
+
+    @After
+    public void teardown() throws Exception {
+        if (sut == null) return;
+        sut.getOutputStream().close();
+        sut.getInputStream().close();
+        sut.getProcess().destroy();
+    }
+
+    @Test(timeout = 5000)
+    public void start_connectsStandardInputAndOutput() throws Exception {
+        sut = NamedPipes.start(new ProcessBuilder("cat"));
+
+        sut.getOutputStream().write("hello\n".getBytes(StandardCharsets.US_ASCII));
+        byte[] buffer = new byte[6];
+        int length = 0;
+        while (length < buffer.length)
+            length += sut.getInputStream().read(buffer, length, buffer.length - length);
+
+        assertThat(new String(buffer, StandardCharsets.US_ASCII), is("hello\n"));
+        assertThat(sut.getOutputStream(), instanceOf(FileOutputStream.class));
+        assertThat(sut.getInputStream(), instanceOf(FileInputStream.class));
+    }
+
+    @Test(timeout = 5000)
+    public void getInputStream_ends_whenProcessExits() throws Exception {
+        sut = NamedPipes.start(new ProcessBuilder("sh", "-c", "echo out; echo err >&2").redirectErrorStream(true));
+
+        assertThat(readAll(sut.getInputStream()), is("out\nerr\n"));
+    }
+
+    @Test(timeout = 5000)
+    public void getOutputStream_chokes_whenProcessExited() throws Exception {
+        sut = NamedPipes.start(new ProcessBuilder("true"));
+        sut.getProcess().waitFor();
+
+        try {
+            sut.getOutputStream().write(new byte[1]);
+            Assert.fail("should have failed");
+            // SUPPRESS CHECKSTYLE EmptyBlock BECAUSE test
+        } catch (IOException e) {
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void start_chokes_whenCommandNotFound() throws Exception {
+        NamedPipes.start(new ProcessBuilder("/no/such/command"));
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64];
+        int length;
+        while ((length = in.read(buffer)) >= 0)
+            out.write(buffer, 0, length);
+        return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/**
+ * Test cases for {@link PoolSizeController}.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class PoolSizeControllerTest {
+    private static final long MS = 1000000L;
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    @Test
+    public void constructor_chokes_onNonPositiveMax() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("0");
+
+        new PoolSizeController(1, 0);
+    }
+
+    @Test
+    public void constructor_startsAtMin_withinBounds() throws Exception {
+        assertThat(new PoolSizeController(3, 8).getLimit(), is(3));
+        assertThat(new PoolSizeController(0, 8).getLimit(), is(1));
+        assertThat(new PoolSizeController(10, 8).getLimit(), is(8));
+    }
+
+    @Test
+    public void adjust_raisesByQuarter_whileBorrowersWaitAndThroughputImproves() throws Exception {
+        PoolSizeController sut = new PoolSizeController(8, 32);
+
+        assertThat(sut.adjust(100, 10, 10 * 50 * MS, 0, 0.5), is(10));
+        assertThat(sut.adjust(130, 10, 10 * 50 * MS, 0, 0.5), is(12));
+        assertThat(sut.getLimit(), is(12));
+    }
+
+    @Test
+    public void adjust_keepsRaising_whenWaitTimeImproves() throws Exception {
+        PoolSizeController sut = new PoolSizeController(4, 32);
+        sut.adjust(100, 10, 10 * 50 * MS, 0, 0.5);
+
+        assertThat(sut.adjust(100, 10, 10 * 20 * MS, 0, 0.5), is(6));
+    }
+
+    @Test
+    public void adjust_revertsRaiseThatDidNotPayOff_andHoldsForOnePeriod() throws Exception {
+        PoolSizeController sut = new PoolSizeController(8, 32);
+        sut.adjust(100, 10, 10 * 50 * MS, 0, 0.5);
+
+        assertThat(sut.adjust(101, 10, 10 * 50 * MS, 0, 0.5), is(8));
+        assertThat(sut.adjust(101, 10, 10 * 50 * MS, 0, 0.5), is(8));
+        assertThat(sut.adjust(101, 10, 10 * 50 * MS, 0, 0.5), is(10));
+    }
+
+    @Test
+    public void adjust_lowersByOne_whenProcessorsSaturated() throws Exception {
+        PoolSizeController sut = new PoolSizeController(1, 32);
+        sut.adjust(100, 10, 10 * 50 * MS, 0, 0.5);
+
+        assertThat(sut.adjust(200, 10, 10 * 10 * MS, 0, PoolSizeController.CPU_SATURATION), is(1));
+    }
+
+    @Test
+    public void adjust_lowersByOne_whenConnectionsIdleAndNobodyWaits() throws Exception {
+        PoolSizeController sut = new PoolSizeController(4, 32);
+        sut.adjust(100, 10, 10 * 50 * MS, 0, 0.5);
+
+        assertThat(sut.adjust(100, 0, 0, 2, 0.1), is(4));
+        assertThat(sut.adjust(100, 0, 0, 2, 0.1), is(4));
+    }
+
+    @Test
+    public void adjust_keepsLimit_whenAllConnectionsBusyAndNobodyWaits() throws Exception {
+        PoolSizeController sut = new PoolSizeController(4, 32);
+
+        assertThat(sut.adjust(100, 0, 0, 0, 0.5), is(4));
+    }
+
+    @Test
+    public void adjust_staysWithinBounds() throws Exception {
+        PoolSizeController sut = new PoolSizeController(2, 3);
+
+        assertThat(sut.adjust(100, 10, 10 * 50 * MS, 0, 0.5), is(3));
+        assertThat(sut.adjust(200, 10, 10 * 10 * MS, 0, 0.5), is(3));
+        assertThat(sut.adjust(200, 0, 0, 3, -1), is(2));
+        assertThat(sut.adjust(200, 0, 0, 3, -1), is(2));
+    }
+
+    @Test
+    public void adjust_ignoresUnknownCpuLoad() throws Exception {
+        PoolSizeController sut = new PoolSizeController(4, 32);
+
+        assertThat(sut.adjust(100, 10, 10 * 50 * MS, 0, -1), is(5));
+    }
+}
@@ -15,13 +15,18 @@
  */
 package org.gm4java.engine.support;
 
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
 import static org.mockito.Mockito.*;
 
 import edu.umd.cs.findbugs.annotations.SuppressWarnings;
 
 import org.gm4java.engine.GMException;
 import org.gm4java.engine.GMConnection;
+import org.gm4java.engine.GMOutputConsumer;
+import org.gm4java.engine.GMOutputTooLargeException;
 import org.gm4java.engine.GMServiceException;
+import org.gm4java.engine.GMTimeoutException;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
@@ -30,6 +35,9 @@ import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Test cases for {@link PooledGMConnection}.
@@ -64,6 +72,7 @@ public class PooledGMConnectionTest extends AbstractGMConnectionTest {
         });
         pool.setProcessFactoryBuilder(builder);
         when(pool.createProcess()).thenReturn(process);
+        when(pool.getCharset()).thenReturn(Constants.DEFAULT_CHARSET);
         sut = new PooledGMConnection(pool);
     }
 
@@ -101,13 +110,124 @@ public class PooledGMConnectionTest extends AbstractGMConnectionTest {
     }
 
     private void ensureHealthy_happyDay(int count) throws Exception {
-        when(reader.readLine()).thenReturn("OK");
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("OK"));
         for (int i = 0; i < count; i++)
             sut.execute(gmCommand);
 
         sut.ensureHealthy();
     }
 
+    @Test
+    public void getUseLimit_addsRandomExtraUsesUpToJitter() throws Exception {
+        final int limit = 10, jitter = 5;
+        when(pool.getEvictAfterNumberOfUse()).thenReturn(limit);
+        when(pool.getEvictAfterNumberOfUseJitter()).thenReturn(jitter);
+        final Set<Integer> limits = new HashSet<Integer>();
+
+        for (int i = 0; i < 200; i++)
+            limits.add(new PooledGMConnection(pool).getUseLimit());
+
+        assertThat(limits, everyItem(both(greaterThanOrEqualTo(limit)).and(lessThanOrEqualTo(limit + jitter))));
+        assertThat(limits.size(), greaterThan(1));
+    }
+
+    @Test
+    public void getUseLimit_returnsNoLimit_whenEvictAfterNumberOfUseIsOff() throws Exception {
+        when(pool.getEvictAfterNumberOfUse()).thenReturn(0);
+        when(pool.getEvictAfterNumberOfUseJitter()).thenReturn(5);
+
+        assertThat(new PooledGMConnection(pool).getUseLimit(), is(0));
+    }
+
+    @Test
+    public void isExpired_onlyWhenUseLimitExceeded() throws Exception {
+        when(pool.getEvictAfterNumberOfUse()).thenReturn(1);
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("OK"));
+
+        sut.execute(gmCommand);
+        assertThat(sut.isExpired(), is(false));
+        sut.execute(gmCommand);
+        assertThat(sut.isExpired(), is(true));
+        assertThat(sut.isBroken(), is(false));
+    }
+
+    @Test
+    public void getLastResponse_isZero_beforeAnyCommand() throws Exception {
+        assertThat(sut.getLastResponse(), is(0L));
+    }
+
+    @Test
+    public void getLastResponse_updated_whenCommandCompletes() throws Exception {
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("error", "NG"));
+        final long start = System.currentTimeMillis();
+        try {
+            sut.execute(gmCommand);
+            // SUPPRESS CHECKSTYLE EmptyBlock BECAUSE test
+        } catch (GMException e) {
+        }
+
+        assertThat(sut.getLastResponse(), greaterThanOrEqualTo(start));
+    }
+
+    @Test
+    public void getLastResponse_notUpdated_onCommunicationError() throws Exception {
+        when(process.getInputStream()).thenReturn(TestUtils.failingInput(new IOException(READER_WRITER_PROCESS_FAILURE)));
+        try {
+            sut.execute(gmCommand);
+            // SUPPRESS CHECKSTYLE EmptyBlock BECAUSE test
+        } catch (GMServiceException e) {
+        }
+
+        assertThat(sut.getLastResponse(), is(0L));
+        assertThat(sut.isBroken(), is(true));
+    }
+
+    @Test
+    public void isAlive_checksProcess() throws Exception {
+        when(process.isAlive()).thenReturn(true);
+        assertThat(sut.isAlive(), is(true));
+
+        sut.close();
+        assertThat(sut.isAlive(), is(false));
+    }
+
+    @Test
+    public void exceedsMemoryLimit_comparesResidentSetSizeWithLimit() throws Exception {
+        when(pool.getMaxProcessMemory()).thenReturn(1000L);
+        when(process.getResidentSetSize()).thenReturn(1000L, 1001L);
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("OK"));
+
+        assertThat(sut.exceedsMemoryLimit(), is(false));
+        for (int i = 0; i < PooledGMConnection.MEMORY_SAMPLE_INTERVAL; i++)
+            sut.execute(gmCommand);
+        assertThat(sut.exceedsMemoryLimit(), is(true));
+    }
+
+    @Test
+    public void exceedsMemoryLimit_samplesResidentSetSize_onceEveryInterval() throws Exception {
+        when(pool.getMaxProcessMemory()).thenReturn(1000L);
+        when(process.getResidentSetSize()).thenReturn(1000L, 1001L);
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("OK"));
+
+        assertThat(sut.exceedsMemoryLimit(), is(false));
+        for (int i = 1; i < PooledGMConnection.MEMORY_SAMPLE_INTERVAL; i++) {
+            sut.execute(gmCommand);
+            assertThat(sut.exceedsMemoryLimit(), is(false));
+        }
+
+        verify(process, times(1)).getResidentSetSize();
+    }
+
+    @Test
+    public void exceedsMemoryLimit_false_whenNoLimitOrMemoryUnknown() throws Exception {
+        when(process.getResidentSetSize()).thenReturn(Long.MAX_VALUE);
+        assertThat(sut.exceedsMemoryLimit(), is(false));
+
+        when(pool.getMaxProcessMemory()).thenReturn(1000L);
+        when(process.getResidentSetSize()).thenReturn(-1L);
+        assertThat(sut.exceedsMemoryLimit(), is(false));
+    }
+
     @Test
     public void ensureHealthy_chokes_whenOutOfLimit() throws Exception {
         final int limit = 10;
@@ -118,7 +238,7 @@ public class PooledGMConnectionTest extends AbstractGMConnectionTest {
 
     @Test
     public void ensureHealthy_chokes_whenServiceExceptionWasThrown() throws Exception {
-        when(reader.readLine()).thenThrow(new IOException());
+        when(process.getInputStream()).thenReturn(TestUtils.failingInput(new IOException()));
         try {
             sut.execute(gmCommand);
             // SUPPRESS CHECKSTYLE EmptyBlock BECAUSE test
@@ -131,7 +251,7 @@ public class PooledGMConnectionTest extends AbstractGMConnectionTest {
 
     @Test
     public void ensureHealthy_happyDay_whenGMExceptionWasThrown() throws Exception {
-        when(reader.readLine()).thenReturn("NG");
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("NG"));
         try {
             sut.execute(gmCommand);
             // SUPPRESS CHECKSTYLE EmptyBlock BECAUSE test
@@ -141,9 +261,57 @@ public class PooledGMConnectionTest extends AbstractGMConnectionTest {
         sut.ensureHealthy();
     }
 
+    @Test
+    public void ensureHealthy_happyDay_whenOutputTooLargeExceptionWasThrown() throws Exception {
+        when(pool.getMaxOutputSize()).thenReturn(2);
+        sut = new PooledGMConnection(pool);
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("too large", "OK"));
+        try {
+            sut.execute(gmCommand);
+            // SUPPRESS CHECKSTYLE EmptyBlock BECAUSE test
+        } catch (GMOutputTooLargeException e) {
+        }
+
+        sut.ensureHealthy();
+    }
+
+    @Test
+    public void ensureHealthy_happyDay_whenConsumerFailed() throws Exception {
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("line 1", "OK"));
+        try {
+            sut.execute(new GMOutputConsumer() {
+                @Override
+                public void consume(byte[] buffer, int offset, int length) {
+                    throw new IllegalStateException();
+                }
+            }, gmCommand);
+            // SUPPRESS CHECKSTYLE EmptyBlock BECAUSE test
+        } catch (IllegalStateException e) {
+        }
+
+        sut.ensureHealthy();
+    }
+
+    @Test
+    public void ensureHealthy_chokes_whenTimeoutExpired() throws Exception {
+        when(pool.getCommandTimeout()).thenReturn(50L);
+        sut = new PooledGMConnection(pool);
+        InputStream input = TestUtils.hangingInput();
+        when(process.getInputStream()).thenReturn(input);
+        TestUtils.closeOnDestroy(process, input);
+        try {
+            sut.execute(gmCommand);
+            // SUPPRESS CHECKSTYLE EmptyBlock BECAUSE test
+        } catch (GMTimeoutException e) {
+        }
+
+        exception.expect(GMServiceException.class);
+        sut.ensureHealthy();
+    }
+
     @Test
     public void ensureHealthy_happyDay_whenRuntimeExceptionWasThrown() throws Exception {
-        when(reader.readLine()).thenThrow(new RuntimeException());
+        when(process.getInputStream()).thenReturn(TestUtils.failingInput(new RuntimeException()));
         try {
             sut.execute(gmCommand);
             // SUPPRESS CHECKSTYLE EmptyBlock BECAUSE test
@@ -156,7 +324,7 @@ public class PooledGMConnectionTest extends AbstractGMConnectionTest {
 
     @Test
     public void ensureHealthy_happyDay_whenErrorWasThrown() throws Exception {
-        when(reader.readLine()).thenThrow(new Error());
+        when(process.getInputStream()).thenReturn(TestUtils.failingInput(new Error()));
         try {
             sut.execute(gmCommand);
             // SUPPRESS CHECKSTYLE EmptyBlock BECAUSE test
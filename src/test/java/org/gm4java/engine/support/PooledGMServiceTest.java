@@ -23,7 +23,10 @@ import edu.umd.cs.findbugs.annotations.SuppressWarnings;
 
 import org.gm4java.engine.GMException;
 import org.gm4java.engine.GMConnection;
+import org.gm4java.engine.GMOutputConsumer;
 import org.gm4java.engine.GMServiceException;
+import org.gm4java.engine.GMStreamingExecutor;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
@@ -31,9 +34,19 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Test cases for {@link PooledGMService}.
@@ -44,6 +57,7 @@ import java.util.List;
 public class PooledGMServiceTest {
     private static final String PATH_TO_GM = "path to gm";
     private static final String CREATE_PROCESS_FAILURE = "Something bad happended";
+    private static final long ASYNC_TIMEOUT_MILLIS = 5000;
 
     @Rule
     public ExpectedException exception = ExpectedException.none();
@@ -61,9 +75,15 @@ public class PooledGMServiceTest {
     public void setup() throws Exception {
         MockitoAnnotations.initMocks(this);
         when(pool.borrowObject()).thenReturn(connection);
+        when(pool.getPipelineDepth()).thenReturn(GMConnectionPoolConfig.DEFAULT_PIPELINE_DEPTH);
         sut = new PooledGMService(pool);
     }
 
+    @After
+    public void teardown() throws Exception {
+        sut.close();
+    }
+
     @Test
     @SuppressWarnings("NP_NONNULL_PARAM_VIOLATION")
     public void constructor_chokes_onNullConfig() throws Exception {
@@ -93,6 +113,22 @@ public class PooledGMServiceTest {
         verify(builder).buildFactory(expectedGMPath);
     }
 
+    @Test
+    public void warmUp_delegatesToPool() throws Exception {
+        CompletableFuture<Void> ready = new CompletableFuture<Void>();
+        when(pool.warmUp()).thenReturn(ready);
+
+        assertThat(sut.warmUp(), is(sameInstance(ready)));
+    }
+
+    @Test
+    public void isReady_delegatesToPool() throws Exception {
+        when(pool.isReady()).thenReturn(false, true);
+
+        assertThat(sut.isReady(), is(false));
+        assertThat(sut.isReady(), is(true));
+    }
+
     @Test
     public void getConnection_chokes_whenBorrowObjectChokes() throws Exception {
         when(pool.borrowObject()).thenThrow(new GMServiceException(CREATE_PROCESS_FAILURE));
@@ -247,4 +283,195 @@ public class PooledGMServiceTest {
         verify(pool).returnObject(connection);
     }
 
+    @Test
+    public void executeByList_runsIdenticalCommandsOnce_whenDeduplicating() throws Exception {
+        final List<String> command = Arrays.asList("convert", "a.jpg", "b.png");
+        final CountDownLatch release = new CountDownLatch(1);
+        when(connection.execute(command)).then(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                release.await();
+                return "result";
+            }
+        });
+        sut = new PooledGMService(pool, true);
+        final CompletableFuture<String> first = new CompletableFuture<String>();
+        Thread leader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    first.complete(sut.execute(command));
+                } catch (Throwable e) {
+                    first.completeExceptionally(e);
+                }
+            }
+        };
+        leader.start();
+        verify(connection, timeout(ASYNC_TIMEOUT_MILLIS)).execute(command);
+
+        CompletableFuture<String> second = sut.executeAsync(Arrays.asList("convert", "a.jpg", "b.png"));
+        release.countDown();
+
+        assertThat(getAsync(first), is("result"));
+        assertThat(getAsync(second), is("result"));
+        verify(connection, times(1)).execute(command);
+        verify(pool, times(1)).borrowObject();
+    }
+
+    @Test
+    public void executeWithTimeout_delegatesToBorrowedConnection_andReturnsIt() throws Exception {
+        String expected = "result 9465";
+        final List<String> command = Arrays.asList(gmCommand);
+        when(connection.execute(null, command, 2000L)).thenReturn(expected);
+
+        String result = sut.execute(command, 2, TimeUnit.SECONDS);
+
+        assertThat(result, is(expected));
+        verify(pool).returnObject(connection);
+    }
+
+    @Test
+    @SuppressWarnings("NP_NONNULL_PARAM_VIOLATION")
+    public void executeWithTimeout_chokes_onNullUnit() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("unit");
+
+        sut.execute(Arrays.asList(gmCommand), 2, null);
+    }
+
+    @Test
+    public void executeWithConsumer_delegatesToBorrowedConnection_andReturnsIt() throws Exception {
+        GMOutputConsumer consumer = mock(GMOutputConsumer.class);
+
+        sut.execute(consumer, gmCommand, "arg");
+
+        verify(connection).execute(consumer, gmCommand, "arg");
+        verify(pool).returnObject(connection);
+    }
+
+    @Test
+    public void executeByListWithConsumer_returnBorrowedConnection_onError() throws Exception {
+        GMOutputConsumer consumer = mock(GMOutputConsumer.class);
+        final List<String> command = Arrays.asList(gmCommand);
+        doThrow(new GMException("")).when(connection).execute(consumer, command);
+        try {
+            sut.execute(consumer, command);
+            Assert.fail("shoud get exeception here.");
+            // SUPPRESS CHECKSTYLE EmptyBlock BECAUSE test
+        } catch (GMException e) {
+        }
+
+        verify(pool).returnObject(connection);
+    }
+
+    @Test
+    public void getConnection__executeWithConsumer_delegatesToBorrowedConnection() throws Exception {
+        GMOutputConsumer consumer = mock(GMOutputConsumer.class);
+        final List<String> command = Arrays.asList(gmCommand);
+        GMConnection p = sut.getConnection();
+
+        ((GMStreamingExecutor) p).execute(consumer, command);
+        p.close();
+
+        verify(connection).execute(consumer, command);
+    }
+
+    @Test
+    public void executeAsync_delegatesToBorrowedConnection() throws Exception {
+        String expected = "result 9465";
+        when(connection.execute(gmCommand, Collections.<String> emptyList())).thenReturn(expected);
+
+        String result = getAsync(sut.executeAsync(gmCommand));
+
+        assertThat(result, is(expected));
+        verify(pool, timeout(ASYNC_TIMEOUT_MILLIS)).returnObject(connection);
+    }
+
+    @Test
+    public void executeAsyncByList_delegatesToBorrowedConnection() throws Exception {
+        String expected = "result 9465";
+        final List<String> command = Arrays.asList(gmCommand);
+        when(connection.execute((String) null, command)).thenReturn(expected);
+
+        String result = getAsync(sut.executeAsync(command));
+
+        assertThat(result, is(expected));
+        verify(pool, timeout(ASYNC_TIMEOUT_MILLIS)).returnObject(connection);
+    }
+
+    @Test
+    public void executeAsync_completesExceptionally_whenBorrowObjectChokes() throws Exception {
+        when(pool.borrowObject()).thenThrow(new GMServiceException(CREATE_PROCESS_FAILURE));
+        exception.expect(GMServiceException.class);
+        exception.expectMessage(CREATE_PROCESS_FAILURE);
+
+        getAsync(sut.executeAsync(gmCommand));
+    }
+
+    @Test
+    public void executeAsync_completesExceptionally_andReturnsConnection_onError() throws Exception {
+        final List<String> command = Arrays.asList(gmCommand);
+        when(connection.execute((String) null, command)).thenThrow(new GMException(CREATE_PROCESS_FAILURE));
+        try {
+            getAsync(sut.executeAsync(command));
+            Assert.fail("shoud get exeception here.");
+            // SUPPRESS CHECKSTYLE EmptyBlock BECAUSE test
+        } catch (GMException e) {
+        }
+
+        verify(pool, timeout(ASYNC_TIMEOUT_MILLIS)).returnObject(connection);
+    }
+
+    @Test
+    @SuppressWarnings("NP_NONNULL_PARAM_VIOLATION")
+    public void executeAsync_chokes_onNullCommand() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("command");
+
+        sut.executeAsync((String) null);
+    }
+
+    @Test
+    public void executeAsyncByList_chokes_onEmptyListCommand() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("empty");
+
+        sut.executeAsync(Collections.<String> emptyList());
+    }
+
+    @Test
+    public void close_stopsAsyncThreads_andClosesPool() throws Exception {
+        final List<Thread> created = new CopyOnWriteArrayList<Thread>();
+        when(pool.getAsyncThreads()).thenReturn(2);
+        when(pool.getThreadFactory()).thenReturn(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                created.add(thread);
+                return thread;
+            }
+        });
+        sut = new PooledGMService(pool);
+        getAsync(sut.executeAsync(gmCommand));
+
+        sut.close();
+
+        assertThat(created, hasSize(2));
+        for (Thread thread : created) {
+            thread.join(ASYNC_TIMEOUT_MILLIS);
+            assertThat(thread.isAlive(), is(false));
+        }
+        verify(pool).close();
+        exception.expect(GMServiceException.class);
+        exception.expectMessage("closed");
+        getAsync(sut.executeAsync(gmCommand));
+    }
+
+    private static String getAsync(Future<String> future) throws Exception {
+        try {
+            return future.get(ASYNC_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw (Exception) e.getCause();
+        }
+    }
 }
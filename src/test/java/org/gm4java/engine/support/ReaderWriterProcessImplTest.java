@@ -38,10 +38,14 @@ import org.slf4j.LoggerFactory;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.Writer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Test cases for {@link ReaderWriterProcessImpl}.
@@ -110,22 +114,20 @@ public class ReaderWriterProcessImplTest {
     }
 
     @Test
-    public void getWriter__write_chokes_onStreamError() throws Exception {
+    public void getOutputStream_write_chokes_onStreamError() throws Exception {
         doThrow(new IOException()).when(outputStream).write(anyInt());
         exception.expect(IOException.class);
 
-        Writer writer = sut().getWriter();
-        writer.write(text);
-        writer.flush();
+        sut().getOutputStream().write(text.getBytes());
     }
 
     @Test
-    public void getWriter__write_sendStringToStream() throws Exception {
+    public void getOutputStream_write_sendBytesToStream() throws Exception {
         ByteArrayOutputStream stream = new ByteArrayOutputStream();
 
-        Writer writer = sut(mockInput(), stream).getWriter();
-        writer.write(text);
-        writer.flush();
+        OutputStream output = sut(mockInput(), stream).getOutputStream();
+        output.write(text.getBytes());
+        output.flush();
 
         assertThat(stream.toByteArray(), equalTo(text.getBytes()));
     }
@@ -149,6 +151,79 @@ public class ReaderWriterProcessImplTest {
         assertThat(result, equalTo(text));
     }
 
+    @Test
+    public void getReader_returnsSameReader_onEachCall() throws Exception {
+        ReaderWriterProcess sut = sut(new ByteArrayInputStream(text.getBytes()), mockOutput());
+
+        assertThat(sut.getReader(), sameInstance(sut.getReader()));
+    }
+
+    @Test
+    public void getInputStream_returnsProcessInputStream() throws Exception {
+        InputStream stream = new ByteArrayInputStream(text.getBytes());
+
+        InputStream result = sut(stream, mockOutput()).getInputStream();
+
+        assertThat(result, sameInstance(stream));
+    }
+
+    @Test
+    public void isAlive_checksProcess() throws Exception {
+        when(process.isAlive()).thenReturn(true, false);
+
+        assertThat(sut().isAlive(), is(true));
+        assertThat(sut.isAlive(), is(false));
+    }
+
+    @Test
+    public void factory_startsProcessWithEnvironment() throws Exception {
+        final Map<String, String> environment = new HashMap<String, String>();
+        environment.put("PATH", "/bin");
+        when(builder.environment()).thenReturn(environment);
+        InputStream in = mockInput();
+        OutputStream out = mockOutput();
+        when(process.getInputStream()).thenReturn(in);
+        when(process.getOutputStream()).thenReturn(out);
+
+        ReaderWriterProcessImpl.FACTORY.getProcess(Collections.singletonMap("MAGICK_TMPDIR", "/dev/shm"), "any");
+
+        assertThat(environment, hasEntry("MAGICK_TMPDIR", "/dev/shm"));
+        assertThat(environment, hasEntry("PATH", "/bin"));
+    }
+
+    @Test
+    public void getResidentSetSize_returnsNegative_whenPidUnknown() throws Exception {
+        assertThat(sut().getResidentSetSize(), lessThan(0L));
+    }
+
+    @Test
+    public void readResidentSetSize_readsVmRSSInBytes() throws Exception {
+        File status = status("Name:\tgm\nVmPeak:\t  204800 kB\nVmRSS:\t   12345 kB\nThreads:\t4\n");
+
+        assertThat(ReaderWriterProcessImpl.readResidentSetSize(status), is(12345L * 1024));
+    }
+
+    @Test
+    public void readResidentSetSize_returnsNegative_whenNoVmRSS() throws Exception {
+        File status = status("Name:\tgm\nState:\tZ (zombie)\n");
+
+        assertThat(ReaderWriterProcessImpl.readResidentSetSize(status), is(-1L));
+    }
+
+    @Test
+    public void readResidentSetSize_returnsNegative_whenFileMissing() throws Exception {
+        assertThat(ReaderWriterProcessImpl.readResidentSetSize(new File("/no/such/dir/status")), is(-1L));
+    }
+
+    private File status(String content) throws IOException {
+        File file = File.createTempFile("status", null);
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content.getBytes("US-ASCII"));
+        }
+        return file;
+    }
+
     @Test
     public void destroy_destroysProcess() throws Exception {
         sut().destroy();
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+import edu.umd.cs.findbugs.annotations.SuppressWarnings;
+
+import org.apache.commons.lang3.StringUtils;
+import org.gm4java.engine.GMOutputConsumer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Test cases for {@link ResultScanner}.
+ * 
+ * @author Kenneth Xu
+ * 
+ */
+public class ResultScannerTest {
+    private static final Charset UTF8 = StandardCharsets.UTF_8;
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    @Test
+    @SuppressWarnings("NP_NONNULL_PARAM_VIOLATION")
+    public void constructor_chokes_onNullInput() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("input");
+
+        new ResultScanner(null);
+    }
+
+    @Test
+    public void scan_returnsPass_withOutputBeforeMarker() throws Exception {
+        ResultScanner sut = new ResultScanner(input("line 1\nline 2\nOK\n"));
+
+        assertThat(sut.scan(), is(ResultScanner.PASS));
+        assertThat(sut.getOutput(UTF8), is("line 1\nline 2"));
+    }
+
+    @Test
+    public void scan_returnsFail_withOutputBeforeMarker() throws Exception {
+        ResultScanner sut = new ResultScanner(input("bad things\r\nNG\r\n"));
+
+        assertThat(sut.scan(), is(ResultScanner.FAIL));
+        assertThat(sut.getOutput(UTF8), is("bad things"));
+    }
+
+    @Test
+    public void scan_returnsEmptyOutput_whenOnlyMarker() throws Exception {
+        ResultScanner sut = new ResultScanner(input("OK\n"));
+
+        assertThat(sut.scan(), is(ResultScanner.PASS));
+        assertThat(sut.getOutputLength(), is(0));
+        assertThat(sut.getOutput(UTF8), is(""));
+    }
+
+    @Test
+    public void scan_keepsBytesAfterMarker_forNextScan() throws Exception {
+        ResultScanner sut = new ResultScanner(input("first\nOK\nsecond\nNG\nOK\n"));
+
+        assertThat(sut.scan(), is(ResultScanner.PASS));
+        assertThat(sut.getOutput(UTF8), is("first"));
+        assertThat(sut.scan(), is(ResultScanner.FAIL));
+        assertThat(sut.getOutput(UTF8), is("second"));
+        assertThat(sut.scan(), is(ResultScanner.PASS));
+        assertThat(sut.getOutput(UTF8), is(""));
+    }
+
+    @Test
+    public void scan_doesNotMistakeLinesStartingWithMarker() throws Exception {
+        ResultScanner sut = new ResultScanner(input("OKAY\nNGX\n OK\nOK\n"));
+
+        assertThat(sut.scan(), is(ResultScanner.PASS));
+        assertThat(sut.getOutput(UTF8), is("OKAY\nNGX\n OK"));
+    }
+
+    @Test
+    public void scan_findsMarkerSplitAcrossReads() throws Exception {
+        String large = StringUtils.repeat('a', 20000);
+        ResultScanner sut = new ResultScanner(trickle(large + "\nO", "K\n"));
+
+        assertThat(sut.scan(), is(ResultScanner.PASS));
+        assertThat(sut.getOutput(UTF8), is(large));
+    }
+
+    @Test
+    public void scan_returnsEof_withPartialOutput() throws Exception {
+        ResultScanner sut = new ResultScanner(input("partial\n"));
+
+        assertThat(sut.scan(), is(ResultScanner.EOF));
+        assertThat(sut.getOutput(UTF8), is("partial"));
+    }
+
+    @Test
+    public void scan_propagatesIOException() throws Exception {
+        ResultScanner sut = new ResultScanner(TestUtils.failingInput(new IOException("broken")));
+        exception.expect(IOException.class);
+        exception.expectMessage("broken");
+
+        sut.scan();
+    }
+
+    @Test
+    public void getOutput_decodesWithGivenCharset() throws Exception {
+        ResultScanner sut = new ResultScanner(input("été\nOK\n"));
+
+        sut.scan();
+
+        assertThat(sut.getOutput(UTF8), is("été"));
+    }
+
+    @Test
+    public void scanWithConsumer_streamsOutputWithoutMarker() throws Exception {
+        final String large = StringUtils.repeat('a', 20000) + "\r";
+        ResultScanner sut = new ResultScanner(trickle("line 1\r\n", large + "\r\nlast", "\r\nOK\r\nnext\nOK\n"));
+        CollectingConsumer consumer = new CollectingConsumer();
+
+        assertThat(sut.scan(consumer, 0), is(ResultScanner.PASS));
+
+        assertThat(consumer.toString(), is("line 1\r\n" + large + "\r\nlast"));
+        assertThat(sut.getTotalLength(), is((long) consumer.size()));
+        assertThat(sut.getOutputLength(), lessThan(consumer.size()));
+        assertThat(sut.scan(), is(ResultScanner.PASS));
+        assertThat(sut.getOutput(UTF8), is("next"));
+    }
+
+    @Test
+    public void scanWithConsumer_keepsBeginningOfOutput_forErrorMessage() throws Exception {
+        ResultScanner sut = new ResultScanner(input("bad things\nNG\n"));
+        CollectingConsumer consumer = new CollectingConsumer();
+
+        assertThat(sut.scan(consumer, 0), is(ResultScanner.FAIL));
+
+        assertThat(consumer.toString(), is("bad things"));
+        assertThat(sut.getOutput(UTF8), is("bad things"));
+    }
+
+    @Test
+    public void scanWithConsumer_drainsToMarker_whenConsumerChokes() throws Exception {
+        final IOException error = new IOException("disk full");
+        ResultScanner sut = new ResultScanner(input(StringUtils.repeat("line\n", 5000) + "OK\nnext\nOK\n"));
+
+        assertThat(sut.scan(new GMOutputConsumer() {
+            @Override
+            public void consume(byte[] buffer, int offset, int length) throws IOException {
+                throw error;
+            }
+        }, 0), is(ResultScanner.PASS));
+
+        assertThat(sut.getConsumerError(), sameInstance((Throwable) error));
+        assertThat(sut.scan(), is(ResultScanner.PASS));
+        assertThat(sut.getOutput(UTF8), is("next"));
+        assertThat(sut.getConsumerError(), nullValue());
+    }
+
+    @Test
+    public void scan_truncatesOutput_whenExceedsMaxOutput() throws Exception {
+        ResultScanner sut = new ResultScanner(input("0123456789\nabc\nOK\nnext\nOK\n"));
+
+        assertThat(sut.scan(null, 4), is(ResultScanner.PASS));
+
+        assertThat(sut.isTruncated(), is(true));
+        assertThat(sut.getOutput(UTF8), is("0123"));
+        assertThat(sut.getTotalLength(), is(14L));
+        assertThat(sut.scan(), is(ResultScanner.PASS));
+        assertThat(sut.isTruncated(), is(false));
+        assertThat(sut.getOutput(UTF8), is("next"));
+    }
+
+    private static InputStream input(String s) {
+        return new ByteArrayInputStream(s.getBytes(UTF8));
+    }
+
+    private static InputStream trickle(final String... chunks) {
+        return new InputStream() {
+            private int index;
+            private InputStream current;
+
+            @Override
+            public int read() throws IOException {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                while (current == null || current.available() == 0) {
+                    if (index == chunks.length) return -1;
+                    current = input(chunks[index++]);
+                }
+                return current.read(b, off, len);
+            }
+        };
+    }
+
+    private static final class CollectingConsumer extends ByteArrayOutputStream implements GMOutputConsumer {
+        @Override
+        public void consume(byte[] buffer, int offset, int length) {
+            write(buffer, offset, length);
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import edu.umd.cs.findbugs.annotations.SuppressWarnings;
+
+import org.gm4java.engine.GMConnection;
+import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMOutputConsumer;
+import org.gm4java.engine.GMServiceException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test cases for {@link ShardedGMService}.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class ShardedGMServiceTest {
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+    @Mock
+    private GMProcessFactory factory;
+    @Mock
+    private GMProcessFactory.Builder builder;
+
+    private final GMConnectionPoolConfig config = new GMConnectionPoolConfig();
+    private final List<InputStream> outputs = new CopyOnWriteArrayList<InputStream>();
+    private final List<ReaderWriterProcess> processes = new CopyOnWriteArrayList<ReaderWriterProcess>();
+
+    private ShardedGMService sut;
+
+    @Before
+    public void setup() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(builder.buildFactory(anyString())).thenReturn(factory);
+        when(factory.getProcess()).then(new Answer<ReaderWriterProcess>() {
+            @Override
+            public ReaderWriterProcess answer(InvocationOnMock invocation) throws Throwable {
+                ReaderWriterProcess process = mock(ReaderWriterProcess.class);
+                InputStream output = processes.size() < outputs.size() ? outputs.get(processes.size()) : TestUtils
+                        .gmOutput("OK");
+                when(process.getInputStream()).thenReturn(output);
+                when(process.getOutputStream()).thenReturn(mock(OutputStream.class));
+                TestUtils.closeOnDestroy(process, output);
+                processes.add(process);
+                return process;
+            }
+        });
+    }
+
+    @After
+    public void teardown() throws Exception {
+        if (sut != null) sut.close();
+    }
+
+    @Test
+    @SuppressWarnings("NP_NONNULL_PARAM_VIOLATION")
+    public void constructor_chokes_onNullConfig() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("config");
+
+        new ShardedGMService(null, 1);
+    }
+
+    @Test
+    public void constructor_startsShardForEachProcessor_byDefault() throws Exception {
+        sut = new ShardedGMService(config, 0, builder);
+
+        assertThat(sut.getShardCount(), is(SystemResources.availableProcessors()));
+        verify(builder).buildFactory(config.getGMPath());
+        verify(factory, never()).getProcess();
+    }
+
+    @Test
+    public void constructor_startsShardsWithConfiguredThreadFactory() throws Exception {
+        final List<Thread> created = new CopyOnWriteArrayList<Thread>();
+        config.setThreadFactory(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                thread.setDaemon(true);
+                created.add(thread);
+                return thread;
+            }
+        });
+
+        sut = new ShardedGMService(config, 3, builder);
+
+        assertThat(created, hasSize(3));
+        assertThat(sut.execute("identify", "a.jpg"), is(""));
+    }
+
+    @Test
+    public void execute_returnsOutputOfCommand() throws Exception {
+        outputs.add(TestUtils.gmOutput("result 1", "OK", "result 2", "OK"));
+        sut = new ShardedGMService(config, 1, builder);
+
+        assertThat(sut.execute("convert", "a.jpg", "b.png"), is("result 1"));
+        assertThat(sut.execute(Arrays.asList("identify", "b.png")), is("result 2"));
+        assertThat(processes, hasSize(1));
+    }
+
+    @Test
+    public void execute_keepsProcess_whenCommandFails() throws Exception {
+        outputs.add(TestUtils.gmOutput("bad", "NG", "good", "OK"));
+        sut = new ShardedGMService(config, 1, builder);
+
+        try {
+            sut.execute("convert", "bad.jpg", "b.png");
+            Assert.fail("should have failed");
+        } catch (GMException e) {
+            assertThat(e.getMessage(), is("bad"));
+        }
+
+        assertThat(sut.execute("convert", "good.jpg", "b.png"), is("good"));
+        assertThat(processes, hasSize(1));
+    }
+
+    @Test
+    public void execute_replacesProcess_afterCommunicationFailure() throws Exception {
+        outputs.add(TestUtils.failingInput(new IOException("broken pipe")));
+        outputs.add(TestUtils.gmOutput("good", "OK"));
+        sut = new ShardedGMService(config, 1, builder);
+
+        try {
+            sut.execute("convert", "a.jpg", "b.png");
+            Assert.fail("should have failed");
+            // SUPPRESS CHECKSTYLE EmptyBlock BECAUSE test
+        } catch (GMServiceException e) {
+        }
+
+        assertThat(sut.execute("convert", "a.jpg", "b.png"), is("good"));
+        assertThat(processes, hasSize(2));
+        verify(processes.get(0)).destroy();
+    }
+
+    @Test
+    public void execute_streamsOutputToConsumer() throws Exception {
+        outputs.add(TestUtils.gmOutput("line 1", "line 2", "OK"));
+        sut = new ShardedGMService(config, 1, builder);
+        final StringBuilder received = new StringBuilder();
+
+        sut.execute(new GMOutputConsumer() {
+            @Override
+            public void consume(byte[] data, int offset, int length) throws IOException {
+                received.append(new String(data, offset, length, config.getCharset()));
+            }
+        }, "identify", "a.jpg");
+
+        assertThat(received.toString(), containsString("line 2"));
+    }
+
+    @Test
+    public void executeAsync_completesCommandsOnAllShards() throws Exception {
+        sut = new ShardedGMService(config, 4, builder);
+        List<CompletableFuture<String>> results = new ArrayList<CompletableFuture<String>>();
+
+        for (int i = 0; i < 100; i++)
+            results.add(sut.executeAsync("convert", i + ".jpg", i + ".png"));
+
+        for (CompletableFuture<String> result : results)
+            assertThat(result.get(5, TimeUnit.SECONDS), is(""));
+        assertThat(processes.size(), lessThanOrEqualTo(4));
+        assertThat(sut.getBacklog(), is(0));
+    }
+
+    @Test
+    public void executeAsync_stealsCommandsQueuedBehindHungShard() throws Exception {
+        outputs.add(TestUtils.hangingInput());
+        sut = new ShardedGMService(config, 2, builder);
+        CompletableFuture<String> hung = sut.executeAsync("convert", "huge.tif", "b.png");
+        while (processes.isEmpty())
+            Thread.sleep(1);
+        List<CompletableFuture<String>> results = new ArrayList<CompletableFuture<String>>();
+
+        for (int i = 0; i < 20; i++)
+            results.add(sut.executeAsync("convert", i + ".jpg", i + ".png"));
+
+        for (CompletableFuture<String> result : results)
+            assertThat(result.get(5, TimeUnit.SECONDS), is(""));
+        assertThat(hung.isDone(), is(false));
+    }
+
+    @Test
+    public void idleShards_waitForCommandsWithoutPolling() throws Exception {
+        final List<Thread> created = new CopyOnWriteArrayList<Thread>();
+        config.setThreadFactory(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                thread.setDaemon(true);
+                created.add(thread);
+                return thread;
+            }
+        });
+        sut = new ShardedGMService(config, 3, builder);
+        assertThat(sut.execute("identify", "a.jpg"), is(""));
+
+        for (Thread thread : created) {
+            for (int i = 0; i < 500 && thread.getState() != Thread.State.WAITING; i++)
+                Thread.sleep(10);
+            assertThat(thread.getState(), is(Thread.State.WAITING));
+        }
+        for (int i = 0; i < 20; i++)
+            assertThat(sut.executeAsync("convert", i + ".jpg", i + ".png").get(5, TimeUnit.SECONDS), is(""));
+    }
+
+    @Test
+    public void close_failsQueuedCommands_andDestroysProcesses() throws Exception {
+        outputs.add(TestUtils.hangingInput());
+        sut = new ShardedGMService(config, 1, builder);
+        CompletableFuture<String> hung = sut.executeAsync("convert", "huge.tif", "b.png");
+        while (processes.isEmpty())
+            Thread.sleep(1);
+        CompletableFuture<String> queued = sut.executeAsync("convert", "a.jpg", "b.png");
+
+        sut.close();
+        processes.get(0).destroy();
+
+        try {
+            queued.get(5, TimeUnit.SECONDS);
+            Assert.fail("should have failed");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(GMServiceException.class));
+        }
+        try {
+            hung.get(5, TimeUnit.SECONDS);
+            Assert.fail("should have failed");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(GMServiceException.class));
+        }
+    }
+
+    @Test
+    public void close_isCalledByTryWithResources() throws Exception {
+        try (ShardedGMService service = new ShardedGMService(config, 1, builder)) {
+            sut = service;
+            assertThat(service.execute("identify", "a.jpg"), is(""));
+        }
+
+        exception.expect(GMServiceException.class);
+        exception.expectMessage("closed");
+
+        sut.execute("identify", "a.jpg");
+    }
+
+    @Test
+    public void execute_chokes_afterClose() throws Exception {
+        sut = new ShardedGMService(config, 1, builder);
+        sut.close();
+
+        exception.expect(GMServiceException.class);
+        exception.expectMessage("closed");
+
+        sut.execute("convert", "a.jpg", "b.png");
+    }
+
+    @Test
+    public void getConnection_executesThroughShards_untilClosed() throws Exception {
+        outputs.add(TestUtils.gmOutput("result", "OK"));
+        sut = new ShardedGMService(config, 1, builder);
+        GMConnection connection = sut.getConnection();
+
+        assertThat(connection.execute("identify", "a.jpg"), is("result"));
+
+        connection.close();
+        exception.expect(GMServiceException.class);
+        exception.expectMessage("already closed");
+        connection.execute("identify", "a.jpg");
+    }
+}
@@ -79,12 +79,11 @@ public class SimpleGMServiceTest extends AbstractGMConnectionTest {
     public void execute_delegatesToConnection() throws Exception {
         final String command = "some command";
         final String expected = "some result";
-        when(process.getWriter()).thenReturn(mockWriter);
-        when(reader.readLine()).thenReturn(expected, "OK");
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput(expected, "OK"));
 
         String result = sut.execute(command);
 
-        verify(mockWriter).write(command);
+        assertThat(written(), is(command + TestUtils.EOL));
         assertThat(result, is(expected));
     }
 
@@ -92,18 +91,17 @@ public class SimpleGMServiceTest extends AbstractGMConnectionTest {
     public void executeByList_delegatesToConnection() throws Exception {
         final String command = "some command";
         final String expected = "some result";
-        when(process.getWriter()).thenReturn(mockWriter);
-        when(reader.readLine()).thenReturn(expected, "OK");
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput(expected, "OK"));
 
         String result = sut.execute(Arrays.asList(command));
 
-        verify(mockWriter).write(command);
+        assertThat(written(), is(" \"" + command + '"' + TestUtils.EOL));
         assertThat(result, is(expected));
     }
 
     @Test
     public void execute_chokes_onGMError() throws Exception {
-        when(reader.readLine()).thenReturn("NG");
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("NG"));
         exception.expect(GMException.class);
 
         sut.execute("any");
@@ -111,7 +109,7 @@ public class SimpleGMServiceTest extends AbstractGMConnectionTest {
 
     @Test
     public void executeByList_chokes_onGMError() throws Exception {
-        when(reader.readLine()).thenReturn("NG");
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("NG"));
         exception.expect(GMException.class);
 
         sut.execute(Arrays.asList("any"));
@@ -119,7 +117,7 @@ public class SimpleGMServiceTest extends AbstractGMConnectionTest {
 
     @Test
     public void execute_destroysProcess_onSuccess() throws Exception {
-        when(reader.readLine()).thenReturn("OK");
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("OK"));
 
         sut.execute("any");
 
@@ -128,7 +126,7 @@ public class SimpleGMServiceTest extends AbstractGMConnectionTest {
 
     @Test
     public void executeByList_destroysProcess_onSuccess() throws Exception {
-        when(reader.readLine()).thenReturn("OK");
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("OK"));
 
         sut.execute(Arrays.asList("any"));
 
@@ -137,7 +135,7 @@ public class SimpleGMServiceTest extends AbstractGMConnectionTest {
 
     @Test
     public void execute_destroysProcess_onFailure() throws Exception {
-        when(reader.readLine()).thenReturn("NG");
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("NG"));
 
         try {
             sut.execute("any");
@@ -151,7 +149,7 @@ public class SimpleGMServiceTest extends AbstractGMConnectionTest {
 
     @Test
     public void executeByList_destroysProcess_onFailure() throws Exception {
-        when(reader.readLine()).thenReturn("NG");
+        when(process.getInputStream()).thenReturn(TestUtils.gmOutput("NG"));
 
         try {
             sut.execute(Arrays.asList("any"));
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMServiceException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Test cases for {@link SingleFlight}.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class SingleFlightTest {
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private final SingleFlight sut = new SingleFlight();
+    private final List<String> key = Arrays.asList("convert", "a.jpg", "b.png");
+    private final AtomicInteger executions = new AtomicInteger();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<Thread> waiters = new CopyOnWriteArrayList<Thread>();
+
+    @Test
+    public void execute_runsIdenticalCommandsInFlightOnce() throws Exception {
+        CompletableFuture<String> first = executeInThread(key, "result");
+        waitUntilExecuted(1);
+
+        CompletableFuture<String> second = executeInThread(Arrays.asList("convert", "a.jpg", "b.png"), "other");
+        waitUntilWaiting();
+        release.countDown();
+
+        assertThat(first.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), is("result"));
+        assertThat(second.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), is("result"));
+        assertThat(executions.get(), is(1));
+        assertThat(sut.size(), is(0));
+    }
+
+    @Test
+    public void execute_runsDifferentCommandsInParallel() throws Exception {
+        CompletableFuture<String> first = executeInThread(key, "result");
+        CompletableFuture<String> second = executeInThread(Arrays.asList("convert", "a.jpg", "c.png"), "other");
+        waitUntilExecuted(2);
+        release.countDown();
+
+        assertThat(first.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), is("result"));
+        assertThat(second.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), is("other"));
+    }
+
+    @Test
+    public void execute_givesExceptionToAllCallers() throws Exception {
+        final GMException error = new GMException("bad");
+        CompletableFuture<String> first = executeInThread(key, error);
+        waitUntilExecuted(1);
+
+        CompletableFuture<String> second = executeInThread(key, "other");
+        waitUntilWaiting();
+        release.countDown();
+
+        assertThat(causeOf(first), is((Throwable) error));
+        assertThat(causeOf(second), is((Throwable) error));
+        assertThat(executions.get(), is(1));
+    }
+
+    @Test
+    public void execute_runsAgain_afterCompletion() throws Exception {
+        release.countDown();
+
+        assertThat(sut.execute(key, command("first")), is("first"));
+        assertThat(sut.execute(key, command("second")), is("second"));
+
+        assertThat(executions.get(), is(2));
+    }
+
+    @Test
+    public void submit_sharesResultOfCommandInFlight() throws Exception {
+        CompletableFuture<String> submitted = new CompletableFuture<String>();
+
+        CompletableFuture<String> first = sut.submit(key, supplier(submitted));
+        CompletableFuture<String> second = sut.submit(key, supplier(new CompletableFuture<String>()));
+        first.cancel(false);
+        submitted.complete("result");
+
+        assertThat(second.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), is("result"));
+        assertThat(executions.get(), is(1));
+        assertThat(sut.size(), is(0));
+    }
+
+    @Test
+    public void submit_sharesFailureOfCommandInFlight() throws Exception {
+        final GMServiceException error = new GMServiceException("no process");
+        CompletableFuture<String> submitted = new CompletableFuture<String>();
+
+        CompletableFuture<String> first = sut.submit(key, supplier(submitted));
+        CompletableFuture<String> second = sut.submit(key, supplier(new CompletableFuture<String>()));
+        submitted.completeExceptionally(error);
+
+        assertThat(causeOf(first), is((Throwable) error));
+        assertThat(causeOf(second), is((Throwable) error));
+        assertThat(sut.size(), is(0));
+    }
+
+    private CompletableFuture<String> executeInThread(final List<String> key, final Object outcome) {
+        final CompletableFuture<String> future = new CompletableFuture<String>();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    future.complete(sut.execute(key, command(outcome)));
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        waiters.add(thread);
+        return future;
+    }
+
+    private SingleFlight.Command command(final Object outcome) {
+        return new SingleFlight.Command() {
+            @Override
+            public String execute() throws IOException, GMException, GMServiceException {
+                executions.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new GMServiceException("interrupted", e);
+                }
+                if (outcome instanceof GMException) throw (GMException) outcome;
+                return (String) outcome;
+            }
+        };
+    }
+
+    private Supplier<CompletableFuture<String>> supplier(final CompletableFuture<String> future) {
+        return new Supplier<CompletableFuture<String>>() {
+            @Override
+            public CompletableFuture<String> get() {
+                executions.incrementAndGet();
+                return future;
+            }
+        };
+    }
+
+    private void waitUntilExecuted(int count) throws InterruptedException {
+        while (executions.get() < count)
+            Thread.sleep(1);
+    }
+
+    // the last thread started is parked waiting for the command in flight
+    private void waitUntilWaiting() throws InterruptedException {
+        final Thread thread = waiters.get(waiters.size() - 1);
+        while (thread.getState() != Thread.State.WAITING)
+            Thread.sleep(1);
+    }
+
+    private static Throwable causeOf(CompletableFuture<String> future) throws Exception {
+        try {
+            future.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            Assert.fail("should have failed");
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Test cases for {@link SpillingOutputConsumer}.
+ * 
+ * @author Kenneth Xu
+ * 
+ */
+public class SpillingOutputConsumerTest {
+    private static final byte[] CHUNK = "0123456789".getBytes(StandardCharsets.US_ASCII);
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void constructor_chokes_onNegativeThreshold() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("threshold");
+
+        new SpillingOutputConsumer(-1);
+    }
+
+    @Test
+    public void consume_keepsOutputInMemory_withinThreshold() throws Exception {
+        SpillingOutputConsumer sut = new SpillingOutputConsumer(20, folder.getRoot());
+
+        sut.consume(CHUNK, 0, 10);
+        sut.consume(CHUNK, 5, 5);
+
+        assertThat(sut.isSpilled(), is(false));
+        assertThat(sut.getFile(), nullValue());
+        assertThat(sut.getSize(), is(15L));
+        assertThat(sut.toString(StandardCharsets.US_ASCII), is("012345678956789"));
+        assertThat(read(sut), is("012345678956789"));
+        sut.close();
+    }
+
+    @Test
+    public void consume_spillsToFile_whenExceedsThreshold() throws Exception {
+        SpillingOutputConsumer sut = new SpillingOutputConsumer(12, folder.getRoot());
+
+        sut.consume(CHUNK, 0, 10);
+        sut.consume(CHUNK, 0, 10);
+        sut.consume(CHUNK, 0, 3);
+
+        assertThat(sut.isSpilled(), is(true));
+        assertThat(sut.getFile().getParentFile(), equalTo(folder.getRoot()));
+        assertThat(sut.getSize(), is(23L));
+        assertThat(sut.toString(StandardCharsets.US_ASCII), is("01234567890123456789012"));
+        assertThat(read(sut), is("01234567890123456789012"));
+        sut.close();
+    }
+
+    @Test
+    public void close_deletesFile() throws Exception {
+        SpillingOutputConsumer sut = new SpillingOutputConsumer(0, folder.getRoot());
+        sut.consume(CHUNK, 0, 1);
+        File file = sut.getFile();
+        assertThat(file.exists(), is(true));
+
+        sut.close();
+
+        assertThat(file.exists(), is(false));
+    }
+
+    @Test
+    public void consume_chokes_afterClose() throws Exception {
+        SpillingOutputConsumer sut = new SpillingOutputConsumer(10);
+        sut.close();
+        exception.expect(IOException.class);
+        exception.expectMessage("closed");
+
+        sut.consume(CHUNK, 0, 1);
+    }
+
+    private static String read(SpillingOutputConsumer sut) throws IOException {
+        InputStream in = sut.getInputStream();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4];
+            int n;
+            while ((n = in.read(buffer)) >= 0) out.write(buffer, 0, n);
+            return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import edu.umd.cs.findbugs.annotations.SuppressWarnings;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Test cases for {@link StandbyProcesses}.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class StandbyProcessesTest {
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+    @Mock
+    private GMProcessFactory factory;
+    @Mock
+    private ReaderWriterProcess process1;
+    @Mock
+    private ReaderWriterProcess process2;
+    @Mock
+    private ReaderWriterProcess process3;
+
+    private final List<Runnable> scheduled = new ArrayList<Runnable>();
+    private final Executor deferred = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            scheduled.add(command);
+        }
+    };
+
+    @Before
+    public void setup() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(factory.getProcess()).thenReturn(process1, process2, process3);
+    }
+
+    @Test
+    @SuppressWarnings("NP_NONNULL_PARAM_VIOLATION")
+    public void constructor_chokes_onNullFactory() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("factory");
+
+        new StandbyProcesses(1, null, deferred);
+    }
+
+    @Test
+    public void constructor_startsProcessesInBackground() throws Exception {
+        StandbyProcesses sut = new StandbyProcesses(2, factory, deferred);
+        verify(factory, never()).getProcess();
+
+        runScheduled();
+
+        assertThat(sut.getCount(), is(2));
+        verify(factory, times(2)).getProcess();
+    }
+
+    @Test
+    public void take_startsProcess_whenSizeIsZero() throws Exception {
+        StandbyProcesses sut = new StandbyProcesses(0, factory, deferred);
+
+        assertThat(sut.take(), is(process1));
+        assertThat(scheduled, is(empty()));
+    }
+
+    @Test
+    public void take_returnsStandbyProcess_andRefills() throws Exception {
+        StandbyProcesses sut = new StandbyProcesses(1, factory, deferred);
+        runScheduled();
+
+        assertThat(sut.take(), is(process1));
+        assertThat(sut.getCount(), is(0));
+
+        runScheduled();
+        assertThat(sut.getCount(), is(1));
+        assertThat(sut.take(), is(process2));
+    }
+
+    @Test
+    public void take_startsProcess_whenStandbyIsNotReady() throws Exception {
+        StandbyProcesses sut = new StandbyProcesses(1, factory, deferred);
+
+        assertThat(sut.take(), is(process1));
+        assertThat(scheduled, hasSize(1));
+    }
+
+    @Test
+    public void take_propagatesException_whenStartingProcessFails() throws Exception {
+        final IOException failure = new IOException("cannot start");
+        when(factory.getProcess()).thenThrow(failure);
+        StandbyProcesses sut = new StandbyProcesses(1, factory, deferred);
+        runScheduled();
+        assertThat(sut.getCount(), is(0));
+
+        exception.expect(is(failure));
+
+        sut.take();
+    }
+
+    @Test
+    public void setFactory_destroysProcessesOfOldFactory() throws Exception {
+        GMProcessFactory factory2 = mock(GMProcessFactory.class);
+        when(factory2.getProcess()).thenReturn(process3);
+        StandbyProcesses sut = new StandbyProcesses(1, factory, deferred);
+        runScheduled();
+
+        sut.setFactory(factory2);
+        runScheduled();
+
+        verify(process1).destroy();
+        assertThat(sut.take(), is(process3));
+    }
+
+    @Test
+    public void close_destroysProcesses_andStopsRefilling() throws Exception {
+        StandbyProcesses sut = new StandbyProcesses(2, factory, deferred);
+        runScheduled();
+
+        sut.close();
+        sut.take();
+
+        verify(process1).destroy();
+        verify(process2).destroy();
+        assertThat(scheduled, is(empty()));
+        assertThat(sut.getCount(), is(0));
+    }
+
+    private void runScheduled() {
+        while (!scheduled.isEmpty())
+            scheduled.remove(0).run();
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.engine.support;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Test cases for {@link SystemResources}.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class SystemResourcesTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void cgroupProcessors_readsCgroupV2Quota() throws Exception {
+        write("cpu.max", "250000 100000\n");
+
+        assertThat(SystemResources.cgroupProcessors(folder.getRoot()), is(3));
+    }
+
+    @Test
+    public void cgroupProcessors_returnsNegative_whenCgroupV2Unlimited() throws Exception {
+        write("cpu.max", "max 100000\n");
+
+        assertThat(SystemResources.cgroupProcessors(folder.getRoot()), is(-1));
+    }
+
+    @Test
+    public void cgroupProcessors_readsCgroupV1Quota() throws Exception {
+        write("cpu,cpuacct/cpu.cfs_quota_us", "200000\n");
+        write("cpu,cpuacct/cpu.cfs_period_us", "100000\n");
+
+        assertThat(SystemResources.cgroupProcessors(folder.getRoot()), is(2));
+    }
+
+    @Test
+    public void cgroupProcessors_returnsNegative_whenCgroupV1Unlimited() throws Exception {
+        write("cpu/cpu.cfs_quota_us", "-1\n");
+        write("cpu/cpu.cfs_period_us", "100000\n");
+
+        assertThat(SystemResources.cgroupProcessors(folder.getRoot()), is(-1));
+    }
+
+    @Test
+    public void cgroupProcessors_returnsNegative_whenNoCgroup() throws Exception {
+        assertThat(SystemResources.cgroupProcessors(folder.getRoot()), is(-1));
+    }
+
+    @Test
+    public void availableProcessors_isCappedByQuota() throws Exception {
+        write("cpu.max", "150000 100000\n");
+
+        assertThat(SystemResources.availableProcessors(32, folder.getRoot()), is(2));
+        assertThat(SystemResources.availableProcessors(1, folder.getRoot()), is(1));
+    }
+
+    @Test
+    public void availableProcessors_usesJvmProcessors_whenNoQuota() throws Exception {
+        assertThat(SystemResources.availableProcessors(8, folder.getRoot()), is(8));
+        assertThat(SystemResources.availableProcessors(), greaterThanOrEqualTo(1));
+    }
+
+    @Test
+    public void threadsPerProcess_dividesProcessors() throws Exception {
+        assertThat(SystemResources.threadsPerProcess(32, 8), is(4));
+        assertThat(SystemResources.threadsPerProcess(32, 32), is(1));
+        assertThat(SystemResources.threadsPerProcess(4, 8), is(1));
+        assertThat(SystemResources.threadsPerProcess(4, 0), is(1));
+    }
+
+    @Test
+    public void cgroupMemory_readsCgroupV2Limit() throws Exception {
+        write("memory.max", "1073741824\n");
+
+        assertThat(SystemResources.cgroupMemory(folder.getRoot()), is(1073741824L));
+    }
+
+    @Test
+    public void cgroupMemory_returnsNegative_whenCgroupV2Unlimited() throws Exception {
+        write("memory.max", "max\n");
+
+        assertThat(SystemResources.cgroupMemory(folder.getRoot()), is(-1L));
+    }
+
+    @Test
+    public void cgroupMemory_readsCgroupV1Limit() throws Exception {
+        write("memory/memory.limit_in_bytes", "536870912\n");
+
+        assertThat(SystemResources.cgroupMemory(folder.getRoot()), is(536870912L));
+    }
+
+    @Test
+    public void cgroupMemory_returnsNegative_whenCgroupV1Unlimited() throws Exception {
+        write("memory/memory.limit_in_bytes", "9223372036854771712\n");
+
+        assertThat(SystemResources.cgroupMemory(folder.getRoot()), is(-1L));
+    }
+
+    @Test
+    public void availableMemory_subtractsHeapFromLesserOfLimitAndPhysical() throws Exception {
+        write("memory.max", "4000\n");
+
+        assertThat(SystemResources.availableMemory(8000, 1000, folder.getRoot()), is(3000L));
+        assertThat(SystemResources.availableMemory(2000, 1000, folder.getRoot()), is(1000L));
+        assertThat(SystemResources.availableMemory(8000, 5000, folder.getRoot()), is(0L));
+    }
+
+    @Test
+    public void availableMemory_usesPhysicalMemory_whenNoLimit() throws Exception {
+        assertThat(SystemResources.availableMemory(8000, 1000, folder.getRoot()), is(7000L));
+        assertThat(SystemResources.availableMemory(-1, 1000, folder.getRoot()), is(-1L));
+    }
+
+    private void write(String path, String content) throws IOException {
+        File file = new File(folder.getRoot(), path);
+        file.getParentFile().mkdirs();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content.getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+}
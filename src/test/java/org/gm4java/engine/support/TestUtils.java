@@ -16,11 +16,19 @@
 package org.gm4java.engine.support;
 
 import static org.mockito.Matchers.argThat;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.verify;
 
 import org.hamcrest.Description;
 import org.mockito.ArgumentMatcher;
 import org.mockito.internal.matchers.VarargMatcher;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * Utilities method to help test.
@@ -62,6 +70,114 @@ final class TestUtils {
         }));
     }
 
+    /**
+     * Creates an {@link InputStream} that emulates the output of a GraphicsMagick process. Each line is followed by
+     * {@link #EOL} and is returned by a separate read. Like a stubbed method, the last line is repeated forever once
+     * all lines are consumed. The stream ends immediately if no line is given.
+     * 
+     * @param lines
+     *            the lines GraphicsMagick outputs
+     * @return the stream of lines
+     */
+    public static InputStream gmOutput(final String... lines) {
+        return new InputStream() {
+            private int index;
+            private byte[] current;
+            private int position;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (lines.length == 0) return -1;
+                if (current == null || position == current.length) {
+                    current = (lines[Math.min(index++, lines.length - 1)] + EOL).getBytes(StandardCharsets.UTF_8);
+                    position = 0;
+                }
+                int n = Math.min(len, current.length - position);
+                System.arraycopy(current, position, b, off, n);
+                position += n;
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Creates an {@link InputStream} that throws given exception on every read.
+     * 
+     * @param exception
+     *            an {@link IOException}, {@link RuntimeException} or {@link Error} to throw
+     * @return the failing stream
+     */
+    public static InputStream failingInput(final Throwable exception) {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                if (exception instanceof IOException) throw (IOException) exception;
+                if (exception instanceof RuntimeException) throw (RuntimeException) exception;
+                throw (Error) exception;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return read();
+            }
+        };
+    }
+
+    /**
+     * Creates an input stream that blocks on read until it is closed, like the output of a hung GraphicsMagick process.
+     * 
+     * @return the hanging stream
+     */
+    public static InputStream hangingInput() {
+        return new InputStream() {
+            private final CountDownLatch closed = new CountDownLatch(1);
+
+            @Override
+            public int read() throws IOException {
+                try {
+                    closed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IOException("Stream closed");
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return read();
+            }
+
+            @Override
+            public void close() {
+                closed.countDown();
+            }
+        };
+    }
+
+    /**
+     * Stubs the process to close the given input when it is destroyed.
+     * 
+     * @param process
+     *            the mock process
+     * @param input
+     *            the input of the process
+     */
+    public static void closeOnDestroy(ReaderWriterProcess process, final InputStream input) {
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                input.close();
+                return null;
+            }
+        }).when(process).destroy();
+    }
+
     private abstract static class VarargArgumentMatcher<T> extends ArgumentMatcher<T[]> implements VarargMatcher {
         private static final long serialVersionUID = 1L;
 
@@ -185,4 +185,37 @@ public class GMBatchCommandTest {
         assertThat(captor.getValue(),
                 equalTo(Arrays.asList(command, captor.getValue().get(1), "-resize", "80x60", TARGET_IMAGE)));
     }
+
+    @Test
+    public void run_skipsService_whenPlannerShortCircuits() throws Exception {
+        final String command = "convert";
+        sut = new GMBatchCommand(service, command);
+        IMOperation op = new IMOperation();
+        op.addImage(SOURCE_IMAGE);
+        op.addImage(TARGET_IMAGE);
+        NoOpPlanner planner = mock(NoOpPlanner.class);
+        List<String> args = Arrays.asList(command, SOURCE_IMAGE, TARGET_IMAGE);
+        when(planner.shortCircuit(args)).thenReturn(true);
+        sut.setPlanner(planner);
+
+        sut.run(op);
+
+        verify(planner).shortCircuit(args);
+        verifyZeroInteractions(service);
+    }
+
+    @Test
+    public void run_sendsCommandToService_whenPlannerDoesNotShortCircuit() throws Exception {
+        final String command = "convert";
+        sut = new GMBatchCommand(service, command);
+        IMOperation op = new IMOperation();
+        op.addImage(SOURCE_IMAGE);
+        op.resize(800, 600);
+        op.addImage(TARGET_IMAGE);
+        sut.setPlanner(mock(NoOpPlanner.class));
+
+        sut.run(op);
+
+        verify(service).execute(Arrays.asList(command, SOURCE_IMAGE, "-resize", "800x600", TARGET_IMAGE));
+    }
 }
@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2011 Original Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gm4java.im4java;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import edu.umd.cs.findbugs.annotations.SuppressWarnings;
+
+import org.gm4java.engine.GMException;
+import org.gm4java.engine.GMExecutor;
+import org.gm4java.engine.support.IdentifyCache;
+import org.gm4java.im4java.GMOperation.GeometryAnnotation;
+import org.im4java.core.Operation;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Matchers;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Test cases for {@link NoOpPlanner}.
+ *
+ * @author Kenneth Xu
+ *
+ */
+public class NoOpPlannerTest {
+    private static final EnumSet<GeometryAnnotation> DOWNSIZE_ONLY = EnumSet.of(GeometryAnnotation.FitUsingAspectRatio,
+            GeometryAnnotation.DownsizeOnly);
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private GMExecutor executor;
+    private NoOpPlanner sut;
+    private File source;
+
+    @Before
+    public void setup() throws Exception {
+        executor = mock(GMExecutor.class);
+        sut = new NoOpPlanner(new IdentifyCache(executor, 10));
+        source = png("in.png", 640, 480);
+    }
+
+    @Test
+    @SuppressWarnings("NP_NONNULL_PARAM_VIOLATION")
+    public void constructor_chokes_onNullIdentifyCache() {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("identifyCache");
+        new NoOpPlanner(null);
+    }
+
+    @Test
+    public void isNoOp_returnsTrue_whenImageFitsDownsizeOnlyResize() throws Exception {
+        GMOperation op = new GMOperation().limitThreads(1).source(source, 800, 600);
+        op.resize(800, 600, DOWNSIZE_ONLY).scale(640, 480, DOWNSIZE_ONLY).addImage(file("out.png"));
+
+        assertThat(sut.isNoOp(convert(op)), is(true));
+        verifyZeroInteractions(executor);
+    }
+
+    @Test
+    public void isNoOp_returnsTrue_whenTargetHasSameFormatPrefix() throws Exception {
+        GMOperation op = new GMOperation().source(source, null, null).resize(640, 640, DOWNSIZE_ONLY);
+        op.addImage("PNG:" + file("out.img").getPath());
+
+        assertThat(sut.isNoOp(convert(op)), is(true));
+    }
+
+    @Test
+    public void isNoOp_returnsFalse_whenImageIsLargerThanResize() throws Exception {
+        GMOperation op = new GMOperation().source(source, null, null).resize(800, 400, DOWNSIZE_ONLY);
+        op.addImage(file("out.png"));
+
+        assertThat(sut.isNoOp(convert(op)), is(false));
+    }
+
+    @Test
+    public void isNoOp_returnsFalse_whenImageIsLargerThanSizeHint() throws Exception {
+        GMOperation op = new GMOperation().source(source, 320, 240).resize(800, 600, DOWNSIZE_ONLY);
+        op.addImage(file("out.png"));
+
+        assertThat(sut.isNoOp(convert(op)), is(false));
+    }
+
+    @Test
+    public void isNoOp_returnsFalse_whenLaterFrameIsLarger() throws Exception {
+        File single = gif("single.gif", 100, 50);
+        File animated = gif("animated.gif", 100, 50, 800, 600);
+        GMOperation op = new GMOperation();
+        op.resize(200, 200, DOWNSIZE_ONLY);
+
+        assertThat(sut.isNoOp(convert(op, single, file("out1.gif"))), is(true));
+        assertThat(sut.isNoOp(convert(op, animated, file("out2.gif"))), is(false));
+    }
+
+    @Test
+    public void isNoOp_returnsFalse_whenResizeIsNotDownsizeOnly() throws Exception {
+        GMOperation op = new GMOperation().source(source, null, null);
+        op.resize(800, 600);
+        op.addImage(file("out.png"));
+
+        assertThat(sut.isNoOp(convert(op)), is(false));
+    }
+
+    @Test
+    public void isNoOp_returnsFalse_whenCommandHasOtherOption() throws Exception {
+        GMOperation op = new GMOperation().source(source, null, null).resize(800, 600, DOWNSIZE_ONLY);
+        op.quality(85.0).addImage(file("out.png"));
+
+        assertThat(sut.isNoOp(convert(op)), is(false));
+    }
+
+    @Test
+    public void isNoOp_returnsFalse_whenFormatChanges() throws Exception {
+        GMOperation op = new GMOperation().source(source, null, null).resize(800, 600, DOWNSIZE_ONLY);
+
+        assertThat(sut.isNoOp(convert(new GMOperation().addImage(source).addImage(file("out.jpg")))), is(false));
+        assertThat(sut.isNoOp(convert(op.addImage("jpg:" + file("out.png").getPath()))), is(false));
+    }
+
+    @Test
+    public void isNoOp_returnsFalse_whenTargetFormatIsUnknown() throws Exception {
+        GMOperation op = new GMOperation().addImage(source).addImage(file("out.pdf"));
+
+        assertThat(sut.isNoOp(convert(op)), is(false));
+        assertThat(sut.isNoOp(convert(new GMOperation().addImage(source).addImage("-"))), is(false));
+    }
+
+    @Test
+    public void isNoOp_returnsFalse_whenNotConvertingOneImage() throws Exception {
+        File other = png("other.png", 10, 10);
+        List<String> command = convert(new GMOperation().addImage(source).addImage(file("out.png")));
+        command.set(0, "mogrify");
+
+        assertThat(sut.isNoOp(command), is(false));
+        assertThat(sut.isNoOp(convert(new GMOperation().addImage(source).addImage(other).addImage(file("out.png")))),
+                is(false));
+        assertThat(sut.isNoOp(convert(new GMOperation().addImage(source + "[0]", file("out.png").getPath()))),
+                is(false));
+    }
+
+    @Test
+    public void isNoOp_returnsFalse_whenSourceCannotBeIdentified() throws Exception {
+        when(executor.execute(eq("identify"), Matchers.<String[]> anyVararg())).thenThrow(new GMException("bad"));
+        File unknown = folder.newFile("in.png.part");
+        File renamed = file("renamed.png");
+        Files.write(renamed.toPath(), new byte[] { 1, 2, 3 });
+
+        assertThat(sut.isNoOp(convert(new GMOperation().addImage(file("missing.png")).addImage(file("out.png")))),
+                is(false));
+        assertThat(sut.isNoOp(convert(new GMOperation().addImage(unknown).addImage(file("out.png")))), is(false));
+        assertThat(sut.isNoOp(convert(new GMOperation().addImage(renamed).addImage(file("out.png")))), is(false));
+    }
+
+    @Test
+    public void shortCircuit_copiesSource_whenNoOp() throws Exception {
+        File target = png("out.png", 1, 1);
+        GMOperation op = new GMOperation().source(source, null, null).resize(800, 600, DOWNSIZE_ONLY);
+        op.addImage(target);
+
+        assertThat(sut.shortCircuit(convert(op)), is(true));
+
+        assertThat(Files.readAllBytes(target.toPath()), is(Files.readAllBytes(source.toPath())));
+        assertThat(Files.isSameFile(source.toPath(), target.toPath()), is(false));
+    }
+
+    @Test
+    public void shortCircuit_linksSource_whenHardLink() throws Exception {
+        File target = file("out.png");
+        sut.setHardLink(true);
+        assertThat(sut.isHardLink(), is(true));
+
+        assertThat(sut.shortCircuit(convert(new GMOperation().addImage(source).addImage("png:" + target))), is(true));
+
+        assertThat(Files.isSameFile(source.toPath(), target.toPath()), is(true));
+    }
+
+    @Test
+    public void shortCircuit_leavesSource_whenTargetIsSource() throws Exception {
+        byte[] content = Files.readAllBytes(source.toPath());
+
+        assertThat(sut.shortCircuit(convert(new GMOperation().addImage(source).addImage(source))), is(true));
+
+        assertThat(Files.readAllBytes(source.toPath()), is(content));
+    }
+
+    @Test
+    public void shortCircuit_returnsFalse_whenNotNoOp() throws Exception {
+        File target = file("out.png");
+        GMOperation op = new GMOperation().source(source, null, null).resize(100, 100, DOWNSIZE_ONLY);
+        op.addImage(target);
+
+        assertThat(sut.shortCircuit(convert(op)), is(false));
+
+        assertThat(target.exists(), is(false));
+    }
+
+    private static List<String> convert(Operation op) {
+        List<String> command = new ArrayList<String>();
+        command.add("convert");
+        command.addAll(op.getCmdArgs());
+        return command;
+    }
+
+    private static List<String> convert(GMOperation op, File source, File target) {
+        List<String> command = new ArrayList<String>();
+        command.add("convert");
+        command.add(source.getPath());
+        command.addAll(op.getCmdArgs());
+        command.add(target.getPath());
+        return command;
+    }
+
+    private File file(String name) {
+        return new File(folder.getRoot(), name);
+    }
+
+    private File png(String name, int width, int height) throws Exception {
+        ByteBuffer png = ByteBuffer.allocate(41);
+        png.put(new byte[] { (byte) 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A, 0, 0, 0, 13, 'I', 'H', 'D', 'R' });
+        png.putInt(width).putInt(height).put(new byte[] { 8, 6, 0, 0, 0 }).putInt(0);
+        png.put(new byte[] { 0, 0, 0, 0, 'I', 'D', 'A', 'T' });
+        File file = file(name);
+        Files.write(file.toPath(), png.array());
+        return file;
+    }
+
+    /**
+     * Creates a GIF with a frame of each given width and height, the logical screen is the size of the first one.
+     */
+    private File gif(String name, int... sizes) throws Exception {
+        ByteBuffer gif = ByteBuffer.allocate(14 + sizes.length / 2 * 15).order(ByteOrder.LITTLE_ENDIAN);
+        gif.put(new byte[] { 'G', 'I', 'F', '8', '9', 'a' }).putShort((short) sizes[0]).putShort((short) sizes[1]);
+        gif.put(new byte[] { 0, 0, 0 });
+        for (int i = 0; i < sizes.length; i += 2) {
+            gif.put((byte) 0x2C).putShort((short) 0).putShort((short) 0);
+            gif.putShort((short) sizes[i]).putShort((short) sizes[i + 1]).put((byte) 0);
+            gif.put(new byte[] { 2, 2, 0x44, 0x01, 0 });
+        }
+        gif.put((byte) 0x3B);
+        File file = file(name);
+        Files.write(file.toPath(), gif.array());
+        return file;
+    }
+}